@@ -1,11 +1,18 @@
 package org.code_revue.dns.message;
 
+import org.code_revue.dns.message.rdata.RecordData;
 import org.code_revue.dns.util.ByteBufferUtils;
 
 import java.nio.ByteBuffer;
 
 /**
  * Wraps a {@link java.nio.ByteBuffer} and provides bean-like getters and setters for underlying DNS message.
+ * <p>
+ * The first time a section or record is requested, the overlay walks the message once and records where each question
+ * and resource record starts. Every later request uses that index instead of re-parsing the names in front of it.
+ * Changing one of the section counts discards the index. The overlay only reads up to the buffer's limit, so a message
+ * that claims more records than it holds is reported with an {@link java.lang.IndexOutOfBoundsException}.
+ * </p>
  *
  * @author Mike Fanning
  * @see <a href="http://www.tcpipguide.com/free/t_DNSMessageHeaderandQuestionSectionFormat.htm">
@@ -15,24 +22,27 @@ public class DnsMessageOverlay {
 
     private ByteBuffer messageData;
     private ByteBuffer headerData;
-    private ByteBuffer questionData;
+
+    private SectionIndex index;
+    private DnsQuestion[] questions;
 
     public static final int HEADER_LENGTH = 12;
     public static final int MAX_UDP_DNS_LENGTH = 512;
 
+    private static final int MIN_QUESTION_LENGTH = 5;
+    private static final int MIN_RECORD_LENGTH = 11;
+
     /**
-     * Creates a new overlay for a DNS message
+     * Creates a new overlay for a DNS message. The message runs from the start of the buffer to its limit.
      * @param data DNS message
      */
     public DnsMessageOverlay(ByteBuffer data) {
         this.messageData = data;
+        int limit = this.messageData.limit();
         this.messageData.position(0);
         this.messageData.limit(HEADER_LENGTH);
         this.headerData = this.messageData.slice();
-        this.messageData.position(HEADER_LENGTH);
-        this.messageData.limit(this.messageData.capacity());
-        this.questionData = this.messageData.slice();
-        this.messageData.position(0);
+        this.messageData.limit(limit);
     }
 
     public short getIdentifier() {
@@ -63,6 +73,9 @@ public class DnsMessageOverlay {
         if (null == opCode) {
             throw new IllegalArgumentException("Op Code cannot be null");
         }
+        if (DnsOpCode.UNKNOWN == opCode) {
+            throw new IllegalArgumentException("Op Code must have a numeric value");
+        }
         byte opCodeByte = (byte) ((headerData.get(2) & 0b10000111) | (opCode.getOpCodeValue() << 3));
         headerData.put(2, opCodeByte);
     }
@@ -123,6 +136,9 @@ public class DnsMessageOverlay {
         if (null == responseCode) {
             throw new IllegalArgumentException("Response code cannot be null");
         }
+        if (DnsResponseCode.UNKNOWN == responseCode) {
+            throw new IllegalArgumentException("Response code must have a numeric value");
+        }
         byte responseCodeByte = (byte) ((headerData.get(3) & 0b10000000) | responseCode.getResponseCodeValue());
         headerData.put(3, responseCodeByte);
     }
@@ -133,6 +149,8 @@ public class DnsMessageOverlay {
 
     public void setQuestionCount(short qCount) {
         headerData.putShort(4, qCount);
+        index = null;
+        questions = null;
     }
 
     public short getAnswerCount() {
@@ -141,6 +159,7 @@ public class DnsMessageOverlay {
 
     public void setAnswerCount(short aCount) {
         headerData.putShort(6, aCount);
+        index = null;
     }
 
     public short getNameServerCount() {
@@ -149,6 +168,7 @@ public class DnsMessageOverlay {
 
     public void setNameServerCount(short nsCount) {
         headerData.putShort(8, nsCount);
+        index = null;
     }
 
     public short getAdditionalRecordCount() {
@@ -157,69 +177,220 @@ public class DnsMessageOverlay {
 
     public void setAdditionalRecordCount(short arCount) {
         headerData.putShort(10, arCount);
+        index = null;
     }
 
     public int getQuestionSectionLength() {
+        return getIndex().answerOffset - HEADER_LENGTH;
+    }
 
-        int questionCount = getQuestionCount();
-        int questionLength = 0;
-
-        for (int c = 0; c < questionCount; c++) {
-            byte segmentLength = questionData.get(questionLength);
-            questionLength++;
-            while (segmentLength != 0) {
-                questionLength += segmentLength;
-                segmentLength = questionData.get(questionLength);
-                questionLength++;
+    /**
+     * Parses the question section of the message. Question names point into the message buffer rather than being
+     * copied out of it. The questions are only parsed once per overlay.
+     * @return Questions
+     */
+    public DnsQuestion[] getQuestions() {
+        if (null == questions) {
+            int[] offsets = getIndex().questionOffsets;
+            DnsQuestion[] parsed = new DnsQuestion[offsets.length];
+            for (int i = 0; i < offsets.length; i++) {
+                DnsName questionName = DnsName.wrap(messageData, offsets[i]);
+                int position = offsets[i] + questionName.getWireLength();
+                int questionType = messageData.getShort(position) & 0xffff;
+                int questionClass = messageData.getShort(position + 2) & 0xffff;
+                parsed[i] = new DnsQuestion(questionName, questionType, questionClass);
             }
-            questionLength += 4;
+            questions = parsed;
         }
-        return questionLength;
+        return questions.clone();
     }
 
-    public DnsQuestion[] getQuestions() {
-        int questionCount = getQuestionCount();
-        DnsQuestion[] questions = new DnsQuestion[questionCount];
-        questionData.position(0);
-        for (int i = 0; i < questionCount; i++) {
-            String questionName = ByteBufferUtils.readDomainName(questionData);
-            DnsRecordType questionType = DnsRecordType.getRecordType(questionData.getShort());
-            DnsRecordClass questionClass = DnsRecordClass.getRecordClass(questionData.getShort());
-            questions[i] = new DnsQuestion(questionName, questionType, questionClass);
+    /**
+     * Parses the answer section of the message.
+     * @return Answer records
+     */
+    public DnsRecord[] getAnswers() {
+        SectionIndex sections = getIndex();
+        return readRecords(sections, 0, sections.answerCount);
+    }
+
+    /**
+     * Parses the authority (name server) section of the message.
+     * @return Authority records
+     */
+    public DnsRecord[] getNameServers() {
+        SectionIndex sections = getIndex();
+        return readRecords(sections, sections.answerCount, sections.nameServerCount);
+    }
+
+    /**
+     * Parses the additional records section of the message.
+     * @return Additional records
+     */
+    public DnsRecord[] getAdditionalRecords() {
+        SectionIndex sections = getIndex();
+        return readRecords(sections, sections.answerCount + sections.nameServerCount, sections.additionalCount);
+    }
+
+    /**
+     * Get the offset of the first answer record, which is also the end of the question section.
+     * @return Offset from the start of the message
+     */
+    public int getAnswerSectionOffset() {
+        return getIndex().answerOffset;
+    }
+
+    /**
+     * Get the offset of a resource record. Records are numbered in message order, starting with the answers, then the
+     * authority records, then the additional records.
+     * @param record Record number
+     * @return Offset of the record's owner name from the start of the message
+     */
+    public int getRecordOffset(int record) {
+        return getIndex().recordOffsets[record];
+    }
+
+    /**
+     * Get a view of a record's resource data that reads straight from the message. Unlike the data of the records
+     * returned by {@link #getAnswers()} and friends, nothing is copied and names are not decompressed; they are
+     * wrapped in place and their pointers followed on demand.
+     * @param record Record number, as for {@link #getRecordOffset(int)}
+     * @return Resource data view
+     */
+    public RecordData getRecordData(int record) {
+        int position = skipDomainName(getRecordOffset(record));
+        DnsRecordType recordType = DnsRecordType.getRecordType(messageData.getShort(position) & 0xffff);
+        int resourceDataLength = messageData.getShort(position + 8) & 0xffff;
+        return RecordData.wrap(recordType, messageData, position + 10, resourceDataLength);
+    }
+
+    /**
+     * Get the length of the message up to the end of the last record its header counts for.
+     * @return Message length in bytes
+     */
+    public int getMessageLength() {
+        return getIndex().endOffset;
+    }
+
+    private SectionIndex getIndex() {
+        SectionIndex sections = index;
+        if (null == sections) {
+            sections = new SectionIndex(this);
+            index = sections;
         }
-        return questions;
+        return sections;
     }
 
-    public DnsRecord[] getAnswers() {
-        int answerCount = getAnswerCount();
-        DnsRecord[] answers = new DnsRecord[answerCount];
-        questionData.position(getQuestionSectionLength());
-        for (int i = 0; i < answerCount; i++) {
-
-            String recordName;
-            short temp = questionData.getShort(questionData.position());
-            // Check for compression - if length byte starts with 11, it is a reference to a name elsewhere in the
-            // message.
-            if (0xc000 == (temp & 0xc000)) {
-                // Call getShort again to advance the position
-                int namePosition = questionData.getShort() & 0x3fff;
-                // Offset of domain name is within the entire message block, so use messageData
-                messageData.position(namePosition);
-                recordName = ByteBufferUtils.readDomainName(messageData);
-            } else {
-                recordName = ByteBufferUtils.readDomainName(questionData);
-            }
+    private DnsRecord[] readRecords(SectionIndex sections, int first, int count) {
+        DnsRecord[] records = new DnsRecord[count];
+        for (int i = 0; i < count; i++) {
+            int position = sections.recordOffsets[first + i];
+            String recordName = readDomainName(position);
+            position = skipDomainName(position);
+
+            int recordTypeCode = messageData.getShort(position) & 0xffff;
+            int recordClassCode = messageData.getShort(position + 2) & 0xffff;
+            int ttl = messageData.getInt(position + 4);
+            int resourceDataLength = messageData.getShort(position + 8) & 0xffff;
+            position += 10;
+
+            DnsRecordType recordType = DnsRecordType.getRecordType(recordTypeCode);
+            byte[] resourceData = readResourceData(recordType, position, resourceDataLength);
+            records[i] = new DnsRecord(recordName, recordTypeCode, recordClassCode, ttl, resourceData);
+        }
+        return records;
+    }
 
-            DnsRecordType recordType = DnsRecordType.getRecordType(questionData.getShort());
-            DnsRecordClass recordClass = DnsRecordClass.getRecordClass(questionData.getShort());
-            int ttl = questionData.getInt();
-            short resourceDataLength = questionData.getShort();
-            byte[] resourceData = new byte[resourceDataLength];
-            questionData.get(resourceData);
-            answers[i] = new DnsRecord(recordName, recordType, recordClass, ttl, resourceData);
+    /**
+     * Copies resource data out of the message. Record types that embed domain names are decompressed, because any
+     * compression pointers would be meaningless once the data leaves this message.
+     */
+    private byte[] readResourceData(DnsRecordType recordType, int position, int length) {
+        switch (recordType) {
+            case NS:
+            case CNAME:
+            case PTR:
+                return ByteBufferUtils.encodeDomainName(readDomainName(position));
+            case MX: {
+                byte[] exchange = ByteBufferUtils.encodeDomainName(readDomainName(position + 2));
+                ByteBuffer data = ByteBuffer.allocate(2 + exchange.length);
+                data.putShort(messageData.getShort(position)).put(exchange);
+                return data.array();
+            }
+            case SOA: {
+                byte[] primary = ByteBufferUtils.encodeDomainName(readDomainName(position));
+                int mailboxPosition = skipDomainName(position);
+                byte[] mailbox = ByteBufferUtils.encodeDomainName(readDomainName(mailboxPosition));
+                int fieldsPosition = skipDomainName(mailboxPosition);
+                ByteBuffer data = ByteBuffer.allocate(primary.length + mailbox.length + 20);
+                data.put(primary).put(mailbox);
+                for (int i = 0; i < 20; i++) {
+                    data.put(messageData.get(fieldsPosition + i));
+                }
+                return data.array();
+            }
+            default:
+                byte[] resourceData = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    resourceData[i] = messageData.get(position + i);
+                }
+                return resourceData;
         }
+    }
+
+    private String readDomainName(int position) {
+        return ByteBufferUtils.readDomainName(messageData, position);
+    }
 
-        return answers;
+    private int skipDomainName(int position) {
+        return ByteBufferUtils.skipDomainName(messageData, position);
+    }
+
+    /**
+     * Offsets of every question and record in the message, found in a single pass.
+     */
+    private static class SectionIndex {
+
+        private final int[] questionOffsets;
+        private final int[] recordOffsets;
+        private final int answerCount;
+        private final int nameServerCount;
+        private final int additionalCount;
+        private final int answerOffset;
+        private final int endOffset;
+
+        public SectionIndex(DnsMessageOverlay overlay) {
+            int questionCount = overlay.getQuestionCount() & 0xffff;
+            answerCount = overlay.getAnswerCount() & 0xffff;
+            nameServerCount = overlay.getNameServerCount() & 0xffff;
+            additionalCount = overlay.getAdditionalRecordCount() & 0xffff;
+            int recordCount = answerCount + nameServerCount + additionalCount;
+
+            // Check the counts against the smallest possible questions and records before allocating anything
+            if (HEADER_LENGTH + questionCount * MIN_QUESTION_LENGTH + recordCount * MIN_RECORD_LENGTH >
+                    overlay.messageData.limit()) {
+                throw new IndexOutOfBoundsException("Message is shorter than its header indicates");
+            }
+            questionOffsets = new int[questionCount];
+            recordOffsets = new int[recordCount];
+
+            int position = HEADER_LENGTH;
+            for (int i = 0; i < questionOffsets.length; i++) {
+                questionOffsets[i] = position;
+                position = overlay.skipDomainName(position) + 4;
+            }
+            answerOffset = position;
+
+            for (int i = 0; i < recordOffsets.length; i++) {
+                recordOffsets[i] = position;
+                position = overlay.skipDomainName(position) + 8;
+                position += (overlay.messageData.getShort(position) & 0xffff) + 2;
+            }
+            if (position > overlay.messageData.limit()) {
+                throw new IndexOutOfBoundsException("Message is shorter than its header indicates");
+            }
+            endOffset = position;
+        }
     }
 
 }
@@ -0,0 +1,135 @@
+package org.code_revue.dns.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that a received message is a well formed query before any work is spent on it. The checks only read the
+ * header, walk the label lengths of each name and hop over each record using its RDLENGTH; names are not decoded,
+ * compression pointers are not followed and nothing is allocated, so rejecting garbage costs less than parsing a valid
+ * query.
+ * <p>
+ * The result says what the server should do with the message. Anything too short to carry a header, and any message
+ * with the QR bit set, should be dropped without a reply, since answering responses is how reflection loops start.
+ * Queries with an opcode other than QUERY get NOTIMP, and queries whose counts, names or records don't fit in the
+ * message get FORMERR, as described in RFC 1035, section 4.1.1.
+ * </p>
+ * <p>
+ * A message that passes can be read with a {@link org.code_revue.dns.message.DnsMessageOverlay} without running past
+ * its end. The names in it may still contain compression pointers that loop, which are rejected when the names are
+ * decoded.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-4.1.1">https://tools.ietf.org/html/rfc1035#section-4.1.1</a>
+ */
+public class DnsMessageValidator {
+
+    /**
+     * Outcome of validating a message.
+     */
+    public enum Result {
+        VALID,
+        DROP,
+        FORMAT_ERROR,
+        NOT_IMPLEMENTED
+    }
+
+    private static final int MIN_QUESTION_LENGTH = 5;
+    private static final int MIN_RECORD_LENGTH = 11;
+    private static final int MAX_NAME_LENGTH = 255;
+
+    private int maxQuestionCount = 16;
+
+    /**
+     * Validates the message between index zero and the buffer's limit. The buffer's position and limit are not changed.
+     * @param message Received message
+     * @return What to do with the message
+     */
+    public Result validate(ByteBuffer message) {
+        int limit = message.limit();
+        if (limit < DnsMessageOverlay.HEADER_LENGTH) {
+            return Result.DROP;
+        }
+
+        int flags = message.get(2) & 0xff;
+        if (0 != (flags & 0x80)) {
+            return Result.DROP;
+        }
+        if (DnsOpCode.QUERY.getOpCodeValue() != ((flags >> 3) & 0x0f)) {
+            return Result.NOT_IMPLEMENTED;
+        }
+
+        int questionCount = message.getShort(4) & 0xffff;
+        int recordCount = (message.getShort(6) & 0xffff) + (message.getShort(8) & 0xffff) +
+                (message.getShort(10) & 0xffff);
+        if (0 == questionCount || questionCount > maxQuestionCount ||
+                DnsMessageOverlay.HEADER_LENGTH + questionCount * MIN_QUESTION_LENGTH +
+                        recordCount * MIN_RECORD_LENGTH > limit) {
+            return Result.FORMAT_ERROR;
+        }
+
+        int position = DnsMessageOverlay.HEADER_LENGTH;
+        for (int i = 0; i < questionCount && position >= 0; i++) {
+            position = skipName(message, position, limit) + 4;
+        }
+        for (int i = 0; i < recordCount && position >= 0 && position <= limit; i++) {
+            position = skipName(message, position, limit) + 10;
+            if (position >= 10 && position <= limit) {
+                position += message.getShort(position - 2) & 0xffff;
+            }
+        }
+        return position < 0 || position > limit ? Result.FORMAT_ERROR : Result.VALID;
+    }
+
+    /**
+     * Returns the offset after the name at the supplied offset, or a large negative number if the name is malformed, so
+     * that callers can keep adding fixed field lengths and check once at the end.
+     */
+    private static int skipName(ByteBuffer message, int offset, int limit) {
+        int position = offset;
+        while (position < limit) {
+            int segmentLength = message.get(position) & 0xff;
+            if (0 == segmentLength) {
+                return position + 1;
+            }
+            if (0xc0 == (segmentLength & 0xc0)) {
+                if (position + 1 >= limit) {
+                    break;
+                }
+                int pointer = message.getShort(position) & 0x3fff;
+                if (pointer < DnsMessageOverlay.HEADER_LENGTH || pointer >= offset) {
+                    break;
+                }
+                return position + 2;
+            }
+            if (segmentLength > 63) {
+                break;
+            }
+            position += segmentLength + 1;
+            if (position - offset >= MAX_NAME_LENGTH) {
+                break;
+            }
+        }
+        return Integer.MIN_VALUE / 2;
+    }
+
+    /**
+     * Get the number of questions a query may ask at once.
+     * @return Maximum question count
+     */
+    public int getMaxQuestionCount() {
+        return maxQuestionCount;
+    }
+
+    /**
+     * Set the number of questions a query may ask at once. Queries with more questions get FORMERR.
+     * @param maxQuestionCount Maximum question count
+     */
+    public void setMaxQuestionCount(int maxQuestionCount) {
+        if (maxQuestionCount < 1) {
+            throw new IllegalArgumentException("Queries must be allowed at least one question");
+        }
+        this.maxQuestionCount = maxQuestionCount;
+    }
+
+}
@@ -0,0 +1,361 @@
+package org.code_revue.dns.message;
+
+import org.code_revue.dns.util.AsciiCase;
+import org.code_revue.dns.util.ByteBufferUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Domain name backed directly by the label bytes of a DNS message. Wrapping a name records where each of its labels
+ * starts (following compression pointers) but does not copy the labels or build a {@link java.lang.String}, so names
+ * can be hashed, compared and tested against suffixes straight out of the packet.
+ * <p>
+ * Hashing and equality are case-insensitive for ASCII letters, as required by RFC 4343, and ignore how the name was
+ * compressed, and both fold case over the label bytes a word at a time using
+ * {@link org.code_revue.dns.util.AsciiCase}. A wrapped name is only valid for as long as the message buffer it points
+ * into is left unchanged. Use {@link #copy()} to get a detached name that can be kept, for example as a cache key.
+ * </p>
+ * <p>
+ * Instances are immutable, provided the underlying buffer is not modified.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-4.1.4">https://tools.ietf.org/html/rfc1035#section-4.1.4</a>
+ */
+public final class DnsName {
+
+    /**
+     * Maximum length of an encoded domain name, including length bytes and the terminating zero.
+     */
+    public static final int MAX_LENGTH = ByteBufferUtils.MAX_DOMAIN_NAME_LENGTH;
+
+    private static final int[] NO_LABELS = new int[0];
+
+    /**
+     * The root domain, which has no labels.
+     */
+    public static final DnsName ROOT = new DnsName(ByteBuffer.wrap(new byte[1]), NO_LABELS, 0, 1);
+
+    private final ByteBuffer data;
+    private final int[] labels;
+    private final int first;
+    private final int wireLength;
+    private int hash;
+
+    private DnsName(ByteBuffer data, int[] labels, int first, int wireLength) {
+        this.data = data;
+        this.labels = labels;
+        this.first = first;
+        this.wireLength = wireLength;
+    }
+
+    /**
+     * Wraps the encoded domain name at an absolute offset in a DNS message. Compression pointers are followed, but
+     * each one must point before the start of the name and before the target of any earlier pointer, which rules out
+     * pointer loops.
+     * @param message Complete DNS message, pointers are relative to the start of this buffer
+     * @param offset Offset of the first length byte
+     * @return Domain name
+     * @throws java.lang.IllegalArgumentException If the name is malformed or longer than {@link #MAX_LENGTH}
+     */
+    public static DnsName wrap(ByteBuffer message, int offset) {
+
+        // First pass validates the name and counts its labels, second pass records where they are
+        int count = 0;
+        int length = 1;
+        int position = offset;
+        int wireLength = -1;
+        int bound = offset;
+        int segmentLength = getLength(message, position);
+        while (0 != segmentLength) {
+            if (0xc0 == (segmentLength & 0xc0)) {
+                int pointer = getPointer(message, position, bound);
+                bound = pointer;
+                if (wireLength < 0) {
+                    wireLength = position + 2 - offset;
+                }
+                position = pointer;
+            } else if (0 != (segmentLength & 0xc0)) {
+                throw new IllegalArgumentException("Unsupported label type at offset " + position);
+            } else {
+                length += segmentLength + 1;
+                if (length > MAX_LENGTH) {
+                    throw new IllegalArgumentException("Domain name exceeds " + MAX_LENGTH + " bytes");
+                }
+                count++;
+                position += segmentLength + 1;
+            }
+            segmentLength = getLength(message, position);
+        }
+        if (wireLength < 0) {
+            wireLength = position + 1 - offset;
+        }
+
+        if (0 == count) {
+            return new DnsName(message, NO_LABELS, 0, wireLength);
+        }
+
+        int[] labels = new int[count];
+        position = offset;
+        for (int i = 0; i < count; i++) {
+            segmentLength = message.get(position) & 0xff;
+            while (0xc0 == (segmentLength & 0xc0)) {
+                position = message.getShort(position) & 0x3fff;
+                segmentLength = message.get(position) & 0xff;
+            }
+            labels[i] = position;
+            position += segmentLength + 1;
+        }
+        return new DnsName(message, labels, 0, wireLength);
+    }
+
+    /**
+     * Creates a detached name from its text representation. A trailing dot is optional, and the empty string is the
+     * root domain.
+     * @param name Domain name, e.g. "www.example.com"
+     * @return Domain name
+     * @throws java.lang.IllegalArgumentException If the name is too long or has an empty or oversized label
+     */
+    public static DnsName valueOf(String name) {
+        if (name.isEmpty() || ".".equals(name)) {
+            return ROOT;
+        }
+        for (int i = 0, start = 0; i <= name.length(); i++) {
+            if (i == name.length() || '.' == name.charAt(i)) {
+                int labelLength = i - start;
+                if ((0 == labelLength && i < name.length()) || labelLength > 63) {
+                    throw new IllegalArgumentException("Invalid label in domain name " + name);
+                }
+                start = i + 1;
+            }
+        }
+        byte[] encoded = ByteBufferUtils.encodeDomainName(name);
+        if (encoded.length > MAX_LENGTH + 1) {
+            throw new IllegalArgumentException("Domain name exceeds " + MAX_LENGTH + " bytes");
+        }
+        return wrap(ByteBuffer.wrap(encoded), 0);
+    }
+
+    /**
+     * Get the number of bytes the name occupies at the offset it was wrapped from, which is where the next field in
+     * the message begins. This is shorter than {@link #getLength()} when the name is compressed.
+     * @return Number of bytes up to and including the terminating zero or compression pointer
+     */
+    public int getWireLength() {
+        return wireLength;
+    }
+
+    /**
+     * Get the uncompressed encoded length of the name.
+     * @return Length in bytes, including length bytes and the terminating zero
+     */
+    public int getLength() {
+        int length = 1;
+        for (int i = first; i < labels.length; i++) {
+            length += (data.get(labels[i]) & 0xff) + 1;
+        }
+        return length;
+    }
+
+    /**
+     * Get the number of labels in the name. The root domain has none.
+     * @return Label count
+     */
+    public int getLabelCount() {
+        return labels.length - first;
+    }
+
+    /**
+     * Get the length of a label.
+     * @param index Label index, with zero being the leftmost label
+     * @return Number of bytes in the label
+     */
+    public int getLabelLength(int index) {
+        return data.get(labels[first + index]) & 0xff;
+    }
+
+    /**
+     * Get a byte from a label, as it appears in the message.
+     * @param index Label index, with zero being the leftmost label
+     * @param position Position of the byte within the label
+     * @return Label byte
+     */
+    public byte getLabelByte(int index, int position) {
+        return data.get(labels[first + index] + 1 + position);
+    }
+
+    /**
+     * Get the offset of a label's length byte in the underlying buffer. Compression can point at any label, since the
+     * name from that label onwards is a complete suffix.
+     * @param index Label index, with zero being the leftmost label
+     * @return Offset in the buffer this name was wrapped from
+     */
+    int getLabelOffset(int index) {
+        return labels[first + index];
+    }
+
+    /**
+     * Get the buffer this name was wrapped from, which label offsets are relative to.
+     * @return Underlying buffer
+     */
+    ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * Get the name made up of the rightmost labels of this name. The result shares this name's storage.
+     * @param labelCount Number of labels to keep
+     * @return Suffix of this name
+     */
+    public DnsName getSuffix(int labelCount) {
+        int count = getLabelCount();
+        if (labelCount < 0 || labelCount > count) {
+            throw new IllegalArgumentException("Invalid suffix length " + labelCount);
+        }
+        if (labelCount == count) {
+            return this;
+        }
+        return new DnsName(data, labels, labels.length - labelCount, -1);
+    }
+
+    /**
+     * Get the parent domain, which is this name without its leftmost label.
+     * @return Parent domain, or null if this is the root domain
+     */
+    public DnsName getParent() {
+        int count = getLabelCount();
+        return 0 == count ? null : getSuffix(count - 1);
+    }
+
+    /**
+     * Indicates whether this name is the same as, or a subdomain of, the supplied name. Labels are compared
+     * case-insensitively.
+     * @param domain Possible parent domain
+     * @return True if this name ends with all of the labels of the domain
+     */
+    public boolean isSubdomainOf(DnsName domain) {
+        int count = domain.getLabelCount();
+        int offset = getLabelCount() - count;
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = count - 1; i >= 0; i--) {
+            if (!labelEquals(offset + i, domain, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the name into its own compact, uncompressed storage, so that it no longer depends on the message it was
+     * read from.
+     * @return Detached copy of this name
+     */
+    public DnsName copy() {
+        byte[] encoded = new byte[getLength()];
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        writeTo(buffer);
+        DnsName copy = wrap(buffer, 0);
+        copy.hash = hash;
+        return copy;
+    }
+
+    /**
+     * Writes the uncompressed encoding of the name at the buffer's current position.
+     * @param buffer Destination buffer
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (int i = first; i < labels.length; i++) {
+            int start = labels[i];
+            int segmentLength = data.get(start) & 0xff;
+            for (int j = 0; j <= segmentLength; j++) {
+                buffer.put(data.get(start + j));
+            }
+        }
+        buffer.put((byte) 0);
+    }
+
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (0 == h) {
+            h = 1;
+            for (int i = first; i < labels.length; i++) {
+                int start = labels[i];
+                int segmentLength = data.get(start) & 0xff;
+                h = AsciiCase.hashIgnoreCase(31 * h + segmentLength, data, start + 1, segmentLength);
+            }
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DnsName)) {
+            return false;
+        }
+        DnsName other = (DnsName) obj;
+        int count = getLabelCount();
+        if (count != other.getLabelCount() || (0 != hash && 0 != other.hash && hash != other.hash)) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            if (!labelEquals(i, other, i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the name in dotted text form, without a trailing dot. The root domain is the empty string.
+     * @return Domain name text
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = first; i < labels.length; i++) {
+            if (i > first) {
+                builder.append('.');
+            }
+            int start = labels[i];
+            int segmentLength = data.get(start) & 0xff;
+            for (int j = 1; j <= segmentLength; j++) {
+                builder.append((char) (data.get(start + j) & 0xff));
+            }
+        }
+        return builder.toString();
+    }
+
+    private boolean labelEquals(int index, DnsName other, int otherIndex) {
+        int start = labels[first + index];
+        int otherStart = other.labels[other.first + otherIndex];
+        int segmentLength = data.get(start) & 0xff;
+        return segmentLength == (other.data.get(otherStart) & 0xff) &&
+                AsciiCase.equalsIgnoreCase(data, start + 1, other.data, otherStart + 1, segmentLength);
+    }
+
+    private static int getLength(ByteBuffer message, int position) {
+        if (position >= message.limit()) {
+            throw new IllegalArgumentException("Domain name runs past end of message");
+        }
+        return message.get(position) & 0xff;
+    }
+
+    private static int getPointer(ByteBuffer message, int position, int bound) {
+        if (position + 1 >= message.limit()) {
+            throw new IllegalArgumentException("Compression pointer runs past end of message");
+        }
+        int pointer = message.getShort(position) & 0x3fff;
+        if (pointer >= bound) {
+            throw new IllegalArgumentException("Compression pointer at offset " + position + " does not point back");
+        }
+        return pointer;
+    }
+
+}
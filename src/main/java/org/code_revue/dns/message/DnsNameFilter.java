@@ -0,0 +1,103 @@
+package org.code_revue.dns.message;
+
+import org.code_revue.dns.util.AsciiCase;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Split block Bloom filter over domain names, used by {@link org.code_revue.dns.message.DnsNameTrie} to turn away
+ * names that cannot be in the trie before walking it. Each name sets one bit in each of the eight words of a single
+ * 256 bit block, so a check reads one cache line however many names the filter holds. With ten bits per name about one
+ * check in a hundred for a name that is not present comes back positive.
+ * <p>
+ * Names are hashed label by label from the right, so hashing a name also produces the hash of every one of its parent
+ * domains on the way. Bits are only ever set, so a filter reflects names that have since been removed until it is
+ * rebuilt. Setting bits is atomic, and checks can run alongside additions.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://github.com/apache/parquet-format/blob/master/BloomFilter.md">
+ *     https://github.com/apache/parquet-format/blob/master/BloomFilter.md</a>
+ */
+class DnsNameFilter {
+
+    /**
+     * Hash of the root domain, which every name hash starts from.
+     */
+    static final long ROOT_HASH = 0x243f6a8885a308d3L;
+
+    private static final int BITS_PER_NAME = 10;
+
+    private static final int[] SALTS = { 0x47b6137b, 0x44974d91, 0x8824ad5b, 0xa2b7289d, 0x705495c7, 0x2df1424b,
+            0x9efc4947, 0x5c6bfb31 };
+
+    private final AtomicIntegerArray words;
+    private final int blockCount;
+
+    /**
+     * Creates an empty filter.
+     * @param expectedNames Number of names the filter is sized for
+     */
+    DnsNameFilter(int expectedNames) {
+        long blocks = Math.max(1, (long) expectedNames * BITS_PER_NAME / 256);
+        this.blockCount = (int) Math.min(blocks, Integer.MAX_VALUE / 8);
+        this.words = new AtomicIntegerArray(blockCount * 8);
+    }
+
+    /**
+     * Extends the hash of a domain to the hash of one of its subdomains.
+     * @param parentHash Hash of the parent domain
+     * @param data Buffer holding the label
+     * @param labelOffset Offset of the label's length byte
+     * @return Hash of the subdomain
+     */
+    static long hash(long parentHash, ByteBuffer data, int labelOffset) {
+        int length = data.get(labelOffset) & 0xff;
+        long h = parentHash * 31 + AsciiCase.hashIgnoreCase(length, data, labelOffset + 1, length);
+        // Finalizer from MurmurHash3, so that every bit of the result depends on every bit of the input
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * Adds a name, given its hash.
+     * @param hash Name hash
+     */
+    void add(long hash) {
+        int base = getBlock(hash) * 8;
+        int key = (int) hash;
+        for (int i = 0; i < 8; i++) {
+            int bit = 1 << ((key * SALTS[i]) >>> 27);
+            int index = base + i;
+            int word = words.get(index);
+            while (0 == (word & bit) && !words.compareAndSet(index, word, word | bit)) {
+                word = words.get(index);
+            }
+        }
+    }
+
+    /**
+     * Checks whether a name might have been added.
+     * @param hash Name hash
+     * @return False if the name has definitely not been added
+     */
+    boolean mightContain(long hash) {
+        int base = getBlock(hash) * 8;
+        int key = (int) hash;
+        for (int i = 0; i < 8; i++) {
+            if (0 == (words.get(base + i) & (1 << ((key * SALTS[i]) >>> 27)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int getBlock(long hash) {
+        return (int) (((hash >>> 32) * blockCount) >>> 32);
+    }
+
+}
@@ -0,0 +1,446 @@
+package org.code_revue.dns.message;
+
+import org.code_revue.dns.util.AsciiCase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Map from domain names to non-negative integers, arranged as a trie of labels so that a name and all of its parent
+ * domains can be looked up in one pass from the root, one hash probe per label. Names are matched without regard to
+ * case and directly against the bytes of a {@link org.code_revue.dns.message.DnsName}, so lookups do not create any
+ * objects.
+ * <p>
+ * The trie is laid out in flat arrays rather than as node objects, which keeps it small enough to hold millions of
+ * names. Each node is identified by an index and records its parent node, the offset of its label in a shared byte
+ * array of lower-cased labels, the hash of the label and parent, and its value. Nodes are found through a single open
+ * addressing hash table keyed on parent and label, shared by every level of the trie.
+ * </p>
+ * <p>
+ * Updates are serialized, but lookups take no locks. A new node is written out in full before it is linked into the
+ * hash table with a volatile write, and values are read and written as volatiles, so a lookup never sees a half added
+ * node. When the arrays fill up, a larger copy is built from the names that are still present and published in one
+ * go; this also discards nodes left behind by removed names.
+ * </p>
+ * <p>
+ * Optionally, a Bloom filter of the names can be kept alongside the trie. Most names looked up against a long block
+ * list are not on it, and the filter lets {@link #findLowest(DnsName)} rule out the name and every parent domain by
+ * reading one cache line per label instead of probing the much larger hash table. The filter is rebuilt whenever the
+ * trie grows, and counts of how often it rejects a name and how often it wrongly lets one through are kept.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class DnsNameTrie {
+
+    private static final int ROOT = 0;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile Table table;
+
+    private volatile int size;
+
+    private volatile boolean filterEnabled;
+
+    private final AtomicLong filterRejectCount = new AtomicLong();
+
+    private final AtomicLong filterFalsePositiveCount = new AtomicLong();
+
+    /**
+     * Creates an empty trie.
+     */
+    public DnsNameTrie() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty trie with room for roughly the given number of names before it has to grow, which saves
+     * rebuilding it repeatedly while loading a long list.
+     * @param expectedNames Expected number of names
+     */
+    public DnsNameTrie(int expectedNames) {
+        int capacity = INITIAL_CAPACITY;
+        // Most names in a long list share their parent domains, so allow about a quarter more nodes than names
+        long nodes = expectedNames + expectedNames / 4;
+        while (capacity / 4 * 3 < nodes && capacity < 1 << 30) {
+            capacity *= 2;
+        }
+        table = new Table(capacity, capacity * 8);
+    }
+
+    /**
+     * Sets the value for a name.
+     * @param name Domain name
+     * @param value Value, must not be negative
+     * @return Previous value for the name, or -1 if it was not in the trie
+     */
+    public synchronized int put(DnsName name, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Value must not be negative");
+        }
+        int labelCount = name.getLabelCount();
+        Table current = table;
+        if (current.nodeCount + labelCount > current.maxNodes ||
+                current.arenaUsed + name.getLength() > current.arena.length) {
+            current = grow(current, labelCount, name.getLength());
+        }
+
+        int node = ROOT;
+        long filterHash = DnsNameFilter.ROOT_HASH;
+        for (int i = labelCount - 1; i >= 0; i--) {
+            node = current.findOrAddChild(node, name.getData(), name.getLabelOffset(i));
+            filterHash = DnsNameFilter.hash(filterHash, name.getData(), name.getLabelOffset(i));
+        }
+        // The filter has to know about the name before lookups can find it in the table
+        DnsNameFilter filter = current.filter;
+        if (null != filter && labelCount > 0) {
+            filter.add(filterHash);
+        }
+        int previous = current.values.getAndSet(node, value + 1) - 1;
+        if (previous < 0) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes a name. Parent and child domains of the name are not affected.
+     * @param name Domain name
+     * @return Value the name had, or -1 if it was not in the trie
+     */
+    public synchronized int remove(DnsName name) {
+        Table current = table;
+        int node = current.find(name, name.getLabelCount());
+        if (node < 0) {
+            return -1;
+        }
+        int previous = current.values.getAndSet(node, 0) - 1;
+        if (previous >= 0) {
+            size--;
+        }
+        return previous;
+    }
+
+    /**
+     * Get the value for exactly this name.
+     * @param name Domain name
+     * @return Value, or -1 if the name is not in the trie
+     */
+    public int get(DnsName name) {
+        Table current = table;
+        int node = current.find(name, name.getLabelCount());
+        return node < 0 ? -1 : current.values.get(node) - 1;
+    }
+
+    /**
+     * Finds the lowest value stored for the name itself or any of its parent domains, up to and including the root.
+     * When every value is zero this simply tests whether the name falls under any domain in the trie.
+     * @param name Domain name
+     * @return Lowest value, or -1 if neither the name nor any parent domain is in the trie
+     */
+    public int findLowest(DnsName name) {
+        Table current = table;
+        int best = current.values.get(ROOT) - 1;
+        int labelCount = name.getLabelCount();
+        DnsNameFilter filter = labelCount > 0 ? current.filter : null;
+        if (null != filter && !mightContainAny(filter, name, labelCount)) {
+            filterRejectCount.incrementAndGet();
+            return best;
+        }
+
+        boolean found = false;
+        int node = ROOT;
+        for (int i = labelCount - 1; i >= 0; i--) {
+            node = current.findChild(node, name.getData(), name.getLabelOffset(i));
+            if (node < 0) {
+                break;
+            }
+            int value = current.values.get(node) - 1;
+            if (value >= 0) {
+                found = true;
+                if (best < 0 || value < best) {
+                    best = value;
+                }
+            }
+        }
+        if (null != filter && !found) {
+            filterFalsePositiveCount.incrementAndGet();
+        }
+        return best;
+    }
+
+    /**
+     * Turns the Bloom filter in front of {@link #findLowest(DnsName)} on or off. Turning it on builds it from the names
+     * currently in the trie; it is then kept up to date as names are added. Lookups are only worth filtering when most
+     * names looked up are not in the trie and the trie is large.
+     * @param enabled Whether to filter lookups
+     */
+    public synchronized void setFilterEnabled(boolean enabled) {
+        filterEnabled = enabled;
+        Table current = table;
+        current.filter = enabled ? buildFilter(current) : null;
+    }
+
+    /**
+     * Checks whether lookups are being filtered.
+     * @return True if the Bloom filter is enabled
+     */
+    public boolean isFilterEnabled() {
+        return filterEnabled;
+    }
+
+    /**
+     * Get the number of lookups the filter has answered on its own, because neither the name nor any parent domain
+     * could be in the trie.
+     * @return Reject count
+     */
+    public long getFilterRejectCount() {
+        return filterRejectCount.get();
+    }
+
+    /**
+     * Get the number of lookups the filter let through that then found nothing in the trie.
+     * @return False positive count
+     */
+    public long getFilterFalsePositiveCount() {
+        return filterFalsePositiveCount.get();
+    }
+
+    /**
+     * Get the fraction of filtered lookups for names with no match in the trie that the filter nonetheless let
+     * through. Names removed from the trie stay in the filter until it is next rebuilt, so this creeps up as names are
+     * removed.
+     * @return False positive rate between 0 and 1, or 0 if nothing has been filtered yet
+     */
+    public double getFilterFalsePositiveRate() {
+        long falsePositives = filterFalsePositiveCount.get();
+        long negatives = falsePositives + filterRejectCount.get();
+        return 0 == negatives ? 0.0 : (double) falsePositives / negatives;
+    }
+
+    /**
+     * Get the number of names in the trie.
+     * @return Name count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Lists the names in the trie, in no particular order. Names come back in lower case.
+     * @return Domain names
+     */
+    public List<DnsName> getNames() {
+        Table current = table;
+        int nodeCount = current.nodeCount;
+        List<DnsName> names = new ArrayList<>();
+        for (int node = 0; node < nodeCount; node++) {
+            if (current.values.get(node) > 0) {
+                names.add(current.getName(node));
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Removes every name.
+     */
+    public synchronized void clear() {
+        Table cleared = new Table(INITIAL_CAPACITY, INITIAL_CAPACITY * 8);
+        if (filterEnabled) {
+            cleared.filter = new DnsNameFilter(cleared.maxNodes);
+        }
+        table = cleared;
+        size = 0;
+    }
+
+    private static boolean mightContainAny(DnsNameFilter filter, DnsName name, int labelCount) {
+        long hash = DnsNameFilter.ROOT_HASH;
+        for (int i = labelCount - 1; i >= 0; i--) {
+            hash = DnsNameFilter.hash(hash, name.getData(), name.getLabelOffset(i));
+            if (filter.mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static DnsNameFilter buildFilter(Table from) {
+        // Parents are always added before their children, so every parent's hash is known by the time it is needed
+        int nodeCount = from.nodeCount;
+        DnsNameFilter filter = new DnsNameFilter(from.maxNodes);
+        long[] hashes = new long[nodeCount];
+        hashes[ROOT] = DnsNameFilter.ROOT_HASH;
+        for (int node = 1; node < nodeCount; node++) {
+            hashes[node] = DnsNameFilter.hash(hashes[from.parents[node]], from.arenaBuffer, from.labelOffsets[node]);
+            if (from.values.get(node) > 0) {
+                filter.add(hashes[node]);
+            }
+        }
+        return filter;
+    }
+
+    private Table grow(Table current, int nodesNeeded, int bytesNeeded) {
+        int capacity = current.capacity;
+        while (current.nodeCount + nodesNeeded > capacity / 4 * 3) {
+            capacity *= 2;
+        }
+        int arenaLength = Math.max(current.arena.length * 2, current.arenaUsed + bytesNeeded);
+
+        // Copy across only the nodes that still lead to a name
+        Table grown = new Table(capacity, arenaLength);
+        int[] mapping = new int[current.nodeCount];
+        for (int node = 1; node < current.nodeCount; node++) {
+            mapping[node] = -1;
+        }
+        for (int node = 0; node < current.nodeCount; node++) {
+            int value = current.values.get(node);
+            if (value > 0) {
+                grown.values.set(copy(current, grown, mapping, node), value);
+            }
+        }
+        if (filterEnabled) {
+            grown.filter = buildFilter(grown);
+        }
+        table = grown;
+        return grown;
+    }
+
+    private static int copy(Table from, Table to, int[] mapping, int node) {
+        if (mapping[node] < 0) {
+            int parent = copy(from, to, mapping, from.parents[node]);
+            mapping[node] = to.findOrAddChild(parent, from.arenaBuffer, from.labelOffsets[node]);
+        }
+        return mapping[node];
+    }
+
+    /**
+     * One fixed size generation of the trie's storage.
+     */
+    private static final class Table {
+
+        private final int capacity;
+        private final int maxNodes;
+        private final AtomicIntegerArray slots;
+        private final int[] parents;
+        private final int[] labelOffsets;
+        private final int[] hashes;
+        private final AtomicIntegerArray values;
+        private final byte[] arena;
+        private final ByteBuffer arenaBuffer;
+
+        private volatile DnsNameFilter filter;
+
+        // Only changed while holding the trie's lock
+        private volatile int nodeCount = 1;
+        private int arenaUsed = 1;
+
+        public Table(int capacity, int arenaLength) {
+            this.capacity = capacity;
+            this.maxNodes = capacity / 4 * 3;
+            this.slots = new AtomicIntegerArray(capacity);
+            this.parents = new int[maxNodes];
+            this.labelOffsets = new int[maxNodes];
+            this.hashes = new int[maxNodes];
+            this.values = new AtomicIntegerArray(maxNodes);
+            this.arena = new byte[arenaLength];
+            this.arenaBuffer = ByteBuffer.wrap(arena);
+        }
+
+        /**
+         * Finds the node for the rightmost labels of a name.
+         * @return Node index, or -1 if there is no such node
+         */
+        public int find(DnsName name, int labelCount) {
+            int node = ROOT;
+            for (int i = labelCount - 1; i >= 0 && node >= 0; i--) {
+                node = findChild(node, name.getData(), name.getLabelOffset(i));
+            }
+            return node;
+        }
+
+        /**
+         * Finds the child of a node with the label at an offset in a buffer, which begins with its length byte.
+         * @return Node index, or -1 if there is no such child
+         */
+        public int findChild(int parent, ByteBuffer data, int labelOffset) {
+            int length = data.get(labelOffset) & 0xff;
+            int hash = hash(parent, data, labelOffset, length);
+            int mask = capacity - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int entry = slots.get(slot);
+                if (0 == entry) {
+                    return -1;
+                }
+                int node = entry - 1;
+                if (matches(node, parent, hash, data, labelOffset, length)) {
+                    return node;
+                }
+            }
+        }
+
+        /**
+         * Finds the child of a node with a label, adding it if necessary. There must be room for another node.
+         * @return Node index
+         */
+        public int findOrAddChild(int parent, ByteBuffer data, int labelOffset) {
+            int length = data.get(labelOffset) & 0xff;
+            int hash = hash(parent, data, labelOffset, length);
+            int mask = capacity - 1;
+            int slot = hash & mask;
+            for (int entry = slots.get(slot); 0 != entry; entry = slots.get(slot)) {
+                if (matches(entry - 1, parent, hash, data, labelOffset, length)) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int node = nodeCount;
+            parents[node] = parent;
+            hashes[node] = hash;
+            labelOffsets[node] = arenaUsed;
+            arena[arenaUsed++] = (byte) length;
+            for (int i = 1; i <= length; i++) {
+                arena[arenaUsed++] = (byte) AsciiCase.toLowerCase(data.get(labelOffset + i));
+            }
+            nodeCount = node + 1;
+
+            // Linking the node in is what makes it visible to lookups, so it has to come last
+            slots.set(slot, node + 1);
+            return node;
+        }
+
+        public DnsName getName(int node) {
+            int length = 1;
+            for (int n = node; ROOT != n; n = parents[n]) {
+                length += (arena[labelOffsets[n]] & 0xff) + 1;
+            }
+            byte[] encoded = new byte[length];
+            int position = 0;
+            for (int n = node; ROOT != n; n = parents[n]) {
+                int labelLength = (arena[labelOffsets[n]] & 0xff) + 1;
+                System.arraycopy(arena, labelOffsets[n], encoded, position, labelLength);
+                position += labelLength;
+            }
+            return DnsName.wrap(ByteBuffer.wrap(encoded), 0);
+        }
+
+        private boolean matches(int node, int parent, int hash, ByteBuffer data, int labelOffset, int length) {
+            int offset = labelOffsets[node];
+            return hashes[node] == hash && parents[node] == parent && (arena[offset] & 0xff) == length &&
+                    AsciiCase.equalsIgnoreCase(arenaBuffer, offset + 1, data, labelOffset + 1, length);
+        }
+
+        private static int hash(int parent, ByteBuffer data, int labelOffset, int length) {
+            int h = AsciiCase.hashIgnoreCase(31 * parent + length, data, labelOffset + 1, length);
+            h *= 0x9e3779b9;
+            return h ^ (h >>> 16);
+        }
+
+    }
+
+}
@@ -14,7 +14,22 @@ public enum DnsOpCode {
     STATUS(2),
     RESERVED(3),
     NOTIFY(4),
-    UPDATE(5);
+    UPDATE(5),
+    DSO(6),
+    UNKNOWN(-1);
+
+    private static final DnsOpCode[] VALUES = new DnsOpCode[16];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = UNKNOWN;
+        }
+        for (DnsOpCode code: values()) {
+            if (UNKNOWN != code) {
+                VALUES[code.opCodeValue] = code;
+            }
+        }
+    }
 
     private final int opCodeValue;
 
@@ -24,7 +39,7 @@ public enum DnsOpCode {
 
     /**
      * Returns the numeric value for this OP code.
-     * @return Numeric OP code
+     * @return Numeric OP code, or -1 for {@link #UNKNOWN}
      */
     public int getOpCodeValue() {
         return opCodeValue;
@@ -33,13 +48,14 @@ public enum DnsOpCode {
     /**
      * Converts numeric OP code to enumerated value.
      * @param value Numeric OP code
-     * @return Enumerated OP code
+     * @return Enumerated OP code, or {@link #UNKNOWN} if the value is unassigned
+     * @throws java.lang.IllegalArgumentException If the value doesn't fit in the four bit OP code field
      */
     public static DnsOpCode getOpCode(int value) {
-        if (value < 0 || value >= DnsOpCode.values().length) {
+        if (value < 0 || value >= VALUES.length) {
             throw new IllegalArgumentException("Illegal Opcode value.");
         }
-        return DnsOpCode.values()[value];
+        return VALUES[value];
     }
 
 }
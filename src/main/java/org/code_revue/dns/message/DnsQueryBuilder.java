@@ -108,8 +108,8 @@ public class DnsQueryBuilder {
         messageData.position(DnsMessageOverlay.HEADER_LENGTH);
         for (DnsQuestion question: questions) {
             ByteBufferUtils.writeDomainName(question.getQuestionName(), messageData);
-            messageData.putShort((short) question.getQuestionType().getNumericCode());
-            messageData.putShort((short) 1);
+            messageData.putShort((short) question.getQuestionTypeCode());
+            messageData.putShort((short) question.getQuestionClassCode());
         }
 
         messageData.limit(messageData.position());
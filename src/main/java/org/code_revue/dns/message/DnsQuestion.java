@@ -2,25 +2,89 @@ package org.code_revue.dns.message;
 
 /**
  * Immutable class representing a question from the question section of a DNS message.
+ * <p>
+ * Questions parsed from a message hold a {@link org.code_revue.dns.message.DnsName} that points into the message
+ * buffer; the text form of the name is only built if {@link #getQuestionName()} is called. Two questions are equal if
+ * their names are equal, ignoring case, and their numeric types and classes match.
+ * </p>
+ * <p>
+ * The numeric type and class codes are kept alongside the enumerated values, so questions for types that map to
+ * {@link org.code_revue.dns.message.DnsRecordType#UNKNOWN} can still be answered or forwarded as they were asked.
+ * </p>
  *
  * @author Mike Fanning
  */
 public final class DnsQuestion {
 
-    private final String questionName;
+    private String questionName;
+
+    private DnsName name;
 
     private final DnsRecordType questionType;
 
     private final DnsRecordClass questionClass;
 
+    private final int questionTypeCode;
+
+    private final int questionClassCode;
+
     public DnsQuestion(String questionName, DnsRecordType questionType, DnsRecordClass questionClass) {
+        this(questionName, getCode(questionType), getCode(questionClass));
+    }
+
+    public DnsQuestion(DnsName name, DnsRecordType questionType, DnsRecordClass questionClass) {
+        this(name, getCode(questionType), getCode(questionClass));
+    }
+
+    /**
+     * Creates a question from the numeric type and class codes, which need not have enumerated values.
+     * @param questionName Domain name
+     * @param questionTypeCode Unsigned 16 bit type code
+     * @param questionClassCode Unsigned 16 bit class code
+     */
+    public DnsQuestion(String questionName, int questionTypeCode, int questionClassCode) {
         this.questionName = questionName;
-        this.questionType = questionType;
-        this.questionClass = questionClass;
+        this.questionTypeCode = questionTypeCode;
+        this.questionClassCode = questionClassCode;
+        this.questionType = DnsRecordType.getRecordType(questionTypeCode);
+        this.questionClass = DnsRecordClass.getRecordClass(questionClassCode);
+    }
+
+    /**
+     * Creates a question from the numeric type and class codes, which need not have enumerated values.
+     * @param name Domain name
+     * @param questionTypeCode Unsigned 16 bit type code
+     * @param questionClassCode Unsigned 16 bit class code
+     */
+    public DnsQuestion(DnsName name, int questionTypeCode, int questionClassCode) {
+        this.name = name;
+        this.questionTypeCode = questionTypeCode;
+        this.questionClassCode = questionClassCode;
+        this.questionType = DnsRecordType.getRecordType(questionTypeCode);
+        this.questionClass = DnsRecordClass.getRecordClass(questionClassCode);
     }
 
     public String getQuestionName() {
-        return questionName;
+        // Both representations are immutable, so racing to fill in the missing one is harmless
+        String result = questionName;
+        if (null == result) {
+            result = name.toString();
+            questionName = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the question name without converting it to a string.
+     * @return Domain name
+     */
+    public DnsName getName() {
+        DnsName result = name;
+        if (null == result) {
+            result = DnsName.valueOf(questionName);
+            name = result;
+        }
+        return result;
     }
 
     public DnsRecordType getQuestionType() {
@@ -31,4 +95,62 @@ public final class DnsQuestion {
         return questionClass;
     }
 
+    /**
+     * Get the numeric type code, which is available even if the type is {@link DnsRecordType#UNKNOWN}.
+     * @return Unsigned 16 bit type code
+     */
+    public int getQuestionTypeCode() {
+        return questionTypeCode;
+    }
+
+    /**
+     * Get the numeric class code, which is available even if the class is {@link DnsRecordClass#UNKNOWN}.
+     * @return Unsigned 16 bit class code
+     */
+    public int getQuestionClassCode() {
+        return questionClassCode;
+    }
+
+    /**
+     * Returns a question with the same type and class whose name no longer depends on the message it was read from.
+     * @return Detached question
+     */
+    public DnsQuestion copy() {
+        return new DnsQuestion(getName().copy(), questionTypeCode, questionClassCode);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = getName().hashCode();
+        result = 31 * result + questionTypeCode;
+        result = 31 * result + questionClassCode;
+        return result;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof DnsQuestion)) {
+            return false;
+        }
+        DnsQuestion other = (DnsQuestion) obj;
+        return questionTypeCode == other.questionTypeCode && questionClassCode == other.questionClassCode &&
+                getName().equals(other.getName());
+    }
+
+    @Override
+    public String toString() {
+        return getQuestionName() + " " + DnsRecordType.toString(questionTypeCode) + " " + questionClass;
+    }
+
+    private static int getCode(DnsRecordType type) {
+        return null == type ? -1 : type.getNumericCode();
+    }
+
+    private static int getCode(DnsRecordClass recordClass) {
+        return null == recordClass ? -1 : recordClass.getNumericCode();
+    }
+
 }
@@ -1,7 +1,10 @@
 package org.code_revue.dns.message;
 
+import org.code_revue.dns.message.rdata.RecordData;
+
 /**
- * Class representing a DNS record.
+ * Class representing a DNS record. The numeric type and class codes are kept alongside the enumerated values, so
+ * records of types this server knows nothing about can be passed through with their resource data untouched.
  *
  * @author Mike Fanning
  * @see <a href="http://www.tcpipguide.com/free/t_DNSMessageResourceRecordFieldFormats-2.htm">
@@ -15,20 +18,58 @@ public final class DnsRecord {
 
     private final DnsRecordClass recordClass;
 
+    private final int recordTypeCode;
+
+    private final int recordClassCode;
+
     private final int ttl;
 
     private final byte[] resourceData;
 
+    /**
+     * Creates a record from enumerated type and class values.
+     * @param recordName Owner name
+     * @param recordType Record type
+     * @param recordClass Record class
+     * @param ttl Time to live in seconds
+     * @param resourceData Resource data, without any compression pointers
+     * @throws java.lang.IllegalArgumentException If the type or class is UNKNOWN, which has no numeric code; use
+     * {@link #DnsRecord(String, int, int, int, byte[])} for those instead
+     */
     public DnsRecord(String recordName, DnsRecordType recordType, DnsRecordClass recordClass, int ttl,
                      byte[] resourceData) {
+        if (DnsRecordType.UNKNOWN == recordType || DnsRecordClass.UNKNOWN == recordClass) {
+            throw new IllegalArgumentException("Unknown record types and classes need their numeric codes, use the " +
+                    "constructor that takes them");
+        }
         this.recordName = recordName;
         this.recordType = recordType;
         this.recordClass = recordClass;
+        this.recordTypeCode = null == recordType ? -1 : recordType.getNumericCode();
+        this.recordClassCode = null == recordClass ? -1 : recordClass.getNumericCode();
         this.ttl = ttl;
         // TODO: Defensive copy
         this.resourceData = resourceData;
     }
 
+    /**
+     * Creates a record from the numeric type and class codes, which need not have enumerated values.
+     * @param recordName Owner name
+     * @param recordTypeCode Unsigned 16 bit type code
+     * @param recordClassCode Unsigned 16 bit class code
+     * @param ttl Time to live in seconds
+     * @param resourceData Resource data, without any compression pointers
+     */
+    public DnsRecord(String recordName, int recordTypeCode, int recordClassCode, int ttl, byte[] resourceData) {
+        this.recordName = recordName;
+        this.recordType = DnsRecordType.getRecordType(recordTypeCode);
+        this.recordClass = DnsRecordClass.getRecordClass(recordClassCode);
+        this.recordTypeCode = recordTypeCode;
+        this.recordClassCode = recordClassCode;
+        this.ttl = ttl;
+        this.resourceData = resourceData;
+    }
+
     public String getRecordName() {
         return recordName;
     }
@@ -41,6 +82,22 @@ public final class DnsRecord {
         return recordClass;
     }
 
+    /**
+     * Get the numeric type code, which is available even if the type is {@link DnsRecordType#UNKNOWN}.
+     * @return Unsigned 16 bit type code
+     */
+    public int getRecordTypeCode() {
+        return recordTypeCode;
+    }
+
+    /**
+     * Get the numeric class code, which is available even if the class is {@link DnsRecordClass#UNKNOWN}.
+     * @return Unsigned 16 bit class code
+     */
+    public int getRecordClassCode() {
+        return recordClassCode;
+    }
+
     public int getTtl() {
         return ttl;
     }
@@ -49,4 +106,12 @@ public final class DnsRecord {
         return resourceData;
     }
 
+    /**
+     * Get a typed view of the resource data. The view decodes fields from the resource data array on demand.
+     * @return Resource data view
+     */
+    public RecordData getRecordData() {
+        return RecordData.wrap(recordType, resourceData);
+    }
+
 }
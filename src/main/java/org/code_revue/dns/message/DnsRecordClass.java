@@ -1,19 +1,58 @@
 package org.code_revue.dns.message;
 
 /**
- * Enumeration of DNS record classes. Sorry Chaos and Hesiod, I'm just sticking with plain old Internet for now.
+ * Enumeration of DNS record classes. Only Internet records are really supported, but the other classes are recognized
+ * so that queries for them can be parsed and refused rather than dropped. Numeric codes without a constant of their
+ * own map to {@link #UNKNOWN}.
  *
  * @author Mike Fanning
- * @see <a href="http://en.wikipedia.org/wiki/Domain_Name_System#DNS_resource_records">
- *     http://en.wikipedia.org/wiki/Domain_Name_System#DNS_resource_records</a>
+ * @see <a href="http://www.iana.org/assignments/dns-parameters/dns-parameters.xhtml#dns-parameters-2">
+ *     http://www.iana.org/assignments/dns-parameters/dns-parameters.xhtml#dns-parameters-2</a>
  */
 public enum DnsRecordClass {
-    IN;
 
+    IN(1),
+    CH(3),
+    HS(4),
+    NONE(254),
+    ANY(255),
+    UNKNOWN(-1);
+
+    private static final DnsRecordClass[] CODES = new DnsRecordClass[ANY.numericCode + 1];
+
+    static {
+        for (DnsRecordClass recordClass: values()) {
+            if (UNKNOWN != recordClass) {
+                CODES[recordClass.numericCode] = recordClass;
+            }
+        }
+    }
+
+    private final int numericCode;
+
+    private DnsRecordClass(int numericCode) {
+        this.numericCode = numericCode;
+    }
+
+    /**
+     * Get the numeric code used by the DNS protocol for this class.
+     * @return Numeric code, or -1 for {@link #UNKNOWN}
+     */
+    public int getNumericCode() {
+        return numericCode;
+    }
+
+    /**
+     * Converts the numeric code for a record class into the enumerated value.
+     * @param classCode Unsigned 16 bit class code
+     * @return Enumerated value, or {@link #UNKNOWN} if the code has no constant
+     */
     public static DnsRecordClass getRecordClass(int classCode) {
-        if (classCode != 1) {
-            throw new IllegalArgumentException("Invalid class code.");
+        if (classCode < 0 || classCode >= CODES.length) {
+            return UNKNOWN;
         }
-        return DnsRecordClass.IN;
+        DnsRecordClass recordClass = CODES[classCode];
+        return null == recordClass ? UNKNOWN : recordClass;
     }
+
 }
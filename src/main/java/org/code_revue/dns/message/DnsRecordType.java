@@ -1,11 +1,17 @@
 package org.code_revue.dns.message;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * Partial enumeration of DNS record types.
+ * Enumeration of common DNS record types. Numeric codes without a constant of their own map to {@link #UNKNOWN}, so
+ * messages containing them can still be parsed; the numeric code itself is kept by
+ * {@link org.code_revue.dns.message.DnsQuestion} and {@link org.code_revue.dns.message.DnsRecord}, and the resource
+ * data of unknown types is treated as opaque, as described in RFC 3597.
  *
  * @author Mike Fanning
- * @see <a href="http://www.tcpipguide.com/free/t_DNSNameServerDataStorageResourceRecordsandClasses-3.htm#Table_166">
- *     http://www.tcpipguide.com/free/t_DNSNameServerDataStorageResourceRecordsandClasses-3.htm#Table_166</a>
+ * @see <a href="http://www.iana.org/assignments/dns-parameters/dns-parameters.xhtml#dns-parameters-4">
+ *     http://www.iana.org/assignments/dns-parameters/dns-parameters.xhtml#dns-parameters-4</a>
  */
 public enum DnsRecordType {
 
@@ -15,7 +21,37 @@ public enum DnsRecordType {
     SOA(6),
     PTR(12),
     MX(15),
-    TXT(16);
+    TXT(16),
+    AAAA(28),
+    SRV(33),
+    NAPTR(35),
+    OPT(41),
+    DS(43),
+    RRSIG(46),
+    NSEC(47),
+    DNSKEY(48),
+    NSEC3(50),
+    NSEC3PARAM(51),
+    TLSA(52),
+    SVCB(64),
+    HTTPS(65),
+    IXFR(251),
+    AXFR(252),
+    ANY(255),
+    CAA(257),
+    UNKNOWN(-1);
+
+    private static final DnsRecordType[] CODES = new DnsRecordType[CAA.numericCode + 1];
+    private static final Map<String, DnsRecordType> NAMES = new HashMap<>();
+
+    static {
+        for (DnsRecordType type: values()) {
+            if (UNKNOWN != type) {
+                CODES[type.numericCode] = type;
+                NAMES.put(type.name(), type);
+            }
+        }
+    }
 
     private final int numericCode;
 
@@ -25,7 +61,7 @@ public enum DnsRecordType {
 
     /**
      * Get the numeric code used by the DNS protocol for this type of record.
-     * @return Numeric code
+     * @return Numeric code, or -1 for {@link #UNKNOWN}
      */
     public int getNumericCode() {
         return numericCode;
@@ -33,17 +69,35 @@ public enum DnsRecordType {
 
     /**
      * Converts the numeric code for a record type into the enumerated value.
-     * @param numericCode
-     * @return Enumerated value
+     * @param numericCode Unsigned 16 bit type code
+     * @return Enumerated value, or {@link #UNKNOWN} if the code has no constant
      */
     public static DnsRecordType getRecordType(int numericCode) {
-        // Donald Knuth is muttering somewhere
-        for (DnsRecordType type: DnsRecordType.values()) {
-            if (numericCode == type.getNumericCode()) {
-                return type;
-            }
+        if (numericCode < 0 || numericCode >= CODES.length) {
+            return UNKNOWN;
         }
-        throw new IllegalArgumentException("Illegal numeric code.");
+        DnsRecordType type = CODES[numericCode];
+        return null == type ? UNKNOWN : type;
+    }
+
+    /**
+     * Looks up a record type by its mnemonic, as used in zone files.
+     * @param name Upper case mnemonic, e.g. "AAAA"
+     * @return Enumerated value, or null if the mnemonic is not recognized
+     */
+    public static DnsRecordType forName(String name) {
+        return NAMES.get(name);
+    }
+
+    /**
+     * Returns the mnemonic for a numeric type code, using the <code>TYPEnnn</code> form from RFC 3597 for codes without
+     * a constant.
+     * @param numericCode Unsigned 16 bit type code
+     * @return Type mnemonic
+     */
+    public static String toString(int numericCode) {
+        DnsRecordType type = getRecordType(numericCode);
+        return UNKNOWN == type ? "TYPE" + numericCode : type.name();
     }
 
 }
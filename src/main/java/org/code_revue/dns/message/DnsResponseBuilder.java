@@ -1,52 +1,170 @@
 package org.code_revue.dns.message;
 
+import org.code_revue.dns.message.rdata.RecordDataWriter;
+import org.code_revue.dns.util.ByteBufferPool;
 import org.code_revue.dns.util.ByteBufferUtils;
 
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 /**
  * This class can be used to build responses to DNS queries. First an instance is created using a
  * {@link java.nio.ByteBuffer} containing the binary data for the query. Then the appropriate response fields are set
  * using setter methods. Finally, a response is created using the {@link #build()} method.
  * <p>
- * The response is a slice of the original buffer, and is trimmed to only contain the bytes for the response message.
- * Also, callers must ensure that the buffer supplied in the constructor has sufficient space for the response data.
- * This class is destructive on the data in the underlying buffer, but will not manipulate the position or limit values.
+ * The header and question section are copied from the query into a separate output buffer, so the query is left
+ * untouched. Output buffers come from a shared pool and are limited to the maximum response length, which defaults to
+ * {@link DnsMessageOverlay#MAX_UDP_DNS_LENGTH}. Records that don't fit are dropped a whole RRset at a time, and if any
+ * answer or authority records are dropped the TC flag is set, as described in RFC 2181, section 9, unless the authority
+ * records have been marked optional with {@link #setAuthorityOptional(boolean)}. Once a response
+ * has been sent it can be handed back to the pool with {@link #release(java.nio.ByteBuffer)}.
  * </p>
  * <p>
  * Setter methods can be chained to make response building more concise, like this:
  * </p>
  * <pre>
  *     {@code
- *     ByteBuffer response = (new DnsResponseBuilder(query)).setAuthoritativeAnswer(true)
- *                                                          .setRecursionAvailable(true)
- *                                                          .setResponseCode(DnsResponseCode.NO_ERROR)
- *                                                          .addAnswer(answer)
- *                                                          .build();
+ *     ByteBuffer response = DnsResponseBuilder.forQuery(query).setAuthoritativeAnswer(true)
+ *                                                             .setRecursionAvailable(true)
+ *                                                             .setResponseCode(DnsResponseCode.NO_ERROR)
+ *                                                             .addAnswer(answer)
+ *                                                             .build();
  *     }
  * </pre>
  *
  * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc2181#section-9">https://tools.ietf.org/html/rfc2181#section-9</a>
  */
 public class DnsResponseBuilder {
 
+    private static final ByteBufferPool BUFFER_POOL = new ByteBufferPool(DnsMessageOverlay.MAX_UDP_DNS_LENGTH, 256);
+
+    private static final ThreadLocal<DnsResponseBuilder> BUILDERS = new ThreadLocal<>();
+
     private ByteBuffer messageData;
     private DnsMessageOverlay message;
+    private NameCompressor compressor;
+    private int questionEnd;
+    private boolean authorityOptional;
     private List<DnsRecord> answers = new ArrayList<DnsRecord>();
     private List<DnsRecord> authorities = new ArrayList<DnsRecord>();
     private List<DnsRecord> additionalRecords = new ArrayList<DnsRecord>();
 
     /**
-     * Creates a new response builder on top of the supplied query data.
+     * Creates a new response builder for the supplied query, limited to a UDP sized response.
      * @param query Buffer containing binary DNS query data
      */
     public DnsResponseBuilder(ByteBuffer query) {
-        this.messageData = query.duplicate();
-        this.message = new DnsMessageOverlay(messageData);
+        this(query, DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+    }
+
+    /**
+     * Creates a new response builder for the supplied query.
+     * @param query Buffer containing binary DNS query data
+     * @param maxLength Maximum length of the response, e.g. the UDP payload size or 65535 for TCP
+     */
+    public DnsResponseBuilder(ByteBuffer query, int maxLength) {
+        reset(query, maxLength);
+    }
+
+    /**
+     * Returns this thread's builder, reset for the supplied query, so that its record lists and compression table are
+     * reused from one response to the next. The builder must be finished with before this method is called again on
+     * the same thread.
+     * @param query Buffer containing binary DNS query data
+     * @return Builder limited to a UDP sized response
+     */
+    public static DnsResponseBuilder forQuery(ByteBuffer query) {
+        DnsResponseBuilder builder = BUILDERS.get();
+        if (null == builder) {
+            builder = new DnsResponseBuilder(query);
+            BUILDERS.set(builder);
+        } else {
+            builder.reset(query, DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+        }
+        return builder;
+    }
+
+    /**
+     * Hands a response buffer back to the pool once it has been sent. Only buffers handed out by a builder (or a
+     * {@link org.code_revue.dns.message.ResponseTemplate}) are taken back, so this can safely be called on any
+     * response, including one that reuses the query buffer.
+     * @param response Response buffer
+     * @return True if the buffer will be reused
+     */
+    public static boolean release(ByteBuffer response) {
+        return BUFFER_POOL.release(response);
+    }
+
+    /**
+     * Takes an output buffer from the pool shared by all builders.
+     * @return Cleared buffer of {@link DnsMessageOverlay#MAX_UDP_DNS_LENGTH} bytes
+     */
+    static ByteBuffer acquireBuffer() {
+        return BUFFER_POOL.acquire();
+    }
+
+    /**
+     * Discards any records added so far and starts a new response for the supplied query.
+     * @param query Buffer containing binary DNS query data
+     * @param maxLength Maximum length of the response
+     * @return this
+     */
+    public DnsResponseBuilder reset(ByteBuffer query, int maxLength) {
+        if (maxLength < DnsMessageOverlay.HEADER_LENGTH) {
+            throw new IllegalArgumentException("Maximum response length is shorter than a DNS header");
+        }
+        answers.clear();
+        authorities.clear();
+        additionalRecords.clear();
+        authorityOptional = false;
+
+        if (maxLength <= BUFFER_POOL.getBufferSize()) {
+            messageData = BUFFER_POOL.acquire();
+        } else {
+            messageData = ByteBuffer.allocate(maxLength);
+        }
+        messageData.limit(maxLength);
+        copyQuestions(query);
+        questionEnd = messageData.position();
+
+        message = new DnsMessageOverlay(messageData);
+        message.setAnswerCount((short) 0);
+        message.setNameServerCount((short) 0);
+        message.setAdditionalRecordCount((short) 0);
+        if (null == compressor) {
+            compressor = new NameCompressor(messageData);
+        } else {
+            compressor.reset(messageData);
+        }
+        return this;
+    }
+
+    /**
+     * Copies the header and question section of the query. If the questions can't be parsed only the header is kept,
+     * so that an error response can still be sent.
+     */
+    private void copyQuestions(ByteBuffer query) {
+        ByteBuffer source = query.duplicate();
+        int length;
+        try {
+            length = new DnsMessageOverlay(source).getAnswerSectionOffset();
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            length = Math.min(source.limit(), DnsMessageOverlay.HEADER_LENGTH);
+        }
+        if (length > messageData.remaining()) {
+            length = Math.min(source.limit(), DnsMessageOverlay.HEADER_LENGTH);
+        }
+        source.position(0).limit(length);
+        messageData.put(source);
+        while (messageData.position() < DnsMessageOverlay.HEADER_LENGTH) {
+            messageData.put((byte) 0);
+        }
+        if (length <= DnsMessageOverlay.HEADER_LENGTH) {
+            messageData.putShort(4, (short) 0);
+        }
     }
 
     /**
@@ -81,6 +199,18 @@ public class DnsResponseBuilder {
         return this;
     }
 
+    /**
+     * Marks the authority records as extra information, such as the name servers for the zone of a positive answer, so
+     * that leaving some of them out for lack of space doesn't make the response truncated. Additional records are then
+     * only written if every authority record fit.
+     * @param authorityOptional
+     * @return this
+     */
+    public DnsResponseBuilder setAuthorityOptional(boolean authorityOptional) {
+        this.authorityOptional = authorityOptional;
+        return this;
+    }
+
     /**
      * Add an answer record to the DNS response.
      * @param answer
@@ -127,62 +257,104 @@ public class DnsResponseBuilder {
     }
 
     /**
-     * Writes the response data from setter method invocation to a {@link java.nio.ByteBuffer}. A slice of the original
-     * buffer is created containing only the data for the DNS response.
+     * Writes the response records after the question section. The returned buffer is the builder's output buffer, with
+     * its position at zero and its limit at the end of the response.
      * @return Buffer containing binary DNS response
      */
     public ByteBuffer build() {
         message.setResponse();
-        message.setAnswerCount((short) answers.size());
-        message.setNameServerCount((short) authorities.size());
-        message.setAdditionalRecordCount((short) additionalRecords.size());
-
-        // Build up cache of names and their positions for compression.
-        // Currently using a pretty simplistic algorithm, could be more complex I guess.
-        messageData.position(DnsMessageOverlay.HEADER_LENGTH);
-        Map<String, Integer> nameCache = new HashMap<String, Integer>();
+        messageData.position(questionEnd);
+        compressor.reset(messageData);
+
+        // Question names are kept from the query, so every suffix in them is available for compression
+        int position = DnsMessageOverlay.HEADER_LENGTH;
         int qCount = message.getQuestionCount();
         for (int i = 0; i < qCount; i++) {
-            int position = messageData.position();
-            String name = ByteBufferUtils.readDomainName(messageData);
-            if (!nameCache.containsKey(name)) {
-                nameCache.put(name, position);
-            }
+            compressor.addName(position);
             // Skip over other question fields
-            messageData.position(messageData.position() + 4);
+            position = ByteBufferUtils.skipDomainName(messageData, position) + 4;
         }
 
-        for (DnsRecord answer: answers) {
-            writeDnsRecord(answer, nameCache);
-        }
+        int answerCount = writeSection(answers);
+        boolean truncated = answerCount < answers.size();
+        int authorityCount = truncated ? 0 : writeSection(authorities);
+        boolean authorityDropped = authorityCount < authorities.size();
+        truncated = truncated || (authorityDropped && !authorityOptional);
+        // Additional records are optional, so leaving them out doesn't make the response truncated
+        int additionalCount = truncated || authorityDropped ? 0 : writeSection(additionalRecords);
 
-        for (DnsRecord authority: authorities) {
-            writeDnsRecord(authority, nameCache);
-        }
+        message.setTruncated(truncated);
+        message.setAnswerCount((short) answerCount);
+        message.setNameServerCount((short) authorityCount);
+        message.setAdditionalRecordCount((short) additionalCount);
 
-        for (DnsRecord additionalRecord: additionalRecords) {
-            writeDnsRecord(additionalRecord, nameCache);
-        }
+        answers.clear();
+        authorities.clear();
+        additionalRecords.clear();
 
-        messageData.limit(messageData.position());
-        messageData.position(0);
-        return messageData.slice();
+        messageData.flip();
+        return messageData;
     }
 
-    private void writeDnsRecord(DnsRecord record, Map<String, Integer> nameCache) {
-        if (nameCache.containsKey(record.getRecordName())) {
-            short position = (short) (0xc000 | nameCache.get(record.getRecordName()));
-            messageData.putShort(position);
-        } else {
-            int position = messageData.position();
-            ByteBufferUtils.writeDomainName(record.getRecordName(), messageData);
-            nameCache.put(record.getRecordName(), position);
+    /**
+     * Writes as many records as fit, treating consecutive records with the same name, type and class as one RRset.
+     * @return Number of records written
+     */
+    private int writeSection(List<DnsRecord> records) {
+        int written = 0;
+        int size = records.size();
+        while (written < size) {
+            int end = written + 1;
+            while (end < size && isSameRRset(records.get(written), records.get(end))) {
+                end++;
+            }
+            int mark = messageData.position();
+            try {
+                for (int i = written; i < end; i++) {
+                    writeDnsRecord(records.get(i), compressor);
+                }
+            } catch (BufferOverflowException e) {
+                messageData.position(mark);
+                compressor.truncate(mark);
+                return written;
+            }
+            written = end;
         }
-        messageData.putShort((short) record.getRecordType().getNumericCode());
-        messageData.putShort((short) 1);
+        return written;
+    }
+
+    private static boolean isSameRRset(DnsRecord first, DnsRecord second) {
+        return first.getRecordTypeCode() == second.getRecordTypeCode() &&
+                first.getRecordClassCode() == second.getRecordClassCode() &&
+                first.getRecordName().equalsIgnoreCase(second.getRecordName());
+    }
+
+    private void writeDnsRecord(DnsRecord record, NameCompressor compressor) {
+        compressor.writeName(record.getRecordName());
+        messageData.putShort((short) record.getRecordTypeCode());
+        messageData.putShort((short) record.getRecordClassCode());
         messageData.putInt(record.getTtl());
-        messageData.putShort((short) record.getResourceData().length);
-        messageData.put(record.getResourceData());
+
+        int lengthPosition = messageData.position();
+        messageData.putShort((short) 0);
+        writeResourceData(record, compressor);
+        messageData.putShort(lengthPosition, (short) (messageData.position() - lengthPosition - 2));
+    }
+
+    /**
+     * Writes resource data, compressing the embedded domain names of the record types defined in RFC 1035. RFC 3597
+     * forbids compressing names in the data of any other type, so everything else is copied as is.
+     */
+    private void writeResourceData(DnsRecord record, NameCompressor compressor) {
+        int start = messageData.position();
+        try {
+            new RecordDataWriter(messageData, compressor).write(record.getRecordData());
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            // Data that doesn't parse is passed through untouched
+            messageData.position(start);
+            compressor.truncate(start);
+            messageData.put(record.getResourceData());
+        }
     }
 
 }
@@ -19,7 +19,21 @@ public enum DnsResponseCode {
     YX_RR_SET(7),
     NX_RR_SET(8),
     NOT_AUTH(9),
-    NOT_ZONE(10);
+    NOT_ZONE(10),
+    UNKNOWN(-1);
+
+    private static final DnsResponseCode[] VALUES = new DnsResponseCode[16];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++) {
+            VALUES[i] = UNKNOWN;
+        }
+        for (DnsResponseCode code: values()) {
+            if (UNKNOWN != code) {
+                VALUES[code.responseCode] = code;
+            }
+        }
+    }
 
     private final int responseCode;
 
@@ -29,7 +43,7 @@ public enum DnsResponseCode {
 
     /**
      * Get the numeric representation for this response code.
-     * @return Numeric response code
+     * @return Numeric response code, or -1 for {@link #UNKNOWN}
      */
     public int getResponseCodeValue() {
         return responseCode;
@@ -38,12 +52,13 @@ public enum DnsResponseCode {
     /**
      * Converts a numeric response code into the enumerated value.
      * @param code Numeric code
-     * @return Enumerated value
+     * @return Enumerated value, or {@link #UNKNOWN} if the code is unassigned
+     * @throws java.lang.IllegalArgumentException If the code doesn't fit in the four bit response code field
      */
     public static DnsResponseCode getResponseType(int code) {
-        if (code < 0 || code >= DnsResponseCode.values().length) {
+        if (code < 0 || code >= VALUES.length) {
             throw new IllegalArgumentException("Invalid response code.");
         }
-        return DnsResponseCode.values()[code];
+        return VALUES[code];
     }
 }
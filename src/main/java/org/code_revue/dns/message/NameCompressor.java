@@ -0,0 +1,134 @@
+package org.code_revue.dns.message;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Writes domain names into a DNS message using the compression scheme from RFC 1035, section 4.1.4. Every name
+ * written or registered through the compressor has each of its suffixes recorded in a table, so a later name that
+ * shares any suffix with an earlier one (not just the whole name) is written as its distinct leading labels followed
+ * by a pointer. Suffixes are matched case-insensitively.
+ * <p>
+ * The table keys are {@link org.code_revue.dns.message.DnsName}s that point into the message being built, so nothing
+ * is copied; this relies on the message only ever being appended to. Offsets that cannot be expressed in a 14-bit
+ * pointer are not recorded.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-4.1.4">https://tools.ietf.org/html/rfc1035#section-4.1.4</a>
+ */
+public class NameCompressor {
+
+    private static final int MAX_POINTER_OFFSET = 0x3fff;
+
+    private ByteBuffer message;
+    private final Map<DnsName, Integer> suffixes = new HashMap<>();
+
+    /**
+     * Creates a compressor for the supplied message. Offsets are relative to index zero of the buffer.
+     * @param message Message being built
+     */
+    public NameCompressor(ByteBuffer message) {
+        this.message = message;
+    }
+
+    /**
+     * Clears the suffix table and starts compressing into another message.
+     * @param message Message being built
+     */
+    public void reset(ByteBuffer message) {
+        this.message = message;
+        suffixes.clear();
+    }
+
+    /**
+     * Records the suffixes of a name that is already in the message, such as a question name, so that later names
+     * can point to it.
+     * @param offset Offset of the name
+     */
+    public void addName(int offset) {
+        register(DnsName.wrap(message, offset), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes a domain name at the message's current position, compressing it against the names written so far.
+     * @param name Domain name
+     */
+    public void writeName(String name) {
+        writeName(DnsName.valueOf(name));
+    }
+
+    /**
+     * Writes a domain name at the message's current position, compressing it against the names written so far.
+     * @param name Domain name
+     */
+    public void writeName(DnsName name) {
+        int start = message.position();
+        int count = name.getLabelCount();
+
+        // Find the longest suffix that is already in the message
+        int written = count;
+        Integer pointer = null;
+        for (int i = 0; i < count && null == pointer; i++) {
+            pointer = suffixes.get(name.getSuffix(count - i));
+            if (null != pointer) {
+                written = i;
+            }
+        }
+
+        for (int i = 0; i < written; i++) {
+            int labelLength = name.getLabelLength(i);
+            message.put((byte) labelLength);
+            for (int j = 0; j < labelLength; j++) {
+                message.put(name.getLabelByte(i, j));
+            }
+        }
+        if (null == pointer) {
+            message.put((byte) 0);
+        } else {
+            message.putShort((short) (0xc000 | pointer));
+        }
+
+        if (written > 0) {
+            register(DnsName.wrap(message, start), written);
+        }
+    }
+
+    /**
+     * Forgets every suffix at or after a position, so the message can be cut back to that position and written again.
+     * @param position New end of the message
+     */
+    public void truncate(int position) {
+        Iterator<Integer> offsets = suffixes.values().iterator();
+        while (offsets.hasNext()) {
+            if (offsets.next() >= position) {
+                offsets.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the number of suffixes available for compression.
+     * @return Number of suffixes in the table
+     */
+    public int getSuffixCount() {
+        return suffixes.size();
+    }
+
+    private void register(DnsName name, int newLabels) {
+        int count = name.getLabelCount();
+        for (int i = 0; i < count && i < newLabels; i++) {
+            int offset = name.getLabelOffset(i);
+            if (offset > MAX_POINTER_OFFSET) {
+                break;
+            }
+            DnsName suffix = name.getSuffix(count - i);
+            if (!suffixes.containsKey(suffix)) {
+                suffixes.put(suffix, offset);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package org.code_revue.dns.message;
+
+import org.code_revue.dns.util.ByteBufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Precompiled answers for resolvers that give the same answers whatever the question name is. The answer records for
+ * each question type are encoded once, with owner names that are compression pointers to offset 12, where the name of
+ * the first question always starts. A response is then made by copying the query's header and question and appending
+ * the encoded block, without parsing names, creating records or running a
+ * {@link org.code_revue.dns.message.DnsResponseBuilder}.
+ * <p>
+ * Resource data can refer to the question name as well, see {@link #relativeName(String)}. Templates only apply to
+ * queries with a single question of class IN; {@link #apply(java.nio.ByteBuffer)} returns null for anything else, and
+ * for question types with no answers, so callers can fall back to building the response normally.
+ * </p>
+ * <p>
+ * Answers must all be added before the template is shared between threads. Applying a template is thread safe.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class ResponseTemplate {
+
+    /**
+     * Compression pointer to the name of the first question.
+     */
+    public static final short QUESTION_NAME_POINTER = (short) (0xc000 | DnsMessageOverlay.HEADER_LENGTH);
+
+    private int[] questionTypes = new int[0];
+    private byte[][] blocks = new byte[0][];
+    private int[] recordCounts = new int[0];
+
+    /**
+     * Adds an answer record for questions of the supplied type.
+     * @param questionType Question type the answer is for
+     * @param recordType Type of the answer record
+     * @param ttl Time to live in seconds
+     * @param resourceData Resource data, in which the only compression pointers allowed are
+     *                     {@link #QUESTION_NAME_POINTER}
+     * @return this
+     */
+    public ResponseTemplate addAnswer(DnsRecordType questionType, DnsRecordType recordType, int ttl,
+                                      byte[] resourceData) {
+        ByteBuffer record = ByteBuffer.allocate(12 + resourceData.length);
+        record.putShort(QUESTION_NAME_POINTER)
+                .putShort((short) recordType.getNumericCode())
+                .putShort((short) DnsRecordClass.IN.getNumericCode())
+                .putInt(ttl)
+                .putShort((short) resourceData.length)
+                .put(resourceData);
+
+        int index = indexOf(questionType.getNumericCode());
+        if (index < 0) {
+            index = questionTypes.length;
+            questionTypes = Arrays.copyOf(questionTypes, index + 1);
+            blocks = Arrays.copyOf(blocks, index + 1);
+            recordCounts = Arrays.copyOf(recordCounts, index + 1);
+            questionTypes[index] = questionType.getNumericCode();
+            blocks[index] = new byte[0];
+        }
+        byte[] block = Arrays.copyOf(blocks[index], blocks[index].length + record.capacity());
+        System.arraycopy(record.array(), 0, block, blocks[index].length, record.capacity());
+        blocks[index] = block;
+        recordCounts[index]++;
+        return this;
+    }
+
+    /**
+     * Encodes a name made up of some leading labels followed by the question name, for use in resource data. For
+     * example, a prefix of "ns" gives <code>ns.&lt;question name&gt;</code>.
+     * @param prefix Labels to put in front of the question name, or the empty string for the question name itself
+     * @return Encoded name ending in {@link #QUESTION_NAME_POINTER}
+     */
+    public static byte[] relativeName(String prefix) {
+        if (prefix.isEmpty()) {
+            return new byte[] { (byte) (QUESTION_NAME_POINTER >> 8), (byte) QUESTION_NAME_POINTER };
+        }
+        byte[] encoded = ByteBufferUtils.encodeDomainName(prefix);
+        ByteBuffer buffer = ByteBuffer.wrap(encoded);
+        int length = ByteBufferUtils.skipDomainName(buffer, 0) - 1;
+        ByteBuffer name = ByteBuffer.allocate(length + 2);
+        name.put(encoded, 0, length).putShort(QUESTION_NAME_POINTER);
+        return name.array();
+    }
+
+    /**
+     * Indicates whether the template has answers for a question type.
+     * @param questionType Numeric question type
+     * @return True if {@link #apply(java.nio.ByteBuffer)} can answer questions of this type
+     */
+    public boolean hasAnswers(int questionType) {
+        return indexOf(questionType) >= 0;
+    }
+
+    /**
+     * Creates an authoritative NOERROR response to the query from the precompiled answers. The response is written to
+     * a pooled buffer, like those of {@link org.code_revue.dns.message.DnsResponseBuilder}, and the query is left
+     * unchanged.
+     * @param query Query with its position at zero and its limit at the end of the message
+     * @return Response, or null if the template doesn't apply to the query
+     */
+    public ByteBuffer apply(ByteBuffer query) {
+        int limit = query.limit();
+        if (limit < DnsMessageOverlay.HEADER_LENGTH || 1 != query.getShort(4)) {
+            return null;
+        }
+
+        int typePosition;
+        try {
+            typePosition = ByteBufferUtils.skipDomainName(query, DnsMessageOverlay.HEADER_LENGTH);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        int questionEnd = typePosition + 4;
+        if (questionEnd > limit || DnsRecordClass.IN.getNumericCode() != query.getShort(typePosition + 2)) {
+            return null;
+        }
+        int index = indexOf(query.getShort(typePosition) & 0xffff);
+        if (index < 0 || questionEnd + blocks[index].length > DnsMessageOverlay.MAX_UDP_DNS_LENGTH) {
+            return null;
+        }
+
+        ByteBuffer response = DnsResponseBuilder.acquireBuffer();
+        ByteBuffer source = query.duplicate();
+        source.position(0).limit(questionEnd);
+        response.put(source).put(blocks[index]);
+
+        // Keep the opcode and RD, set QR and AA, clear TC; then RA with NOERROR
+        response.put(2, (byte) ((response.get(2) & 0b01111001) | 0b10000100));
+        response.put(3, (byte) 0b10000000);
+        response.putShort(6, (short) recordCounts[index]);
+        response.putShort(8, (short) 0);
+        response.putShort(10, (short) 0);
+        response.flip();
+        return response;
+    }
+
+    private int indexOf(int questionType) {
+        for (int i = 0; i < questionTypes.length; i++) {
+            if (questionType == questionTypes[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,62 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * Resource data of an A or AAAA record, which is a single IPv4 or IPv6 address.
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc3596">https://tools.ietf.org/html/rfc3596</a>
+ */
+public class AddressData extends RecordData {
+
+    AddressData(DnsRecordType type, ByteBuffer data, int offset, int length) {
+        super(type, data, offset, length);
+        int expected = DnsRecordType.A == type ? 4 : 16;
+        if (length != expected) {
+            throw new IllegalArgumentException(type + " resource data must be " + expected + " bytes long");
+        }
+    }
+
+    /**
+     * Get a single byte of the address, without copying the rest of it.
+     * @param index Index, starting at zero with the most significant byte
+     * @return Address byte
+     */
+    public byte getAddressByte(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside address");
+        }
+        return data.get(offset + index);
+    }
+
+    /**
+     * Copies the address out of the buffer.
+     * @return Address bytes in network order
+     */
+    public byte[] getAddressBytes() {
+        byte[] address = new byte[length];
+        for (int i = 0; i < length; i++) {
+            address[i] = data.get(offset + i);
+        }
+        return address;
+    }
+
+    /**
+     * Copies the address out of the buffer.
+     * @return Address
+     */
+    public InetAddress getAddress() {
+        try {
+            return InetAddress.getByAddress(getAddressBytes());
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of the wrong length, which the constructor rules out
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
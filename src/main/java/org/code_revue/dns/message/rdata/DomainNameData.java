@@ -0,0 +1,32 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resource data of an NS, CNAME or PTR record, which is a single domain name.
+ *
+ * @author Mike Fanning
+ */
+public class DomainNameData extends RecordData {
+
+    private DnsName name;
+
+    DomainNameData(DnsRecordType type, ByteBuffer data, int offset, int length) {
+        super(type, data, offset, length);
+    }
+
+    /**
+     * Get the name server, canonical name or pointer target, depending on the record type.
+     * @return Domain name
+     */
+    public DnsName getName() {
+        if (null == name) {
+            name = getName(0);
+        }
+        return name;
+    }
+
+}
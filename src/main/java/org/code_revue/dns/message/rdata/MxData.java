@@ -0,0 +1,37 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resource data of an MX record.
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-3.3.9">https://tools.ietf.org/html/rfc1035#section-3.3.9</a>
+ */
+public class MxData extends RecordData {
+
+    private DnsName exchange;
+
+    MxData(ByteBuffer data, int offset, int length) {
+        super(DnsRecordType.MX, data, offset, length);
+    }
+
+    /**
+     * Get the preference of this mail exchange, lower values are preferred.
+     * @return Unsigned 16 bit preference
+     */
+    public int getPreference() {
+        return getUnsignedShort(0);
+    }
+
+    public DnsName getExchange() {
+        if (null == exchange) {
+            exchange = getName(2);
+        }
+        return exchange;
+    }
+
+}
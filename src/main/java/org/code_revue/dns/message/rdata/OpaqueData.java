@@ -0,0 +1,32 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resource data of a type that has no view of its own. The bytes can only be read or copied as they are, which is
+ * all RFC 3597 allows for types a server doesn't know.
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc3597">https://tools.ietf.org/html/rfc3597</a>
+ */
+public class OpaqueData extends RecordData {
+
+    OpaqueData(DnsRecordType type, ByteBuffer data, int offset, int length) {
+        super(type, data, offset, length);
+    }
+
+    /**
+     * Get a single byte of resource data.
+     * @param index Index, starting at zero
+     * @return Data byte
+     */
+    public byte getByte(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " outside resource data");
+        }
+        return data.get(offset + index);
+    }
+
+}
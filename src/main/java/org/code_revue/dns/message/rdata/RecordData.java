@@ -0,0 +1,132 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Read-only view of the resource data of a DNS record. Views are created with
+ * {@link #wrap(org.code_revue.dns.message.DnsRecordType, java.nio.ByteBuffer, int, int)} on top of the buffer the data
+ * already lives in, which may be a whole DNS message or just the data of a single record. Nothing is copied and fields
+ * are only decoded when they are asked for, so a view is cheap to create and throw away.
+ * <p>
+ * Domain names are returned as {@link org.code_revue.dns.message.DnsName}s wrapped at their offset in the buffer, so
+ * compression pointers are followed relative to index zero of the buffer. Malformed data is only detected when the
+ * affected field is read, which throws an {@link java.lang.IllegalArgumentException} or
+ * {@link java.lang.IndexOutOfBoundsException}. Views are only valid while the underlying buffer is left unchanged.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-3.3">https://tools.ietf.org/html/rfc1035#section-3.3</a>
+ */
+public abstract class RecordData {
+
+    private final DnsRecordType type;
+
+    protected final ByteBuffer data;
+    protected final int offset;
+    protected final int length;
+
+    protected RecordData(DnsRecordType type, ByteBuffer data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.limit()) {
+            throw new IndexOutOfBoundsException("Resource data runs past end of buffer");
+        }
+        this.type = type;
+        this.data = data;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Creates the view that matches a record type. Types without a view of their own get an
+     * {@link org.code_revue.dns.message.rdata.OpaqueData}.
+     * @param type Record type
+     * @param data Buffer holding the resource data
+     * @param offset Offset of the first byte of resource data
+     * @param length Length of the resource data
+     * @return Resource data view
+     */
+    public static RecordData wrap(DnsRecordType type, ByteBuffer data, int offset, int length) {
+        switch (type) {
+            case A:
+            case AAAA:
+                return new AddressData(type, data, offset, length);
+            case NS:
+            case CNAME:
+            case PTR:
+                return new DomainNameData(type, data, offset, length);
+            case MX:
+                return new MxData(data, offset, length);
+            case SOA:
+                return new SoaData(data, offset, length);
+            case SRV:
+                return new SrvData(data, offset, length);
+            case TXT:
+                return new TxtData(data, offset, length);
+            default:
+                return new OpaqueData(type, data, offset, length);
+        }
+    }
+
+    /**
+     * Creates the view that matches a record type over a standalone copy of the resource data.
+     * @param type Record type
+     * @param resourceData Resource data, without compression pointers
+     * @return Resource data view
+     */
+    public static RecordData wrap(DnsRecordType type, byte[] resourceData) {
+        return wrap(type, ByteBuffer.wrap(resourceData), 0, resourceData.length);
+    }
+
+    public DnsRecordType getType() {
+        return type;
+    }
+
+    /**
+     * Get the length of the resource data as it appears in the buffer.
+     * @return Length in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Copies the resource data bytes as they appear in the buffer, including any compression pointers.
+     * @param buffer Destination buffer
+     */
+    public void writeTo(ByteBuffer buffer) {
+        for (int i = 0; i < length; i++) {
+            buffer.put(data.get(offset + i));
+        }
+    }
+
+    protected int getUnsignedByte(int position) {
+        checkField(position, 1);
+        return data.get(offset + position) & 0xff;
+    }
+
+    protected int getUnsignedShort(int position) {
+        checkField(position, 2);
+        return data.getShort(offset + position) & 0xffff;
+    }
+
+    protected long getUnsignedInt(int position) {
+        checkField(position, 4);
+        return data.getInt(offset + position) & 0xffffffffL;
+    }
+
+    protected DnsName getName(int position) {
+        checkField(position, 1);
+        DnsName name = DnsName.wrap(data, offset + position);
+        checkField(position, name.getWireLength());
+        return name;
+    }
+
+    private void checkField(int position, int fieldLength) {
+        if (position < 0 || position + fieldLength > length) {
+            throw new IndexOutOfBoundsException("Field runs past end of " + type + " resource data");
+        }
+    }
+
+}
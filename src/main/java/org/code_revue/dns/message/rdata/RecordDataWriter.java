@@ -0,0 +1,125 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.NameCompressor;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes resource data straight into a message buffer, at the buffer's current position. Only the data itself is
+ * written; the caller is responsible for the RDLENGTH field in front of it.
+ * <p>
+ * If the writer has a {@link org.code_revue.dns.message.NameCompressor}, the domain names in NS, CNAME, PTR, MX and SOA
+ * data are compressed. Names in other types, such as the SRV target, are always written in full, as required by
+ * RFC 3597.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc3597#section-4">https://tools.ietf.org/html/rfc3597#section-4</a>
+ */
+public class RecordDataWriter {
+
+    private final ByteBuffer buffer;
+    private final NameCompressor compressor;
+
+    /**
+     * Creates a writer that never compresses names.
+     * @param buffer Destination buffer
+     */
+    public RecordDataWriter(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * Creates a writer that compresses names where the record type allows it.
+     * @param buffer Destination buffer, which must be the message the compressor is working on
+     * @param compressor Name compressor, or null to write names in full
+     */
+    public RecordDataWriter(ByteBuffer buffer, NameCompressor compressor) {
+        this.buffer = buffer;
+        this.compressor = compressor;
+    }
+
+    /**
+     * Writes the data of an A or AAAA record.
+     * @param address Four or sixteen address bytes
+     */
+    public void writeAddress(byte[] address) {
+        if (4 != address.length && 16 != address.length) {
+            throw new IllegalArgumentException("Address must be 4 or 16 bytes long");
+        }
+        buffer.put(address);
+    }
+
+    /**
+     * Writes the data of an NS, CNAME or PTR record.
+     * @param name Name server, canonical name or pointer target
+     */
+    public void writeDomainName(DnsName name) {
+        writeName(name, true);
+    }
+
+    public void writeMx(int preference, DnsName exchange) {
+        buffer.putShort((short) preference);
+        writeName(exchange, true);
+    }
+
+    public void writeSoa(DnsName primaryNameServer, DnsName mailbox, long serial, int refresh, int retry, int expire,
+                         int minimum) {
+        writeName(primaryNameServer, true);
+        writeName(mailbox, true);
+        buffer.putInt((int) serial).putInt(refresh).putInt(retry).putInt(expire).putInt(minimum);
+    }
+
+    public void writeSrv(int priority, int weight, int port, DnsName target) {
+        buffer.putShort((short) priority).putShort((short) weight).putShort((short) port);
+        writeName(target, false);
+    }
+
+    /**
+     * Writes the data of a TXT record, one character string per argument.
+     * @param strings ASCII strings of up to 255 bytes each
+     */
+    public void writeTxt(String... strings) {
+        for (String string: strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length > 255) {
+                throw new IllegalArgumentException("Character string longer than 255 bytes");
+            }
+            buffer.put((byte) bytes.length).put(bytes);
+        }
+    }
+
+    /**
+     * Re-encodes the data behind a view. Names are written from their labels, so compression pointers that only made
+     * sense in the source message are expanded and the names are compressed against this message instead.
+     * @param data Resource data view
+     */
+    public void write(RecordData data) {
+        if (data instanceof DomainNameData) {
+            writeDomainName(((DomainNameData) data).getName());
+        } else if (data instanceof MxData) {
+            MxData mx = (MxData) data;
+            writeMx(mx.getPreference(), mx.getExchange());
+        } else if (data instanceof SoaData) {
+            SoaData soa = (SoaData) data;
+            writeSoa(soa.getPrimaryNameServer(), soa.getMailbox(), soa.getSerial(), soa.getRefresh(), soa.getRetry(),
+                    soa.getExpire(), soa.getMinimum());
+        } else if (data instanceof SrvData) {
+            SrvData srv = (SrvData) data;
+            writeSrv(srv.getPriority(), srv.getWeight(), srv.getPort(), srv.getTarget());
+        } else {
+            data.writeTo(buffer);
+        }
+    }
+
+    private void writeName(DnsName name, boolean compress) {
+        if (compress && null != compressor) {
+            compressor.writeName(name);
+        } else {
+            name.writeTo(buffer);
+        }
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resource data of an SOA record. The timer fields are found by skipping both names, which only happens the first
+ * time one of them is read.
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-3.3.13">https://tools.ietf.org/html/rfc1035#section-3.3.13</a>
+ */
+public class SoaData extends RecordData {
+
+    private DnsName primaryNameServer;
+    private DnsName mailbox;
+
+    SoaData(ByteBuffer data, int offset, int length) {
+        super(DnsRecordType.SOA, data, offset, length);
+    }
+
+    public DnsName getPrimaryNameServer() {
+        if (null == primaryNameServer) {
+            primaryNameServer = getName(0);
+        }
+        return primaryNameServer;
+    }
+
+    /**
+     * Get the mailbox of the person responsible for the zone, with the first label being the local part.
+     * @return Mailbox as a domain name
+     */
+    public DnsName getMailbox() {
+        if (null == mailbox) {
+            mailbox = getName(getPrimaryNameServer().getWireLength());
+        }
+        return mailbox;
+    }
+
+    /**
+     * Get the serial number of the zone, which is an unsigned 32 bit number.
+     * @return Serial number
+     */
+    public long getSerial() {
+        return getUnsignedInt(getTimersPosition());
+    }
+
+    public int getRefresh() {
+        return (int) getUnsignedInt(getTimersPosition() + 4);
+    }
+
+    public int getRetry() {
+        return (int) getUnsignedInt(getTimersPosition() + 8);
+    }
+
+    public int getExpire() {
+        return (int) getUnsignedInt(getTimersPosition() + 12);
+    }
+
+    /**
+     * Get the minimum field, which RFC 2308 uses as the TTL for negative answers.
+     * @return Minimum TTL in seconds
+     */
+    public int getMinimum() {
+        return (int) getUnsignedInt(getTimersPosition() + 16);
+    }
+
+    private int getTimersPosition() {
+        return getPrimaryNameServer().getWireLength() + getMailbox().getWireLength();
+    }
+
+}
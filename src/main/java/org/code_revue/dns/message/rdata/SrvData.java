@@ -0,0 +1,41 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Resource data of an SRV record. Unlike the record types from RFC 1035, the target name must not be compressed.
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc2782">https://tools.ietf.org/html/rfc2782</a>
+ */
+public class SrvData extends RecordData {
+
+    private DnsName target;
+
+    SrvData(ByteBuffer data, int offset, int length) {
+        super(DnsRecordType.SRV, data, offset, length);
+    }
+
+    public int getPriority() {
+        return getUnsignedShort(0);
+    }
+
+    public int getWeight() {
+        return getUnsignedShort(2);
+    }
+
+    public int getPort() {
+        return getUnsignedShort(4);
+    }
+
+    public DnsName getTarget() {
+        if (null == target) {
+            target = getName(6);
+        }
+        return target;
+    }
+
+}
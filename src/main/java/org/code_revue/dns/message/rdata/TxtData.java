@@ -0,0 +1,72 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.DnsRecordType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Resource data of a TXT record, which is one or more character strings of up to 255 bytes each. The strings are
+ * counted the first time they are needed, after that each one can be found without scanning.
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-3.3.14">https://tools.ietf.org/html/rfc1035#section-3.3.14</a>
+ */
+public class TxtData extends RecordData {
+
+    private int[] strings;
+
+    TxtData(ByteBuffer data, int offset, int length) {
+        super(DnsRecordType.TXT, data, offset, length);
+    }
+
+    public int getStringCount() {
+        return getStrings().length;
+    }
+
+    /**
+     * Get the length of one of the character strings.
+     * @param index String index
+     * @return Length in bytes
+     */
+    public int getStringLength(int index) {
+        return getUnsignedByte(getStrings()[index]);
+    }
+
+    /**
+     * Decodes one of the character strings. Bytes outside the ASCII range are replaced.
+     * @param index String index
+     * @return Character string
+     */
+    public String getString(int index) {
+        int position = getStrings()[index];
+        byte[] bytes = new byte[getUnsignedByte(position)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = data.get(offset + position + 1 + i);
+        }
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+
+    private int[] getStrings() {
+        if (null == strings) {
+            int count = 0;
+            int position = 0;
+            while (position < length) {
+                position += getUnsignedByte(position) + 1;
+                count++;
+            }
+            if (position > length) {
+                throw new IllegalArgumentException("Character string runs past end of TXT resource data");
+            }
+            int[] positions = new int[count];
+            position = 0;
+            for (int i = 0; i < count; i++) {
+                positions[i] = position;
+                position += getUnsignedByte(position) + 1;
+            }
+            strings = positions;
+        }
+        return strings;
+    }
+
+}
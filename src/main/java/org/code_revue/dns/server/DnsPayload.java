@@ -1,5 +1,7 @@
 package org.code_revue.dns.server;
 
+import org.code_revue.dns.message.DnsMessageOverlay;
+
 import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 
@@ -7,6 +9,12 @@ import java.nio.ByteBuffer;
  * This class contains all of the information about a DNS request or response, namely the address and the binary data
  * for the message. Note that this class is mutable, and the same payload object can be used for both request and
  * response.
+ * <p>
+ * The payload also holds a single {@link org.code_revue.dns.message.DnsMessageOverlay} for its message data, so the
+ * rules, engine and resolvers that look at the same query all share one parse of it. A query payload carries a
+ * {@link org.code_revue.dns.server.QueryContext} as well, which keeps describing the query after the message data has
+ * been replaced by the response.
+ * </p>
  *
  * @author Mike Fanning
  * @see org.code_revue.dns.message.DnsMessageOverlay
@@ -17,8 +25,13 @@ public class DnsPayload {
 
     private ByteBuffer messageData;
 
+    private DnsMessageOverlay overlay;
+
+    private QueryContext context;
+
     /**
-     * Creates a new payload from the supplied address and message data.
+     * Creates a new payload from the supplied address and message data. The query context is created when it is first
+     * requested.
      * @param remoteAddress
      * @param messageData
      */
@@ -27,6 +40,19 @@ public class DnsPayload {
         this.messageData = messageData;
     }
 
+    /**
+     * Creates a new query payload with a context that has already been created, normally by the connector as the
+     * query is received.
+     * @param remoteAddress
+     * @param messageData
+     * @param context Query context
+     */
+    public DnsPayload(SocketAddress remoteAddress, ByteBuffer messageData, QueryContext context) {
+        this.remoteAddress = remoteAddress;
+        this.messageData = messageData;
+        this.context = context;
+    }
+
     /**
      * Get the address for this payload.
      * @return
@@ -57,6 +83,40 @@ public class DnsPayload {
      */
     public void setMessageData(ByteBuffer messageData) {
         this.messageData = messageData;
+        this.overlay = null;
+    }
+
+    /**
+     * Get the overlay for this payload's message data. The overlay is created the first time it is requested and is
+     * replaced when the message data is set.
+     * @return Message overlay
+     */
+    public DnsMessageOverlay getOverlay() {
+        DnsMessageOverlay result = overlay;
+        if (null == result) {
+            // Share the context's parse while the message data is still the query
+            if (null != context && context.getQuery() == messageData) {
+                result = context.getOverlay();
+            } else {
+                result = new DnsMessageOverlay(messageData);
+            }
+            overlay = result;
+        }
+        return result;
+    }
+
+    /**
+     * Get the context for the query this payload was created for. If the payload was not given a context, one is
+     * created from the current address and message data the first time it is requested.
+     * @return Query context
+     */
+    public QueryContext getContext() {
+        QueryContext result = context;
+        if (null == result) {
+            result = new QueryContext(remoteAddress, messageData);
+            context = result;
+        }
+        return result;
     }
 
 }
@@ -1,9 +1,12 @@
 package org.code_revue.dns.server;
 
+import org.code_revue.dns.message.DnsMessageValidator;
 import org.code_revue.dns.message.DnsResponseBuilder;
 import org.code_revue.dns.message.DnsResponseCode;
 import org.code_revue.dns.server.connector.DnsConnector;
+import org.code_revue.dns.server.engine.AsyncDnsEngine;
 import org.code_revue.dns.server.engine.DnsEngine;
+import org.code_revue.dns.server.engine.EngineCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -23,6 +26,17 @@ import java.util.concurrent.atomic.AtomicLong;
  * passed back to the original connector and sent to the client.
  * </p>
  * <p>
+ * If the engine is an {@link org.code_revue.dns.server.engine.AsyncDnsEngine}, the executor is bypassed: the engine is
+ * invoked directly on the connector thread and the response is written to the original connector from whichever thread
+ * completes it. Queries the engine can answer from memory are then sent without any thread handoff. The engine is given
+ * the executor when the server starts, for any work it cannot do without blocking.
+ * </p>
+ * <p>
+ * Every message is checked by a {@link org.code_revue.dns.message.DnsMessageValidator} on the connector thread first.
+ * Messages that fail are dropped or answered with FORMERR or NOTIMP right there, so they never reach the engine or the
+ * executor.
+ * </p>
+ * <p>
  * It is important to make the {@link java.util.concurrent.ExecutorService} sufficiently parallel to handle incoming
  * requests; otherwise the processing capabilities of the server could be exhausted by long running recursive queries
  * to other servers.
@@ -40,6 +54,10 @@ public class DnsServer {
     private DnsEngine engine;
     private Executor executor;
     private AtomicLong connectorIndex = new AtomicLong(0);
+    private DnsMessageValidator validator = new DnsMessageValidator();
+
+    private AtomicLong droppedCount = new AtomicLong(0);
+    private AtomicLong rejectedCount = new AtomicLong(0);
 
     /**
      * Starts the server. After this method is invoked, all connectors begin reading messages and passing them to the
@@ -63,6 +81,10 @@ public class DnsServer {
             tpExec.prestartAllCoreThreads();
             executor = tpExec;
         }
+        if (engine instanceof AsyncDnsEngine) {
+            // Asynchronous engines run on the connector threads, so anything that blocks has to go to the executor
+            ((AsyncDnsEngine) engine).setDefaultExecutor(executor);
+        }
 
         for (ConnectorWorker worker : connectorWorkers.values()) {
             logger.debug("Starting connector thread {}", worker.getName());
@@ -175,20 +197,20 @@ public class DnsServer {
 
                                 logger.debug("DNS query received from {}", payload.getRemoteAddress());
 
-                                executor.execute(new Runnable() {
-                                    @Override
-                                    public void run() {
-                                        DnsPayload response = engine.processDnsPayload(payload);
-                                        try {
-                                            logger.debug("Sending response to {}", payload.getRemoteAddress());
-                                            connector.write(response);
-                                        } catch (IOException e) {
-                                            logger.error("Connector write error", e);
-                                        } catch (Exception e) {
-                                            logger.error("Connector error", e);
+                                DnsMessageValidator.Result result = validator.validate(payload.getMessageData());
+                                if (DnsMessageValidator.Result.VALID != result) {
+                                    reject(payload, result);
+                                } else if (engine instanceof AsyncDnsEngine) {
+                                    ((AsyncDnsEngine) engine).processDnsPayload(payload, new ResponseWriter());
+                                } else {
+                                    executor.execute(new Runnable() {
+                                        @Override
+                                        public void run() {
+                                            DnsPayload response = engine.processDnsPayload(payload);
+                                            write(response);
                                         }
-                                    }
-                                });
+                                    });
+                                }
                             }
                         } catch (RejectedExecutionException e) {
                             logger.error("Executor cannot accept any more tasks", e);
@@ -206,8 +228,38 @@ public class DnsServer {
             }
         }
 
+        private void write(DnsPayload response) {
+            try {
+                logger.debug("Sending response to {}", response.getRemoteAddress());
+                connector.write(response);
+                DnsResponseBuilder.release(response.getMessageData());
+            } catch (IOException e) {
+                logger.error("Connector write error", e);
+            } catch (Exception e) {
+                logger.error("Connector error", e);
+            }
+        }
+
+        private void reject(DnsPayload payload, DnsMessageValidator.Result result) {
+            if (DnsMessageValidator.Result.DROP == result) {
+                logger.debug("Dropping invalid message from {}", payload.getRemoteAddress());
+                droppedCount.incrementAndGet();
+                return;
+            }
+            logger.debug("Rejecting invalid message from {} with {}", payload.getRemoteAddress(), result);
+            rejectedCount.incrementAndGet();
+            DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
+            if (DnsMessageValidator.Result.NOT_IMPLEMENTED == result) {
+                builder.setResponseCode(DnsResponseCode.NOT_IMPLEMENTED);
+            } else {
+                builder.setResponseCode(DnsResponseCode.FORMAT_ERROR);
+            }
+            payload.setMessageData(builder.build());
+            write(payload);
+        }
+
         private DnsPayload returnServerFailure(DnsPayload payload) {
-            DnsResponseBuilder builder = new DnsResponseBuilder(payload.getMessageData());
+            DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
             builder.setResponseCode(DnsResponseCode.SERVER_FAILURE);
             payload.setMessageData(builder.build());
             return payload;
@@ -220,6 +272,23 @@ public class DnsServer {
         public void shutdown() {
             this.shutdown = true;
         }
+
+        /**
+         * Writes responses from an asynchronous engine back to this worker's connector.
+         */
+        private class ResponseWriter implements EngineCallback {
+
+            @Override
+            public void complete(DnsPayload response) {
+                write(response);
+            }
+
+            @Override
+            public void failed(DnsPayload query, Exception e) {
+                logger.error("Error resolving response", e);
+                write(returnServerFailure(query));
+            }
+        }
     }
 
     /**
@@ -237,6 +306,42 @@ public class DnsServer {
     public void setEngine(DnsEngine engine) {
         assert null != engine;
         this.engine = engine;
+        if (running && engine instanceof AsyncDnsEngine) {
+            ((AsyncDnsEngine) engine).setDefaultExecutor(executor);
+        }
+    }
+
+    /**
+     * Get the validator that checks messages before they are passed to the engine.
+     * @return Message validator
+     */
+    public DnsMessageValidator getValidator() {
+        return validator;
+    }
+
+    /**
+     * Set the validator that checks messages before they are passed to the engine.
+     * @param validator Message validator
+     */
+    public void setValidator(DnsMessageValidator validator) {
+        assert null != validator;
+        this.validator = validator;
+    }
+
+    /**
+     * Get the number of messages dropped without a reply because they were too short or were not queries.
+     * @return Number of dropped messages
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Get the number of messages answered with FORMERR or NOTIMP without reaching the engine.
+     * @return Number of rejected messages
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
     }
 
     /**
@@ -0,0 +1,189 @@
+package org.code_revue.dns.server;
+
+import org.code_revue.dns.message.DnsMessageOverlay;
+import org.code_revue.dns.message.DnsQuestion;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything known about a query when it arrives, worked out once and then shared by the rules, engine and resolvers
+ * that handle it. The context is created by the connector that receives the query and travels with its
+ * {@link org.code_revue.dns.server.DnsPayload}, even after the payload's message data has been replaced by a response.
+ * <p>
+ * The header and questions are parsed lazily through a single {@link org.code_revue.dns.message.DnsMessageOverlay}, so
+ * nothing is parsed for messages that are rejected before they reach the engine. The client address is kept in
+ * numeric form for address based rules, and the receive time lets any stage measure how long the query has taken.
+ * </p>
+ * <p>
+ * Attributes give stages somewhere to keep their own per-query data. A context is only ever used by one thread at a
+ * time, so it is not synchronized; handing a query to another thread through an executor is enough to make earlier
+ * changes visible.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class QueryContext {
+
+    private static final byte[] NO_ADDRESS = new byte[0];
+
+    private final long receiveTime;
+
+    private final ByteBuffer query;
+
+    private final InetAddress clientAddress;
+
+    private final byte[] clientAddressBytes;
+
+    private final int clientPort;
+
+    private DnsMessageOverlay overlay;
+
+    private DnsQuestion[] questions;
+
+    private Map<String, Object> attributes;
+
+    /**
+     * Creates a context for a query that has just been received.
+     * @param remoteAddress Client address
+     * @param query Query message data
+     */
+    public QueryContext(SocketAddress remoteAddress, ByteBuffer query) {
+        this.receiveTime = System.nanoTime();
+        this.query = query;
+        if (remoteAddress instanceof InetSocketAddress && null != ((InetSocketAddress) remoteAddress).getAddress()) {
+            InetSocketAddress socketAddress = (InetSocketAddress) remoteAddress;
+            this.clientAddress = socketAddress.getAddress();
+            this.clientAddressBytes = clientAddress.getAddress();
+            this.clientPort = socketAddress.getPort();
+        } else {
+            this.clientAddress = null;
+            this.clientAddressBytes = NO_ADDRESS;
+            this.clientPort = -1;
+        }
+    }
+
+    /**
+     * Get the time the query was received, from {@link System#nanoTime()}.
+     * @return Receive time in nanoseconds
+     */
+    public long getReceiveTime() {
+        return receiveTime;
+    }
+
+    /**
+     * Get the time since the query was received.
+     * @return Elapsed time in nanoseconds
+     */
+    public long getElapsedTime() {
+        return System.nanoTime() - receiveTime;
+    }
+
+    /**
+     * Get the original query message data.
+     * @return Query message
+     */
+    public ByteBuffer getQuery() {
+        return query;
+    }
+
+    /**
+     * Get the overlay for the query message. It is created on first use.
+     * @return Query overlay
+     */
+    public DnsMessageOverlay getOverlay() {
+        if (null == overlay) {
+            overlay = new DnsMessageOverlay(query);
+        }
+        return overlay;
+    }
+
+    /**
+     * Get the number of questions in the query.
+     * @return Question count
+     */
+    public int getQuestionCount() {
+        return getParsedQuestions().length;
+    }
+
+    /**
+     * Get one of the query's questions, without copying the question array.
+     * @param index Question index
+     * @return Question
+     */
+    public DnsQuestion getQuestion(int index) {
+        return getParsedQuestions()[index];
+    }
+
+    /**
+     * Get the query's questions. The questions are parsed once, but the array returned is a copy.
+     * @return Questions
+     */
+    public DnsQuestion[] getQuestions() {
+        return getParsedQuestions().clone();
+    }
+
+    /**
+     * Get the client's IP address.
+     * @return Client address, or null if the query did not come from an IP socket
+     */
+    public InetAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    /**
+     * Get the client's IP address in network byte order: four bytes for IPv4 and sixteen for IPv6. The array is shared
+     * and must not be modified.
+     * @return Address bytes, empty if the query did not come from an IP socket
+     */
+    public byte[] getClientAddressBytes() {
+        return clientAddressBytes;
+    }
+
+    /**
+     * Get the client's port.
+     * @return Port, or -1 if the query did not come from an IP socket
+     */
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    /**
+     * Get an attribute stored against this query.
+     * @param name Attribute name
+     * @return Attribute value, or null if it has not been set
+     */
+    public Object getAttribute(String name) {
+        return null == attributes ? null : attributes.get(name);
+    }
+
+    /**
+     * Store an attribute against this query. Names should be qualified, e.g. with a class name, to avoid clashes.
+     * @param name Attribute name
+     * @param value Attribute value, or null to remove the attribute
+     */
+    public void setAttribute(String name, Object value) {
+        if (null == value) {
+            if (null != attributes) {
+                attributes.remove(name);
+            }
+        } else {
+            if (null == attributes) {
+                attributes = new HashMap<>();
+            }
+            attributes.put(name, value);
+        }
+    }
+
+    private DnsQuestion[] getParsedQuestions() {
+        if (null == questions) {
+            questions = getOverlay().getQuestions();
+        }
+        return questions;
+    }
+
+}
@@ -2,6 +2,7 @@ package org.code_revue.dns.server.connector;
 
 import org.code_revue.dns.message.DnsMessageOverlay;
 import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.QueryContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -91,7 +92,7 @@ public class DatagramConnector implements DnsConnector {
 
             message.limit(message.position());
             message.position(0);
-            return new DnsPayload(address, message);
+            return new DnsPayload(address, message, new QueryContext(address, message));
 
         } catch (AsynchronousCloseException e) {
             logger.debug("Caught AsynchronousCloseException - this could be the server shutting down");
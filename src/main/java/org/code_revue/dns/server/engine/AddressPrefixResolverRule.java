@@ -0,0 +1,153 @@
+package org.code_revue.dns.server.engine;
+
+import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.resolver.DnsResolver;
+import org.code_revue.dns.util.PrefixTrie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * A {@link org.code_revue.dns.server.engine.ResolverRule} that routes queries by client address. Each IPv4 or IPv6
+ * prefix, written in CIDR notation such as "192.168.0.0/16" or "2001:db8::/32", maps to its own
+ * {@link org.code_revue.dns.server.resolver.DnsResolver}, and a query is handled by the resolver for the most specific
+ * prefix containing the client's address.
+ * <p>
+ * The prefixes are kept in a {@link org.code_revue.dns.util.PrefixTrie} per address family and matched against the raw
+ * address bytes from the {@link org.code_revue.dns.server.QueryContext}, so a lookup takes the same time however many
+ * prefixes the rule holds and creates no objects. A single rule can hold hundreds of thousands of prefixes.
+ * </p>
+ * <p>
+ * Since the resolver depends on the query, {@link #getResolver()} has no answer on its own; the
+ * {@link org.code_revue.dns.server.engine.ResolverChain} uses {@link #getResolver(DnsPayload)} instead. Adding,
+ * removing and matching are all thread safe.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class AddressPrefixResolverRule implements ResolverRule {
+
+    private final Logger logger = LoggerFactory.getLogger(AddressPrefixResolverRule.class);
+
+    private final PrefixTrie<DnsResolver> ipv4 = new PrefixTrie<>();
+
+    private final PrefixTrie<DnsResolver> ipv6 = new PrefixTrie<>();
+
+    /**
+     * Maps a prefix to a resolver, replacing any resolver it already had.
+     * @param cidr Address prefix in CIDR notation, a plain address is treated as a single host
+     * @param resolver Resolver for clients within the prefix
+     * @return Resolver previously mapped to the prefix, or null if it is new
+     * @throws java.lang.IllegalArgumentException If the prefix is not a valid numeric address and prefix length
+     */
+    public DnsResolver addPrefix(String cidr, DnsResolver resolver) {
+        if (null == resolver) {
+            throw new IllegalArgumentException("Resolver must not be null");
+        }
+        byte[] address = parseAddress(cidr);
+        logger.debug("Adding prefix {} to rule", cidr);
+        return getTrie(address).put(address, parsePrefixLength(cidr, address), resolver);
+    }
+
+    /**
+     * Removes a prefix.
+     * @param cidr Address prefix in CIDR notation
+     * @return Resolver that was mapped to the prefix, or null if the prefix was not in the rule
+     * @throws java.lang.IllegalArgumentException If the prefix is not a valid numeric address and prefix length
+     */
+    public DnsResolver removePrefix(String cidr) {
+        byte[] address = parseAddress(cidr);
+        logger.debug("Removing prefix {} from rule", cidr);
+        return getTrie(address).remove(address, parsePrefixLength(cidr, address));
+    }
+
+    /**
+     * Get the number of prefixes in this rule, across both address families.
+     * @return Prefix count
+     */
+    public int getPrefixCount() {
+        return ipv4.size() + ipv6.size();
+    }
+
+    /**
+     * Checks whether any prefix contains the client address.
+     * @param payload Socket address and binary DNS data
+     * @return
+     */
+    @Override
+    public boolean isValid(DnsPayload payload) {
+        return null != getResolver(payload);
+    }
+
+    /**
+     * Finds the resolver for the most specific prefix containing the client address.
+     * @param payload Socket address and binary DNS data
+     * @return Question resolver, or null if no prefix matches
+     */
+    public DnsResolver getResolver(DnsPayload payload) {
+        byte[] address = payload.getContext().getClientAddressBytes();
+        if (4 == address.length) {
+            return ipv4.findLongestMatch(address);
+        } else if (16 == address.length) {
+            return ipv6.findLongestMatch(address);
+        }
+        return null;
+    }
+
+    /**
+     * This rule has a resolver per prefix, so there is no single resolver to return.
+     * @return null
+     */
+    @Override
+    public DnsResolver getResolver() {
+        return null;
+    }
+
+    private PrefixTrie<DnsResolver> getTrie(byte[] address) {
+        return 4 == address.length ? ipv4 : ipv6;
+    }
+
+    private static byte[] parseAddress(String cidr) {
+        if (null == cidr) {
+            throw new IllegalArgumentException("Prefix must not be null");
+        }
+        int slash = cidr.indexOf('/');
+        String address = slash < 0 ? cidr : cidr.substring(0, slash);
+
+        // Only numeric addresses are accepted, so that parsing never turns into a name lookup
+        if (address.isEmpty()) {
+            throw new IllegalArgumentException("Missing address in prefix " + cidr);
+        }
+        int radix = address.indexOf(':') < 0 ? 10 : 16;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (Character.digit(c, radix) < 0 && '.' != c && ':' != c) {
+                throw new IllegalArgumentException("Invalid address in prefix " + cidr);
+            }
+        }
+        try {
+            return InetAddress.getByName(address).getAddress();
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid address in prefix " + cidr, e);
+        }
+    }
+
+    private static int parsePrefixLength(String cidr, byte[] address) {
+        int slash = cidr.indexOf('/');
+        if (slash < 0) {
+            return address.length * 8;
+        }
+        try {
+            int prefixLength = Integer.parseInt(cidr.substring(slash + 1));
+            if (prefixLength < 0 || prefixLength > address.length * 8) {
+                throw new IllegalArgumentException("Invalid prefix length in " + cidr);
+            }
+            return prefixLength;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid prefix length in " + cidr, e);
+        }
+    }
+
+}
@@ -10,6 +10,10 @@ import java.util.regex.Pattern;
 /**
  * A {@link org.code_revue.dns.server.engine.ResolverRule} that uses a regular expression match on the payload address
  * to determine whether or not this {@link org.code_revue.dns.server.resolver.DnsResolver} should be used.
+ * <p>
+ * Matching formats the socket address and runs a regular expression over the text for every query. To route clients by
+ * subnet, {@link org.code_revue.dns.server.engine.AddressPrefixResolverRule} is much cheaper.
+ * </p>
  *
  * @author Mike Fanning
  */
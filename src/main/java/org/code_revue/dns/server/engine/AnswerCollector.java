@@ -0,0 +1,273 @@
+package org.code_revue.dns.server.engine;
+
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.server.resolver.AsyncDnsResolver;
+import org.code_revue.dns.server.resolver.NameErrorException;
+import org.code_revue.dns.server.resolver.ResolverCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Collects the answers to all of the questions in a query, which are resolved concurrently by one or more
+ * {@link org.code_revue.dns.server.resolver.AsyncDnsResolver}s. Answers are kept in question order, regardless of the
+ * order in which the resolvers complete them. Once every question has been answered or has failed,
+ * {@link #onComplete()} is called on the thread that completed the last question. Resolvers that never call back can be
+ * cut short with {@link #expire()}, which fails whatever is still outstanding, so that {@link #onComplete()} is always
+ * called exactly once.
+ *
+ * @author Mike Fanning
+ */
+class AnswerCollector {
+
+    private final Logger logger = LoggerFactory.getLogger(AnswerCollector.class);
+
+    private final DnsQuestion[] questions;
+    private final AtomicReferenceArray<List<DnsRecord>> answers;
+    private final AtomicInteger remaining;
+    private final AtomicBoolean failed = new AtomicBoolean();
+    private final AtomicBoolean nameError = new AtomicBoolean();
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private volatile Future<?> timeout;
+
+    /**
+     * Creates a new collector for the supplied questions.
+     * @param questions Questions from the query
+     */
+    public AnswerCollector(DnsQuestion[] questions) {
+        this.questions = questions;
+        this.answers = new AtomicReferenceArray<>(questions.length);
+        this.remaining = new AtomicInteger(questions.length);
+    }
+
+    /**
+     * Passes every question to the resolver.
+     * @param resolver Resolver
+     */
+    public void resolveAll(AsyncDnsResolver resolver) {
+        AsyncDnsResolver[] resolvers = new AsyncDnsResolver[questions.length];
+        Arrays.fill(resolvers, resolver);
+        resolveEach(resolvers);
+    }
+
+    /**
+     * Passes each question to its own resolver. Questions without a resolver are completed straight away with no
+     * answers.
+     * @param resolvers Resolvers, in question order, with null for questions that have none
+     */
+    public void resolveEach(AsyncDnsResolver[] resolvers) {
+        if (0 == questions.length) {
+            complete();
+            return;
+        }
+        for (int i = 0; i < questions.length; i++) {
+            QuestionCallback callback = new QuestionCallback(i);
+            if (null == resolvers[i]) {
+                callback.resolved(questions[i], null);
+                continue;
+            }
+            logger.debug("Resolving question {}", questions[i]);
+            try {
+                resolvers[i].resolve(questions[i], callback);
+            } catch (RuntimeException e) {
+                callback.failed(questions[i], e);
+            }
+        }
+    }
+
+    /**
+     * Waits for all of the questions to complete.
+     * @param timeout Maximum time to wait
+     * @param unit Time unit
+     * @return True if all questions completed in time
+     * @throws java.lang.InterruptedException If the thread is interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * Fails every question that has not completed yet. Answers that arrive afterwards are ignored.
+     * @return True if any question was still outstanding
+     */
+    public boolean expire() {
+        boolean expired = false;
+        for (int i = 0; i < questions.length; i++) {
+            if (null == answers.get(i)) {
+                new QuestionCallback(i).failed(questions[i], new TimeoutException("Timed out resolving question"));
+                expired = true;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Schedules {@link #expire()} to run if the questions have not all completed in time. The scheduled task is
+     * cancelled once they have.
+     * @param timer Executor to schedule the timeout on
+     * @param delay Time to wait
+     * @param unit Time unit
+     * @throws java.util.concurrent.RejectedExecutionException If the timer cannot accept the task
+     */
+    public void expireAfter(ScheduledExecutorService timer, long delay, TimeUnit unit) {
+        timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (expire()) {
+                    logger.warn("Timed out waiting for resolver");
+                }
+            }
+        }, delay, unit);
+        if (isComplete()) {
+            timeout.cancel(false);
+        }
+    }
+
+    public boolean isComplete() {
+        return 0 == latch.getCount();
+    }
+
+    /**
+     * Indicates whether every question received at least one answer.
+     * @return True if the query can be answered authoritatively
+     */
+    public boolean isAnswered() {
+        if (!isComplete() || 0 == questions.length) {
+            return false;
+        }
+        for (int i = 0; i < questions.length; i++) {
+            if (answers.get(i).isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Indicates whether a question has received at least one answer. Unlike {@link #isAnswered()}, this can be checked
+     * before every question has completed.
+     * @param question Question index
+     * @return True if the question has been answered
+     */
+    public boolean isAnswered(int question) {
+        List<DnsRecord> answer = answers.get(question);
+        return null != answer && !answer.isEmpty();
+    }
+
+    /**
+     * Get the number of questions that have received at least one answer so far.
+     * @return Answered question count
+     */
+    public int getAnsweredCount() {
+        int count = 0;
+        for (int i = 0; i < questions.length; i++) {
+            if (isAnswered(i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Indicates whether the resolver failed on any question, rather than simply not having an answer.
+     * @return True if any question failed
+     */
+    public boolean isFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Indicates whether a resolver reported that the name in any question does not exist, by failing it with a
+     * {@link org.code_revue.dns.server.resolver.NameErrorException}. This does not count as a failure.
+     * @return True if any question name does not exist
+     */
+    public boolean isNameError() {
+        return nameError.get();
+    }
+
+    /**
+     * Get the answers to one question.
+     * @param question Question index
+     * @return Answer records, empty if the question has not been answered
+     */
+    public List<DnsRecord> getAnswers(int question) {
+        List<DnsRecord> answer = answers.get(question);
+        return null == answer ? Collections.<DnsRecord>emptyList() : answer;
+    }
+
+    /**
+     * Get the answers to all questions, in question order.
+     * @return Answer records
+     */
+    public List<DnsRecord> getAnswers() {
+        List<DnsRecord> result = new ArrayList<>();
+        for (int i = 0; i < questions.length; i++) {
+            List<DnsRecord> answer = answers.get(i);
+            if (null != answer) {
+                result.addAll(answer);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Called once every question has completed. Does nothing by default.
+     */
+    protected void onComplete() {
+    }
+
+    private void complete() {
+        latch.countDown();
+        Future<?> scheduled = timeout;
+        if (null != scheduled) {
+            scheduled.cancel(false);
+        }
+        onComplete();
+    }
+
+    private class QuestionCallback implements ResolverCallback {
+
+        private final int index;
+
+        public QuestionCallback(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public void resolved(DnsQuestion question, List<DnsRecord> records) {
+            if (null == records) {
+                records = Collections.emptyList();
+            }
+            if (answers.compareAndSet(index, null, records) && 0 == remaining.decrementAndGet()) {
+                complete();
+            }
+        }
+
+        @Override
+        public void failed(DnsQuestion question, Exception e) {
+            logger.debug("Failed to resolve question {}", question, e);
+            if (null == answers.get(index)) {
+                if (e instanceof NameErrorException) {
+                    nameError.set(true);
+                } else {
+                    failed.set(true);
+                }
+            }
+            resolved(question, Collections.<DnsRecord>emptyList());
+        }
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.code_revue.dns.server.engine;
+
+import org.code_revue.dns.server.DnsPayload;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Interface for engines that can complete a response after {@link #processDnsPayload(DnsPayload, EngineCallback)}
+ * returns. The {@link org.code_revue.dns.server.DnsServer} calls asynchronous engines directly from the connector's
+ * reader thread, so queries that can be answered from memory are completed inline, without handing them off to another
+ * thread, while queries that have to wait on other servers are completed later by whichever thread receives the
+ * result.
+ * <p>
+ * Implementations must never block the calling thread. Any work that might block, such as a resolver waiting on a
+ * database, has to be handed to another thread; the server supplies its own executor for this through
+ * {@link #setDefaultExecutor(java.util.concurrent.Executor)}.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public interface AsyncDnsEngine extends DnsEngine {
+
+    /**
+     * Starts processing a DNS query payload. The callback is invoked exactly once, either before this method returns
+     * or later from another thread.
+     * @param payload Query
+     * @param callback Receives the response
+     */
+    public void processDnsPayload(DnsPayload payload, EngineCallback callback);
+
+    /**
+     * Supplies an executor for work that would otherwise block the calling thread. Engines that have been given an
+     * executor of their own keep using it.
+     * @param executor Executor
+     */
+    public void setDefaultExecutor(Executor executor);
+
+}
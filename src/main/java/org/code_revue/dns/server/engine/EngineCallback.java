@@ -0,0 +1,27 @@
+package org.code_revue.dns.server.engine;
+
+import org.code_revue.dns.server.DnsPayload;
+
+/**
+ * Receives the outcome of a query passed to an {@link org.code_revue.dns.server.engine.AsyncDnsEngine}. Exactly one of
+ * the methods is called for each query. Implementations should return quickly, as they may be running on a connector
+ * or relay I/O thread.
+ *
+ * @author Mike Fanning
+ */
+public interface EngineCallback {
+
+    /**
+     * Called when the response is ready to be sent.
+     * @param response Response payload
+     */
+    public void complete(DnsPayload response);
+
+    /**
+     * Called when the engine could not produce a response.
+     * @param query Original query payload
+     * @param e Cause of the failure
+     */
+    public void failed(DnsPayload query, Exception e);
+
+}
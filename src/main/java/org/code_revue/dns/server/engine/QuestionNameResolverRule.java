@@ -1,24 +1,31 @@
 package org.code_revue.dns.server.engine;
 
-import org.code_revue.dns.message.DnsMessageOverlay;
-import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsNameTrie;
 import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.QueryContext;
 import org.code_revue.dns.server.resolver.DnsResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.NavigableSet;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This resolver rule uses a white list of acceptable domain names and the questions from the
  * {@link org.code_revue.dns.server.DnsPayload} to determine validity. For example, if "cnn.com" is added to the white
  * list, "www.cnn.com", "a.b.cnn.com" and "cnn.com" are valid.
  *
- * Adding, removing and resolving are all thread safe operations. This class makes no guarantees about the thread safety
- * of the {@link org.code_revue.dns.server.resolver.DnsResolver}.
+ * The white list is a {@link org.code_revue.dns.message.DnsNameTrie}, so each question name is checked against the name
+ * and all of its parent domains in a single walk down the trie, one probe per label, directly against the bytes in the
+ * query. The trie stays compact enough for white lists of millions of domains. For large white lists that most queries
+ * do not match, a Bloom filter can be put in front of the trie with {@link #setFilterEnabled(boolean)}.
+ *
+ * Adding, removing and resolving are all thread safe operations. Registered
+ * {@link org.code_revue.dns.server.engine.ResolverRuleListener}s are told about every domain that is added or removed.
+ * This class makes no guarantees about the thread safety of the
+ * {@link org.code_revue.dns.server.resolver.DnsResolver}.
  *
  * @author Mike Fanning
  */
@@ -26,10 +33,14 @@ public class QuestionNameResolverRule implements ResolverRule {
 
     private final Logger logger = LoggerFactory.getLogger(QuestionNameResolverRule.class);
 
-    private NavigableSet<String> whiteList = new ConcurrentSkipListSet<>();
+    private volatile DnsNameTrie whiteList = new DnsNameTrie();
+
+    private volatile boolean filterEnabled;
 
     private final DnsResolver resolver;
 
+    private final CopyOnWriteArrayList<ResolverRuleListener> listeners = new CopyOnWriteArrayList<>();
+
     /**
      * Creates a new resolver rule with nothing in the white list and the provided resolver.
      * @param resolver
@@ -47,9 +58,13 @@ public class QuestionNameResolverRule implements ResolverRule {
         if (null == domain) {
             throw new IllegalArgumentException("Domain must not be null");
         }
-        domain = scrubDomain(domain);
-        logger.debug("Adding {} to whitelist set", domain);
-        return whiteList.add(domain);
+        logger.debug("Adding {} to whitelist", domain);
+        DnsName name = DnsName.valueOf(domain);
+        boolean added = whiteList.put(name, 0) < 0;
+        if (added) {
+            fireDomainChanged(name);
+        }
+        return added;
     }
 
     /**
@@ -59,8 +74,8 @@ public class QuestionNameResolverRule implements ResolverRule {
      */
     public List<String> getDomainIterator() {
         List<String> answer = new ArrayList<>(whiteList.size());
-        for (String domain: whiteList) {
-            answer.add(unScrubDomain(domain));
+        for (DnsName domain: whiteList.getNames()) {
+            answer.add(domain.toString());
         }
         return answer;
     }
@@ -74,9 +89,98 @@ public class QuestionNameResolverRule implements ResolverRule {
         if (null == domain) {
             throw new IllegalArgumentException("Domain must not be null");
         }
-        domain = scrubDomain(domain);
-        logger.debug("Removing {} from whitelist set", domain);
-        return whiteList.remove(domain);
+        logger.debug("Removing {} from whitelist", domain);
+        DnsName name = DnsName.valueOf(domain);
+        boolean removed = whiteList.remove(name) >= 0;
+        if (removed) {
+            fireDomainChanged(name);
+        }
+        return removed;
+    }
+
+    /**
+     * Get the number of domains in the white list.
+     * @return Domain count
+     */
+    public int getDomainCount() {
+        return whiteList.size();
+    }
+
+    /**
+     * Replaces the whole white list at once, for example with one built by
+     * {@link org.code_revue.dns.util.DomainListLoader}. Queries see either the old list or the new one, never a mix.
+     * The rule takes ownership of the trie, which must not be modified other than through this rule afterwards.
+     * @param domains White listed domains
+     */
+    public void setWhiteList(DnsNameTrie domains) {
+        if (null == domains) {
+            throw new IllegalArgumentException("White list must not be null");
+        }
+        logger.debug("Replacing whitelist with {} domains", domains.size());
+        if (filterEnabled) {
+            domains.setFilterEnabled(true);
+        }
+        whiteList = domains;
+        fireRuleChanged();
+    }
+
+    /**
+     * Turns on or off the Bloom filter that lets question names matching nothing in the white list be rejected without
+     * searching it. The setting carries over to white lists set later, and each one gets a filter built from its own
+     * domains. In a {@link org.code_revue.dns.server.engine.ResolverChain} with other question name rules, the chain
+     * looks names up in a merged white list instead, which is only filtered if all of those rules enable their filters.
+     * @param enabled Whether to filter lookups
+     */
+    public void setFilterEnabled(boolean enabled) {
+        logger.debug("Turning whitelist filter {}", enabled ? "on" : "off");
+        filterEnabled = enabled;
+        whiteList.setFilterEnabled(enabled);
+        fireRuleChanged();
+    }
+
+    /**
+     * Checks whether white list lookups are filtered.
+     * @return True if the Bloom filter is enabled
+     */
+    public boolean isFilterEnabled() {
+        return filterEnabled;
+    }
+
+    /**
+     * Get the fraction of question names with no match in the white list that the filter failed to reject, since the
+     * current white list was set. Only lookups made against this rule's own white list are counted, so in a
+     * {@link org.code_revue.dns.server.engine.ResolverChain} with other question name rules, use
+     * {@link org.code_revue.dns.server.engine.ResolverChain#getFilterFalsePositiveRate()} instead.
+     * @return False positive rate between 0 and 1
+     * @see org.code_revue.dns.message.DnsNameTrie#getFilterFalsePositiveRate()
+     */
+    public double getFilterFalsePositiveRate() {
+        return whiteList.getFilterFalsePositiveRate();
+    }
+
+    /**
+     * Get the white list itself, for the {@link org.code_revue.dns.server.engine.ResolverChain} to read. It must not be
+     * modified other than through this rule.
+     * @return White listed domains
+     */
+    DnsNameTrie getWhiteList() {
+        return whiteList;
+    }
+
+    /**
+     * Registers a listener to be told when the white list changes. Adding the same listener twice has no effect.
+     * @param listener
+     */
+    public void addListener(ResolverRuleListener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a listener.
+     * @param listener
+     */
+    public void removeListener(ResolverRuleListener listener) {
+        listeners.remove(listener);
     }
 
     /**
@@ -88,19 +192,28 @@ public class QuestionNameResolverRule implements ResolverRule {
     @Override
     public boolean isValid(DnsPayload payload) {
 
-        DnsMessageOverlay overlay = new DnsMessageOverlay(payload.getMessageData());
-        DnsQuestion[] questions = overlay.getQuestions();
-        for (DnsQuestion question: questions) {
-            String questionName = scrubDomain(question.getQuestionName());
-            String lower = whiteList.lower(questionName);
-            if (whiteList.contains(questionName) ||
-                    (null != lower && questionName.startsWith(lower))) {
+        QueryContext context = payload.getContext();
+        DnsNameTrie domains = whiteList;
+        for (int q = 0; q < context.getQuestionCount(); q++) {
+            if (domains.findLowest(context.getQuestion(q).getName()) >= 0) {
                 return true;
             }
         }
         return false;
     }
 
+    private void fireRuleChanged() {
+        for (ResolverRuleListener listener: listeners) {
+            listener.ruleChanged(this);
+        }
+    }
+
+    private void fireDomainChanged(DnsName domain) {
+        for (ResolverRuleListener listener: listeners) {
+            listener.domainChanged(this, domain);
+        }
+    }
+
     /**
      * Returns the resolver for this rule.
      * @return
@@ -109,13 +222,4 @@ public class QuestionNameResolverRule implements ResolverRule {
     public DnsResolver getResolver() {
         return resolver;
     }
-
-    private String scrubDomain(String domain) {
-        return (new StringBuilder(domain)).reverse().append('.').toString().toLowerCase();
-    }
-
-    private String unScrubDomain(String domain) {
-        StringBuilder builder = new StringBuilder(domain);
-        return builder.reverse().substring(1, builder.length());
-    }
 }
@@ -89,7 +89,7 @@ public class RelayEngine implements DnsEngine {
         }
 
         logger.debug("Returning SERVER_FAILURE message");
-        DnsResponseBuilder builder = new DnsResponseBuilder(payload.getMessageData());
+        DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
         builder.setResponseCode(DnsResponseCode.SERVER_FAILURE)
                 .setRecursionAvailable(true);
         payload.setMessageData(builder.build());
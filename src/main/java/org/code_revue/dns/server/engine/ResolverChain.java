@@ -1,17 +1,44 @@
 package org.code_revue.dns.server.engine;
 
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsNameTrie;
 import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.QueryContext;
 import org.code_revue.dns.server.resolver.DnsResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Chain of {@link org.code_revue.dns.server.engine.ResolverRule}s which is used to map incoming DNS queries to the
  * appropriate {@link org.code_revue.dns.server.resolver.DnsResolver}. The rules are check in order and the first
  * matching question resolver is returned.
+ * <p>
+ * Rather than asking every rule in turn, the chain compiles its rules into a lookup structure whenever they change. The
+ * white lists of all {@link org.code_revue.dns.server.engine.QuestionNameResolverRule}s are merged into a single
+ * {@link org.code_revue.dns.message.DnsNameTrie} from domain name to the index of the first rule that accepts it, so
+ * the question names only need to be looked up once, however many of these rules there are. A chain with just one
+ * question name rule uses that rule's white list directly instead of copying it. One Bloom filter covers the whole
+ * merged white list, so lookups are only filtered if every question name rule has its filter enabled, and the
+ * filter's false positive rate is reported by {@link #getFilterFalsePositiveRate()} rather than by the rules. Any
+ * other rules are still asked in order, but only those that come before the best name match. The result is the same resolver a linear scan would return.
+ * </p>
+ * <p>
+ * The chain is held in a snapshot: the rules in order and the compiled lookup structure, tagged with a generation
+ * number. Any change to the rules builds a new snapshot in the thread making the change and publishes it with a single
+ * volatile write, so lookups never wait for a rebuild and never see a half made change; while a rule is moved, for
+ * instance, it is always somewhere in the chain. The merged white list is only rebuilt when the question name rules
+ * themselves change, and is otherwise carried over from the previous snapshot. To change several rules or reload their
+ * data in one step, build the new rules and hand them all to {@link #setResolverRules(java.util.List)}.
+ * </p>
+ * <p>
+ * The one thing that is not copied is the white list data. Question name rules tell the chain about each domain added
+ * to or removed from their white lists, through a {@link org.code_revue.dns.server.engine.ResolverRuleListener}, and
+ * the merged white list is updated in place, so these edits show up in the current snapshot and in any older one a
+ * lookup still holds. Each edit still publishes a new generation. Changes are serialized, and
+ * {@link #getGeneration()} counts all of them.
+ * </p>
  *
  * This class is thread safe.
  *
@@ -21,7 +48,28 @@ public class ResolverChain {
 
     private final Logger logger = LoggerFactory.getLogger(ResolverChain.class);
 
-    private List<ResolverRule> resolverRules = new CopyOnWriteArrayList<>();
+    private volatile CompiledChain compiled = new CompiledChain(0, new ResolverRule[0], null);
+
+    private final Object updateLock = new Object();
+
+    private final ResolverRuleListener listener = new ResolverRuleListener() {
+        @Override
+        public void ruleChanged(ResolverRule rule) {
+            logger.trace("Rule {} changed, recompiling chain", rule);
+            synchronized (updateLock) {
+                publish(compiled.rules, true);
+            }
+        }
+
+        @Override
+        public void domainChanged(ResolverRule rule, DnsName domain) {
+            synchronized (updateLock) {
+                CompiledChain chain = compiled;
+                chain.updateDomain(domain);
+                compiled = new CompiledChain(chain.generation + 1, chain);
+            }
+        }
+    };
 
     /**
      * Add a new {@link org.code_revue.dns.server.engine.ResolverRule} to this chain.
@@ -30,7 +78,13 @@ public class ResolverChain {
      */
     public ResolverChain addRule(ResolverRule rule) {
         logger.debug("Adding rule {} to chain", rule);
-        resolverRules.add(rule);
+        synchronized (updateLock) {
+            ResolverRule[] rules = compiled.rules;
+            ResolverRule[] newRules = Arrays.copyOf(rules, rules.length + 1);
+            newRules[rules.length] = rule;
+            listen(rule);
+            publish(newRules, false);
+        }
         return this;
     }
 
@@ -40,12 +94,21 @@ public class ResolverChain {
      * @return
      */
     public ResolverRule removeRule(int index) {
-        if (index < 0 || index >= resolverRules.size()) {
-            throw new IllegalArgumentException("Index out of bounds.");
-        }
+        synchronized (updateLock) {
+            ResolverRule[] rules = compiled.rules;
+            if (index < 0 || index >= rules.length) {
+                throw new IllegalArgumentException("Index out of bounds.");
+            }
 
-        logger.debug("Removing rule at index {}", index);
-        return resolverRules.remove(index);
+            logger.debug("Removing rule at index {}", index);
+            ResolverRule rule = rules[index];
+            ResolverRule[] newRules = new ResolverRule[rules.length - 1];
+            System.arraycopy(rules, 0, newRules, 0, index);
+            System.arraycopy(rules, index + 1, newRules, index, newRules.length - index);
+            publish(newRules, false);
+            unlisten(rule, Arrays.asList(newRules));
+            return rule;
+        }
     }
 
     /**
@@ -54,37 +117,153 @@ public class ResolverChain {
      * @return Question resolver
      */
     public DnsResolver getResolver(DnsPayload payload) {
-        DnsResolver answer = null;
+        CompiledChain chain = compiled;
 
-        for (ResolverRule rule: resolverRules) {
-            logger.trace("Checking rule {} in ResolverChain", rule);
-            if (rule.isValid(payload)) {
-                answer = rule.getResolver();
+        int best = chain.rules.length;
+        if (null != chain.domains) {
+            QueryContext context = payload.getContext();
+            for (int q = 0; q < context.getQuestionCount(); q++) {
+                int index = chain.findNameRule(context.getQuestion(q).getName());
+                if (index >= 0) {
+                    best = Math.min(best, index);
+                }
+            }
+        }
+
+        DnsResolver answer = null;
+        for (int i = 0; i < chain.getOtherCount(); i++) {
+            int index = chain.getOther(i);
+            if (index > best) {
+                break;
+            }
+            answer = match(chain, index, payload);
+            if (null != answer) {
                 logger.debug("DNS Resolver found {}", answer);
+                return answer;
+            }
+        }
+
+        if (best < chain.rules.length) {
+            answer = chain.rules[best].getResolver();
+            logger.debug("DNS Resolver found {}", answer);
+        }
+        return answer;
+    }
+
+    /**
+     * Finds the appropriate {@link org.code_revue.dns.server.resolver.DnsResolver} for each question in a query
+     * separately, so that questions matching different question name rules can go to different resolvers. Rules that
+     * are not question name rules apply to the query as a whole, and so to every question alike. For a query with a
+     * single question, the result is the same as {@link #getResolver(DnsPayload)}.
+     * @param payload Socket address and binary DNS data
+     * @return Question resolvers in question order, with null for questions no rule matches
+     */
+    public DnsResolver[] getResolvers(DnsPayload payload) {
+        CompiledChain chain = compiled;
+        QueryContext context = payload.getContext();
+        int count = context.getQuestionCount();
+
+        int[] best = new int[count];
+        int latest = -1;
+        for (int q = 0; q < count; q++) {
+            best[q] = chain.rules.length;
+            if (null != chain.domains) {
+                int index = chain.findNameRule(context.getQuestion(q).getName());
+                if (index >= 0) {
+                    best[q] = index;
+                }
+            }
+            latest = Math.max(latest, best[q]);
+        }
+
+        // Only the first of the other rules to match can matter, and only if it comes before some question's name rule
+        int otherIndex = chain.rules.length;
+        DnsResolver other = null;
+        for (int i = 0; i < chain.getOtherCount(); i++) {
+            int index = chain.getOther(i);
+            if (index > latest) {
+                break;
+            }
+            other = match(chain, index, payload);
+            if (null != other) {
+                otherIndex = index;
                 break;
             }
         }
 
+        DnsResolver[] answer = new DnsResolver[count];
+        for (int q = 0; q < count; q++) {
+            if (otherIndex < best[q]) {
+                answer[q] = other;
+            } else if (best[q] < chain.rules.length) {
+                answer[q] = chain.rules[best[q]].getResolver();
+            }
+            logger.debug("DNS Resolver for question {} found {}", q, answer[q]);
+        }
         return answer;
     }
 
     /**
-     * Resturns list of resolver rules, in the order they are tested and applied.
+     * Resturns list of resolver rules, in the order they are tested and applied. The list is a read-only snapshot, use
+     * the other methods of this class to change the chain.
      * @return
      */
     public List<ResolverRule> getResolverRules() {
-        return resolverRules;
+        return Collections.unmodifiableList(Arrays.asList(compiled.rules));
     }
 
     /**
-     * Replaces the resolver rules in this chain. The parameter is copied into an internal list, so changes to it will
-     * not affect the {@link org.code_revue.dns.server.engine.ResolverChain}.
+     * Get the generation of the chain's current snapshot, which goes up by one with every change to the rules, to the
+     * data of a rule that is replaced as a whole, such as a white list loaded in bulk, and to a single white list
+     * domain.
+     * @return Generation number
+     */
+    public int getGeneration() {
+        return compiled.generation;
+    }
+
+    /**
+     * Checks whether question names are looked up through a Bloom filter, which is the case when there is at least one
+     * question name rule and all of them have their filters enabled.
+     * @return True if lookups are filtered
+     */
+    public boolean isFilterEnabled() {
+        DnsNameTrie domains = compiled.domains;
+        return null != domains && domains.isFilterEnabled();
+    }
+
+    /**
+     * Get the fraction of question names with no match in any question name rule that the filter failed to reject.
+     * With several question name rules, the lookups all go through the merged white list and are not counted by the
+     * rules themselves; with just one, this is the same as that rule's rate. The counts start again whenever the merged
+     * white list is rebuilt.
+     * @return False positive rate between 0 and 1, or 0 if lookups are not filtered
+     * @see org.code_revue.dns.message.DnsNameTrie#getFilterFalsePositiveRate()
+     */
+    public double getFilterFalsePositiveRate() {
+        DnsNameTrie domains = compiled.domains;
+        return null == domains ? 0 : domains.getFilterFalsePositiveRate();
+    }
+
+    /**
+     * Replaces the resolver rules in this chain. The parameter is copied, so changes to it will not affect the
+     * {@link org.code_revue.dns.server.engine.ResolverChain}. Queries see either the old rules or the new ones, never a
+     * mix.
      * @param rules
      */
     public void setResolverRules(List<ResolverRule> rules) {
-        List<ResolverRule> newList = new CopyOnWriteArrayList<>();
-        newList.addAll(rules);
-        resolverRules = newList;
+        ResolverRule[] newRules = rules.toArray(new ResolverRule[rules.size()]);
+        synchronized (updateLock) {
+            ResolverRule[] oldRules = compiled.rules;
+            for (ResolverRule rule: newRules) {
+                listen(rule);
+            }
+            publish(newRules, false);
+            List<ResolverRule> remaining = Arrays.asList(newRules);
+            for (ResolverRule rule: oldRules) {
+                unlisten(rule, remaining);
+            }
+        }
     }
 
     /**
@@ -93,16 +272,195 @@ public class ResolverChain {
      * @param up If true, moves the rule towards the beginning of the list, otherwise moves it towards the end
      */
     public void moveRule(int index, boolean up) {
-        ResolverRule rule = resolverRules.remove(index);
-        if (null != rule) {
+        synchronized (updateLock) {
+            ResolverRule[] rules = compiled.rules;
+            if (index < 0 || index >= rules.length) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rules.length);
+            }
             int newIndex = up ? index - 1 : index + 1;
-            newIndex = newIndex < 0 ? 0 : newIndex;
-            try {
-                resolverRules.add(newIndex, rule);
-            } catch (IndexOutOfBoundsException e) {
-                resolverRules.add(rule);
+            newIndex = Math.max(0, Math.min(rules.length - 1, newIndex));
+            if (newIndex != index) {
+                ResolverRule[] newRules = rules.clone();
+                newRules[index] = rules[newIndex];
+                newRules[newIndex] = rules[index];
+                publish(newRules, false);
+            }
+        }
+    }
+
+    /**
+     * Checks one of the rules that are not merged into the white list.
+     * @return Resolver if the rule matches, otherwise null
+     */
+    private DnsResolver match(CompiledChain chain, int index, DnsPayload payload) {
+        ResolverRule rule = chain.rules[index];
+        logger.trace("Checking rule {} in ResolverChain", rule);
+        if (rule instanceof AddressPrefixResolverRule) {
+            // Prefix rules pick a resolver per client, so match and look it up in one go
+            return ((AddressPrefixResolverRule) rule).getResolver(payload);
+        }
+        return rule.isValid(payload) ? rule.getResolver() : null;
+    }
+
+    /**
+     * Compiles the rules into a new snapshot and makes it the current one. Must be called holding the update lock.
+     * @param rebuild If true the merged white list is always rebuilt, otherwise it is reused if the question name rules
+     *                are the same as in the current snapshot
+     */
+    private void publish(ResolverRule[] rules, boolean rebuild) {
+        CompiledChain chain = new CompiledChain(compiled.generation + 1, rules, rebuild ? null : compiled);
+        compiled = chain;
+        logger.debug("Published resolver chain generation {} with {} rules", chain.generation, rules.length);
+    }
+
+    private void listen(ResolverRule rule) {
+        if (rule instanceof QuestionNameResolverRule) {
+            ((QuestionNameResolverRule) rule).addListener(listener);
+        }
+    }
+
+    private void unlisten(ResolverRule rule, List<ResolverRule> remaining) {
+        if (rule instanceof QuestionNameResolverRule && !remaining.contains(rule)) {
+            ((QuestionNameResolverRule) rule).removeListener(listener);
+        }
+    }
+
+    /**
+     * Snapshot of the chain's rules arranged for lookup.
+     */
+    private static final class CompiledChain {
+
+        private final int generation;
+        private final ResolverRule[] rules;
+
+        // Indexes of the rules that are not merged into the white list, or null if that is all of them
+        private final int[] others;
+        private final int[] nameRules;
+
+        // Maps domains to positions in nameRules, or with a single name rule, is that rule's own white list
+        private final DnsNameTrie domains;
+
+        /**
+         * Compiles a new snapshot.
+         * @param previous Snapshot whose merged white list may be reused, or null to always build a new one
+         */
+        public CompiledChain(int generation, ResolverRule[] rules, CompiledChain previous) {
+            this.generation = generation;
+            this.rules = rules;
+
+            int[] indexes = null;
+            int[] nameIndexes = null;
+            int count = 0;
+            int nameCount = 0;
+            for (int index = 0; index < rules.length; index++) {
+                // Subclasses might override isValid, so only plain question name rules can be merged
+                if (QuestionNameResolverRule.class == rules[index].getClass()) {
+                    if (null == nameIndexes) {
+                        nameIndexes = new int[rules.length - index];
+                        indexes = new int[rules.length];
+                        for (int i = 0; i < index; i++) {
+                            indexes[i] = i;
+                        }
+                        count = index;
+                    }
+                    nameIndexes[nameCount++] = index;
+                } else if (null != indexes) {
+                    indexes[count++] = index;
+                }
             }
+            others = null == indexes ? null : Arrays.copyOf(indexes, count);
+            nameRules = null == nameIndexes ? new int[0] : Arrays.copyOf(nameIndexes, nameCount);
+
+            if (0 == nameCount) {
+                domains = null;
+            } else if (1 == nameCount) {
+                domains = getWhiteList(0);
+            } else if (null != previous && sameNameRules(previous)) {
+                domains = previous.domains;
+            } else {
+                int expectedNames = 0;
+                boolean filtered = true;
+                for (int i = 0; i < nameCount; i++) {
+                    expectedNames += getWhiteList(i).size();
+                    filtered &= getWhiteList(i).isFilterEnabled();
+                }
+                domains = new DnsNameTrie(expectedNames);
+                for (int i = 0; i < nameCount; i++) {
+                    for (DnsName domain: getWhiteList(i).getNames()) {
+                        // Going through the rules in order means the first rule to list a domain wins
+                        if (domains.get(domain) < 0) {
+                            domains.put(domain, i);
+                        }
+                    }
+                }
+                // Built once the names are in, rather than kept up to date while they go in
+                domains.setFilterEnabled(filtered);
+            }
+        }
+
+        /**
+         * Creates a later generation of a snapshot, sharing everything with it.
+         */
+        public CompiledChain(int generation, CompiledChain chain) {
+            this.generation = generation;
+            this.rules = chain.rules;
+            this.others = chain.others;
+            this.nameRules = chain.nameRules;
+            this.domains = chain.domains;
         }
+
+        public int getOtherCount() {
+            return null == others ? rules.length : others.length;
+        }
+
+        public int getOther(int i) {
+            return null == others ? i : others[i];
+        }
+
+        /**
+         * Finds the first question name rule whose white list includes a domain or one of its parents.
+         * @return Rule index, or -1 if no question name rule matches
+         */
+        public int findNameRule(DnsName name) {
+            int position = domains.findLowest(name);
+            if (position < 0) {
+                return -1;
+            }
+            return nameRules[1 == nameRules.length ? 0 : position];
+        }
+
+        /**
+         * Brings the merged white list up to date for one domain, by finding the first rule that now lists it.
+         */
+        public void updateDomain(DnsName domain) {
+            if (nameRules.length < 2) {
+                return;
+            }
+            for (int i = 0; i < nameRules.length; i++) {
+                if (getWhiteList(i).get(domain) >= 0) {
+                    domains.put(domain, i);
+                    return;
+                }
+            }
+            domains.remove(domain);
+        }
+
+        private boolean sameNameRules(CompiledChain chain) {
+            if (chain.nameRules.length != nameRules.length) {
+                return false;
+            }
+            for (int i = 0; i < nameRules.length; i++) {
+                if (rules[nameRules[i]] != chain.rules[chain.nameRules[i]]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private DnsNameTrie getWhiteList(int position) {
+            return ((QuestionNameResolverRule) rules[nameRules[position]]).getWhiteList();
+        }
+
     }
 
 }
@@ -0,0 +1,30 @@
+package org.code_revue.dns.server.engine;
+
+import org.code_revue.dns.message.DnsName;
+
+/**
+ * Receives notification when a {@link org.code_revue.dns.server.engine.ResolverRule} changes which payloads it accepts.
+ * The {@link org.code_revue.dns.server.engine.ResolverChain} uses this to find out when its compiled lookup structure
+ * is out of date.
+ *
+ * @author Mike Fanning
+ */
+public interface ResolverRuleListener {
+
+    /**
+     * Called after a rule has been modified. This may be called on any thread, including while a query is being
+     * matched against the rule.
+     * @param rule Rule that changed
+     */
+    public void ruleChanged(ResolverRule rule);
+
+    /**
+     * Called after a single domain has been added to or removed from a rule that matches on question names. Events
+     * for the same domain may arrive out of order when it is changed from several threads at once, so listeners should
+     * check the rule for its current state rather than relying on the order of events.
+     * @param rule Rule that changed
+     * @param domain Domain that was added or removed
+     */
+    public void domainChanged(ResolverRule rule, DnsName domain);
+
+}
@@ -2,12 +2,19 @@ package org.code_revue.dns.server.engine;
 
 import org.code_revue.dns.message.*;
 import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.QueryContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.ByteBuffer;
+
 /**
  * Moronic implementation of the {@link org.code_revue.dns.server.engine.DnsEngine} interface that always returns the
  * same response. I guess this is handy if you want to make one host the entire internet.
+ * <p>
+ * Single A questions are answered from a precompiled {@link org.code_revue.dns.message.ResponseTemplate}; anything
+ * else goes through a {@link org.code_revue.dns.message.DnsResponseBuilder}.
+ * </p>
  *
  * @author Mike Fanning
  */
@@ -17,6 +24,12 @@ public class SingleTubeEngine implements DnsEngine {
 
     private final Logger logger = LoggerFactory.getLogger(SingleTubeEngine.class);
 
+    private static final byte[] ANSWER = new byte[] { 64, 65, 66, 67 };
+    private static final int TTL = 120;
+
+    private final ResponseTemplate template = new ResponseTemplate()
+            .addAnswer(DnsRecordType.A, DnsRecordType.A, TTL, ANSWER);
+
     /**
      * Answers every question with the same response.
      * @param payload Query
@@ -24,20 +37,25 @@ public class SingleTubeEngine implements DnsEngine {
      */
     @Override
     public DnsPayload processDnsPayload(DnsPayload payload) {
-        DnsResponseBuilder builder = new DnsResponseBuilder(payload.getMessageData());
+        ByteBuffer response = template.apply(payload.getMessageData());
+        if (null != response) {
+            payload.setMessageData(response);
+            return payload;
+        }
+
+        DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
         builder.setAuthoritativeAnswer(true)
                 .setRecursionAvailable(true)
                 .setResponseCode(DnsResponseCode.NO_ERROR);
 
-        DnsMessageOverlay overlay = new DnsMessageOverlay(payload.getMessageData());
-        DnsQuestion[] questions = overlay.getQuestions();
-        byte[] answer = new byte[] { 64, 65, 66, 67 };
-        for (DnsQuestion question: questions) {
-            builder.addAnswer(new DnsRecord(question.getQuestionName(), question.getQuestionType(),
-                    question.getQuestionClass(), 120, answer));
+        QueryContext context = payload.getContext();
+        for (int q = 0; q < context.getQuestionCount(); q++) {
+            DnsQuestion question = context.getQuestion(q);
+            builder.addAnswer(new DnsRecord(question.getQuestionName(), question.getQuestionTypeCode(),
+                    question.getQuestionClassCode(), TTL, ANSWER));
         }
         payload.setMessageData(builder.build());
-        logger.debug("Returning DNS answer {}", answer);
+        logger.debug("Returning DNS answer {}", ANSWER);
         return payload;
     }
 
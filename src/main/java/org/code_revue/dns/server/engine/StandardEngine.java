@@ -2,28 +2,64 @@ package org.code_revue.dns.server.engine;
 
 import org.code_revue.dns.message.*;
 import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.QueryContext;
+import org.code_revue.dns.server.resolver.AsyncDnsResolver;
+import org.code_revue.dns.server.resolver.DelegationCache;
 import org.code_revue.dns.server.resolver.DnsResolver;
+import org.code_revue.dns.server.resolver.RelayChannel;
+import org.code_revue.dns.server.resolver.ResolverCallback;
+import org.code_revue.dns.server.resolver.SynchronousResolverAdapter;
+import org.code_revue.dns.server.resolver.TemplateResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Standard engine for processing DNS queries. This engine maintains a
  * {@link org.code_revue.dns.server.engine.ResolverChain}, which it uses to determine the appropriate
- * {@link org.code_revue.dns.server.resolver.DnsResolver}. All questions are passed to the resolver and answers are
- * added to a response. If none of the questions can be answered, the query is relayed to another DNS server and the
- * response is marked non-authoritative.
+ * {@link org.code_revue.dns.server.resolver.DnsResolver} for each question. Every question is passed to its resolver
+ * and the answers are added to a response. If none of the questions can be answered, the query is relayed to another
+ * DNS server as it is. If only some can, the answers already found are kept and just the remaining questions are
+ * relayed, each as a query of its own, all at once; their answers are merged with the local ones into a single
+ * non-authoritative response.
+ * <p>
+ * The questions in a query are resolved concurrently. Resolvers that implement
+ * {@link org.code_revue.dns.server.resolver.AsyncDnsResolver} are used directly. Blocking resolvers are run on the
+ * resolver executor, if one has been set. Otherwise, a caller of {@link #processDnsPayload(DnsPayload)} runs them on
+ * its own thread, since it waits for the response anyway, but asynchronous callers never do: their blocking resolvers
+ * run on the executor supplied by the {@link org.code_revue.dns.server.DnsServer}, or failing that on a small pool
+ * the engine creates for itself.
+ * </p>
+ * <p>
+ * Queries are relayed through a {@link org.code_revue.dns.server.resolver.RelayChannel}, so the engine never blocks a
+ * thread waiting for the relay server. When used as an {@link org.code_revue.dns.server.engine.AsyncDnsEngine},
+ * queries answered from memory are completed on the calling thread and relayed queries on the relay channel's thread.
+ * </p>
+ * <p>
+ * If a {@link org.code_revue.dns.server.resolver.DelegationCache} is set, it learns the name servers and glue from
+ * every relay server response. When the engine merges relayed answers with local ones, it lists the name servers of
+ * the closest cached zone for each relayed question in the authority section, with any cached addresses in the
+ * additional section. Answers made up by the resolver chain never get delegations, and responses relayed as a whole
+ * are passed on as the relay server sent them.
+ * </p>
  * <p>
  * This engine must be started and stopped in order to process queries. It also tracks some simple statistics about the
  * number of payloads it has processed and the number of errors encountered while processing messages.
@@ -31,7 +67,7 @@ import java.util.concurrent.atomic.AtomicLong;
  *
  * @author Mike Fanning
  */
-public class StandardEngine implements DnsEngine {
+public class StandardEngine implements AsyncDnsEngine {
 
     private final Logger logger = LoggerFactory.getLogger(StandardEngine.class);
 
@@ -42,8 +78,15 @@ public class StandardEngine implements DnsEngine {
     private final byte[] dnsServerIp;
     private final int port;
 
-    private DatagramChannel channel;
+    private RelayChannel channel;
+    private ScheduledExecutorService timer;
     private ResolverChain resolverChain;
+    private volatile Executor resolverExecutor;
+    private volatile Executor defaultExecutor;
+    private ExecutorService ownExecutor;
+    private volatile DelegationCache delegationCache;
+    private long resolverTimeout = 10000;
+    private int relayTimeout = 5000;
 
     private AtomicLong payloadsProcessed = new AtomicLong(0);
     private AtomicLong processingErrors = new AtomicLong(0);
@@ -108,17 +151,23 @@ public class StandardEngine implements DnsEngine {
             throw new IllegalStateException("Engine is already running");
         }
 
-        logger.debug("Opening DatagramChannel");
-        channel = DatagramChannel.open();
-
-        logger.debug("Connecting to relay DNS server {} port {}", dnsServerIp, port);
-        channel.connect(new InetSocketAddress(Inet4Address.getByAddress(dnsServerIp), port));
+        channel = new RelayChannel(dnsServerIp, port);
+        channel.setTimeout(relayTimeout);
+        channel.start();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "engine-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         running = true;
     }
 
     /**
      * Processes a DNS payload by passing it through the resolver chain, answering questions, and, if necessary,
-     * relaying to another DNS server.
+     * relaying to another DNS server. The calling thread blocks until the response is ready.
      * @param payload Query
      * @return Response
      * @throws java.lang.IllegalStateException If the server is not running
@@ -129,78 +178,388 @@ public class StandardEngine implements DnsEngine {
             throw new IllegalStateException("The engine is not running");
         }
 
-        DnsMessageOverlay overlay = new DnsMessageOverlay(payload.getMessageData());
+        BlockingCallback callback = new BlockingCallback();
+        DnsResolver[] resolvers = getResolvers(payload);
+        if (respondFromTemplate(payload, resolvers, callback)) {
+            return callback.response;
+        }
+        AnswerCollector collector = resolve(payload, resolvers);
+        if (null != collector) {
+            try {
+                if (!collector.await(resolverTimeout, TimeUnit.MILLISECONDS) && collector.expire()) {
+                    logger.warn("Timed out waiting for resolver");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                collector.expire();
+            }
+        }
+        respond(payload, collector, callback);
 
-        // Validation
-        // TODO: Yeah actually validate this thing.
+        try {
+            // The relay channel times queries out itself, this is just a backstop
+            if (!callback.latch.await(relayTimeout * 2L, TimeUnit.MILLISECONDS)) {
+                callback.failed(payload, new IOException("Timed out waiting for relay channel"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            callback.failed(payload, e);
+        }
+        return callback.response;
+    }
+
+    /**
+     * Processes a DNS payload without blocking. If the resolver answers every question from memory, the callback is
+     * completed before this method returns. Otherwise it is completed by the resolver's thread, or by the relay
+     * channel's receiver thread if the query has to be relayed.
+     * <p>
+     * Blocking resolvers are never run on the calling thread. They go to the resolver executor if one has been set,
+     * then to the default executor, and otherwise to a pool created by the engine.
+     * </p>
+     * @param payload Query
+     * @param callback Receives the response
+     * @throws java.lang.IllegalStateException If the server is not running
+     */
+    @Override
+    public void processDnsPayload(final DnsPayload payload, final EngineCallback callback) {
+
+        if (!running) {
+            throw new IllegalStateException("The engine is not running");
+        }
+
+        DnsResolver[] resolvers = getResolvers(payload);
+        AsyncDnsResolver[] adapted = adapt(resolvers, false);
+        if (null == adapted) {
+            respond(payload, null, callback);
+            return;
+        }
+        if (respondFromTemplate(payload, resolvers, callback)) {
+            return;
+        }
+
+        AnswerCollector collector = new AnswerCollector(payload.getContext().getQuestions()) {
+            @Override
+            protected void onComplete() {
+                respond(payload, this, callback);
+            }
+        };
+        collector.resolveEach(adapted);
+        if (!collector.isComplete()) {
+            try {
+                collector.expireAfter(timer, resolverTimeout, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The engine is stopping, so there is no point waiting
+                collector.expire();
+            }
+        }
+    }
+
+    private DnsResolver[] getResolvers(DnsPayload payload) {
+
+        // Messages are checked by the server's DnsMessageValidator before they get here
 
         // Resolver Chain
-        DnsResolver resolver = null;
         if (null != resolverChain) {
-            logger.debug("Getting DnsResolver from ResolverChain");
-            resolver = resolverChain.getResolver(payload);
+            logger.debug("Getting DnsResolvers from ResolverChain");
+            return resolverChain.getResolvers(payload);
         }
+        return new DnsResolver[payload.getContext().getQuestionCount()];
+    }
 
-        // Resolve
-        List<DnsRecord> answers = new ArrayList<>();
-        boolean authoritative = false;
-
-        if (null != resolver) {
-            DnsQuestion[] questions = overlay.getQuestions();
-            authoritative = true;
-            for (DnsQuestion question : questions) {
-                logger.debug("Resolving question {}", question);
-                List<DnsRecord> answer = resolver.resolve(question);
-
-                if (null == answer || 0 == answer.size()) {
-                    logger.debug("Server is not authoritative");
-                    authoritative = false;
-                    break;
+    /**
+     * Makes asynchronous views of the question resolvers, sharing one view between questions with the same resolver.
+     * @param mayBlock Whether blocking resolvers can run on the calling thread when there is no resolver executor
+     * @return Asynchronous resolvers, or null if no question has a resolver
+     */
+    private AsyncDnsResolver[] adapt(DnsResolver[] resolvers, boolean mayBlock) {
+        AsyncDnsResolver[] adapted = null;
+        for (int q = 0; q < resolvers.length; q++) {
+            if (null != resolvers[q]) {
+                if (null == adapted) {
+                    adapted = new AsyncDnsResolver[resolvers.length];
+                }
+                if (q > 0 && resolvers[q] == resolvers[q - 1]) {
+                    adapted[q] = adapted[q - 1];
+                } else if (resolvers[q] instanceof AsyncDnsResolver) {
+                    adapted[q] = (AsyncDnsResolver) resolvers[q];
+                } else {
+                    Executor executor = mayBlock ? resolverExecutor : getBlockingExecutor();
+                    adapted[q] = new SynchronousResolverAdapter(resolvers[q], executor);
                 }
-                answers.addAll(answer);
             }
         }
+        return adapted;
+    }
 
-        if (authoritative) {
+    /**
+     * Answers single question queries from the resolver's precompiled template, if it has one that applies.
+     * @return True if the callback has been completed
+     */
+    private boolean respondFromTemplate(DnsPayload payload, DnsResolver[] resolvers, EngineCallback callback) {
+        if (1 != resolvers.length || !(resolvers[0] instanceof TemplateResolver)) {
+            return false;
+        }
+        QueryContext context = payload.getContext();
+        ResponseTemplate template = ((TemplateResolver) resolvers[0]).getResponseTemplate(context.getQuestion(0));
+        ByteBuffer response = null == template ? null : template.apply(payload.getMessageData());
+        if (null == response) {
+            return false;
+        }
+        logger.debug("Answering from response template");
+        payload.setMessageData(response);
+        payloadsProcessed.incrementAndGet();
+        callback.complete(payload);
+        return true;
+    }
+
+    /**
+     * Starts resolving the questions in the payload.
+     * @return Collector for the answers, or null if no question has a resolver
+     */
+    private AnswerCollector resolve(DnsPayload payload, DnsResolver[] resolvers) {
+        AsyncDnsResolver[] adapted = adapt(resolvers, true);
+        if (null == adapted) {
+            return null;
+        }
+        AnswerCollector collector = new AnswerCollector(payload.getContext().getQuestions());
+        collector.resolveEach(adapted);
+        return collector;
+    }
+
+    /**
+     * Builds an authoritative response if every question was answered, relays just the unanswered questions if some
+     * were, and otherwise relays the whole query.
+     */
+    private void respond(final DnsPayload payload, AnswerCollector collector, final EngineCallback callback) {
+
+        if (null != collector && collector.isNameError() && !collector.isFailed()) {
+
+            // A resolver knows the name does not exist, so there is no point asking the relay server
+            logger.debug("Building NAME_ERROR response");
+            try {
+                DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
+                builder.setRecursionAvailable(true)
+                        .setResponseCode(DnsResponseCode.NAME_ERROR);
+                for (DnsRecord answer: collector.getAnswers()) {
+                    builder.addAnswer(answer);
+                }
+                payload.setMessageData(builder.build());
+            } catch (RuntimeException e) {
+                logger.error("Error building response", e);
+                processingErrors.incrementAndGet();
+                callback.failed(payload, e);
+                return;
+            }
+            payloadsProcessed.incrementAndGet();
+            callback.complete(payload);
+
+        } else if (null != collector && collector.isAnswered()) {
 
             logger.debug("Building NO_ERROR authoritative response");
-            DnsResponseBuilder builder = new DnsResponseBuilder(payload.getMessageData());
-            builder.setAuthoritativeAnswer(true)
-                    .setRecursionAvailable(true)
-                    .setResponseCode(DnsResponseCode.NO_ERROR);
-            for (DnsRecord answer: answers) {
-                builder.addAnswer(answer);
+            try {
+                DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
+                builder.setAuthoritativeAnswer(true)
+                        .setRecursionAvailable(true)
+                        .setResponseCode(DnsResponseCode.NO_ERROR);
+                for (DnsRecord answer: collector.getAnswers()) {
+                    builder.addAnswer(answer);
+                }
+                payload.setMessageData(builder.build());
+            } catch (RuntimeException e) {
+                logger.error("Error building response", e);
+                processingErrors.incrementAndGet();
+                callback.failed(payload, e);
+                return;
             }
-            payload.setMessageData(builder.build());
+            payloadsProcessed.incrementAndGet();
+            callback.complete(payload);
+
+        } else if (null != collector && collector.getAnsweredCount() > 0) {
+
+            relayUnanswered(payload, collector, callback);
 
         } else {
 
             // Recursive Query
+            logger.debug("Server is not authoritative, sending DNS query to relay server");
             try {
-                logger.debug("Sending DNS query to relay server");
-                channel.write(payload.getMessageData());
+                channel.send(payload.getMessageData(), new RelayChannel.ResponseHandler() {
+                    @Override
+                    public void response(ByteBuffer response) {
+                        logger.debug("Response received from relay server");
+                        if (null != delegationCache) {
+                            cacheDelegations(null, new DnsMessageOverlay(response.duplicate()));
+                        }
+                        payload.setMessageData(response);
+                        payloadsProcessed.incrementAndGet();
+                        callback.complete(payload);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        relayFailed(payload, e, callback);
+                    }
+                });
+            } catch (IllegalStateException e) {
+                relayFailed(payload, e, callback);
+            }
 
-                ByteBuffer response = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
-                channel.receive(response);
-                logger.debug("Response received from relay server");
+        }
+    }
 
+    /**
+     * Relays each unanswered question as a query of its own, all at the same time, and once they have all come back
+     * merges their answers with the local ones.
+     */
+    private void relayUnanswered(final DnsPayload payload, final AnswerCollector local, final EngineCallback callback) {
+        QueryContext context = payload.getContext();
+        int count = context.getQuestionCount();
+        final int[] forwarded = new int[count - local.getAnsweredCount()];
+        DnsQuestion[] questions = new DnsQuestion[forwarded.length];
+        for (int q = 0, f = 0; q < count && f < forwarded.length; q++) {
+            if (!local.isAnswered(q)) {
+                forwarded[f] = q;
+                questions[f++] = context.getQuestion(q);
+            }
+        }
+        logger.debug("Answered {} of {} questions, sending the rest to relay server", count - forwarded.length, count);
 
-                response.limit(response.position());
-                response.position(0);
-                payload.setMessageData(response.slice());
-            } catch (IOException e) {
-                logger.error("Error communicating with relay server, returning SERVER_FAILURE", e);
-                DnsResponseBuilder builder = new DnsResponseBuilder(payload.getMessageData());
-                builder.setResponseCode(DnsResponseCode.SERVER_FAILURE);
-                payload.setMessageData(builder.build());
-                processingErrors.incrementAndGet();
+        AnswerCollector relayed = new AnswerCollector(questions) {
+            @Override
+            protected void onComplete() {
+                respondMerged(payload, local, this, forwarded, callback);
             }
+        };
+        relayed.resolveAll(new QuestionRelay(context.getOverlay().isRecursionDesired()));
+    }
 
+    private void respondMerged(DnsPayload payload, AnswerCollector local, AnswerCollector relayed, int[] forwarded,
+                               EngineCallback callback) {
+        if (relayed.isFailed()) {
+            relayFailed(payload, new IOException("Could not relay unanswered questions"), callback);
+            return;
         }
 
+        logger.debug("Building NO_ERROR response from local and relayed answers");
+        try {
+            DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
+            builder.setAuthoritativeAnswer(false)
+                    .setRecursionAvailable(true)
+                    .setResponseCode(DnsResponseCode.NO_ERROR);
+            QueryContext context = payload.getContext();
+            List<DnsQuestion> answered = new ArrayList<>();
+            for (int q = 0, f = 0; q < context.getQuestionCount(); q++) {
+                boolean isRelayed = f < forwarded.length && forwarded[f] == q;
+                List<DnsRecord> answers = isRelayed ? relayed.getAnswers(f++) : local.getAnswers(q);
+                for (DnsRecord answer: answers) {
+                    builder.addAnswer(answer);
+                }
+                if (isRelayed && !answers.isEmpty()) {
+                    answered.add(context.getQuestion(q));
+                }
+            }
+            addDelegations(builder, answered);
+            payload.setMessageData(builder.build());
+        } catch (RuntimeException e) {
+            logger.error("Error building response", e);
+            processingErrors.incrementAndGet();
+            callback.failed(payload, e);
+            return;
+        }
         payloadsProcessed.incrementAndGet();
-        return payload;
+        callback.complete(payload);
+    }
+
+    /**
+     * Adds the name servers of the closest cached zone enclosing each question the relay server answered to the
+     * authority section, and their cached addresses to the additional section. Answers made up by local resolvers are
+     * left alone, as the real name servers for those names would not give them. The name servers are only extra
+     * information here, so they are dropped rather than truncating the response if they don't fit.
+     */
+    private void addDelegations(DnsResponseBuilder builder, List<DnsQuestion> answered) {
+        DelegationCache cache = delegationCache;
+        if (null == cache) {
+            return;
+        }
+        builder.setAuthorityOptional(true);
+        List<List<DnsRecord>> zones = new ArrayList<>();
+        for (DnsQuestion question: answered) {
+            List<DnsRecord> nameServers = cache.findClosestNameServers(question.getName());
+            if (nameServers.isEmpty() || containsZone(zones, nameServers)) {
+                continue;
+            }
+            zones.add(nameServers);
+            for (DnsRecord nameServer: nameServers) {
+                builder.addAuthorityRecord(nameServer);
+                DnsName host = DnsName.wrap(ByteBuffer.wrap(nameServer.getResourceData()), 0);
+                for (DnsRecord address: cache.getAddresses(host)) {
+                    builder.addAdditionalRecord(address);
+                }
+            }
+        }
+    }
 
+    private static boolean containsZone(List<List<DnsRecord>> zones, List<DnsRecord> nameServers) {
+        // The cache hands out the same list for every name in a zone
+        for (List<DnsRecord> zone: zones) {
+            if (zone == nameServers) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Caches the delegation information in a relay server response, if there is a delegation cache.
+     * @param question Question the response is for, or null to take it from the response
+     */
+    private void cacheDelegations(DnsQuestion question, DnsMessageOverlay overlay) {
+        DelegationCache cache = delegationCache;
+        if (null == cache) {
+            return;
+        }
+        try {
+            if (null == question) {
+                if (1 != overlay.getQuestionCount()) {
+                    return;
+                }
+                question = overlay.getQuestions()[0];
+            }
+            cache.cacheResponse(question, overlay.getNameServers(), overlay.getAdditionalRecords());
+        } catch (RuntimeException e) {
+            logger.debug("Could not cache delegations from relay response", e);
+        }
+    }
+
+    /**
+     * Finds an executor for blocking resolvers that must not run on the calling thread, creating one if the engine has
+     * not been given any.
+     */
+    private Executor getBlockingExecutor() {
+        Executor executor = resolverExecutor;
+        if (null == executor) {
+            executor = defaultExecutor;
+        }
+        if (null == executor) {
+            synchronized (this) {
+                if (null == ownExecutor) {
+                    logger.info("No executor found for blocking resolvers, creating ThreadPoolExecutor");
+                    ownExecutor = new ThreadPoolExecutor(5, 10, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<Runnable>(40));
+                }
+                executor = ownExecutor;
+            }
+        }
+        return executor;
+    }
+
+    private void relayFailed(DnsPayload payload, Exception e, EngineCallback callback) {
+        logger.error("Error communicating with relay server, returning SERVER_FAILURE", e);
+        DnsResponseBuilder builder = DnsResponseBuilder.forQuery(payload.getMessageData());
+        builder.setResponseCode(DnsResponseCode.SERVER_FAILURE);
+        payload.setMessageData(builder.build());
+        processingErrors.incrementAndGet();
+        callback.complete(payload);
     }
 
     /**
@@ -216,7 +575,14 @@ public class StandardEngine implements DnsEngine {
             logger.warn("Standard Engine already stopped");
         } else {
             running = false;
-            channel.close();
+            channel.stop();
+            timer.shutdownNow();
+            synchronized (this) {
+                if (null != ownExecutor) {
+                    ownExecutor.shutdown();
+                    ownExecutor = null;
+                }
+            }
         }
     }
 
@@ -236,6 +602,87 @@ public class StandardEngine implements DnsEngine {
         this.resolverChain = resolverChain;
     }
 
+    /**
+     * Get the cache of name servers used to fill in the authority and additional sections of responses.
+     * @return Delegation cache, or null if none has been set
+     */
+    public DelegationCache getDelegationCache() {
+        return delegationCache;
+    }
+
+    /**
+     * Set the cache of name servers used to fill in the authority and additional sections of responses. The engine
+     * adds what it learns from the relay server to the cache.
+     * @param delegationCache Delegation cache, or null to leave those sections empty
+     */
+    public void setDelegationCache(DelegationCache delegationCache) {
+        this.delegationCache = delegationCache;
+    }
+
+    /**
+     * Get the executor used to run blocking resolvers.
+     * @return Executor, or null if none has been set
+     */
+    public Executor getResolverExecutor() {
+        return resolverExecutor;
+    }
+
+    /**
+     * Set the executor used to run resolvers that do not implement
+     * {@link org.code_revue.dns.server.resolver.AsyncDnsResolver}. If this is null, blocking resolvers for synchronous
+     * callers are run on the calling thread, one question at a time, and those for asynchronous callers on the default
+     * executor.
+     * @param resolverExecutor Executor, or null
+     */
+    public void setResolverExecutor(Executor resolverExecutor) {
+        this.resolverExecutor = resolverExecutor;
+    }
+
+    /**
+     * Set the executor used for blocking resolvers when the engine is called asynchronously and no resolver executor
+     * has been set. The {@link org.code_revue.dns.server.DnsServer} sets this to its own executor when it starts.
+     * @param executor Executor
+     */
+    @Override
+    public void setDefaultExecutor(Executor executor) {
+        this.defaultExecutor = executor;
+    }
+
+    /**
+     * Get the number of milliseconds to wait for the resolvers to answer all questions. Questions still outstanding
+     * after that are treated as unanswered, and relayed.
+     * @return Timeout in milliseconds
+     */
+    public long getResolverTimeout() {
+        return resolverTimeout;
+    }
+
+    /**
+     * Set the number of milliseconds to wait for the resolvers to answer all questions. Questions still outstanding
+     * after that are treated as unanswered, and relayed. This applies to both synchronous and asynchronous callers.
+     * @param resolverTimeout Timeout in milliseconds
+     */
+    public void setResolverTimeout(long resolverTimeout) {
+        this.resolverTimeout = resolverTimeout;
+    }
+
+    /**
+     * Get the number of milliseconds to wait for the relay server to respond.
+     * @return Timeout in milliseconds
+     */
+    public int getRelayTimeout() {
+        return relayTimeout;
+    }
+
+    /**
+     * Set the number of milliseconds to wait for the relay server to respond. Takes effect the next time the engine is
+     * started.
+     * @param relayTimeout Timeout in milliseconds
+     */
+    public void setRelayTimeout(int relayTimeout) {
+        this.relayTimeout = relayTimeout;
+    }
+
     /**
      * Returns the IP address of the relay DNS server. The returned byte array can be modified without affecting the
      * engine.
@@ -269,4 +716,73 @@ public class StandardEngine implements DnsEngine {
     public AtomicLong getProcessingErrors() {
         return processingErrors;
     }
+
+    /**
+     * Relays single questions through the engine's relay channel. A SERVFAIL or REFUSED response fails the question
+     * instead of counting as an empty answer.
+     */
+    private class QuestionRelay implements AsyncDnsResolver {
+
+        private final boolean recursionDesired;
+
+        public QuestionRelay(boolean recursionDesired) {
+            this.recursionDesired = recursionDesired;
+        }
+
+        @Override
+        public void resolve(final DnsQuestion question, final ResolverCallback callback) {
+            ByteBuffer query = new DnsQueryBuilder()
+                    .setOperationCode(DnsOpCode.QUERY)
+                    .setRecursionDesired(recursionDesired)
+                    .addQuestion(question)
+                    .build();
+            channel.send(query, new RelayChannel.ResponseHandler() {
+                @Override
+                public void response(ByteBuffer response) {
+                    DnsMessageOverlay overlay = new DnsMessageOverlay(response);
+                    List<DnsRecord> answers;
+                    try {
+                        DnsResponseCode responseCode = overlay.getResponseCode();
+                        if (DnsResponseCode.SERVER_FAILURE == responseCode || DnsResponseCode.REFUSED == responseCode) {
+                            callback.failed(question, new IOException("Relay server returned " + responseCode));
+                            return;
+                        }
+                        answers = Arrays.asList(overlay.getAnswers());
+                    } catch (RuntimeException e) {
+                        callback.failed(question, e);
+                        return;
+                    }
+                    cacheDelegations(question, overlay);
+                    callback.resolved(question, answers);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    callback.failed(question, e);
+                }
+            });
+        }
+
+    }
+
+    private static class BlockingCallback implements EngineCallback {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile DnsPayload response;
+
+        @Override
+        public void complete(DnsPayload response) {
+            this.response = response;
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(DnsPayload query, Exception e) {
+            DnsResponseBuilder builder = DnsResponseBuilder.forQuery(query.getMessageData());
+            builder.setResponseCode(DnsResponseCode.SERVER_FAILURE);
+            query.setMessageData(builder.build());
+            complete(query);
+        }
+    }
+
 }
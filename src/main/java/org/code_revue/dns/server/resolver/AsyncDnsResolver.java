@@ -0,0 +1,26 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsQuestion;
+
+/**
+ * Interface for classes that answer {@link org.code_revue.dns.message.DnsQuestion}s without blocking the calling
+ * thread. Resolvers that can answer from memory may complete the callback before returning; resolvers that have to
+ * talk to other servers complete it later from their own threads.
+ * <p>
+ * Plain {@link org.code_revue.dns.server.resolver.DnsResolver}s can be used through a
+ * {@link org.code_revue.dns.server.resolver.SynchronousResolverAdapter}.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public interface AsyncDnsResolver {
+
+    /**
+     * Starts resolving a question. The callback is invoked exactly once, when the answers are available or the
+     * question has failed.
+     * @param question Question
+     * @param callback Receives the answers
+     */
+    public void resolve(DnsQuestion question, ResolverCallback callback);
+
+}
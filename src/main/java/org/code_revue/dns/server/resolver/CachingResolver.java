@@ -0,0 +1,393 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Wraps any {@link org.code_revue.dns.server.resolver.DnsResolver} with a cache of its answers, so that resolvers which
+ * are expensive to ask, such as ones backed by a database or another server, are only asked again once their answers
+ * have expired. Answers are cached per question, for the smallest TTL among the records, and the TTLs of cached records
+ * count down while they are in the cache. Empty answers and failures are not cached.
+ * <p>
+ * The cache holds a bounded number of questions. It is split into segments by question hash, each kept in least
+ * recently used order under its own lock, and when a segment is full its least recently used question is evicted.
+ * Hits, misses and evictions are counted, and entries can be invalidated by question, by name or all at once.
+ * </p>
+ * <p>
+ * The cache can also be used as an {@link org.code_revue.dns.server.resolver.AsyncDnsResolver}, and then never blocks
+ * the calling thread. Hits are answered on the calling thread. Misses go to the wrapped resolver directly if it is
+ * asynchronous. Otherwise they run on the executor set with {@link #setExecutor(java.util.concurrent.Executor)}, or,
+ * if none has been set, on a small pool of daemon threads shared by all caches.
+ * </p>
+ * <p>
+ * This class is thread safe, provided the wrapped resolver is.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class CachingResolver implements DnsResolver, AsyncDnsResolver {
+
+    private final Logger logger = LoggerFactory.getLogger(CachingResolver.class);
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private final DnsResolver resolver;
+    private final Segment[] segments;
+    private final int maxEntries;
+    private volatile AsyncDnsResolver asyncResolver;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicLong evictionCount = new AtomicLong(0);
+
+    /**
+     * Creates a cache for the supplied resolver, holding up to {@link #DEFAULT_MAX_ENTRIES} questions.
+     * @param resolver Resolver to cache
+     */
+    public CachingResolver(DnsResolver resolver) {
+        this(resolver, DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * Creates a cache for the supplied resolver.
+     * @param resolver Resolver to cache
+     * @param maxEntries Maximum number of questions to hold
+     */
+    public CachingResolver(DnsResolver resolver, int maxEntries) {
+        if (null == resolver) {
+            throw new IllegalArgumentException("Resolver must not be null");
+        }
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache must hold at least one entry");
+        }
+        this.resolver = resolver;
+        this.maxEntries = maxEntries;
+        setExecutor(null);
+
+        // Small caches get a single segment, so that the size limit is exact
+        int segmentCount = maxEntries >= 1024 ? 16 : 1;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment((maxEntries + segmentCount - 1) / segmentCount);
+        }
+    }
+
+    /**
+     * Answers the question from the cache if possible, otherwise asks the wrapped resolver and caches its answers.
+     * @param question Question
+     * @return Answer records
+     */
+    @Override
+    public List<DnsRecord> resolve(DnsQuestion question) {
+        List<DnsRecord> answers = get(question);
+        if (null != answers) {
+            return answers;
+        }
+        answers = resolver.resolve(question);
+        put(question, answers);
+        return answers;
+    }
+
+    /**
+     * Answers the question from the cache on the calling thread if possible, otherwise passes it on to the wrapped
+     * resolver and caches its answers when they arrive.
+     * @param question Question
+     * @param callback Receives the answers
+     */
+    @Override
+    public void resolve(DnsQuestion question, final ResolverCallback callback) {
+        List<DnsRecord> answers = get(question);
+        if (null != answers) {
+            callback.resolved(question, answers);
+            return;
+        }
+        asyncResolver.resolve(question, new ResolverCallback() {
+            @Override
+            public void resolved(DnsQuestion question, List<DnsRecord> answers) {
+                put(question, answers);
+                callback.resolved(question, answers);
+            }
+
+            @Override
+            public void failed(DnsQuestion question, Exception e) {
+                callback.failed(question, e);
+            }
+        });
+    }
+
+    /**
+     * Removes the cached answers to a question.
+     * @param question Question
+     * @return True if the question was cached
+     */
+    public boolean invalidate(DnsQuestion question) {
+        Segment segment = getSegment(question);
+        synchronized (segment) {
+            return null != segment.remove(question);
+        }
+    }
+
+    /**
+     * Removes the cached answers to every question about a domain name, whatever their type and class.
+     * @param domain Domain name
+     * @return Number of questions removed
+     */
+    public int invalidate(String domain) {
+        DnsName name = DnsName.valueOf(domain);
+        int removed = 0;
+        for (Segment segment: segments) {
+            synchronized (segment) {
+                Iterator<DnsQuestion> questions = segment.keySet().iterator();
+                while (questions.hasNext()) {
+                    if (name.equals(questions.next().getName())) {
+                        questions.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        logger.debug("Invalidated {} questions for {}", removed, domain);
+        return removed;
+    }
+
+    /**
+     * Removes every cached answer.
+     */
+    public void invalidateAll() {
+        for (Segment segment: segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Get the resolver whose answers are cached.
+     * @return Wrapped resolver
+     */
+    public DnsResolver getResolver() {
+        return resolver;
+    }
+
+    /**
+     * Set the executor used to run the wrapped resolver when the cache is used asynchronously and the resolver is not
+     * itself an {@link org.code_revue.dns.server.resolver.AsyncDnsResolver}.
+     * @param executor Executor, or null to use the pool shared by all caches
+     */
+    public void setExecutor(Executor executor) {
+        if (resolver instanceof AsyncDnsResolver) {
+            asyncResolver = (AsyncDnsResolver) resolver;
+        } else {
+            asyncResolver = new SynchronousResolverAdapter(resolver, null == executor ? SharedPool.EXECUTOR : executor);
+        }
+    }
+
+    /**
+     * Get the maximum number of questions held in the cache.
+     * @return Maximum entries
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Get the number of questions currently cached. Expired entries are included until they are next requested or
+     * evicted.
+     * @return Entry count
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment: segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the number of questions answered from the cache.
+     * @return Hit count
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Get the number of questions passed on to the wrapped resolver.
+     * @return Miss count
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Get the number of entries evicted to make room for others. Expired and invalidated entries are not counted.
+     * @return Eviction count
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Get the fraction of questions answered from the cache.
+     * @return Hit rate between 0 and 1, or 0 if no questions have been asked
+     */
+    public double getHitRate() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return 0 == total ? 0.0 : (double) hits / total;
+    }
+
+    private List<DnsRecord> get(DnsQuestion question) {
+        Segment segment = getSegment(question);
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(question);
+            if (null != entry && entry.isExpired()) {
+                logger.debug("Cache entry for {} expired", question);
+                segment.remove(question);
+                entry = null;
+            }
+        }
+        if (null == entry) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return entry.getAnswers();
+    }
+
+    private void put(DnsQuestion question, List<DnsRecord> answers) {
+        if (null == answers || answers.isEmpty()) {
+            return;
+        }
+        Entry entry = new Entry(answers);
+        if (entry.isExpired()) {
+            return;
+        }
+        // The question's name may point into a message buffer that is about to be reused
+        DnsQuestion key = question.copy();
+        Segment segment = getSegment(key);
+        synchronized (segment) {
+            segment.put(key, entry);
+        }
+    }
+
+    private Segment getSegment(DnsQuestion question) {
+        int h = question.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Part of the cache, kept in access order. Must only be used while holding its lock.
+     */
+    private class Segment extends LinkedHashMap<DnsQuestion, Entry> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        public Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DnsQuestion, Entry> eldest) {
+            if (size() > capacity) {
+                evictionCount.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+    }
+
+    /**
+     * Pool for blocking resolvers of caches without an executor of their own, created the first time it is needed.
+     */
+    private static class SharedPool {
+
+        private static final Executor EXECUTOR = createExecutor();
+
+        private static Executor createExecutor() {
+            final AtomicInteger index = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(10, 10, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "caching-resolver-" + index.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    private static class Entry {
+
+        private final List<DnsRecord> records;
+        private final long created;
+        private final long expiration;
+
+        public Entry(List<DnsRecord> records) {
+            this.records = Collections.unmodifiableList(new ArrayList<>(records));
+            long ttl = Integer.MAX_VALUE;
+            for (DnsRecord record: records) {
+                ttl = Math.min(ttl, getTtl(record));
+            }
+            this.created = System.nanoTime();
+            this.expiration = created + TimeUnit.SECONDS.toNanos(ttl);
+        }
+
+        public boolean isExpired() {
+            return System.nanoTime() - expiration >= 0;
+        }
+
+        /**
+         * Get the records with their TTLs reduced by the time they have spent in the cache.
+         */
+        public List<DnsRecord> getAnswers() {
+            long elapsed = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - created);
+            if (0 == elapsed) {
+                return records;
+            }
+            List<DnsRecord> answers = new ArrayList<>(records.size());
+            for (DnsRecord record: records) {
+                long ttl = Math.max(0, getTtl(record) - elapsed);
+                answers.add(new DnsRecord(record.getRecordName(), record.getRecordTypeCode(),
+                        record.getRecordClassCode(), (int) ttl, record.getResourceData()));
+            }
+            return answers;
+        }
+
+        /**
+         * Get a record's TTL in seconds. A TTL with the top bit set is treated as zero, as RFC 2181 section 8 requires.
+         */
+        private static long getTtl(DnsRecord record) {
+            return Math.max(0, record.getTtl());
+        }
+    }
+
+}
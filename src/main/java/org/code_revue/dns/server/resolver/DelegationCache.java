@@ -0,0 +1,270 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.message.DnsRecordType;
+import org.code_revue.dns.util.ByteBufferUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Infrastructure cache holding name server (NS) records for delegated zones and the address (glue) records for those
+ * name servers. It is populated from the authority and additional sections of responses received from other servers,
+ * so that delegations can be reused without asking for them again.
+ * <p>
+ * Entries expire according to the TTL of the records they were created from. Only NS records for the question name or
+ * one of its parents, below the zone of the server that sent them, are accepted, and only addresses for name servers
+ * that appear in those NS records and lie inside that server's zone are kept as glue. When the server's zone is not
+ * known, glue is only kept for name servers inside the delegated zone itself.
+ * </p>
+ * <p>
+ * Entries are keyed by {@link org.code_revue.dns.message.DnsName}, so lookups are case-insensitive and finding the
+ * closest enclosing zone walks up through parent domains without building any strings.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class DelegationCache {
+
+    private final Logger logger = LoggerFactory.getLogger(DelegationCache.class);
+
+    private ConcurrentMap<DnsName, Entry> nameServers = new ConcurrentHashMap<>();
+    private ConcurrentMap<DnsName, Entry> addresses = new ConcurrentHashMap<>();
+
+    /**
+     * Caches the delegation information from a response to the supplied question, received from a server that may
+     * answer for any zone, such as a relay server. Glue is only kept for name servers inside the delegated zone, since
+     * nothing else is known about what the server is entitled to say. Use
+     * {@link #cacheResponse(DnsQuestion, String, DnsRecord[], DnsRecord[])} when the zone the server was asked about is
+     * known.
+     * @param question Question the response was for
+     * @param authorities Authority section of the response
+     * @param additionalRecords Additional section of the response
+     */
+    public void cacheResponse(DnsQuestion question, DnsRecord[] authorities, DnsRecord[] additionalRecords) {
+        cacheResponse(question, DnsName.ROOT, true, authorities, additionalRecords);
+    }
+
+    /**
+     * Caches the delegation information from a response to the supplied question, received from a name server for the
+     * queried zone. A server can only delegate below its own zone, so only NS records for a strict subdomain of the
+     * queried zone that is also the question name or one of its parents are accepted, and only for the first such zone
+     * in the authority section. Glue is only kept for name servers of that zone which are themselves inside the queried
+     * zone, since the server has no authority over addresses anywhere else.
+     * @param question Question the response was for
+     * @param queriedZone Zone of the server that sent the response, or the empty string for the root zone
+     * @param authorities Authority section of the response
+     * @param additionalRecords Additional section of the response
+     */
+    public void cacheResponse(DnsQuestion question, String queriedZone, DnsRecord[] authorities,
+                              DnsRecord[] additionalRecords) {
+        cacheResponse(question, DnsName.valueOf(queriedZone), false, authorities, additionalRecords);
+    }
+
+    private void cacheResponse(DnsQuestion question, DnsName bailiwick, boolean glueInZone, DnsRecord[] authorities,
+                               DnsRecord[] additionalRecords) {
+
+        DnsName questionName = question.getName();
+        List<DnsName> hostNames = new ArrayList<>();
+
+        DnsName zone = null;
+        List<DnsRecord> zoneServers = new ArrayList<>();
+        for (DnsRecord authority: authorities) {
+            if (DnsRecordType.NS != authority.getRecordType()) {
+                continue;
+            }
+
+            DnsName owner = DnsName.valueOf(authority.getRecordName());
+            if (!questionName.isSubdomainOf(owner)) {
+                logger.debug("Ignoring NS record for {}, not a parent of {}", owner, questionName);
+                continue;
+            }
+
+            if (owner.getLabelCount() <= bailiwick.getLabelCount() || !owner.isSubdomainOf(bailiwick)) {
+                logger.debug("Ignoring NS record for {}, not delegated from {}", owner, bailiwick);
+                continue;
+            }
+
+            if (null != zone && !zone.equals(owner)) {
+                // A referral only ever delegates a single zone, so anything else is suspicious
+                logger.debug("Ignoring NS record for {}, already caching {}", owner, zone);
+                continue;
+            }
+            zone = owner;
+            zoneServers.add(authority);
+
+            DnsName host = DnsName.wrap(ByteBuffer.wrap(authority.getResourceData()), 0);
+            DnsName glueZone = glueInZone ? zone : bailiwick;
+            if (host.isSubdomainOf(glueZone)) {
+                hostNames.add(host);
+            } else {
+                logger.debug("Ignoring glue for {}, outside of {}", host, glueZone);
+            }
+        }
+
+        if (null != zone) {
+            put(nameServers, zone, zoneServers);
+        }
+
+        Map<DnsName, List<DnsRecord>> glue = new HashMap<>();
+        for (DnsRecord additional: additionalRecords) {
+            if (DnsRecordType.A != additional.getRecordType()) {
+                continue;
+            }
+            DnsName owner = DnsName.valueOf(additional.getRecordName());
+            if (hostNames.contains(owner)) {
+                List<DnsRecord> hostAddresses = glue.get(owner);
+                if (null == hostAddresses) {
+                    hostAddresses = new ArrayList<>();
+                    glue.put(owner, hostAddresses);
+                }
+                hostAddresses.add(additional);
+            }
+        }
+
+        for (Map.Entry<DnsName, List<DnsRecord>> host: glue.entrySet()) {
+            put(addresses, host.getKey(), host.getValue());
+        }
+    }
+
+    /**
+     * Adds name server records for a zone, replacing anything already cached for it.
+     * @param zone Zone name
+     * @param records NS records for the zone
+     */
+    public void putNameServers(String zone, List<DnsRecord> records) {
+        put(nameServers, DnsName.valueOf(zone), records);
+    }
+
+    /**
+     * Adds address records for a name server host, replacing anything already cached for it.
+     * @param hostName Name server host name
+     * @param records Address records for the host
+     */
+    public void putAddresses(String hostName, List<DnsRecord> records) {
+        put(addresses, DnsName.valueOf(hostName), records);
+    }
+
+    /**
+     * Get the cached name server records for exactly this zone.
+     * @param zone Zone name
+     * @return Name server records, or an empty list if none are cached
+     */
+    public List<DnsRecord> getNameServers(String zone) {
+        return get(nameServers, DnsName.valueOf(zone));
+    }
+
+    /**
+     * Finds the name servers for the zone closest to the supplied domain name, walking up through its parent domains
+     * to the root zone (the empty name).
+     * @param domainName Domain name
+     * @return Name server records for the closest enclosing zone, or an empty list if none are cached
+     */
+    public List<DnsRecord> findClosestNameServers(String domainName) {
+        return findClosestNameServers(DnsName.valueOf(domainName));
+    }
+
+    /**
+     * Finds the name servers for the zone closest to the supplied domain name, walking up through its parent domains
+     * to the root zone.
+     * @param domainName Domain name
+     * @return Name server records for the closest enclosing zone, or an empty list if none are cached
+     */
+    public List<DnsRecord> findClosestNameServers(DnsName domainName) {
+        for (int labels = domainName.getLabelCount(); labels >= 0; labels--) {
+            List<DnsRecord> records = get(nameServers, domainName.getSuffix(labels));
+            if (!records.isEmpty()) {
+                return records;
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Get the cached address records for a name server host.
+     * @param hostName Host name
+     * @return Address records, or an empty list if none are cached
+     */
+    public List<DnsRecord> getAddresses(String hostName) {
+        return getAddresses(DnsName.valueOf(hostName));
+    }
+
+    /**
+     * Get the cached address records for a name server host.
+     * @param hostName Host name
+     * @return Address records, or an empty list if none are cached
+     */
+    public List<DnsRecord> getAddresses(DnsName hostName) {
+        return get(addresses, hostName);
+    }
+
+    /**
+     * Removes all cached delegations and addresses.
+     */
+    public void clear() {
+        nameServers.clear();
+        addresses.clear();
+    }
+
+    /**
+     * Get the number of zones with cached name servers. Expired entries are included until they are next requested.
+     * @return Number of cached zones
+     */
+    public int getZoneCount() {
+        return nameServers.size();
+    }
+
+    private void put(ConcurrentMap<DnsName, Entry> map, DnsName key, List<DnsRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        logger.debug("Caching {} records for \"{}\"", records.size(), key);
+        map.put(key.copy(), new Entry(records));
+    }
+
+    private List<DnsRecord> get(ConcurrentMap<DnsName, Entry> map, DnsName key) {
+        Entry entry = map.get(key);
+        if (null == entry) {
+            return Collections.emptyList();
+        }
+        if (entry.isExpired()) {
+            logger.debug("Cache entry for {} expired", key);
+            map.remove(key, entry);
+            return Collections.emptyList();
+        }
+        return entry.records;
+    }
+
+    private static class Entry {
+
+        private final List<DnsRecord> records;
+        private final long expiration;
+
+        public Entry(List<DnsRecord> records) {
+            this.records = Collections.unmodifiableList(new ArrayList<>(records));
+            long ttl = Integer.MAX_VALUE;
+            for (DnsRecord record: records) {
+                ttl = Math.min(ttl, record.getTtl() & 0xffffffffL);
+            }
+            this.expiration = System.currentTimeMillis() + ttl * 1000;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expiration;
+        }
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.code_revue.dns.server.resolver;
+
+/**
+ * Thrown by a {@link org.code_revue.dns.server.resolver.DnsResolver}, or passed to
+ * {@link org.code_revue.dns.server.resolver.ResolverCallback#failed(org.code_revue.dns.message.DnsQuestion, Exception)},
+ * when the resolver knows that the question's name does not exist. This is different from simply having no answer:
+ * the engine replies with NAME_ERROR itself instead of relaying the question elsewhere.
+ *
+ * @author Mike Fanning
+ */
+public class NameErrorException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates a new exception.
+     * @param message Description of the name that does not exist
+     */
+    public NameErrorException(String message) {
+        super(message);
+    }
+
+}
@@ -3,17 +3,23 @@ package org.code_revue.dns.server.resolver;
 import org.code_revue.dns.message.DnsQuestion;
 import org.code_revue.dns.message.DnsRecord;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
  * DNS Resolver that always returns null, indicating that the server cannot answer the supplied question.
  * @author Mike Fanning
  */
-public class NullResolver implements DnsResolver {
+public class NullResolver implements DnsResolver, AsyncDnsResolver {
 
     @Override
     public List<DnsRecord> resolve(DnsQuestion question) {
         return null;
     }
 
+    @Override
+    public void resolve(DnsQuestion question, ResolverCallback callback) {
+        callback.resolved(question, Collections.<DnsRecord>emptyList());
+    }
+
 }
@@ -0,0 +1,526 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.*;
+import org.code_revue.dns.util.ByteBufferUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This resolver answers questions itself by iterating through the DNS hierarchy, rather than relaying them to another
+ * server. Resolution starts at the closest zone found in the {@link org.code_revue.dns.server.resolver.DelegationCache}
+ * (or the root hints if nothing is cached), follows referrals down to an authoritative server and chases CNAME records
+ * along the way. Every referral is stored in the delegation cache, so subsequent questions for the same zones skip
+ * straight to the right servers.
+ * <p>
+ * If a {@link org.code_revue.dns.server.resolver.RootZoneMirror} is supplied, top level domain referrals come from the
+ * local copy of the root zone, and questions about names under top level domains that are not in it fail with a
+ * {@link org.code_revue.dns.server.resolver.NameErrorException} without any network traffic.
+ * </p>
+ * <p>
+ * The resolver sends non-recursive queries, so it is only useful against authoritative servers. All servers are
+ * contacted on the same port, which defaults to 53 but can be changed for testing.
+ * </p>
+ * <p>
+ * This class is thread safe, though each call to {@link #resolve(DnsQuestion)} blocks for the duration of the
+ * resolution.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class RecursiveResolver implements DnsResolver {
+
+    private final Logger logger = LoggerFactory.getLogger(RecursiveResolver.class);
+
+    public static final int DEFAULT_DNS_PORT = 53;
+
+    private static final String[] DEFAULT_ROOT_HINTS = new String[] {
+            "198.41.0.4", "170.247.170.2", "192.33.4.12", "199.7.91.13", "192.203.230.10", "192.5.5.241",
+            "192.112.36.4", "198.97.190.53", "192.36.148.17", "192.58.128.30", "193.0.14.129", "199.7.83.42",
+            "202.12.27.33"
+    };
+
+    private List<InetAddress> rootHints;
+    private DelegationCache delegationCache = new DelegationCache();
+    private RootZoneMirror rootZone;
+    private int port = DEFAULT_DNS_PORT;
+    private int timeout = 2000;
+    private int maxReferrals = 16;
+    private int maxCnameChain = 8;
+
+    private static final int MAX_NAME_SERVER_DEPTH = 4;
+
+    /**
+     * Creates a new resolver that starts from the IANA root server addresses.
+     */
+    public RecursiveResolver() {
+        List<InetAddress> hints = new ArrayList<>(DEFAULT_ROOT_HINTS.length);
+        try {
+            for (String hint: DEFAULT_ROOT_HINTS) {
+                hints.add(InetAddress.getByName(hint));
+            }
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Invalid default root hint", e);
+        }
+        this.rootHints = hints;
+    }
+
+    /**
+     * Creates a new resolver that starts from the supplied root server addresses.
+     * @param rootHints Addresses of the root name servers
+     */
+    public RecursiveResolver(List<InetAddress> rootHints) {
+        setRootHints(rootHints);
+    }
+
+    /**
+     * Resolves a question by following referrals from the closest known zone, and chasing any CNAME records in the
+     * answers.
+     * @param question
+     * @return Answers, including any CNAME records leading to them, or an empty list if the question could not be
+     * answered
+     * @throws org.code_revue.dns.server.resolver.NameErrorException If the root zone mirror shows that the question
+     * name's top level domain does not exist
+     */
+    @Override
+    public List<DnsRecord> resolve(DnsQuestion question) {
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setSoTimeout(timeout);
+            return resolve(socket, question, 0);
+        } catch (IOException e) {
+            logger.error("Error communicating with name servers, returning empty list of answers", e);
+            return Collections.emptyList();
+        }
+    }
+
+    private List<DnsRecord> resolve(DatagramSocket socket, DnsQuestion question, int depth) throws IOException {
+
+        List<DnsRecord> answers = new ArrayList<>();
+        String name = question.getQuestionName();
+        int chainLength = 0;
+
+        while (true) {
+
+            DnsQuestion current = new DnsQuestion(name, question.getQuestionTypeCode(), question.getQuestionClassCode());
+            ZoneResponse zoneResponse;
+            try {
+                zoneResponse = query(socket, current, depth);
+            } catch (NameErrorException e) {
+                // Only the question itself can fail like this, not a CNAME target or a name server lookup
+                if (0 == depth && answers.isEmpty()) {
+                    throw e;
+                }
+                return answers;
+            }
+            if (null == zoneResponse) {
+                return answers;
+            }
+
+            // Servers often include the rest of a CNAME chain in the same response, so follow it as far as possible
+            // before asking again. The server is only trusted for names in its own zone, so a chain that leads out of
+            // it is asked about afresh (RFC 2181 section 5.4.1).
+            DnsRecord[] records = zoneResponse.response.getAnswers();
+            String zone = zoneResponse.zone;
+            boolean answered = false;
+            boolean chased = false;
+            boolean followed = true;
+            while (followed) {
+                followed = false;
+                for (DnsRecord record: records) {
+                    if (!sameName(name, record.getRecordName())) {
+                        continue;
+                    }
+                    if (record.getRecordTypeCode() == question.getQuestionTypeCode()) {
+                        answers.add(record);
+                        answered = true;
+                    } else if (DnsRecordType.CNAME == record.getRecordType() && !followed) {
+                        answers.add(record);
+                        name = readName(record.getResourceData());
+                        chased = true;
+                        if (++chainLength > maxCnameChain) {
+                            logger.warn("CNAME chain for {} is too long", question.getQuestionName());
+                            return answers;
+                        }
+                        if (!sameName(name, zone) && !isStrictChild(name, zone)) {
+                            logger.debug("CNAME target {} is outside of \"{}\"", name, zone);
+                            break;
+                        }
+                        followed = true;
+                    }
+                }
+            }
+
+            if (answered || !chased) {
+                return answers;
+            }
+
+            logger.debug("Following CNAME to {}", name);
+        }
+    }
+
+    /**
+     * Follows referrals until an authoritative response (or a failure) is received for the question.
+     * @return Final response and the zone of the server that sent it, or null if no server could answer
+     * @throws org.code_revue.dns.server.resolver.NameErrorException If the top level domain is not in the root zone
+     * mirror
+     */
+    private ZoneResponse query(DatagramSocket socket, DnsQuestion question, int depth) throws IOException {
+
+        String name = question.getQuestionName();
+        String zone = "";
+        List<DnsRecord> nameServers = delegationCache.findClosestNameServers(name);
+        if (!nameServers.isEmpty()) {
+            zone = nameServers.get(0).getRecordName();
+        } else if (null != rootZone && rootZone.isUsable()) {
+            String tld = getTopLevelDomain(name);
+            if (!tld.isEmpty()) {
+                nameServers = rootZone.getNameServers(tld);
+                if (nameServers.isEmpty()) {
+                    logger.debug("Top level domain \"{}\" does not exist in root zone mirror", tld);
+                    throw new NameErrorException("Top level domain \"" + tld + "\" does not exist");
+                }
+                logger.debug("Using root zone mirror referral to \"{}\"", tld);
+                delegationCache.putNameServers(tld, nameServers);
+                for (DnsRecord nameServer: nameServers) {
+                    String host = readName(nameServer.getResourceData());
+                    delegationCache.putAddresses(host, rootZone.getAddresses(host));
+                }
+                zone = tld;
+            }
+        }
+
+        for (int referral = 0; referral <= maxReferrals; referral++) {
+
+            List<InetAddress> servers = nameServers.isEmpty() ? rootHints : getAddresses(socket, nameServers, depth);
+            DnsMessageOverlay response = null;
+            for (InetAddress server: servers) {
+                response = send(socket, server, question);
+                if (null == response) {
+                    continue;
+                }
+                // Lame or broken servers are skipped, and a truncated response is not a complete answer or referral
+                DnsResponseCode responseCode = response.getResponseCode();
+                if (response.isTruncated()) {
+                    logger.debug("Truncated response from {}, trying the next server", server);
+                } else if (DnsResponseCode.NO_ERROR != responseCode && DnsResponseCode.NAME_ERROR != responseCode) {
+                    logger.debug("{} responded with {}, trying the next server", server, responseCode);
+                } else {
+                    break;
+                }
+                response = null;
+            }
+
+            if (null == response) {
+                logger.debug("No name server for \"{}\" responded", zone);
+                return null;
+            }
+
+            if (DnsResponseCode.NO_ERROR != response.getResponseCode() || response.getAnswerCount() != 0 ||
+                    response.isAuthoritativeAnswer()) {
+                return new ZoneResponse(response, zone);
+            }
+
+            DnsRecord[] authorities = response.getNameServers();
+            String delegation = getDelegatedZone(authorities, zone, name);
+            if (null == delegation) {
+                // No answer and no referral, which is how a server says the name exists but has no such records
+                return new ZoneResponse(response, zone);
+            }
+
+            logger.debug("Referred from \"{}\" to \"{}\"", zone, delegation);
+            delegationCache.cacheResponse(question, zone, authorities, response.getAdditionalRecords());
+            zone = delegation;
+            nameServers = delegationCache.getNameServers(zone);
+            if (nameServers.isEmpty()) {
+                return null;
+            }
+        }
+
+        logger.warn("Too many referrals resolving {}", name);
+        return null;
+    }
+
+    /**
+     * Finds the zone delegated by the NS records in an authority section, if it is closer to the name than the current
+     * zone. Referrals to the same zone or upwards would loop forever.
+     */
+    private String getDelegatedZone(DnsRecord[] authorities, String zone, String name) {
+        for (DnsRecord authority: authorities) {
+            if (DnsRecordType.NS != authority.getRecordType()) {
+                continue;
+            }
+            String owner = authority.getRecordName();
+            if (isStrictChild(owner, zone) && (sameName(owner, name) || isStrictChild(name, owner))) {
+                return owner;
+            }
+        }
+        return null;
+    }
+
+    private List<InetAddress> getAddresses(DatagramSocket socket, List<DnsRecord> nameServers, int depth)
+            throws IOException {
+
+        List<InetAddress> addresses = new ArrayList<>();
+        List<String> unresolved = new ArrayList<>();
+        for (DnsRecord nameServer: nameServers) {
+            String host = readName(nameServer.getResourceData());
+            List<DnsRecord> glue = delegationCache.getAddresses(host);
+            if (glue.isEmpty()) {
+                unresolved.add(host);
+            }
+            for (DnsRecord record: glue) {
+                addresses.add(InetAddress.getByAddress(record.getResourceData()));
+            }
+        }
+
+        // Only go looking for name server addresses if there wasn't any glue
+        if (addresses.isEmpty() && depth < MAX_NAME_SERVER_DEPTH) {
+            for (String host: unresolved) {
+                logger.debug("Resolving address of name server {}", host);
+                DnsQuestion question = new DnsQuestion(host, DnsRecordType.A, DnsRecordClass.IN);
+                List<DnsRecord> hostAddresses = new ArrayList<>();
+                for (DnsRecord record: resolve(socket, question, depth + 1)) {
+                    if (DnsRecordType.A == record.getRecordType()) {
+                        hostAddresses.add(record);
+                        addresses.add(InetAddress.getByAddress(record.getResourceData()));
+                    }
+                }
+                delegationCache.putAddresses(host, hostAddresses);
+                if (!addresses.isEmpty()) {
+                    break;
+                }
+            }
+        }
+
+        return addresses;
+    }
+
+    /**
+     * Sends a single non-recursive query and waits for a matching response.
+     * @return Response, or null if the server did not respond in time
+     */
+    private DnsMessageOverlay send(DatagramSocket socket, InetAddress server, DnsQuestion question)
+            throws IOException {
+
+        DnsQueryBuilder builder = new DnsQueryBuilder();
+        ByteBuffer query = builder.setOperationCode(DnsOpCode.QUERY)
+                .setRecursionDesired(false)
+                .addQuestion(question)
+                .build();
+        short id = new DnsMessageOverlay(query.duplicate()).getIdentifier();
+
+        InetSocketAddress serverAddress = new InetSocketAddress(server, port);
+        logger.debug("Querying {} for {}", serverAddress, question.getQuestionName());
+        socket.send(new DatagramPacket(query.array(), query.arrayOffset(), query.remaining(), serverAddress));
+
+        byte[] buffer = new byte[DnsMessageOverlay.MAX_UDP_DNS_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        try {
+            while (true) {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                if (!serverAddress.equals(packet.getSocketAddress())) {
+                    logger.debug("Ignoring packet from unexpected address {}", packet.getSocketAddress());
+                    continue;
+                }
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, packet.getLength()).slice();
+                DnsMessageOverlay response = new DnsMessageOverlay(data);
+                if (!response.isResponse() || id != response.getIdentifier()) {
+                    logger.debug("Ignoring response with unexpected identifier");
+                    continue;
+                }
+                // A spoofed response has to guess the question as well as the identifier (RFC 5452 section 9.1)
+                if (!isResponseTo(response, question)) {
+                    logger.debug("Ignoring response to a different question");
+                    continue;
+                }
+                return response;
+            }
+        } catch (SocketTimeoutException e) {
+            logger.debug("Timed out waiting for {}", serverAddress);
+            return null;
+        }
+    }
+
+    private boolean isResponseTo(DnsMessageOverlay response, DnsQuestion question) {
+        if (1 != response.getQuestionCount()) {
+            return false;
+        }
+        try {
+            return question.equals(response.getQuestions()[0]);
+        } catch (RuntimeException e) {
+            logger.debug("Malformed question section in response", e);
+            return false;
+        }
+    }
+
+    private static String readName(byte[] resourceData) {
+        return ByteBufferUtils.readDomainName(ByteBuffer.wrap(resourceData));
+    }
+
+    private static String getTopLevelDomain(String name) {
+        name = normalize(name);
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private static String normalize(String name) {
+        name = name.toLowerCase();
+        return name.endsWith(".") ? name.substring(0, name.length() - 1) : name;
+    }
+
+    private static boolean sameName(String name1, String name2) {
+        return normalize(name1).equals(normalize(name2));
+    }
+
+    private static boolean isStrictChild(String child, String parent) {
+        child = normalize(child);
+        parent = normalize(parent);
+        if (parent.isEmpty()) {
+            return !child.isEmpty();
+        }
+        return child.endsWith("." + parent);
+    }
+
+    /**
+     * Get the addresses of the root name servers.
+     * @return Root server addresses
+     */
+    public List<InetAddress> getRootHints() {
+        return rootHints;
+    }
+
+    /**
+     * Set the addresses of the root name servers, which are used whenever no closer zone is cached.
+     * @param rootHints Root server addresses
+     */
+    public void setRootHints(List<InetAddress> rootHints) {
+        if (null == rootHints || rootHints.isEmpty()) {
+            throw new IllegalArgumentException("Root hints must not be empty");
+        }
+        this.rootHints = Collections.unmodifiableList(new ArrayList<>(rootHints));
+    }
+
+    /**
+     * Get the cache of delegations learned during resolution.
+     * @return Delegation cache
+     */
+    public DelegationCache getDelegationCache() {
+        return delegationCache;
+    }
+
+    /**
+     * Set the cache of delegations, allowing it to be shared with other resolvers.
+     * @param delegationCache
+     */
+    public void setDelegationCache(DelegationCache delegationCache) {
+        assert null != delegationCache;
+        this.delegationCache = delegationCache;
+    }
+
+    /**
+     * Get the local copy of the root zone, if any.
+     * @return Root zone mirror, or null if the root servers are always queried
+     */
+    public RootZoneMirror getRootZone() {
+        return rootZone;
+    }
+
+    /**
+     * Set a local copy of the root zone to use instead of querying the root servers. The mirror is only consulted
+     * while it reports itself usable.
+     * @param rootZone Root zone mirror, or null to always query the root servers
+     */
+    public void setRootZone(RootZoneMirror rootZone) {
+        this.rootZone = rootZone;
+    }
+
+    /**
+     * Get the port used to contact name servers.
+     * @return Port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Set the port used to contact name servers.
+     * @param port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Get the time to wait for each name server to respond, in milliseconds.
+     * @return Timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the time to wait for each name server to respond, in milliseconds.
+     * @param timeout Timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get the maximum number of referrals followed for a single question.
+     * @return Maximum number of referrals
+     */
+    public int getMaxReferrals() {
+        return maxReferrals;
+    }
+
+    /**
+     * Set the maximum number of referrals followed for a single question.
+     * @param maxReferrals
+     */
+    public void setMaxReferrals(int maxReferrals) {
+        this.maxReferrals = maxReferrals;
+    }
+
+    /**
+     * Get the maximum number of CNAME records followed for a single question.
+     * @return Maximum CNAME chain length
+     */
+    public int getMaxCnameChain() {
+        return maxCnameChain;
+    }
+
+    /**
+     * Set the maximum number of CNAME records followed for a single question.
+     * @param maxCnameChain
+     */
+    public void setMaxCnameChain(int maxCnameChain) {
+        this.maxCnameChain = maxCnameChain;
+    }
+
+    /**
+     * Response to a query, together with the zone the responding server was asked as an authority for.
+     */
+    private static class ZoneResponse {
+
+        private final DnsMessageOverlay response;
+        private final String zone;
+
+        public ZoneResponse(DnsMessageOverlay response, String zone) {
+            this.response = response;
+            this.zone = zone;
+        }
+    }
+
+}
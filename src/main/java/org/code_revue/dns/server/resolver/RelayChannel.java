@@ -0,0 +1,353 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsMessageOverlay;
+import org.code_revue.dns.message.DnsQuestion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking client channel for relaying DNS messages to another server. Any number of queries can be outstanding at
+ * once: each one is sent with a random transaction identifier that is unique among the outstanding queries, and a
+ * single receiver thread matches responses back to their {@link ResponseHandler}s. A response is only accepted if it
+ * has the QR bit set and echoes the question section of the query, anything else is ignored and the query keeps
+ * waiting. The caller's original identifier is put back into the response before it is handed over, so responses can
+ * be passed straight back to clients.
+ * <p>
+ * Queries that do not receive a response within the timeout are failed with a
+ * {@link java.net.SocketTimeoutException}. Handlers are invoked on the receiver or timer threads and should return
+ * quickly.
+ * </p>
+ * <p>
+ * This class is thread safe.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class RelayChannel {
+
+    private final Logger logger = LoggerFactory.getLogger(RelayChannel.class);
+
+    private static final AtomicLong channelIndex = new AtomicLong(0);
+
+    // Identifiers are the main defence against spoofed responses, so they must not be predictable
+    private static final SecureRandom random = new SecureRandom();
+
+    private volatile boolean running = false;
+
+    private final InetSocketAddress serverAddress;
+    private int timeout = 5000;
+
+    private DatagramChannel channel;
+    private Thread receiver;
+    private ScheduledExecutorService timer;
+    private final ConcurrentMap<Integer, PendingQuery> pendingQueries = new ConcurrentHashMap<>();
+
+    private final AtomicLong queryCount = new AtomicLong(0);
+    private final AtomicLong timeoutCount = new AtomicLong(0);
+
+    /**
+     * Receives the response to a relayed query.
+     */
+    public interface ResponseHandler {
+
+        /**
+         * Called with the server's response.
+         * @param response Response message, with the identifier of the original query
+         */
+        public void response(ByteBuffer response);
+
+        /**
+         * Called if the query could not be sent or no response was received in time.
+         * @param e Cause of the failure
+         */
+        public void failed(Exception e);
+
+    }
+
+    /**
+     * Creates a new relay channel to the supplied server.
+     * @param serverIp Server address
+     * @param port Server port
+     * @throws java.net.UnknownHostException If the address is invalid
+     */
+    public RelayChannel(byte[] serverIp, int port) throws IOException {
+        this.serverAddress = new InetSocketAddress(InetAddress.getByAddress(serverIp), port);
+    }
+
+    /**
+     * Opens the channel and starts the receiver thread.
+     * @throws java.lang.IllegalStateException If the channel is already running
+     * @throws java.io.IOException If the channel cannot be opened
+     */
+    public void start() throws IOException {
+
+        logger.info("Starting Relay Channel");
+
+        if (running) {
+            throw new IllegalStateException("Relay Channel is already running");
+        }
+
+        logger.debug("Connecting to relay DNS server {}", serverAddress);
+        channel = DatagramChannel.open();
+        channel.connect(serverAddress);
+
+        final long index = channelIndex.incrementAndGet();
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "relay-timer-" + index);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        running = true;
+
+        receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                receive();
+            }
+        }, "relay-receiver-" + index);
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    /**
+     * Sends a query to the server. The identifier in the query buffer is temporarily replaced while it is sent, but is
+     * restored before this method returns.
+     * @param query Query message, from its position to its limit
+     * @param handler Receives the response
+     * @throws java.lang.IllegalStateException If the channel is not running
+     */
+    public void send(ByteBuffer query, ResponseHandler handler) {
+
+        if (!running) {
+            throw new IllegalStateException("Relay Channel is not running");
+        }
+
+        ByteBuffer message = query.slice();
+        short originalId = message.getShort(0);
+        DnsQuestion[] questions;
+        try {
+            questions = new DnsMessageOverlay(message).getQuestions();
+            for (int i = 0; i < questions.length; i++) {
+                // Detached, as the caller may reuse the query buffer before the response arrives
+                questions[i] = questions[i].copy();
+            }
+        } catch (RuntimeException e) {
+            handler.failed(new IOException("Malformed query", e));
+            return;
+        }
+        PendingQuery pending = new PendingQuery(originalId, questions, handler);
+
+        int id = -1;
+        for (int attempt = 0; attempt < 16 && id < 0; attempt++) {
+            int candidate = random.nextInt(0x10000);
+            if (null == pendingQueries.putIfAbsent(candidate, pending)) {
+                id = candidate;
+            }
+        }
+        if (id < 0) {
+            handler.failed(new IOException("Too many outstanding queries"));
+            return;
+        }
+
+        try {
+            pending.timeout = timer.schedule(new Timeout(id, pending), timeout, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The channel was stopped after the running check
+            if (pendingQueries.remove(id, pending)) {
+                handler.failed(new IOException("Relay Channel stopped", e));
+            }
+            return;
+        }
+        queryCount.incrementAndGet();
+
+        message.putShort(0, (short) id);
+        try {
+            channel.write(message);
+            logger.debug("DNS query forwarded to relay server");
+        } catch (IOException e) {
+            logger.error("Error sending query to relay server", e);
+            if (pendingQueries.remove(id, pending)) {
+                pending.timeout.cancel(false);
+                handler.failed(e);
+            }
+        } finally {
+            message.putShort(0, originalId);
+        }
+    }
+
+    private void receive() {
+        while (running) {
+            ByteBuffer response = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+            try {
+                channel.receive(response);
+            } catch (AsynchronousCloseException e) {
+                logger.debug("Caught AsynchronousCloseException - this could be the channel shutting down");
+                break;
+            } catch (IOException e) {
+                logger.error("Error receiving from relay server", e);
+                continue;
+            }
+
+            response.flip();
+            if (response.remaining() < DnsMessageOverlay.HEADER_LENGTH) {
+                logger.debug("Ignoring runt packet from relay server");
+                continue;
+            }
+
+            int id = response.getShort(0) & 0xffff;
+            PendingQuery pending = pendingQueries.get(id);
+            if (null == pending) {
+                logger.debug("Ignoring response with unknown identifier {}, it may have timed out", id);
+                continue;
+            }
+            if (!isResponseTo(response, pending)) {
+                logger.debug("Ignoring response that does not match query {}", id);
+                continue;
+            }
+            if (!pendingQueries.remove(id, pending)) {
+                continue;
+            }
+            pending.timeout.cancel(false);
+
+            response.putShort(0, pending.originalId);
+            try {
+                pending.handler.response(response.slice());
+            } catch (RuntimeException e) {
+                logger.error("Error handling relay response", e);
+            }
+        }
+    }
+
+    private boolean isResponseTo(ByteBuffer response, PendingQuery pending) {
+        DnsMessageOverlay overlay = new DnsMessageOverlay(response);
+        if (!overlay.isResponse() || pending.questions.length != overlay.getQuestionCount()) {
+            return false;
+        }
+        try {
+            return Arrays.equals(pending.questions, overlay.getQuestions());
+        } catch (RuntimeException e) {
+            logger.debug("Malformed question section in relay response", e);
+            return false;
+        }
+    }
+
+    /**
+     * Stops the receiver thread and closes the channel. Outstanding queries are failed.
+     * @throws java.io.IOException If there is a problem closing the channel
+     */
+    public void stop() throws IOException {
+
+        logger.info("Stopping Relay Channel");
+
+        if (!running) {
+            logger.warn("Relay Channel is already stopped");
+        } else {
+            running = false;
+            channel.close();
+            timer.shutdownNow();
+
+            IOException stopped = new IOException("Relay Channel stopped");
+            for (Map.Entry<Integer, PendingQuery> entry: pendingQueries.entrySet()) {
+                if (pendingQueries.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().handler.failed(stopped);
+                }
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Get the number of milliseconds to wait for a response.
+     * @return Timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the number of milliseconds to wait for a response.
+     * @param timeout Timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Get the number of queries waiting for a response.
+     * @return Number of outstanding queries
+     */
+    public int getOutstandingCount() {
+        return pendingQueries.size();
+    }
+
+    /**
+     * Get the number of queries sent.
+     * @return Number of queries
+     */
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    /**
+     * Get the number of queries that did not receive a response in time.
+     * @return Number of timeouts
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    private static class PendingQuery {
+
+        private final short originalId;
+        private final DnsQuestion[] questions;
+        private final ResponseHandler handler;
+        private volatile ScheduledFuture<?> timeout;
+
+        public PendingQuery(short originalId, DnsQuestion[] questions, ResponseHandler handler) {
+            this.originalId = originalId;
+            this.questions = questions;
+            this.handler = handler;
+        }
+    }
+
+    private class Timeout implements Runnable {
+
+        private final int id;
+        private final PendingQuery pending;
+
+        public Timeout(int id, PendingQuery pending) {
+            this.id = id;
+            this.pending = pending;
+        }
+
+        @Override
+        public void run() {
+            if (pendingQueries.remove(id, pending)) {
+                logger.debug("Timed out waiting for relay response");
+                timeoutCount.incrementAndGet();
+                pending.handler.failed(new SocketTimeoutException("No response from relay server"));
+            }
+        }
+    }
+
+}
@@ -5,20 +5,27 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
- * This resolver will forward questions to another DNS server for resolution.
+ * This resolver will forward questions to another DNS server for resolution. The authority and additional sections of
+ * the relay server's responses are used to populate a {@link org.code_revue.dns.server.resolver.DelegationCache}, which
+ * can be shared with other components.
+ * <p>
+ * Questions are relayed through a {@link org.code_revue.dns.server.resolver.RelayChannel}, so any number of them can be
+ * outstanding at once. Callers that can't wait for an answer should use the asynchronous
+ * {@link #resolve(org.code_revue.dns.message.DnsQuestion, ResolverCallback)} method.
+ * </p>
  *
  * @author Mike Fanning
  */
-public class RelayResolver implements DnsResolver {
+public class RelayResolver implements DnsResolver, AsyncDnsResolver {
 
     private final Logger logger = LoggerFactory.getLogger(RelayResolver.class);
 
@@ -28,7 +35,9 @@ public class RelayResolver implements DnsResolver {
 
     private final byte[] dnsServerIp;
     private final int port;
-    private DatagramChannel channel;
+    private int timeout = 5000;
+    private RelayChannel channel;
+    private DelegationCache delegationCache = new DelegationCache();
 
     /**
      * Creates a new resolver that will relay questions to the provided DNS server. The default DNS port (53) is used.
@@ -61,54 +70,85 @@ public class RelayResolver implements DnsResolver {
             throw new IllegalStateException("Relay Resolver is already running");
         }
 
-        logger.debug("Opening DatagramChannel");
-        channel = DatagramChannel.open();
-
-        logger.debug("Connecting to relay DNS server {} port {}", dnsServerIp, port);
-        channel.connect(new InetSocketAddress(Inet4Address.getByAddress(dnsServerIp), port));
+        channel = new RelayChannel(dnsServerIp, port);
+        channel.setTimeout(timeout);
+        channel.start();
         running = true;
 
     }
 
     /**
-     * Resolves DNS questions by forwarding them to the supplied relay server.
+     * Resolves DNS questions by forwarding them to the supplied relay server, blocking until the relay server responds
+     * or the query times out.
      * @param question
      * @return List of answers or empty list if the relay server did not provide any or there was a communication error.
      */
     @Override
     public List<DnsRecord> resolve(DnsQuestion question) {
 
-        if (!running) {
-            throw new IllegalStateException("Relay Resolver is not running");
+        BlockingCallback callback = new BlockingCallback();
+        resolve(question, callback);
+
+        try {
+            // The relay channel times queries out itself, this is just a backstop
+            if (!callback.latch.await(timeout * 2L, TimeUnit.MILLISECONDS)) {
+                logger.error("No callback from relay channel, returning empty list of answers");
+                return new ArrayList<>();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new ArrayList<>();
         }
 
-        List<DnsRecord> answer = new ArrayList<>();
+        if (null != callback.error) {
+            logger.error("Error communicating with relay server, returning empty list of answers", callback.error);
+            return new ArrayList<>();
+        }
+        return callback.answers;
+    }
 
-        try {
-            DnsQueryBuilder builder = new DnsQueryBuilder();
-            ByteBuffer buffer = builder.setOperationCode(DnsOpCode.QUERY)
-                    .setRecursionDesired(true)
-                    .addQuestion(question)
-                    .build();
-
-            logger.debug("Sending DNS query to relay server");
-            channel.write(buffer);
-
-            ByteBuffer response = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
-            channel.receive(response);
-            logger.debug("Response received from relay server");
-
-
-            response.limit(response.position());
-            response.position(0);
-            DnsMessageOverlay overlay = new DnsMessageOverlay(response);
-            answer.addAll(Arrays.asList(overlay.getAnswers()));
-            // TODO: Get name servers and additional records you jerk
-        } catch (IOException e) {
-            logger.error("Error communicating with relay server, returning empty list of answers", e);
+    /**
+     * Forwards a DNS question to the relay server without waiting for the response. The callback is invoked on the
+     * relay channel's receiver thread, or its timer thread if the query times out.
+     * @param question Question to resolve
+     * @param callback Receives the answers
+     */
+    @Override
+    public void resolve(final DnsQuestion question, final ResolverCallback callback) {
+
+        if (!running) {
+            throw new IllegalStateException("Relay Resolver is not running");
         }
 
-        return answer;
+        DnsQueryBuilder builder = new DnsQueryBuilder();
+        ByteBuffer buffer = builder.setOperationCode(DnsOpCode.QUERY)
+                .setRecursionDesired(true)
+                .addQuestion(question)
+                .build();
+
+        logger.debug("Sending DNS query to relay server");
+        channel.send(buffer, new RelayChannel.ResponseHandler() {
+            @Override
+            public void response(ByteBuffer response) {
+                logger.debug("Response received from relay server");
+                List<DnsRecord> answers;
+                try {
+                    DnsMessageOverlay overlay = new DnsMessageOverlay(response);
+                    answers = new ArrayList<>(Arrays.asList(overlay.getAnswers()));
+                    delegationCache.cacheResponse(question, overlay.getNameServers(),
+                            overlay.getAdditionalRecords());
+                } catch (RuntimeException e) {
+                    callback.failed(question, e);
+                    return;
+                }
+                callback.resolved(question, answers);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                callback.failed(question, e);
+            }
+        });
     }
 
     /**
@@ -123,7 +163,61 @@ public class RelayResolver implements DnsResolver {
             logger.warn("Relay Resolver already stopped");
         } else {
             running = false;
-            channel.close();
+            channel.stop();
+        }
+    }
+
+    /**
+     * Get the cache of name servers and glue records learned from relay responses.
+     * @return Delegation cache
+     */
+    public DelegationCache getDelegationCache() {
+        return delegationCache;
+    }
+
+    /**
+     * Set the cache of name servers and glue records, allowing it to be shared with other resolvers.
+     * @param delegationCache
+     */
+    public void setDelegationCache(DelegationCache delegationCache) {
+        assert null != delegationCache;
+        this.delegationCache = delegationCache;
+    }
+
+    /**
+     * Get the number of milliseconds to wait for the relay server to respond.
+     * @return Timeout in milliseconds
+     */
+    public int getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Set the number of milliseconds to wait for the relay server to respond. Takes effect the next time the resolver
+     * is started.
+     * @param timeout Timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    private static class BlockingCallback implements ResolverCallback {
+
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private volatile List<DnsRecord> answers = Collections.emptyList();
+        private volatile Exception error;
+
+        @Override
+        public void resolved(DnsQuestion question, List<DnsRecord> answers) {
+            this.answers = answers;
+            latch.countDown();
+        }
+
+        @Override
+        public void failed(DnsQuestion question, Exception e) {
+            this.error = e;
+            latch.countDown();
         }
     }
+
 }
@@ -0,0 +1,31 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+
+import java.util.List;
+
+/**
+ * Receives the outcome of a question passed to an {@link org.code_revue.dns.server.resolver.AsyncDnsResolver}. Exactly
+ * one of the methods is called for each question, possibly on a different thread than the one that asked it.
+ * Implementations should return quickly, as they may be running on a resolver's I/O thread.
+ *
+ * @author Mike Fanning
+ */
+public interface ResolverCallback {
+
+    /**
+     * Called when a question has been resolved.
+     * @param question Question that was resolved
+     * @param answers Answer records, which may be empty if the resolver could not answer the question
+     */
+    public void resolved(DnsQuestion question, List<DnsRecord> answers);
+
+    /**
+     * Called when a question could not be resolved due to an error.
+     * @param question Question that failed
+     * @param e Cause of the failure
+     */
+    public void failed(DnsQuestion question, Exception e);
+
+}
@@ -0,0 +1,329 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.util.ByteBufferUtils;
+import org.code_revue.dns.util.ZoneFileReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local copy of the root zone, as described in RFC 8806, which lets a
+ * {@link org.code_revue.dns.server.resolver.RecursiveResolver} produce top level domain referrals (and reject
+ * non-existent top level domains) without contacting a root server.
+ * <p>
+ * The zone is loaded from a zone file on disk, such as the one published at
+ * <a href="https://www.internic.net/domain/root.zone">https://www.internic.net/domain/root.zone</a>. Only the
+ * delegations (NS records) and their IPv4 glue are kept. Once started, the mirror periodically checks the file's
+ * modification time and reloads it when a new copy has been dropped in place. If a reload fails the previous copy stays
+ * in use, but once the SOA expire time has passed since the last successful load the mirror reports itself unusable
+ * and resolvers fall back to the root servers.
+ * </p>
+ * <p>
+ * Note that no DNSSEC or ZONEMD validation is performed, so the file must come from a trusted source.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc8806">https://tools.ietf.org/html/rfc8806</a>
+ */
+public class RootZoneMirror {
+
+    private final Logger logger = LoggerFactory.getLogger(RootZoneMirror.class);
+
+    private final Path zoneFile;
+    private long refreshInterval = 300;
+
+    private volatile Zone zone;
+    private volatile FileTime lastModified;
+
+    private volatile boolean running = false;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a new mirror of the supplied root zone file. The file is not read until {@link #load()} or
+     * {@link #start()} is called.
+     * @param zoneFile Path to root zone file
+     */
+    public RootZoneMirror(Path zoneFile) {
+        this.zoneFile = zoneFile;
+    }
+
+    /**
+     * Loads the zone file and starts checking it for changes every refresh interval.
+     * @throws java.lang.IllegalStateException If the mirror is already running
+     * @throws java.io.IOException If the zone file cannot be loaded
+     */
+    public void start() throws IOException {
+
+        logger.info("Starting Root Zone Mirror");
+
+        if (running) {
+            throw new IllegalStateException("Root Zone Mirror is already running");
+        }
+
+        load();
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "root-zone-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.SECONDS);
+
+        running = true;
+    }
+
+    /**
+     * Stops checking the zone file for changes. The most recently loaded zone remains available.
+     */
+    public void stop() {
+
+        logger.info("Stopping Root Zone Mirror");
+
+        if (!running) {
+            logger.warn("Root Zone Mirror is already stopped");
+        } else {
+            running = false;
+            scheduler.shutdownNow();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Reloads the zone file if it has been modified since it was last loaded. Errors are logged and the previously
+     * loaded zone stays in place.
+     */
+    public void refresh() {
+        try {
+            FileTime modified = Files.getLastModifiedTime(zoneFile);
+            if (null == lastModified || !lastModified.equals(modified)) {
+                logger.debug("Root zone file {} has changed, reloading", zoneFile);
+                load();
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error refreshing root zone from " + zoneFile + ", keeping previous copy", e);
+        }
+    }
+
+    /**
+     * Reads the zone file and replaces the current zone with its contents.
+     * @throws java.io.IOException If the file cannot be read or does not contain a root zone
+     */
+    public void load() throws IOException {
+
+        FileTime modified = Files.getLastModifiedTime(zoneFile);
+        Map<DnsName, List<DnsRecord>> delegations = new HashMap<>();
+        Map<DnsName, List<DnsRecord>> addresses = new HashMap<>();
+        DnsRecord soa = null;
+
+        try (ZoneFileReader reader = new ZoneFileReader(Files.newBufferedReader(zoneFile, StandardCharsets.UTF_8))) {
+            DnsRecord record;
+            while (null != (record = reader.read())) {
+                String owner = record.getRecordName();
+                switch (record.getRecordType()) {
+                    case SOA:
+                        if (owner.isEmpty()) {
+                            soa = record;
+                        }
+                        break;
+                    case NS:
+                        if (!owner.isEmpty() && owner.indexOf('.') < 0) {
+                            add(delegations, DnsName.valueOf(owner), record);
+                        }
+                        break;
+                    case A:
+                        add(addresses, DnsName.valueOf(owner), record);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        if (null == soa) {
+            throw new IOException("No root SOA record found in " + zoneFile);
+        }
+
+        // Only hang on to addresses that are actually glue for a delegation
+        Map<DnsName, DnsRecord[]> glue = new HashMap<>();
+        Map<DnsName, DnsRecord[]> compactDelegations = new HashMap<>(delegations.size() * 2);
+        for (Map.Entry<DnsName, List<DnsRecord>> delegation: delegations.entrySet()) {
+            for (DnsRecord nameServer: delegation.getValue()) {
+                DnsName host = getHost(nameServer);
+                List<DnsRecord> hostAddresses = addresses.get(host);
+                if (null != hostAddresses && !glue.containsKey(host)) {
+                    glue.put(host, hostAddresses.toArray(new DnsRecord[hostAddresses.size()]));
+                }
+            }
+            List<DnsRecord> nameServers = delegation.getValue();
+            compactDelegations.put(delegation.getKey(), nameServers.toArray(new DnsRecord[nameServers.size()]));
+        }
+
+        ByteBuffer soaData = ByteBuffer.wrap(soa.getResourceData());
+        ByteBufferUtils.readDomainName(soaData);
+        ByteBufferUtils.readDomainName(soaData);
+        long serial = soaData.getInt() & 0xffffffffL;
+        soaData.getInt();
+        soaData.getInt();
+        long expire = soaData.getInt() & 0xffffffffL;
+
+        zone = new Zone(compactDelegations, glue, serial, System.currentTimeMillis() + expire * 1000);
+        lastModified = modified;
+        logger.info("Loaded root zone serial {} with {} top level domains", serial, compactDelegations.size());
+    }
+
+    /**
+     * Indicates whether a zone has been loaded and has not yet expired.
+     * @return True if the mirror can be used to answer root zone questions
+     */
+    public boolean isUsable() {
+        Zone current = zone;
+        return null != current && System.currentTimeMillis() < current.expiration;
+    }
+
+    /**
+     * Indicates whether a top level domain exists in the root zone.
+     * @param tld Top level domain, e.g. "com"
+     * @return True if the domain is delegated by the root zone
+     */
+    public boolean hasTopLevelDomain(String tld) {
+        return !getNameServers(tld).isEmpty();
+    }
+
+    /**
+     * Get the name server records delegating a top level domain.
+     * @param tld Top level domain, e.g. "com"
+     * @return NS records, or an empty list if the domain does not exist or no zone is loaded
+     */
+    public List<DnsRecord> getNameServers(String tld) {
+        return getNameServers(DnsName.valueOf(tld));
+    }
+
+    /**
+     * Get the name server records delegating a top level domain.
+     * @param tld Top level domain, matched without regard to case
+     * @return NS records, or an empty list if the domain does not exist or no zone is loaded
+     */
+    public List<DnsRecord> getNameServers(DnsName tld) {
+        Zone current = zone;
+        if (null == current) {
+            return Collections.emptyList();
+        }
+        DnsRecord[] nameServers = current.delegations.get(tld);
+        return null == nameServers ? Collections.<DnsRecord>emptyList() : Arrays.asList(nameServers);
+    }
+
+    /**
+     * Get the glue address records for a top level domain name server.
+     * @param hostName Name server host name
+     * @return A records, or an empty list if there is no glue for the host
+     */
+    public List<DnsRecord> getAddresses(String hostName) {
+        return getAddresses(DnsName.valueOf(hostName));
+    }
+
+    /**
+     * Get the glue address records for a top level domain name server.
+     * @param hostName Name server host name, matched without regard to case
+     * @return A records, or an empty list if there is no glue for the host
+     */
+    public List<DnsRecord> getAddresses(DnsName hostName) {
+        Zone current = zone;
+        if (null == current) {
+            return Collections.emptyList();
+        }
+        DnsRecord[] records = current.glue.get(hostName);
+        return null == records ? Collections.<DnsRecord>emptyList() : Arrays.asList(records);
+    }
+
+    /**
+     * Get the serial number of the loaded root zone.
+     * @return SOA serial, or -1 if no zone has been loaded
+     */
+    public long getSerial() {
+        Zone current = zone;
+        return null == current ? -1 : current.serial;
+    }
+
+    /**
+     * Get the number of top level domains in the loaded root zone.
+     * @return Number of delegations
+     */
+    public int getTopLevelDomainCount() {
+        Zone current = zone;
+        return null == current ? 0 : current.delegations.size();
+    }
+
+    public Path getZoneFile() {
+        return zoneFile;
+    }
+
+    /**
+     * Get the number of seconds between checks for a new zone file.
+     * @return Refresh interval in seconds
+     */
+    public long getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Set the number of seconds between checks for a new zone file. Takes effect the next time the mirror is started.
+     * @param refreshInterval Refresh interval in seconds
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    private static void add(Map<DnsName, List<DnsRecord>> map, DnsName key, DnsRecord record) {
+        List<DnsRecord> records = map.get(key);
+        if (null == records) {
+            records = new ArrayList<>(2);
+            map.put(key, records);
+        }
+        records.add(record);
+    }
+
+    private static DnsName getHost(DnsRecord nameServer) {
+        return DnsName.wrap(ByteBuffer.wrap(nameServer.getResourceData()), 0);
+    }
+
+    private static class Zone {
+
+        private final Map<DnsName, DnsRecord[]> delegations;
+        private final Map<DnsName, DnsRecord[]> glue;
+        private final long serial;
+        private final long expiration;
+
+        public Zone(Map<DnsName, DnsRecord[]> delegations, Map<DnsName, DnsRecord[]> glue, long serial,
+                    long expiration) {
+            this.delegations = delegations;
+            this.glue = glue;
+            this.serial = serial;
+            this.expiration = expiration;
+        }
+    }
+
+}
@@ -16,7 +16,7 @@ import java.util.Map;
  *
  * @author Mike Fanning
  */
-public class SimpleResolver implements DnsResolver {
+public class SimpleResolver implements DnsResolver, AsyncDnsResolver {
 
     private final Logger logger = LoggerFactory.getLogger(SimpleResolver.class);
 
@@ -40,6 +40,16 @@ public class SimpleResolver implements DnsResolver {
         }
     }
 
+    /**
+     * Resolves the question from memory, so the callback is always completed before this method returns.
+     * @param question
+     * @param callback
+     */
+    @Override
+    public void resolve(DnsQuestion question, ResolverCallback callback) {
+        callback.resolved(question, resolve(question));
+    }
+
     /**
      * Get the DNS record for a given type.
      * @param recordType
@@ -1,9 +1,12 @@
 package org.code_revue.dns.server.resolver;
 
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsNameTrie;
 import org.code_revue.dns.message.DnsQuestion;
 import org.code_revue.dns.message.DnsRecord;
 import org.code_revue.dns.message.DnsRecordClass;
 import org.code_revue.dns.message.DnsRecordType;
+import org.code_revue.dns.message.ResponseTemplate;
 import org.code_revue.dns.util.ByteBufferUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,19 +22,27 @@ import java.util.List;
  * CNAME and NS records for such queries (hopefully leading to an A query), and mocks users of TXT queries.
  * <p>
  * This class can contain an exception list of domains that should not be resolved, so that they can fall through to the
- * relay and be resolved correctly.
+ * relay and be resolved correctly. An exception covers the domain and all of its subdomains, matched label by label
+ * without regard to case. The exceptions are kept in a {@link org.code_revue.dns.message.DnsNameTrie}, so checking a
+ * question takes one probe per label however long the list is, and exceptions can be changed while queries are being
+ * resolved.
+ * </p>
+ * <p>
+ * The answers are also available as a {@link org.code_revue.dns.message.ResponseTemplate}, which is rebuilt whenever
+ * the address or TTL changes.
  * </p>
  *
  * @author Mike Fanning
  */
-public class SingleHostResolver implements DnsResolver {
+public class SingleHostResolver implements DnsResolver, AsyncDnsResolver, TemplateResolver {
 
     private final Logger logger = LoggerFactory.getLogger(SingleHostResolver.class);
 
-    private List<String> exceptionList = new ArrayList<>();
+    private volatile DnsNameTrie exceptions = new DnsNameTrie();
     private byte[] hostIp;
     private int ttl = 120;
     private byte[] text;
+    private volatile ResponseTemplate template;
 
     /**
      * Creates a new resolver using the local address to answer all A record questions, excluding the exception list.
@@ -68,16 +79,12 @@ public class SingleHostResolver implements DnsResolver {
         assert null != question;
 
         logger.debug("Attempting to resolve {}", question);
-        String questionName = question.getQuestionName().toLowerCase();
-
-        // Might want to use a better data structure and algorithm - probably a tree with name segments
-        for (String exception: exceptionList) {
-            if (questionName.endsWith(exception)) {
-                logger.debug("Exception found {}, returning empty list", exception);
-                return Collections.emptyList();
-            }
+        if (isException(question.getName())) {
+            return Collections.emptyList();
         }
 
+        String questionName = question.getQuestionName();
+
         List<DnsRecord> answers = new ArrayList<>();
         byte[] resourceData;
         switch (question.getQuestionType()) {
@@ -111,6 +118,46 @@ public class SingleHostResolver implements DnsResolver {
 
     }
 
+    /**
+     * Get the precompiled answers, unless the question is in the exception list.
+     * @param question Question
+     * @return Template, or null if the question is an exception
+     */
+    @Override
+    public ResponseTemplate getResponseTemplate(DnsQuestion question) {
+        if (isException(question.getName())) {
+            return null;
+        }
+        ResponseTemplate result = template;
+        if (null == result) {
+            result = new ResponseTemplate()
+                    .addAnswer(DnsRecordType.A, DnsRecordType.A, ttl, hostIp)
+                    .addAnswer(DnsRecordType.CNAME, DnsRecordType.CNAME, ttl, ResponseTemplate.relativeName("a"))
+                    .addAnswer(DnsRecordType.NS, DnsRecordType.NS, ttl, ResponseTemplate.relativeName("ns"))
+                    .addAnswer(DnsRecordType.TXT, DnsRecordType.TXT, ttl, text);
+            template = result;
+        }
+        return result;
+    }
+
+    private boolean isException(DnsName questionName) {
+        if (exceptions.findLowest(questionName) >= 0) {
+            logger.debug("Exception found for {}", questionName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Resolves the question from memory, so the callback is always completed before this method returns.
+     * @param question Question
+     * @param callback Receives the answers
+     */
+    @Override
+    public void resolve(DnsQuestion question, ResolverCallback callback) {
+        callback.resolved(question, resolve(question));
+    }
+
     /**
      * Get the IP address that will be used to answer all A questions.
      * @return IP address
@@ -125,23 +172,49 @@ public class SingleHostResolver implements DnsResolver {
      */
     public void setHostIp(byte[] hostIp) {
         this.hostIp = hostIp;
+        template = null;
     }
 
     /**
-     * Get the list of domains that are excepted from this resolver.
+     * Get the list of domains that are excepted from this resolver. The list is a copy, in lower case and in no
+     * particular order.
      * @return
      */
     public List<String> getExceptionList() {
-        return exceptionList;
+        DnsNameTrie current = exceptions;
+        List<String> answer = new ArrayList<>(current.size());
+        for (DnsName exception: current.getNames()) {
+            answer.add(exception.toString());
+        }
+        return answer;
     }
 
     /**
-     * Sets exception list, overwriting any previous exceptions. Spring DI friendly method.
+     * Sets exception list, overwriting any previous exceptions. Spring DI friendly method. The new list is built up
+     * separately and takes effect all at once.
      * @param exceptions Domains that this resolver should <b>not</b> attempt to resolve
      */
     public void setExceptionList(List<String> exceptions) {
-        logger.debug("Clobbering exception list with {}", exceptions);
-        exceptionList = exceptions;
+        logger.debug("Clobbering exception list with {} domains", exceptions.size());
+        DnsNameTrie replacement = new DnsNameTrie();
+        for (String exception: exceptions) {
+            replacement.put(DnsName.valueOf(exception), 0);
+        }
+        this.exceptions = replacement;
+    }
+
+    /**
+     * Replaces all of the exceptions at once, for example with a list built by
+     * {@link org.code_revue.dns.util.DomainListLoader}. The resolver takes ownership of the trie, which must not be
+     * modified other than through this resolver afterwards.
+     * @param exceptions Domains that this resolver should <b>not</b> attempt to resolve
+     */
+    public void setExceptions(DnsNameTrie exceptions) {
+        if (null == exceptions) {
+            throw new IllegalArgumentException("Exceptions must not be null");
+        }
+        logger.debug("Replacing exceptions with {} domains", exceptions.size());
+        this.exceptions = exceptions;
     }
 
     /**
@@ -150,7 +223,7 @@ public class SingleHostResolver implements DnsResolver {
      */
     public void addException(String exception) {
         logger.debug("Exception added \"{}\"", exception);
-        exceptionList.add(exception.toLowerCase());
+        exceptions.put(DnsName.valueOf(exception), 0);
     }
 
     /**
@@ -159,7 +232,7 @@ public class SingleHostResolver implements DnsResolver {
      */
     public void removeException(String exception) {
         logger.debug("Attempting to remove exception \"{}\"", exception);
-        exceptionList.remove(exception.toLowerCase());
+        exceptions.remove(DnsName.valueOf(exception));
     }
 
     /**
@@ -176,6 +249,7 @@ public class SingleHostResolver implements DnsResolver {
      */
     public void setTtl(int ttl) {
         this.ttl = ttl;
+        template = null;
     }
 
 }
@@ -0,0 +1,107 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Adapts a blocking {@link org.code_revue.dns.server.resolver.DnsResolver} to the
+ * {@link org.code_revue.dns.server.resolver.AsyncDnsResolver} interface. If an {@link java.util.concurrent.Executor}
+ * is supplied the wrapped resolver is invoked on it, otherwise it is invoked directly on the calling thread, which is
+ * only appropriate for resolvers that never block.
+ *
+ * @author Mike Fanning
+ */
+public class SynchronousResolverAdapter implements AsyncDnsResolver {
+
+    private final Logger logger = LoggerFactory.getLogger(SynchronousResolverAdapter.class);
+
+    private final DnsResolver resolver;
+    private final Executor executor;
+
+    /**
+     * Creates an adapter that invokes the resolver on the calling thread.
+     * @param resolver Resolver to adapt
+     */
+    public SynchronousResolverAdapter(DnsResolver resolver) {
+        this(resolver, null);
+    }
+
+    /**
+     * Creates an adapter that invokes the resolver using an executor.
+     * @param resolver Resolver to adapt
+     * @param executor Executor used to run the resolver, or null to run it on the calling thread
+     */
+    public SynchronousResolverAdapter(DnsResolver resolver, Executor executor) {
+        if (null == resolver) {
+            throw new IllegalArgumentException("Resolver must not be null");
+        }
+        this.resolver = resolver;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns an asynchronous view of a resolver. Resolvers that already implement
+     * {@link org.code_revue.dns.server.resolver.AsyncDnsResolver} are returned as they are, anything else is wrapped in
+     * an adapter using the supplied executor.
+     * @param resolver Resolver
+     * @param executor Executor for blocking resolvers, or null to run them on the calling thread
+     * @return Asynchronous resolver
+     */
+    public static AsyncDnsResolver adapt(DnsResolver resolver, Executor executor) {
+        if (resolver instanceof AsyncDnsResolver) {
+            return (AsyncDnsResolver) resolver;
+        }
+        return new SynchronousResolverAdapter(resolver, executor);
+    }
+
+    @Override
+    public void resolve(final DnsQuestion question, final ResolverCallback callback) {
+        if (null == executor) {
+            invoke(question, callback);
+        } else {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        invoke(question, callback);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.error("Executor cannot accept any more questions", e);
+                callback.failed(question, e);
+            }
+        }
+    }
+
+    private void invoke(DnsQuestion question, ResolverCallback callback) {
+        List<DnsRecord> answers;
+        try {
+            answers = resolver.resolve(question);
+        } catch (NameErrorException e) {
+            logger.debug("Name does not exist: {}", e.getMessage());
+            callback.failed(question, e);
+            return;
+        } catch (RuntimeException e) {
+            logger.error("Error resolving question", e);
+            callback.failed(question, e);
+            return;
+        }
+        callback.resolved(question, null == answers ? Collections.<DnsRecord>emptyList() : answers);
+    }
+
+    /**
+     * Get the resolver wrapped by this adapter.
+     * @return Synchronous resolver
+     */
+    public DnsResolver getResolver() {
+        return resolver;
+    }
+
+}
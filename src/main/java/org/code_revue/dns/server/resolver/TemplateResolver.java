@@ -0,0 +1,21 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.ResponseTemplate;
+
+/**
+ * Interface for resolvers whose answers don't depend on the question name, so that engines can write responses from a
+ * precompiled {@link org.code_revue.dns.message.ResponseTemplate} instead of resolving the question.
+ *
+ * @author Mike Fanning
+ */
+public interface TemplateResolver {
+
+    /**
+     * Get the template that answers a question.
+     * @param question Question
+     * @return Template, or null if the question must be resolved normally
+     */
+    public ResponseTemplate getResponseTemplate(DnsQuestion question);
+
+}
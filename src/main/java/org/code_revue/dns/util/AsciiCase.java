@@ -0,0 +1,106 @@
+package org.code_revue.dns.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Case-insensitive hashing and comparison of domain name bytes, straight from a buffer. Only the ASCII letters A-Z are
+ * folded, which is what RFC 4343 requires of DNS; every other byte, including anything with the high bit set, is
+ * compared exactly.
+ * <p>
+ * Bytes are processed eight at a time where possible. A word is folded by working out which of its bytes are upper
+ * case letters with a couple of additions and masks, then setting the 0x20 bit of just those bytes, so there are no
+ * per-byte branches and no strings are created.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc4343">https://tools.ietf.org/html/rfc4343</a>
+ */
+public final class AsciiCase {
+
+    private static final long LOW_BITS = 0x7f7f7f7f7f7f7f7fL;
+    private static final long HIGH_BITS = 0x8080808080808080L;
+    // Adding these to a 7 bit byte sets its high bit if the byte is at least 'A', or more than 'Z', respectively
+    private static final long AT_LEAST_A = 0x3f3f3f3f3f3f3f3fL;
+    private static final long ABOVE_Z = 0x2525252525252525L;
+
+    private AsciiCase() {
+    }
+
+    /**
+     * Folds the upper case ASCII letters in each of the eight bytes of a word to lower case.
+     * @param word Eight bytes
+     * @return Word with A-Z replaced by a-z
+     */
+    public static long toLowerCase(long word) {
+        long heptets = word & LOW_BITS;
+        long upper = (heptets + AT_LEAST_A) & ~(heptets + ABOVE_Z) & ~word & HIGH_BITS;
+        return word | (upper >>> 2);
+    }
+
+    /**
+     * Folds a single byte to lower case.
+     * @param b Byte
+     * @return Unsigned value of the byte, with A-Z replaced by a-z
+     */
+    public static int toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b & 0xff;
+    }
+
+    /**
+     * Compares two byte ranges, ignoring the case of ASCII letters.
+     * @param a First buffer
+     * @param aOffset Start of the first range
+     * @param b Second buffer
+     * @param bOffset Start of the second range
+     * @param length Number of bytes to compare
+     * @return True if the ranges only differ in case
+     */
+    public static boolean equalsIgnoreCase(ByteBuffer a, int aOffset, ByteBuffer b, int bOffset, int length) {
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            if (toLowerCase(getWord(a, aOffset + i)) != toLowerCase(getWord(b, bOffset + i))) {
+                return false;
+            }
+        }
+        for (; i < length; i++) {
+            if (toLowerCase(a.get(aOffset + i)) != toLowerCase(b.get(bOffset + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds a byte range to a hash, ignoring the case of ASCII letters. The result only depends on the bytes, not on
+     * where they are in the buffer or on the buffer's byte order.
+     * @param hash Hash so far
+     * @param data Buffer
+     * @param offset Start of the range
+     * @param length Number of bytes to hash
+     * @return Updated hash
+     */
+    public static int hashIgnoreCase(int hash, ByteBuffer data, int offset, int length) {
+        int h = hash;
+        int i = 0;
+        for (; i + 8 <= length; i += 8) {
+            long word = toLowerCase(getWord(data, offset + i));
+            h = 31 * h + (int) (word ^ (word >>> 32));
+        }
+        if (i < length) {
+            long word = 0;
+            for (; i < length; i++) {
+                word = (word << 8) | (data.get(offset + i) & 0xff);
+            }
+            word = toLowerCase(word);
+            h = 31 * h + (int) (word ^ (word >>> 32));
+        }
+        return h;
+    }
+
+    private static long getWord(ByteBuffer data, int offset) {
+        long word = data.getLong(offset);
+        return ByteOrder.BIG_ENDIAN == data.order() ? word : Long.reverseBytes(word);
+    }
+
+}
@@ -0,0 +1,106 @@
+package org.code_revue.dns.util;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of equally sized heap buffers. Buffers are only reused once they are explicitly handed back with
+ * {@link #release(java.nio.ByteBuffer)}, so a buffer that is never released is simply garbage collected. When the pool
+ * is empty a new buffer is allocated, and when it is full released buffers are dropped.
+ * <p>
+ * The pool keeps track of the buffers it has handed out, and only takes those back, each of them once. Anything else
+ * passed to {@link #release(java.nio.ByteBuffer)} is ignored, so a buffer the caller still owns can never end up being
+ * handed to someone else. Buffers are tracked weakly, so they are still garbage collected if they are never released.
+ * </p>
+ *
+ * @author Mike Fanning
+ */
+public class ByteBufferPool {
+
+    private final int bufferSize;
+    private final BlockingQueue<ByteBuffer> buffers;
+    private final Set<byte[]> outstanding = Collections.newSetFromMap(new WeakHashMap<byte[], Boolean>());
+
+    private final AtomicLong allocationCount = new AtomicLong(0);
+
+    /**
+     * Creates an empty pool.
+     * @param bufferSize Capacity of every buffer handed out by the pool
+     * @param maxPooled Maximum number of idle buffers kept for reuse
+     */
+    public ByteBufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled <= 0) {
+            throw new IllegalArgumentException("Buffer size and pool size must be positive");
+        }
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating one if none are idle. The buffer is cleared, so its position is zero
+     * and its limit is its capacity.
+     * @return Buffer with a capacity of {@link #getBufferSize()}
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (null == buffer) {
+            allocationCount.incrementAndGet();
+            buffer = ByteBuffer.allocate(bufferSize);
+        } else {
+            buffer.clear();
+        }
+        synchronized (outstanding) {
+            outstanding.add(buffer.array());
+        }
+        return buffer;
+    }
+
+    /**
+     * Hands a buffer back for reuse. The caller must not touch the buffer, or anything sharing its content, afterwards.
+     * Buffers that were not handed out by this pool, or have already been released, are ignored. A duplicate or slice
+     * of a pooled buffer releases the whole of the original.
+     * @param buffer Buffer previously returned by {@link #acquire()}
+     * @return True if the buffer was kept for reuse
+     */
+    public boolean release(ByteBuffer buffer) {
+        if (null == buffer || !buffer.hasArray()) {
+            return false;
+        }
+        byte[] array = buffer.array();
+        synchronized (outstanding) {
+            if (!outstanding.remove(array)) {
+                return false;
+            }
+        }
+        if (buffer.capacity() != bufferSize || buffer.arrayOffset() != 0) {
+            buffer = ByteBuffer.wrap(array);
+        }
+        return buffers.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Get the number of idle buffers waiting to be reused.
+     * @return Number of pooled buffers
+     */
+    public int getPooledCount() {
+        return buffers.size();
+    }
+
+    /**
+     * Get the number of buffers the pool has had to allocate because none were idle.
+     * @return Number of allocations
+     */
+    public long getAllocationCount() {
+        return allocationCount.get();
+    }
+
+}
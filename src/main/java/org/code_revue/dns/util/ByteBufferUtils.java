@@ -10,6 +10,11 @@ import java.util.StringTokenizer;
  */
 public class ByteBufferUtils {
 
+    /**
+     * Maximum length of an encoded domain name, including length bytes and the terminating zero.
+     */
+    public static final int MAX_DOMAIN_NAME_LENGTH = 255;
+
     /**
      * Prints a hexadecimal representation of a buffer to standard out.
      *
@@ -37,29 +42,115 @@ public class ByteBufferUtils {
     }
 
     /**
-     * Reads a DNS encoded domain name from a buffer and returns it as a string, as described
-     * <a href="http://www.tcpipguide.com/free/t_DNSNameNotationandMessageCompressionTechnique.htm">here</a>.
+     * Reads a DNS encoded domain name at the buffer's current position and returns it as a string, as described
+     * <a href="http://www.tcpipguide.com/free/t_DNSNameNotationandMessageCompressionTechnique.htm">here</a>. The
+     * buffer's position is moved past the name. Compression pointers are followed as described in
+     * {@link #readDomainName(java.nio.ByteBuffer, int)}, so the buffer must start at the beginning of the message.
      *
      * @see <a href="http://www.tcpipguide.com/free/t_DNSNameNotationandMessageCompressionTechnique.htm">
      *     http://www.tcpipguide.com/free/t_DNSNameNotationandMessageCompressionTechnique.htm</a>
      * @param buffer
      * @return Domain name
+     * @throws java.lang.IllegalArgumentException If the name is malformed
      */
     public static String readDomainName(ByteBuffer buffer) {
-        int namePosition = 0;
-        byte segmentLength = buffer.get();
-        byte[] nameBuffer = new byte[256];
-        while (segmentLength != 0) {
-            buffer.get(nameBuffer, namePosition, segmentLength);
-            namePosition += segmentLength;
-            segmentLength = buffer.get();
-
-            if (segmentLength != 0) {
-                nameBuffer[namePosition] = '.';
-                namePosition++;
+        int position = buffer.position();
+        String name = readDomainName(buffer, position);
+        buffer.position(skipDomainName(buffer, position));
+        return name;
+    }
+
+    /**
+     * Reads a DNS encoded domain name at an absolute offset in a message. Compression pointers are followed wherever
+     * they appear in the name. Every pointer must point before the start of the name and before the target of the
+     * previous pointer, so pointer loops and forward references are rejected and decoding needs no memory beyond the
+     * result. Names longer than {@link #MAX_DOMAIN_NAME_LENGTH} bytes are rejected as well.
+     *
+     * @param message Message buffer, pointers are relative to index zero
+     * @param offset Offset of the name
+     * @return Domain name, without a trailing dot
+     * @throws java.lang.IllegalArgumentException If the name is malformed
+     */
+    public static String readDomainName(ByteBuffer message, int offset) {
+        StringBuilder name = new StringBuilder();
+        int position = offset;
+        int bound = offset;
+        int length = 1;
+        int segmentLength = getSegmentLength(message, position);
+        while (0 != segmentLength) {
+            if (0xc0 == (segmentLength & 0xc0)) {
+                position = getPointer(message, position, bound);
+                bound = position;
+            } else {
+                length += segmentLength + 1;
+                if (length > MAX_DOMAIN_NAME_LENGTH) {
+                    throw new IllegalArgumentException("Domain name exceeds " + MAX_DOMAIN_NAME_LENGTH + " bytes");
+                }
+                if (position + segmentLength >= message.limit()) {
+                    throw new IllegalArgumentException("Domain name runs past end of message");
+                }
+                if (name.length() > 0) {
+                    name.append('.');
+                }
+                for (int i = 1; i <= segmentLength; i++) {
+                    name.append((char) (message.get(position + i) & 0xff));
+                }
+                position += segmentLength + 1;
+            }
+            segmentLength = getSegmentLength(message, position);
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the offset immediately after the (possibly compressed) domain name at the supplied offset, without
+     * following any compression pointers.
+     *
+     * @param message Message buffer
+     * @param offset Offset of the name
+     * @return Offset of the next field in the message
+     * @throws java.lang.IllegalArgumentException If the name is malformed
+     */
+    public static int skipDomainName(ByteBuffer message, int offset) {
+        int position = offset;
+        int segmentLength = getSegmentLength(message, position);
+        while (0 != segmentLength) {
+            if (0xc0 == (segmentLength & 0xc0)) {
+                // A pointer always terminates the name
+                if (position + 1 >= message.limit()) {
+                    throw new IllegalArgumentException("Compression pointer runs past end of message");
+                }
+                return position + 2;
             }
+            position += segmentLength + 1;
+            if (position - offset >= MAX_DOMAIN_NAME_LENGTH) {
+                throw new IllegalArgumentException("Domain name exceeds " + MAX_DOMAIN_NAME_LENGTH + " bytes");
+            }
+            segmentLength = getSegmentLength(message, position);
+        }
+        return position + 1;
+    }
+
+    private static int getSegmentLength(ByteBuffer message, int position) {
+        if (position >= message.limit()) {
+            throw new IllegalArgumentException("Domain name runs past end of message");
+        }
+        int segmentLength = message.get(position) & 0xff;
+        if (0x40 == (segmentLength & 0xc0) || 0x80 == (segmentLength & 0xc0)) {
+            throw new IllegalArgumentException("Unsupported label type at offset " + position);
+        }
+        return segmentLength;
+    }
+
+    private static int getPointer(ByteBuffer message, int position, int bound) {
+        if (position + 1 >= message.limit()) {
+            throw new IllegalArgumentException("Compression pointer runs past end of message");
+        }
+        int pointer = message.getShort(position) & 0x3fff;
+        if (pointer >= bound) {
+            throw new IllegalArgumentException("Compression pointer at offset " + position + " does not point back");
         }
-        return new String(nameBuffer, 0, namePosition);
+        return pointer;
     }
 
     /**
@@ -0,0 +1,410 @@
+package org.code_revue.dns.util;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsNameTrie;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Loads long lists of domains, such as block lists, straight into a {@link org.code_revue.dns.message.DnsNameTrie}
+ * that can then be handed to a rule or resolver in one go. Three formats are understood:
+ * <ul>
+ *     <li>{@link Format#HOSTS}: hosts files, where every name after the address on a line is taken, apart from the
+ *     standard entries such as <code>localhost</code> and <code>broadcasthost</code> that most hosts files start
+ *     with</li>
+ *     <li>{@link Format#DOMAINS}: one domain per line</li>
+ *     <li>{@link Format#RPZ}: response policy zone files, where the owner of every record other than the SOA and NS
+ *     records is taken as a query name trigger</li>
+ * </ul>
+ * <p>
+ * Files are memory mapped and parsed a byte at a time, without decoding them into strings. Each name is encoded into
+ * a reusable buffer and added to the trie, which copies its labels and drops duplicates, so apart from the trie itself
+ * loading creates next to no garbage. Trailing dots are ignored. Lines that cannot be understood are counted and
+ * skipped.
+ * </p>
+ * <p>
+ * The trie always matches subdomains, so a leading "*." wildcard is dropped, and a wildcard entry then also matches
+ * the name it is under: <code>*.example.com</code> is loaded as <code>example.com</code>, which covers
+ * <code>example.com</code> itself as well as everything below it.
+ * </p>
+ * <p>
+ * Policy zone triggers on client or name server addresses (the <code>rpz-ip</code>, <code>rpz-client-ip</code>,
+ * <code>rpz-nsip</code> and <code>rpz-nsdname</code> forms) are not query names and are skipped. So are records whose
+ * action is a CNAME to <code>rpz-passthru.</code>, <code>rpz-drop.</code> or <code>rpz-tcp-only.</code>: the trie can
+ * only say that a name is listed, and these actions are not blocks. A passthru exception for a name under a listed
+ * wildcard is therefore not honoured, and the name stays listed.
+ * </p>
+ * <p>
+ * Instances are not thread safe, but can be reused for several loads; the counts describe the most recent one.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/draft-vixie-dnsop-dns-rpz-00">
+ *     https://tools.ietf.org/html/draft-vixie-dnsop-dns-rpz-00</a>
+ */
+public class DomainListLoader {
+
+    /**
+     * Input file formats.
+     */
+    public enum Format {
+        HOSTS, DOMAINS, RPZ
+    }
+
+    private static final byte[] RPZ_PREFIX = "rpz-".getBytes();
+
+    private static final String[] RPZ_SKIPPED_ACTIONS = { "rpz-passthru", "rpz-drop", "rpz-tcp-only" };
+
+    private static final String[] WELL_KNOWN_HOSTS = { "localhost", "localhost.localdomain", "local", "broadcasthost",
+            "ip6-localhost", "ip6-loopback", "ip6-localnet", "ip6-mcastprefix", "ip6-allnodes", "ip6-allrouters",
+            "ip6-allhosts" };
+
+    private final Logger logger = LoggerFactory.getLogger(DomainListLoader.class);
+
+    private final Format format;
+
+    private final ByteBuffer encoded = ByteBuffer.allocate(DnsName.MAX_LENGTH + 1);
+
+    private int[] tokenStarts = new int[16];
+    private int[] tokenEnds = new int[16];
+
+    private byte[] origin = new byte[0];
+    private boolean inParentheses;
+    private long lineCount;
+    private long entryCount;
+    private long rejectedCount;
+    private long skippedCount;
+
+    /**
+     * Creates a loader for the supplied format.
+     * @param format Input format
+     */
+    public DomainListLoader(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Loads a file, which is memory mapped for the duration of the load.
+     * @param path File to load
+     * @return Trie of every domain in the file, each with the value 0
+     * @throws java.io.IOException If the file cannot be read or is too large to map
+     */
+    public DnsNameTrie load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to load: " + path);
+            }
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            logger.debug("Loading {} bytes of {} from {}", size, format, path);
+            return load(data);
+        }
+    }
+
+    /**
+     * Loads list data from a buffer, between its position and limit. The buffer's position is not changed.
+     * @param data List data, in an ASCII compatible encoding
+     * @return Trie of every domain in the data, each with the value 0
+     */
+    public DnsNameTrie load(ByteBuffer data) {
+        long start = System.nanoTime();
+        lineCount = 0;
+        entryCount = 0;
+        rejectedCount = 0;
+        skippedCount = 0;
+        origin = new byte[0];
+        inParentheses = false;
+
+        // Guess at one entry per couple of dozen bytes, which is about right for typical block lists
+        DnsNameTrie trie = new DnsNameTrie(data.remaining() / 24);
+        int limit = data.limit();
+        for (int position = data.position(); position < limit; ) {
+            int end = position;
+            while (end < limit && '\n' != data.get(end)) {
+                end++;
+            }
+            lineCount++;
+            parseLine(data, position, end, trie);
+            position = end + 1;
+        }
+
+        logger.info("Loaded {} domains from {} entries on {} lines in {} ms, {} rejected, {} skipped", trie.size(),
+                entryCount, lineCount, (System.nanoTime() - start) / 1000000, rejectedCount, skippedCount);
+        return trie;
+    }
+
+    /**
+     * Get the number of lines read by the last load.
+     * @return Line count
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Get the number of domains found by the last load, including duplicates.
+     * @return Entry count
+     */
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Get the number of lines or names the last load could not understand.
+     * @return Rejected count
+     */
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Get the number of entries the last load understood but deliberately left out, such as <code>localhost</code> in
+     * a hosts file or a policy zone passthru record.
+     * @return Skipped count
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    private void parseLine(ByteBuffer data, int start, int end, DnsNameTrie trie) {
+        byte comment = Format.RPZ == format ? (byte) ';' : (byte) '#';
+        int count = tokenize(data, start, end, comment);
+        if (0 == count) {
+            return;
+        }
+
+        switch (format) {
+            case DOMAINS:
+                addName(data, tokenStarts[0], tokenEnds[0], trie);
+                break;
+            case HOSTS:
+                if (1 == count) {
+                    rejectedCount++;
+                }
+                for (int i = 1; i < count; i++) {
+                    if (isWellKnownHost(data, tokenStarts[i], tokenEnds[i])) {
+                        skippedCount++;
+                    } else {
+                        addName(data, tokenStarts[i], tokenEnds[i], trie);
+                    }
+                }
+                break;
+            case RPZ:
+                parseRecord(data, start, count, trie);
+                break;
+        }
+    }
+
+    private void parseRecord(ByteBuffer data, int lineStart, int count, DnsNameTrie trie) {
+        // Multi-line records are only ever the SOA in practice, so their contents can be skipped
+        boolean wasInParentheses = inParentheses;
+        for (int i = tokenStarts[0]; i < tokenEnds[count - 1]; i++) {
+            byte b = data.get(i);
+            if ('(' == b) {
+                inParentheses = true;
+            } else if (')' == b) {
+                inParentheses = false;
+            }
+        }
+        if (wasInParentheses) {
+            return;
+        }
+
+        int ownerStart = tokenStarts[0];
+        int ownerEnd = tokenEnds[0];
+        if ('$' == data.get(ownerStart)) {
+            if (count > 1 && tokenEquals(data, ownerStart, ownerEnd, "$ORIGIN")) {
+                origin = toLowerCase(data, tokenStarts[1], trimDot(data, tokenStarts[1], tokenEnds[1]));
+            }
+            return;
+        }
+        if (ownerStart != lineStart || '@' == data.get(ownerStart)) {
+            // Same owner as the previous record, or the zone apex
+            return;
+        }
+
+        // Skip the optional TTL and class to find the type
+        int type = 1;
+        while (type < count && (Character.isDigit(data.get(tokenStarts[type])) ||
+                tokenEquals(data, tokenStarts[type], tokenEnds[type], "IN"))) {
+            type++;
+        }
+        if (type < count && (tokenEquals(data, tokenStarts[type], tokenEnds[type], "SOA") ||
+                tokenEquals(data, tokenStarts[type], tokenEnds[type], "NS"))) {
+            return;
+        }
+        if (type + 1 < count && tokenEquals(data, tokenStarts[type], tokenEnds[type], "CNAME") &&
+                isSkippedAction(data, tokenStarts[type + 1], tokenEnds[type + 1])) {
+            skippedCount++;
+            return;
+        }
+
+        // Absolute owners have to be inside the policy zone, and the zone name is then not part of the trigger
+        if ('.' == data.get(ownerEnd - 1)) {
+            ownerEnd--;
+            if (!hasOriginSuffix(data, ownerStart, ownerEnd)) {
+                rejectedCount++;
+                return;
+            }
+            ownerEnd -= origin.length + 1;
+        }
+        if (isAddressTrigger(data, ownerStart, ownerEnd)) {
+            return;
+        }
+        addName(data, ownerStart, ownerEnd, trie);
+    }
+
+    private void addName(ByteBuffer data, int start, int end, DnsNameTrie trie) {
+        if (end - start >= 2 && '*' == data.get(start) && '.' == data.get(start + 1)) {
+            start += 2;
+        }
+        end = trimDot(data, start, end);
+        if (start >= end || isNumeric(data, start, end)) {
+            // Empty, or an address such as the 0.0.0.0 entry some hosts files list as a name
+            rejectedCount++;
+            return;
+        }
+
+        encoded.clear();
+        int lengthPosition = 0;
+        encoded.put((byte) 0);
+        for (int i = start; i <= end; i++) {
+            byte b = i < end ? data.get(i) : (byte) '.';
+            if ('.' == b) {
+                int labelLength = encoded.position() - lengthPosition - 1;
+                if (0 == labelLength || labelLength > 63 || encoded.position() >= DnsName.MAX_LENGTH) {
+                    rejectedCount++;
+                    return;
+                }
+                encoded.put(lengthPosition, (byte) labelLength);
+                lengthPosition = encoded.position();
+                encoded.put((byte) 0);
+            } else if (b <= ' ' || encoded.position() >= DnsName.MAX_LENGTH) {
+                rejectedCount++;
+                return;
+            } else {
+                encoded.put(b);
+            }
+        }
+
+        entryCount++;
+        trie.put(DnsName.wrap(encoded, 0), 0);
+    }
+
+    private int tokenize(ByteBuffer data, int start, int end, byte comment) {
+        int count = 0;
+        int position = start;
+        while (position < end) {
+            byte b = data.get(position);
+            if (comment == b) {
+                break;
+            }
+            if (b <= ' ') {
+                position++;
+                continue;
+            }
+            if (count == tokenStarts.length) {
+                tokenStarts = Arrays.copyOf(tokenStarts, count * 2);
+                tokenEnds = Arrays.copyOf(tokenEnds, count * 2);
+            }
+            tokenStarts[count] = position;
+            while (position < end && data.get(position) > ' ' && comment != data.get(position)) {
+                position++;
+            }
+            tokenEnds[count++] = position;
+        }
+        return count;
+    }
+
+    private boolean hasOriginSuffix(ByteBuffer data, int start, int end) {
+        int suffixStart = end - origin.length;
+        if (suffixStart - 1 <= start || '.' != data.get(suffixStart - 1)) {
+            return false;
+        }
+        for (int i = 0; i < origin.length; i++) {
+            if (AsciiCase.toLowerCase(data.get(suffixStart + i)) != origin[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSkippedAction(ByteBuffer data, int start, int end) {
+        end = trimDot(data, start, end);
+        for (String action: RPZ_SKIPPED_ACTIONS) {
+            if (tokenEquals(data, start, end, action)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isWellKnownHost(ByteBuffer data, int start, int end) {
+        end = trimDot(data, start, end);
+        for (String host: WELL_KNOWN_HOSTS) {
+            if (tokenEquals(data, start, end, host)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAddressTrigger(ByteBuffer data, int start, int end) {
+        int lastLabel = end;
+        while (lastLabel > start && '.' != data.get(lastLabel - 1)) {
+            lastLabel--;
+        }
+        if (end - lastLabel < RPZ_PREFIX.length) {
+            return false;
+        }
+        for (int i = 0; i < RPZ_PREFIX.length; i++) {
+            if (AsciiCase.toLowerCase(data.get(lastLabel + i)) != RPZ_PREFIX[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isNumeric(ByteBuffer data, int start, int end) {
+        for (int i = start; i < end; i++) {
+            byte b = data.get(i);
+            if (':' != b && '.' != b && (b < '0' || b > '9')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean tokenEquals(ByteBuffer data, int start, int end, String token) {
+        if (end - start != token.length()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (AsciiCase.toLowerCase(data.get(start + i)) != Character.toLowerCase(token.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int trimDot(ByteBuffer data, int start, int end) {
+        return end > start && '.' == data.get(end - 1) ? end - 1 : end;
+    }
+
+    private static byte[] toLowerCase(ByteBuffer data, int start, int end) {
+        byte[] result = new byte[end - start];
+        for (int i = start; i < end; i++) {
+            result[i - start] = (byte) AsciiCase.toLowerCase(data.get(i));
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,231 @@
+package org.code_revue.dns.util;
+
+/**
+ * Binary radix trie of bit string prefixes, used for longest prefix matching of IP addresses. Keys are given as the
+ * address bytes in network order plus a prefix length in bits, so the same trie works for IPv4 and IPv6, although the
+ * two should not be mixed in one trie.
+ * <p>
+ * The trie is path compressed: a node is only created where a prefix ends or where two prefixes diverge, so it never
+ * holds more than twice as many nodes as prefixes and a lookup visits at most one node per branching bit. Nodes are
+ * immutable. Updates copy the path from the root to the change and publish the new root with a volatile write, so
+ * lookups never lock and always see a consistent trie, while updates are serialized.
+ * </p>
+ *
+ * @param <V> Value type
+ * @author Mike Fanning
+ */
+public class PrefixTrie<V> {
+
+    private volatile Node<V> root;
+
+    private volatile int size;
+
+    /**
+     * Adds or replaces the value for a prefix. Bits of the address beyond the prefix length are ignored.
+     * @param address Address bytes
+     * @param prefixLength Number of leading bits that make up the prefix
+     * @param value Value, must not be null
+     * @return Previous value for the prefix, or null if there was none
+     * @throws java.lang.IllegalArgumentException If the prefix length does not fit the address
+     */
+    public synchronized V put(byte[] address, int prefixLength, V value) {
+        if (null == value) {
+            throw new IllegalArgumentException("Value must not be null");
+        }
+        byte[] key = mask(address, prefixLength);
+        V previous = get(address, prefixLength);
+        root = insert(root, key, prefixLength, value);
+        if (null == previous) {
+            size++;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes a prefix.
+     * @param address Address bytes
+     * @param prefixLength Number of leading bits that make up the prefix
+     * @return Value that was removed, or null if the prefix was not in the trie
+     */
+    public synchronized V remove(byte[] address, int prefixLength) {
+        byte[] key = mask(address, prefixLength);
+        V previous = get(address, prefixLength);
+        if (null != previous) {
+            root = delete(root, key, prefixLength);
+            size--;
+        }
+        return previous;
+    }
+
+    /**
+     * Get the value for exactly this prefix.
+     * @param address Address bytes
+     * @param prefixLength Number of leading bits that make up the prefix
+     * @return Value, or null if the prefix is not in the trie
+     */
+    public V get(byte[] address, int prefixLength) {
+        Node<V> node = root;
+        while (null != node && node.length <= prefixLength && matches(node, address)) {
+            if (node.length == prefixLength) {
+                return node.value;
+            }
+            node = node.getChild(bitAt(address, node.length));
+        }
+        return null;
+    }
+
+    /**
+     * Finds the value for the longest prefix that contains an address.
+     * @param address Address bytes
+     * @return Value of the most specific matching prefix, or null if no prefix matches
+     */
+    public V findLongestMatch(byte[] address) {
+        int bits = address.length * 8;
+        V best = null;
+        Node<V> node = root;
+        while (null != node && node.length <= bits && matches(node, address)) {
+            if (null != node.value) {
+                best = node.value;
+            }
+            if (node.length == bits) {
+                break;
+            }
+            node = node.getChild(bitAt(address, node.length));
+        }
+        return best;
+    }
+
+    /**
+     * Get the number of prefixes in the trie.
+     * @return Prefix count
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Removes every prefix.
+     */
+    public synchronized void clear() {
+        root = null;
+        size = 0;
+    }
+
+    private static <V> Node<V> insert(Node<V> node, byte[] key, int length, V value) {
+        if (null == node) {
+            return new Node<>(key, length, value, null, null);
+        }
+        int common = commonLength(node.key, key, Math.min(node.length, length));
+        if (common == node.length && common == length) {
+            return new Node<>(node.key, node.length, value, node.zero, node.one);
+        }
+        if (common == node.length) {
+            // The node's prefix contains the new one, carry on down
+            int bit = bitAt(key, common);
+            return node.withChild(bit, insert(node.getChild(bit), key, length, value));
+        }
+        if (common == length) {
+            // The new prefix contains the node's
+            return 0 == bitAt(node.key, common) ? new Node<>(key, length, value, node, null) :
+                    new Node<>(key, length, value, null, node);
+        }
+        // The prefixes diverge part way through the node's, so split it
+        Node<V> leaf = new Node<>(key, length, value, null, null);
+        byte[] branchKey = mask(key, common);
+        return 0 == bitAt(key, common) ? new Node<>(branchKey, common, null, leaf, node) :
+                new Node<>(branchKey, common, null, node, leaf);
+    }
+
+    private static <V> Node<V> delete(Node<V> node, byte[] key, int length) {
+        if (node.length == length) {
+            return compact(new Node<>(node.key, node.length, null, node.zero, node.one));
+        }
+        int bit = bitAt(key, node.length);
+        return compact(node.withChild(bit, delete(node.getChild(bit), key, length)));
+    }
+
+    private static <V> Node<V> compact(Node<V> node) {
+        // A node without a value is only needed where the trie branches
+        if (null != node.value || (null != node.zero && null != node.one)) {
+            return node;
+        }
+        return null == node.zero ? node.one : node.zero;
+    }
+
+    private static boolean matches(Node<?> node, byte[] address) {
+        int length = node.length;
+        if (length > address.length * 8) {
+            return false;
+        }
+        int bytes = length >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            if (node.key[i] != address[i]) {
+                return false;
+            }
+        }
+        int bits = length & 7;
+        if (0 == bits) {
+            return true;
+        }
+        int mask = (0xff00 >>> bits) & 0xff;
+        return (node.key[bytes] & mask) == (address[bytes] & mask);
+    }
+
+    private static int commonLength(byte[] a, byte[] b, int limit) {
+        int length = 0;
+        for (int i = 0; length < limit; i++) {
+            int difference = (a[i] ^ b[i]) & 0xff;
+            if (0 != difference) {
+                return Math.min(limit, length + Integer.numberOfLeadingZeros(difference) - 24);
+            }
+            length += 8;
+        }
+        return limit;
+    }
+
+    private static int bitAt(byte[] address, int index) {
+        return (address[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    private static byte[] mask(byte[] address, int prefixLength) {
+        if (prefixLength < 0 || prefixLength > address.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length " + prefixLength + " for " + address.length +
+                    " byte address");
+        }
+        byte[] key = new byte[address.length];
+        int bytes = prefixLength >>> 3;
+        System.arraycopy(address, 0, key, 0, bytes);
+        int bits = prefixLength & 7;
+        if (0 != bits) {
+            key[bytes] = (byte) (address[bytes] & (0xff00 >>> bits) & 0xff);
+        }
+        return key;
+    }
+
+    private static final class Node<V> {
+
+        private final byte[] key;
+        private final int length;
+        private final V value;
+        private final Node<V> zero;
+        private final Node<V> one;
+
+        public Node(byte[] key, int length, V value, Node<V> zero, Node<V> one) {
+            this.key = key;
+            this.length = length;
+            this.value = value;
+            this.zero = zero;
+            this.one = one;
+        }
+
+        public Node<V> getChild(int bit) {
+            return 0 == bit ? zero : one;
+        }
+
+        public Node<V> withChild(int bit, Node<V> child) {
+            return 0 == bit ? new Node<>(key, length, value, child, one) : new Node<>(key, length, value, zero, child);
+        }
+
+    }
+
+}
@@ -0,0 +1,345 @@
+package org.code_revue.dns.util;
+
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reads resource records from a zone file in the master file format described in RFC 1035, section 5. The
+ * <code>$ORIGIN</code> and <code>$TTL</code> directives, relative names, omitted owners, TTLs and classes, comments and
+ * parenthesized multi-line records are all supported. <code>$INCLUDE</code> is not.
+ * <p>
+ * Records are returned one at a time by {@link #read()}, so arbitrarily large zones can be streamed. Only A, NS,
+ * CNAME, SOA, PTR, MX and TXT records can be encoded, records of other types are skipped. Names are returned in lower case
+ * without the trailing dot, so the root zone is the empty string.
+ * </p>
+ *
+ * @author Mike Fanning
+ * @see <a href="https://tools.ietf.org/html/rfc1035#section-5">https://tools.ietf.org/html/rfc1035#section-5</a>
+ */
+public class ZoneFileReader implements Closeable {
+
+    private static final Set<DnsRecordType> ENCODED_TYPES = EnumSet.of(DnsRecordType.A, DnsRecordType.NS,
+            DnsRecordType.CNAME, DnsRecordType.SOA, DnsRecordType.PTR, DnsRecordType.MX, DnsRecordType.TXT);
+
+    private final Logger logger = LoggerFactory.getLogger(ZoneFileReader.class);
+
+    private final BufferedReader reader;
+
+    private String origin = "";
+    private int defaultTtl = 86400;
+    private String previousOwner = null;
+    private int previousTtl = -1;
+    private boolean ttlDirective = false;
+    private int lineNumber = 0;
+    private long skippedCount = 0;
+
+    /**
+     * Creates a new zone file reader.
+     * @param reader Source of zone file text
+     */
+    public ZoneFileReader(Reader reader) {
+        this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+    }
+
+    /**
+     * Reads the next supported record from the zone file.
+     * @return Record, or null if the end of the file has been reached
+     * @throws java.io.IOException If the file cannot be read or is malformed
+     */
+    public DnsRecord read() throws IOException {
+        List<String> tokens = new ArrayList<>();
+        boolean[] ownerPresent = new boolean[1];
+        while (readEntry(tokens, ownerPresent)) {
+
+            if (tokens.get(0).startsWith("$")) {
+                processDirective(tokens);
+                continue;
+            }
+
+            DnsRecord record = parseRecord(tokens, ownerPresent[0]);
+            if (null != record) {
+                return record;
+            }
+            skippedCount++;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the tokens for the next entry, joining lines inside parentheses.
+     * @return False if the end of the file has been reached
+     */
+    private boolean readEntry(List<String> tokens, boolean[] ownerPresent) throws IOException {
+        tokens.clear();
+        int depth = 0;
+        String line;
+        while (null != (line = reader.readLine())) {
+            lineNumber++;
+            if (0 == depth) {
+                ownerPresent[0] = !line.isEmpty() && !Character.isWhitespace(line.charAt(0));
+            }
+            depth = tokenize(line, tokens, depth);
+            if (0 == depth && !tokens.isEmpty()) {
+                return true;
+            }
+        }
+        if (0 != depth) {
+            throw new IOException("Unbalanced parentheses at end of zone file");
+        }
+        return false;
+    }
+
+    private int tokenize(String line, List<String> tokens, int depth) throws IOException {
+        int i = 0;
+        int length = line.length();
+        while (i < length) {
+            char c = line.charAt(i);
+            if (';' == c) {
+                break;
+            } else if (Character.isWhitespace(c)) {
+                i++;
+            } else if ('(' == c) {
+                depth++;
+                i++;
+            } else if (')' == c) {
+                if (--depth < 0) {
+                    throw new IOException("Unbalanced parentheses on line " + lineNumber);
+                }
+                i++;
+            } else if ('"' == c) {
+                int end = line.indexOf('"', i + 1);
+                if (end < 0) {
+                    throw new IOException("Unterminated string on line " + lineNumber);
+                }
+                // Keep the opening quote so quoted strings can be told apart from other tokens
+                tokens.add(line.substring(i, end));
+                i = end + 1;
+            } else {
+                int start = i;
+                while (i < length && !Character.isWhitespace(line.charAt(i)) && ';' != line.charAt(i) &&
+                        '(' != line.charAt(i) && ')' != line.charAt(i)) {
+                    i++;
+                }
+                tokens.add(line.substring(start, i));
+            }
+        }
+        return depth;
+    }
+
+    private void processDirective(List<String> tokens) throws IOException {
+        String directive = tokens.get(0).toUpperCase();
+        if (tokens.size() < 2) {
+            throw new IOException("Missing argument for " + directive + " on line " + lineNumber);
+        }
+        if ("$ORIGIN".equals(directive)) {
+            origin = toAbsolute(tokens.get(1));
+        } else if ("$TTL".equals(directive)) {
+            defaultTtl = parseTtl(tokens.get(1));
+            ttlDirective = true;
+        } else {
+            throw new IOException("Unsupported directive " + directive + " on line " + lineNumber);
+        }
+    }
+
+    private DnsRecord parseRecord(List<String> tokens, boolean ownerPresent) throws IOException {
+        int index = 0;
+        String owner;
+        if (ownerPresent) {
+            owner = toAbsolute(tokens.get(index++));
+        } else if (null != previousOwner) {
+            owner = previousOwner;
+        } else {
+            throw new IOException("No owner for record on line " + lineNumber);
+        }
+        previousOwner = owner;
+
+        int ttl = -1;
+        DnsRecordType type = null;
+        String typeName = null;
+        while (index < tokens.size() && null == typeName) {
+            String token = tokens.get(index++);
+            if (Character.isDigit(token.charAt(0))) {
+                ttl = parseTtl(token);
+            } else if ("IN".equalsIgnoreCase(token)) {
+                continue;
+            } else if ("CH".equalsIgnoreCase(token) || "HS".equalsIgnoreCase(token) ||
+                    "CS".equalsIgnoreCase(token)) {
+                throw new IOException("Unsupported class " + token + " on line " + lineNumber);
+            } else {
+                typeName = token.toUpperCase();
+                type = DnsRecordType.forName(typeName);
+            }
+        }
+
+        if (null == typeName) {
+            throw new IOException("Missing record type on line " + lineNumber);
+        }
+        if (ttl < 0) {
+            // RFC 1035 uses the last stated TTL, RFC 2308 says $TTL takes over once it is present
+            ttl = ttlDirective || previousTtl < 0 ? defaultTtl : previousTtl;
+        }
+        previousTtl = ttl;
+
+        if (null == type || !ENCODED_TYPES.contains(type)) {
+            logger.trace("Skipping unsupported record type {} on line {}", typeName, lineNumber);
+            return null;
+        }
+
+        List<String> data = tokens.subList(index, tokens.size());
+        return new DnsRecord(owner, type, DnsRecordClass.IN, ttl, encodeResourceData(type, data));
+    }
+
+    private byte[] encodeResourceData(DnsRecordType type, List<String> data) throws IOException {
+        try {
+            switch (type) {
+                case A:
+                    return parseAddress(data.get(0));
+                case NS:
+                case CNAME:
+                case PTR:
+                    return ByteBufferUtils.encodeDomainName(toAbsolute(data.get(0)));
+                case MX: {
+                    byte[] exchange = ByteBufferUtils.encodeDomainName(toAbsolute(data.get(1)));
+                    ByteBuffer buffer = ByteBuffer.allocate(2 + exchange.length);
+                    buffer.putShort((short) Integer.parseInt(data.get(0))).put(exchange);
+                    return buffer.array();
+                }
+                case SOA: {
+                    byte[] primary = ByteBufferUtils.encodeDomainName(toAbsolute(data.get(0)));
+                    byte[] mailbox = ByteBufferUtils.encodeDomainName(toAbsolute(data.get(1)));
+                    ByteBuffer buffer = ByteBuffer.allocate(primary.length + mailbox.length + 20);
+                    buffer.put(primary).put(mailbox);
+                    // Serial is a full 32 bit unsigned number, the timers are TTLs
+                    buffer.putInt((int) Long.parseLong(data.get(2)));
+                    for (int i = 3; i < 7; i++) {
+                        buffer.putInt(parseTtl(data.get(i)));
+                    }
+                    return buffer.array();
+                }
+                case TXT: {
+                    ByteBuffer buffer = ByteBuffer.allocate(data.size() * 256);
+                    for (String text: data) {
+                        byte[] bytes = (text.startsWith("\"") ? text.substring(1) : text)
+                                .getBytes(StandardCharsets.US_ASCII);
+                        if (bytes.length > 255) {
+                            throw new IOException("Text string too long on line " + lineNumber);
+                        }
+                        buffer.put((byte) bytes.length).put(bytes);
+                    }
+                    byte[] result = new byte[buffer.position()];
+                    buffer.flip();
+                    buffer.get(result);
+                    return result;
+                }
+                default:
+                    throw new IOException("Cannot encode " + type + " record on line " + lineNumber);
+            }
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IOException("Malformed " + type + " record on line " + lineNumber, e);
+        }
+    }
+
+    private byte[] parseAddress(String address) throws IOException {
+        String[] octets = address.split("\\.");
+        if (4 != octets.length) {
+            throw new IOException("Invalid IPv4 address " + address + " on line " + lineNumber);
+        }
+        byte[] result = new byte[4];
+        for (int i = 0; i < 4; i++) {
+            int octet = Integer.parseInt(octets[i]);
+            if (octet < 0 || octet > 255) {
+                throw new IOException("Invalid IPv4 address " + address + " on line " + lineNumber);
+            }
+            result[i] = (byte) octet;
+        }
+        return result;
+    }
+
+    private String toAbsolute(String name) {
+        if ("@".equals(name)) {
+            return origin;
+        }
+        name = name.toLowerCase();
+        if (name.endsWith(".")) {
+            return name.substring(0, name.length() - 1);
+        }
+        return origin.isEmpty() ? name : name + "." + origin;
+    }
+
+    private int parseTtl(String ttl) throws IOException {
+        long total = 0;
+        long value = 0;
+        boolean digits = false;
+        for (int i = 0; i < ttl.length(); i++) {
+            char c = Character.toLowerCase(ttl.charAt(i));
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits = true;
+            } else if (digits) {
+                switch (c) {
+                    case 's': break;
+                    case 'm': value *= 60; break;
+                    case 'h': value *= 3600; break;
+                    case 'd': value *= 86400; break;
+                    case 'w': value *= 604800; break;
+                    default: throw new IOException("Invalid TTL " + ttl + " on line " + lineNumber);
+                }
+                total += value;
+                value = 0;
+                digits = false;
+            } else {
+                throw new IOException("Invalid TTL " + ttl + " on line " + lineNumber);
+            }
+        }
+        total += value;
+        if (total > Integer.MAX_VALUE) {
+            throw new IOException("TTL out of range " + ttl + " on line " + lineNumber);
+        }
+        return (int) total;
+    }
+
+    /**
+     * Get the origin currently used to complete relative names.
+     * @return Origin, without trailing dot
+     */
+    public String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Set the origin used to complete relative names until the next <code>$ORIGIN</code> directive.
+     * @param origin Origin domain name
+     */
+    public void setOrigin(String origin) {
+        this.origin = origin.endsWith(".") ? origin.substring(0, origin.length() - 1).toLowerCase() :
+                origin.toLowerCase();
+    }
+
+    /**
+     * Get the number of records skipped so far because their type is not supported.
+     * @return Number of skipped records
+     */
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+}
@@ -34,12 +34,12 @@ public class TestDnsApp {
         SingleHostResolver resolver = new SingleHostResolver();
         resolver.addException("ytmnd.com");
 
-        ResolverRule rule1 = new AddressRegexResolverRule(".*192\\.168.*", resolver);
-        ResolverRule rule2 = new AddressRegexResolverRule(".*127\\.0\\.0\\.1.*", resolver);
+        AddressPrefixResolverRule clients = new AddressPrefixResolverRule();
+        clients.addPrefix("192.168.0.0/16", resolver);
+        clients.addPrefix("127.0.0.1", resolver);
 
         ResolverChain chain = new ResolverChain();
-        chain.addRule(rule1);
-        chain.addRule(rule2);
+        chain.addRule(clients);
 
         StandardEngine engine = new StandardEngine(new byte[] { (byte) 208, (byte) 67, (byte) 222, (byte) 222});
         engine.setResolverChain(chain);
@@ -85,6 +85,10 @@ public class TestDnsApp {
                         AddressRegexResolverRule castRule = (AddressRegexResolverRule) rule;
                         System.out.println(index + ":\t" + rule.getClass().getSimpleName() + "\tRegex:\t" +
                                 castRule.getRegex() + "\t->\t" + rule.getResolver().getClass().getSimpleName());
+                    } else if (AddressPrefixResolverRule.class == rule.getClass()) {
+                        AddressPrefixResolverRule castRule = (AddressPrefixResolverRule) rule;
+                        System.out.println(index + ":\t" + rule.getClass().getSimpleName() + "\tPrefixes:\t" +
+                                castRule.getPrefixCount());
                     } else {
                         System.out.println(index + ":\t" + rule.getClass().getSimpleName() + "\t->\t" +
                                 rule.getResolver().getClass().getSimpleName());
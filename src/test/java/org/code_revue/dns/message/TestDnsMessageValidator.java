@@ -0,0 +1,89 @@
+package org.code_revue.dns.message;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestDnsMessageValidator {
+
+    private final DnsMessageValidator validator = new DnsMessageValidator();
+
+    @Test
+    public void acceptQuery() {
+        Assert.assertEquals(DnsMessageValidator.Result.VALID, validator.validate(createQuery()));
+    }
+
+    @Test
+    public void dropShortMessagesAndResponses() {
+        Assert.assertEquals(DnsMessageValidator.Result.DROP, validator.validate(ByteBuffer.allocate(11)));
+        ByteBuffer response = new DnsResponseBuilder(createQuery()).build();
+        Assert.assertEquals(DnsMessageValidator.Result.DROP, validator.validate(response));
+    }
+
+    @Test
+    public void rejectUnsupportedOpcode() {
+        ByteBuffer query = createQuery();
+        new DnsMessageOverlay(query).setOperationCode(DnsOpCode.UPDATE);
+        Assert.assertEquals(DnsMessageValidator.Result.NOT_IMPLEMENTED, validator.validate(query));
+    }
+
+    @Test
+    public void rejectBadCounts() {
+        ByteBuffer query = createQuery();
+        DnsMessageOverlay overlay = new DnsMessageOverlay(query);
+        overlay.setAdditionalRecordCount((short) 1);
+        Assert.assertEquals(DnsMessageValidator.Result.FORMAT_ERROR, validator.validate(query));
+
+        overlay.setAdditionalRecordCount((short) 0);
+        overlay.setQuestionCount((short) 0);
+        Assert.assertEquals(DnsMessageValidator.Result.FORMAT_ERROR, validator.validate(query));
+
+        overlay.setQuestionCount((short) 2);
+        Assert.assertEquals(DnsMessageValidator.Result.FORMAT_ERROR, validator.validate(query));
+    }
+
+    @Test
+    public void rejectBadLabels() {
+        ByteBuffer query = createQuery();
+        // Extended label type
+        query.put(DnsMessageOverlay.HEADER_LENGTH, (byte) 0x43);
+        Assert.assertEquals(DnsMessageValidator.Result.FORMAT_ERROR, validator.validate(query));
+
+        // Label running past the end of the message
+        query = createQuery();
+        query.put(DnsMessageOverlay.HEADER_LENGTH, (byte) 63);
+        Assert.assertEquals(DnsMessageValidator.Result.FORMAT_ERROR, validator.validate(query));
+
+        // Pointer to itself
+        query = createQuery();
+        query.putShort(DnsMessageOverlay.HEADER_LENGTH, (short) (0xc000 | DnsMessageOverlay.HEADER_LENGTH));
+        Assert.assertEquals(DnsMessageValidator.Result.FORMAT_ERROR, validator.validate(query));
+    }
+
+    @Test
+    public void rejectRecordPastEnd() {
+        ByteBuffer query = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+        query.put(createQuery());
+        // Root owner, OPT, 4096 byte payload, no extended flags, four bytes of option data
+        query.put((byte) 0).putShort((short) 41).putShort((short) 4096).putInt(0).putShort((short) 4).putInt(0);
+        int end = query.position();
+        new DnsMessageOverlay(query).setAdditionalRecordCount((short) 1);
+
+        query.limit(end);
+        Assert.assertEquals(DnsMessageValidator.Result.VALID, validator.validate(query));
+        query.limit(end - 1);
+        Assert.assertEquals(DnsMessageValidator.Result.FORMAT_ERROR, validator.validate(query));
+    }
+
+    private static ByteBuffer createQuery() {
+        return new DnsQueryBuilder()
+                .setRecursionDesired(true)
+                .addQuestion(new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN))
+                .build();
+    }
+
+}
@@ -7,6 +7,7 @@ import org.code_revue.dns.server.DnsServer;
 import org.code_revue.dns.server.connector.DatagramConnector;
 import org.code_revue.dns.server.engine.DnsEngine;
 import org.code_revue.dns.server.engine.SingleTubeEngine;
+import org.code_revue.dns.util.ByteBufferUtils;
 
 import java.io.IOException;
 import java.net.*;
@@ -41,6 +42,9 @@ public class TestDnsMessages {
         Assert.assertTrue(overlay.isResponse());
 
         for (DnsOpCode code: DnsOpCode.values()) {
+            if (DnsOpCode.UNKNOWN == code) {
+                continue;
+            }
             overlay.setOperationCode(code);
             Assert.assertEquals(code, overlay.getOperationCode());
         }
@@ -66,6 +70,9 @@ public class TestDnsMessages {
         Assert.assertFalse(overlay.isRecursionAvailable());
 
         for (DnsResponseCode code: DnsResponseCode.values()) {
+            if (DnsResponseCode.UNKNOWN == code) {
+                continue;
+            }
             overlay.setResponseCode(code);
             Assert.assertEquals(code, overlay.getResponseCode());
         }
@@ -91,6 +98,316 @@ public class TestDnsMessages {
         Assert.assertEquals(0, overlay.getAdditionalRecordCount());
     }
 
+    @Test
+    public void codeLookups() {
+        for (DnsRecordType type: DnsRecordType.values()) {
+            if (DnsRecordType.UNKNOWN != type) {
+                Assert.assertSame(type, DnsRecordType.getRecordType(type.getNumericCode()));
+                Assert.assertSame(type, DnsRecordType.forName(type.name()));
+            }
+        }
+        Assert.assertSame(DnsRecordType.UNKNOWN, DnsRecordType.getRecordType(0xff00));
+        Assert.assertSame(DnsRecordType.UNKNOWN, DnsRecordType.getRecordType(3));
+        Assert.assertEquals("TYPE65280", DnsRecordType.toString(0xff00));
+        Assert.assertNull(DnsRecordType.forName("UNKNOWN"));
+
+        Assert.assertSame(DnsRecordClass.CH, DnsRecordClass.getRecordClass(3));
+        Assert.assertSame(DnsRecordClass.UNKNOWN, DnsRecordClass.getRecordClass(2));
+        Assert.assertSame(DnsOpCode.UNKNOWN, DnsOpCode.getOpCode(15));
+        Assert.assertSame(DnsResponseCode.UNKNOWN, DnsResponseCode.getResponseType(15));
+    }
+
+    @Test
+    public void passThroughUnknownTypes() {
+        ByteBuffer query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("www.example.com", 0xff00, 1))
+                .addQuestion(new DnsQuestion("www.example.com", DnsRecordType.AAAA, DnsRecordClass.IN))
+                .build();
+        DnsQuestion[] questions = new DnsMessageOverlay(query).getQuestions();
+        Assert.assertSame(DnsRecordType.UNKNOWN, questions[0].getQuestionType());
+        Assert.assertEquals(0xff00, questions[0].getQuestionTypeCode());
+        Assert.assertSame(DnsRecordType.AAAA, questions[1].getQuestionType());
+        Assert.assertFalse(questions[0].equals(new DnsQuestion("www.example.com", 0xff01, 1)));
+
+        try {
+            new DnsRecord("www.example.com", DnsRecordType.UNKNOWN, DnsRecordClass.IN, 300, new byte[0]);
+            Assert.fail("The numeric code of an unknown type is not known");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        byte[] opaque = new byte[] { (byte) 0xc0, 12, 1, 2 };
+        ByteBuffer response = new DnsResponseBuilder(query)
+                .addAnswer(new DnsRecord("www.example.com", 0xff00, 1, 300, opaque))
+                .build();
+        DnsRecord answer = new DnsMessageOverlay(response).getAnswers()[0];
+        Assert.assertSame(DnsRecordType.UNKNOWN, answer.getRecordType());
+        Assert.assertEquals(0xff00, answer.getRecordTypeCode());
+        Assert.assertEquals(1, answer.getRecordClassCode());
+        Assert.assertArrayEquals(opaque, answer.getResourceData());
+    }
+
+    @Test
+    public void parseReferralSections() {
+        ByteBuffer message = createReferral();
+        DnsMessageOverlay overlay = new DnsMessageOverlay(message);
+
+        Assert.assertEquals(0, overlay.getAnswers().length);
+
+        DnsRecord[] authorities = overlay.getNameServers();
+        Assert.assertEquals(1, authorities.length);
+        Assert.assertEquals("example.com", authorities[0].getRecordName());
+        Assert.assertEquals(DnsRecordType.NS, authorities[0].getRecordType());
+        Assert.assertEquals(3600, authorities[0].getTtl());
+        // Compression pointer in the rdata must have been expanded
+        Assert.assertArrayEquals(ByteBufferUtils.encodeDomainName("ns1.example.com"),
+                authorities[0].getResourceData());
+
+        DnsRecord[] additionalRecords = overlay.getAdditionalRecords();
+        Assert.assertEquals(1, additionalRecords.length);
+        Assert.assertEquals("ns1.example.com", additionalRecords[0].getRecordName());
+        Assert.assertEquals(DnsRecordType.A, additionalRecords[0].getRecordType());
+        Assert.assertArrayEquals(new byte[] { 10, 0, 0, 1 }, additionalRecords[0].getResourceData());
+    }
+
+    @Test
+    public void sectionIndex() {
+        ByteBuffer message = createReferral();
+        DnsMessageOverlay overlay = new DnsMessageOverlay(message);
+
+        Assert.assertEquals(21, overlay.getQuestionSectionLength());
+        Assert.assertEquals(33, overlay.getAnswerSectionOffset());
+        Assert.assertEquals(33, overlay.getRecordOffset(0));
+        Assert.assertEquals(51, overlay.getRecordOffset(1));
+        Assert.assertEquals(message.limit(), overlay.getMessageLength());
+
+        // Changing a count throws the index away
+        overlay.setAdditionalRecordCount((short) 0);
+        Assert.assertEquals(51, overlay.getMessageLength());
+        Assert.assertEquals(0, overlay.getAdditionalRecords().length);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void truncatedMessage() {
+        ByteBuffer message = createReferral();
+        message.limit(message.limit() - 2);
+        new DnsMessageOverlay(message).getAdditionalRecords();
+    }
+
+    @Test
+    public void compressSuffixes() {
+        ByteBuffer query = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+        query.put(new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN))
+                .build());
+        query.flip();
+
+        byte[] soa = ByteBuffer.allocate(17 + 24 + 20)
+                .put(ByteBufferUtils.encodeDomainName("ns1.example.com"))
+                .put(ByteBufferUtils.encodeDomainName("hostmaster.example.com"))
+                .putInt(2015010101).putInt(3600).putInt(600).putInt(86400).putInt(300)
+                .array();
+        ByteBuffer response = new DnsResponseBuilder(query)
+                .addAnswer("www.example.com", DnsRecordType.CNAME, DnsRecordClass.IN, 300,
+                        ByteBufferUtils.encodeDomainName("web.example.com"))
+                .addAnswer("web.example.com", DnsRecordType.A, DnsRecordClass.IN, 300, new byte[] { 10, 0, 0, 1 })
+                .addAuthorityRecord(new DnsRecord("example.com", DnsRecordType.SOA, DnsRecordClass.IN, 300, soa))
+                .build();
+
+        // Question 21, CNAME 2 + 10 + 6, A 2 + 10 + 4, SOA 2 + 10 + 6 + 13 + 20
+        Assert.assertEquals(12 + 21 + 18 + 16 + 51, response.limit());
+
+        DnsMessageOverlay overlay = new DnsMessageOverlay(response);
+        DnsRecord[] answers = overlay.getAnswers();
+        Assert.assertEquals("www.example.com", answers[0].getRecordName());
+        Assert.assertArrayEquals(ByteBufferUtils.encodeDomainName("web.example.com"), answers[0].getResourceData());
+        Assert.assertEquals("web.example.com", answers[1].getRecordName());
+        Assert.assertArrayEquals(new byte[] { 10, 0, 0, 1 }, answers[1].getResourceData());
+        DnsRecord[] authorities = overlay.getNameServers();
+        Assert.assertEquals("example.com", authorities[0].getRecordName());
+        Assert.assertArrayEquals(soa, authorities[0].getResourceData());
+    }
+
+    @Test
+    public void truncateWholeRRsets() {
+        ByteBuffer query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN))
+                .build();
+        int queryLength = query.limit();
+
+        // 20 bytes of question and header, then 16 bytes per address record
+        DnsResponseBuilder builder = new DnsResponseBuilder(query);
+        for (int i = 0; i < 20; i++) {
+            builder.addAnswer("www.example.com", DnsRecordType.A, DnsRecordClass.IN, 300, new byte[] { 10, 0, 0, 1 });
+        }
+        for (int i = 0; i < 10; i++) {
+            builder.addAnswer("web.example.com", DnsRecordType.A, DnsRecordClass.IN, 300, new byte[] { 10, 0, 0, 2 });
+        }
+        builder.addAuthorityRecord(new DnsRecord("example.com", DnsRecordType.NS, DnsRecordClass.IN, 300,
+                ByteBufferUtils.encodeDomainName("ns1.example.com")));
+        ByteBuffer response = builder.build();
+
+        Assert.assertEquals(queryLength, query.limit());
+        Assert.assertFalse(new DnsMessageOverlay(query).isResponse());
+
+        DnsMessageOverlay overlay = new DnsMessageOverlay(response);
+        Assert.assertTrue(overlay.isTruncated());
+        Assert.assertEquals(1, overlay.getQuestionCount());
+        Assert.assertEquals(20, overlay.getAnswerCount());
+        Assert.assertEquals(0, overlay.getNameServerCount());
+        Assert.assertEquals(queryLength + 20 * 16, response.limit());
+        Assert.assertEquals(20, overlay.getAnswers().length);
+    }
+
+    @Test
+    public void dropAdditionalWithoutTruncating() {
+        ByteBuffer query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("example.com", DnsRecordType.NS, DnsRecordClass.IN))
+                .build();
+
+        DnsResponseBuilder builder = DnsResponseBuilder.forQuery(query).addAnswer(new DnsRecord("example.com",
+                DnsRecordType.NS, DnsRecordClass.IN, 300, ByteBufferUtils.encodeDomainName("ns1.example.com")));
+        for (int i = 0; i < 40; i++) {
+            builder.addAdditionalRecord(new DnsRecord("ns1.example.com", DnsRecordType.A, DnsRecordClass.IN, 300,
+                    new byte[] { 10, 0, 0, (byte) i }));
+        }
+        ByteBuffer response = builder.build();
+
+        DnsMessageOverlay overlay = new DnsMessageOverlay(response);
+        Assert.assertFalse(overlay.isTruncated());
+        Assert.assertEquals(1, overlay.getAnswerCount());
+        Assert.assertEquals(0, overlay.getAdditionalRecordCount());
+        Assert.assertEquals(overlay.getMessageLength(), response.limit());
+
+        DnsResponseBuilder.release(response);
+        Assert.assertSame(builder, DnsResponseBuilder.forQuery(query));
+    }
+
+    @Test
+    public void dropOptionalAuthorityWithoutTruncating() {
+        ByteBuffer query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("example.com", DnsRecordType.A, DnsRecordClass.IN))
+                .build();
+
+        DnsResponseBuilder builder = DnsResponseBuilder.forQuery(query).addAnswer(new DnsRecord("example.com",
+                DnsRecordType.A, DnsRecordClass.IN, 300, new byte[] { 10, 0, 0, 1 }));
+        for (int i = 0; i < 40; i++) {
+            builder.addAuthorityRecord(new DnsRecord("example.com", DnsRecordType.NS, DnsRecordClass.IN, 300,
+                    ByteBufferUtils.encodeDomainName("name-server-number-" + i + ".example.net")));
+        }
+        builder.addAdditionalRecord(new DnsRecord("ns.example.net", DnsRecordType.A, DnsRecordClass.IN, 300,
+                new byte[] { 10, 0, 0, 53 }));
+        DnsMessageOverlay overlay = new DnsMessageOverlay(builder.setAuthorityOptional(true).build());
+        Assert.assertFalse(overlay.isTruncated());
+        Assert.assertEquals(1, overlay.getAnswerCount());
+        Assert.assertEquals(0, overlay.getNameServerCount());
+        Assert.assertEquals(0, overlay.getAdditionalRecordCount());
+
+        // The option only lasts for one response
+        builder = DnsResponseBuilder.forQuery(query);
+        for (int i = 0; i < 40; i++) {
+            builder.addAuthorityRecord(new DnsRecord("example.com", DnsRecordType.NS, DnsRecordClass.IN, 300,
+                    ByteBufferUtils.encodeDomainName("name-server-number-" + i + ".example.net")));
+        }
+        Assert.assertTrue(new DnsMessageOverlay(builder.build()).isTruncated());
+    }
+
+    @Test
+    public void releaseOnlyBuilderBuffers() {
+        ByteBuffer query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("example.com", DnsRecordType.A, DnsRecordClass.IN))
+                .build();
+        ByteBuffer response = new DnsResponseBuilder(query).build();
+        Assert.assertTrue(DnsResponseBuilder.release(response));
+        Assert.assertFalse("Buffer should only be released once", DnsResponseBuilder.release(response));
+
+        ByteBuffer foreign = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+        Assert.assertFalse(DnsResponseBuilder.release(foreign));
+        Assert.assertFalse(DnsResponseBuilder.release(ByteBuffer.allocateDirect(DnsMessageOverlay.MAX_UDP_DNS_LENGTH)));
+    }
+
+    @Test
+    public void applyResponseTemplate() {
+        ResponseTemplate template = new ResponseTemplate()
+                .addAnswer(DnsRecordType.A, DnsRecordType.A, 60, new byte[] { 10, 0, 0, 1 })
+                .addAnswer(DnsRecordType.A, DnsRecordType.A, 60, new byte[] { 10, 0, 0, 2 })
+                .addAnswer(DnsRecordType.CNAME, DnsRecordType.CNAME, 60, ResponseTemplate.relativeName("a"));
+
+        ByteBuffer query = new DnsQueryBuilder()
+                .setRecursionDesired(true)
+                .addQuestion(new DnsQuestion("WWW.example.com", DnsRecordType.A, DnsRecordClass.IN))
+                .build();
+        DnsMessageOverlay overlay = new DnsMessageOverlay(template.apply(query));
+        Assert.assertTrue(overlay.isResponse());
+        Assert.assertTrue(overlay.isAuthoritativeAnswer());
+        Assert.assertTrue(overlay.isRecursionDesired());
+        Assert.assertEquals(DnsResponseCode.NO_ERROR, overlay.getResponseCode());
+        DnsRecord[] answers = overlay.getAnswers();
+        Assert.assertEquals(2, answers.length);
+        Assert.assertEquals("WWW.example.com", answers[1].getRecordName());
+        Assert.assertArrayEquals(new byte[] { 10, 0, 0, 2 }, answers[1].getResourceData());
+        Assert.assertFalse(new DnsMessageOverlay(query).isResponse());
+
+        query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("www.example.com", DnsRecordType.CNAME, DnsRecordClass.IN))
+                .build();
+        answers = new DnsMessageOverlay(template.apply(query)).getAnswers();
+        Assert.assertArrayEquals(ByteBufferUtils.encodeDomainName("a.www.example.com"), answers[0].getResourceData());
+
+        query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("www.example.com", DnsRecordType.MX, DnsRecordClass.IN))
+                .build();
+        Assert.assertNull(template.apply(query));
+    }
+
+    @Test
+    public void compressRepeatedSuffix() {
+        ByteBuffer message = ByteBuffer.allocate(64);
+        NameCompressor compressor = new NameCompressor(message);
+        compressor.writeName("mail.Example.com");
+        Assert.assertEquals(18, message.position());
+        compressor.writeName("www.example.COM");
+        Assert.assertEquals(18 + 6, message.position());
+        compressor.writeName("example.com");
+        Assert.assertEquals(18 + 6 + 2, message.position());
+        Assert.assertEquals(4, compressor.getSuffixCount());
+
+        Assert.assertEquals("www.Example.com", ByteBufferUtils.readDomainName(message, 18));
+        Assert.assertEquals("Example.com", ByteBufferUtils.readDomainName(message, 24));
+    }
+
+    /**
+     * Creates a referral for www.example.com to ns1.example.com, using compression pointers in owner names, in the
+     * middle of a name and in rdata.
+     */
+    static ByteBuffer createReferral() {
+        ByteBuffer message = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+        DnsMessageOverlay overlay = new DnsMessageOverlay(message);
+        overlay.setResponse();
+        overlay.setQuestionCount((short) 1);
+        overlay.setNameServerCount((short) 1);
+        overlay.setAdditionalRecordCount((short) 1);
+
+        message.position(DnsMessageOverlay.HEADER_LENGTH);
+        ByteBufferUtils.writeDomainName("www.example.com", message);
+        message.putShort((short) DnsRecordType.A.getNumericCode()).putShort((short) 1);
+
+        // example.com starts at offset 16, after the "www" label
+        message.putShort((short) 0xc010);
+        message.putShort((short) DnsRecordType.NS.getNumericCode()).putShort((short) 1).putInt(3600);
+        message.putShort((short) 6);
+        int nsPosition = message.position();
+        message.put((byte) 3).put("ns1".getBytes()).putShort((short) 0xc010);
+
+        message.putShort((short) (0xc000 | nsPosition));
+        message.putShort((short) DnsRecordType.A.getNumericCode()).putShort((short) 1).putInt(3600);
+        message.putShort((short) 4).put(new byte[] { 10, 0, 0, 1 });
+
+        message.limit(message.position());
+        message.position(0);
+        return message.slice();
+    }
+
     /**
      * Runs a query against OpenDNS. It's a cute little test, but it introduces a build dependency that you have an
      * internet connection, which isn't always great when you're at some weird coffee shop with bad wifi.
@@ -0,0 +1,104 @@
+package org.code_revue.dns.message;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestDnsName {
+
+    @Test
+    public void valueOf() {
+        DnsName name = DnsName.valueOf("www.Example.com");
+        Assert.assertEquals(3, name.getLabelCount());
+        Assert.assertEquals(17, name.getLength());
+        Assert.assertEquals("www.Example.com", name.toString());
+        Assert.assertEquals(name, DnsName.valueOf("WWW.EXAMPLE.COM."));
+        Assert.assertEquals(name.hashCode(), DnsName.valueOf("www.example.com").hashCode());
+        Assert.assertFalse(name.equals(DnsName.valueOf("www.example.net")));
+
+        Assert.assertSame(DnsName.ROOT, DnsName.valueOf(""));
+        Assert.assertEquals(0, DnsName.ROOT.getLabelCount());
+        Assert.assertEquals("", DnsName.ROOT.toString());
+    }
+
+    @Test
+    public void rejectEmptyLabels() {
+        for (String name: new String[] { "a..", "a..b", ".a", "..", "a.b.." }) {
+            try {
+                DnsName.valueOf(name);
+                Assert.fail("Accepted " + name);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        Assert.assertEquals(1, DnsName.valueOf("a.").getLabelCount());
+    }
+
+    @Test
+    public void wrapCompressed() {
+        ByteBuffer message = ByteBuffer.allocate(64);
+        message.position(12);
+        message.put(new byte[] { 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0 });
+        int www = message.position();
+        message.put(new byte[] { 3, 'W', 'W', 'W', (byte) 0xc0, 12 });
+        int pointer = message.position();
+        message.put(new byte[] { (byte) 0xc0, (byte) www });
+
+        DnsName name = DnsName.wrap(message, www);
+        Assert.assertEquals(6, name.getWireLength());
+        Assert.assertEquals(3, name.getLabelCount());
+        Assert.assertEquals("WWW.example.com", name.toString());
+        Assert.assertEquals(DnsName.valueOf("www.example.com"), name);
+        Assert.assertEquals(DnsName.valueOf("www.example.com").hashCode(), name.hashCode());
+
+        DnsName alias = DnsName.wrap(message, pointer);
+        Assert.assertEquals(2, alias.getWireLength());
+        Assert.assertEquals(name, alias);
+
+        Assert.assertTrue(name.isSubdomainOf(DnsName.valueOf("EXAMPLE.com")));
+        Assert.assertTrue(name.isSubdomainOf(name));
+        Assert.assertTrue(name.isSubdomainOf(DnsName.ROOT));
+        Assert.assertFalse(name.isSubdomainOf(DnsName.valueOf("ample.com")));
+        Assert.assertFalse(DnsName.valueOf("com").isSubdomainOf(name));
+
+        Assert.assertEquals(DnsName.valueOf("example.com"), name.getParent());
+        Assert.assertEquals(DnsName.valueOf("com"), name.getSuffix(1));
+        Assert.assertEquals(DnsName.ROOT, name.getSuffix(0));
+        Assert.assertNull(DnsName.ROOT.getParent());
+
+        DnsName copy = name.copy();
+        message.put(www + 1, (byte) 'x');
+        Assert.assertEquals("WWW.example.com", copy.toString());
+        Assert.assertEquals(17, copy.getWireLength());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectPointerLoop() {
+        ByteBuffer message = ByteBuffer.allocate(32);
+        message.position(12);
+        message.put(new byte[] { 1, 'a', (byte) 0xc0, 12 });
+        DnsName.wrap(message, 12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectForwardPointer() {
+        ByteBuffer message = ByteBuffer.allocate(32);
+        message.position(12);
+        message.put(new byte[] { (byte) 0xc0, 16, 0, 0, 1, 'a', 0 });
+        DnsName.wrap(message, 12);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectLongName() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 26; i++) {
+            builder.append("abcdefghi.");
+        }
+        DnsName.valueOf(builder.toString());
+    }
+
+}
@@ -0,0 +1,105 @@
+package org.code_revue.dns.message;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestDnsNameTrie {
+
+    @Test
+    public void matchParentDomains() {
+        DnsNameTrie trie = new DnsNameTrie();
+        Assert.assertEquals(-1, trie.put(DnsName.valueOf("cnn.com"), 3));
+        Assert.assertEquals(-1, trie.put(DnsName.valueOf("edition.CNN.com"), 1));
+        // Sorts between the two names above, but must not hide the parent domain
+        Assert.assertEquals(-1, trie.put(DnsName.valueOf("b.cnn.com"), 5));
+        Assert.assertEquals(3, trie.size());
+
+        Assert.assertEquals(3, trie.findLowest(DnsName.valueOf("a.b.cnn.com")));
+        Assert.assertEquals(1, trie.findLowest(DnsName.valueOf("www.Edition.cnn.com")));
+        Assert.assertEquals(3, trie.findLowest(DnsName.valueOf("CNN.COM")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("acnn.com")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("com")));
+        Assert.assertEquals(-1, trie.get(DnsName.valueOf("www.cnn.com")));
+        Assert.assertEquals(5, trie.get(DnsName.valueOf("B.cnn.com")));
+
+        // Names from inside a message, with compression, are matched in place
+        ByteBuffer message = ByteBuffer.allocate(32);
+        message.position(12);
+        message.put(new byte[] { 3, 'c', 'N', 'n', 3, 'c', 'o', 'm', 0, 1, 'a', 1, 'b', (byte) 0xc0, 12 });
+        Assert.assertEquals(3, trie.findLowest(DnsName.wrap(message, 21)));
+
+        Assert.assertEquals(3, trie.remove(DnsName.valueOf("cnn.com")));
+        Assert.assertEquals(-1, trie.remove(DnsName.valueOf("cnn.com")));
+        Assert.assertEquals(5, trie.findLowest(DnsName.valueOf("a.b.cnn.com")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("www.cnn.com")));
+        Assert.assertEquals(2, trie.size());
+
+        trie.put(DnsName.ROOT, 9);
+        Assert.assertEquals(9, trie.findLowest(DnsName.valueOf("example.org")));
+    }
+
+    @Test
+    public void growAndList() {
+        DnsNameTrie trie = new DnsNameTrie();
+        Set<DnsName> expected = new HashSet<>();
+        for (int i = 0; i < 50000; i++) {
+            DnsName name = DnsName.valueOf("host" + i + ".zone" + (i % 97) + ".example");
+            trie.put(name, i);
+            if (0 == i % 5) {
+                trie.remove(name);
+            } else {
+                expected.add(name);
+            }
+        }
+        Assert.assertEquals(expected.size(), trie.size());
+        Assert.assertEquals(expected, new HashSet<>(trie.getNames()));
+        Assert.assertEquals(1234, trie.get(DnsName.valueOf("HOST1234.zone70.example")));
+        Assert.assertEquals(-1, trie.get(DnsName.valueOf("host1235.zone71.example")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("zone70.example")));
+
+        trie.clear();
+        Assert.assertEquals(0, trie.size());
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("host1234.zone70.example")));
+    }
+
+    @Test
+    public void filterLookups() {
+        DnsNameTrie trie = new DnsNameTrie();
+        trie.put(DnsName.valueOf("cnn.com"), 0);
+        trie.setFilterEnabled(true);
+        Assert.assertTrue(trie.isFilterEnabled());
+
+        // Names added after the filter is built, and while the trie grows, are still found
+        for (int i = 0; i < 20000; i++) {
+            trie.put(DnsName.valueOf("blocked" + i + ".example"), i);
+        }
+        Assert.assertEquals(0, trie.findLowest(DnsName.valueOf("www.CNN.com")));
+        for (int i = 0; i < 20000; i += 7) {
+            Assert.assertEquals(i, trie.findLowest(DnsName.valueOf("a.Blocked" + i + ".example")));
+        }
+
+        for (int i = 0; i < 10000; i++) {
+            Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("www.allowed" + i + ".org")));
+        }
+        long negatives = trie.getFilterRejectCount() + trie.getFilterFalsePositiveCount();
+        Assert.assertEquals(10000, negatives);
+        Assert.assertTrue("False positive rate " + trie.getFilterFalsePositiveRate(),
+                trie.getFilterFalsePositiveRate() < 0.05);
+
+        // Removed names may linger in the filter, but not in the results
+        trie.remove(DnsName.valueOf("cnn.com"));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("www.cnn.com")));
+
+        trie.setFilterEnabled(false);
+        Assert.assertEquals(5, trie.findLowest(DnsName.valueOf("blocked5.example")));
+        Assert.assertEquals(negatives + 1, trie.getFilterRejectCount() + trie.getFilterFalsePositiveCount());
+    }
+
+}
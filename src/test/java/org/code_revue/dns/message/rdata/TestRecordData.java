@@ -0,0 +1,95 @@
+package org.code_revue.dns.message.rdata;
+
+import org.code_revue.dns.message.*;
+import org.code_revue.dns.util.ByteBufferUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestRecordData {
+
+    @Test
+    public void writeAndReadBack() {
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        RecordDataWriter writer = new RecordDataWriter(buffer);
+
+        writer.writeAddress(new byte[] { 10, 0, 0, 1 });
+        int mx = buffer.position();
+        writer.writeMx(10, DnsName.valueOf("mail.example.com"));
+        int soa = buffer.position();
+        writer.writeSoa(DnsName.valueOf("ns1.example.com"), DnsName.valueOf("hostmaster.example.com"), 4000000000L,
+                3600, 600, 86400, 300);
+        int srv = buffer.position();
+        writer.writeSrv(1, 5, 5060, DnsName.valueOf("sip.example.com"));
+        int txt = buffer.position();
+        writer.writeTxt("v=spf1 -all", "");
+        int end = buffer.position();
+
+        AddressData address = (AddressData) RecordData.wrap(DnsRecordType.A, buffer, 0, mx);
+        Assert.assertArrayEquals(new byte[] { 10, 0, 0, 1 }, address.getAddressBytes());
+        Assert.assertEquals("/10.0.0.1", address.getAddress().toString());
+
+        MxData mxData = (MxData) RecordData.wrap(DnsRecordType.MX, buffer, mx, soa - mx);
+        Assert.assertEquals(10, mxData.getPreference());
+        Assert.assertEquals(DnsName.valueOf("mail.example.com"), mxData.getExchange());
+
+        SoaData soaData = (SoaData) RecordData.wrap(DnsRecordType.SOA, buffer, soa, srv - soa);
+        Assert.assertEquals("hostmaster.example.com", soaData.getMailbox().toString());
+        Assert.assertEquals(4000000000L, soaData.getSerial());
+        Assert.assertEquals(86400, soaData.getExpire());
+        Assert.assertEquals(300, soaData.getMinimum());
+
+        SrvData srvData = (SrvData) RecordData.wrap(DnsRecordType.SRV, buffer, srv, txt - srv);
+        Assert.assertEquals(5, srvData.getWeight());
+        Assert.assertEquals(5060, srvData.getPort());
+        Assert.assertEquals("sip.example.com", srvData.getTarget().toString());
+
+        TxtData txtData = (TxtData) RecordData.wrap(DnsRecordType.TXT, buffer, txt, end - txt);
+        Assert.assertEquals(2, txtData.getStringCount());
+        Assert.assertEquals("v=spf1 -all", txtData.getString(0));
+        Assert.assertEquals(0, txtData.getStringLength(1));
+    }
+
+    @Test
+    public void readInPlace() {
+        ByteBuffer query = new DnsQueryBuilder()
+                .addQuestion(new DnsQuestion("example.com", DnsRecordType.NS, DnsRecordClass.IN))
+                .build();
+        ByteBuffer response = new DnsResponseBuilder(query)
+                .addAnswer(new DnsRecord("example.com", DnsRecordType.NS, DnsRecordClass.IN, 300,
+                        ByteBufferUtils.encodeDomainName("ns1.example.com")))
+                .addAnswer(new DnsRecord("example.com", DnsRecordType.AAAA, DnsRecordClass.IN, 300, new byte[16]))
+                .build();
+
+        DnsMessageOverlay overlay = new DnsMessageOverlay(response);
+        DomainNameData ns = (DomainNameData) overlay.getRecordData(0);
+        // Compressed to "ns1" and a pointer to the question name
+        Assert.assertEquals(6, ns.getLength());
+        Assert.assertEquals(DnsName.valueOf("ns1.example.com"), ns.getName());
+        Assert.assertEquals(16, ((AddressData) overlay.getRecordData(1)).getAddressBytes().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectUnterminatedName() {
+        byte[] mx = new byte[] { 0, 10, 4, 'm', 'a', 'i', 'l' };
+        ((MxData) RecordData.wrap(DnsRecordType.MX, mx)).getExchange();
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void rejectNameOutsideData() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[] { 0, 10, 4, 'm', 'a', 'i', 'l', 0 });
+        ((MxData) RecordData.wrap(DnsRecordType.MX, buffer, 0, 7)).getExchange();
+    }
+
+    @Test
+    public void opaqueData() {
+        RecordData data = RecordData.wrap(DnsRecordType.HTTPS, new byte[] { 0, 1, 0 });
+        Assert.assertTrue(data instanceof OpaqueData);
+        Assert.assertEquals(1, ((OpaqueData) data).getByte(1));
+    }
+
+}
@@ -0,0 +1,55 @@
+package org.code_revue.dns.server;
+
+import org.code_revue.dns.message.DnsQueryBuilder;
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestQueryContext {
+
+    @Test
+    public void contextOutlivesQuery() {
+        DnsQueryBuilder builder = new DnsQueryBuilder();
+        builder.addQuestion(new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN));
+        builder.addQuestion(new DnsQuestion("example.com", DnsRecordType.MX, DnsRecordClass.IN));
+        ByteBuffer query = builder.build();
+        InetSocketAddress address = new InetSocketAddress("10.1.2.3", 5353);
+
+        DnsPayload payload = new DnsPayload(address, query, new QueryContext(address, query));
+        QueryContext context = payload.getContext();
+        Assert.assertSame(context.getOverlay(), payload.getOverlay());
+        Assert.assertArrayEquals(new byte[] { 10, 1, 2, 3 }, context.getClientAddressBytes());
+        Assert.assertEquals(5353, context.getClientPort());
+        Assert.assertEquals(2, context.getQuestionCount());
+        Assert.assertSame(context.getQuestion(1), context.getQuestion(1));
+        Assert.assertTrue(context.getElapsedTime() >= 0);
+
+        context.setAttribute("test", "value");
+        payload.setMessageData(ByteBuffer.allocate(12));
+        Assert.assertNotSame(context.getOverlay(), payload.getOverlay());
+        Assert.assertSame(context, payload.getContext());
+        Assert.assertEquals("example.com", context.getQuestion(1).getQuestionName());
+        Assert.assertEquals("value", context.getAttribute("test"));
+        context.setAttribute("test", null);
+        Assert.assertNull(context.getAttribute("test"));
+    }
+
+    @Test
+    public void contextWithoutAddress() {
+        DnsPayload payload = new DnsPayload(null, ByteBuffer.allocate(12));
+        QueryContext context = payload.getContext();
+        Assert.assertNull(context.getClientAddress());
+        Assert.assertEquals(0, context.getClientAddressBytes().length);
+        Assert.assertEquals(-1, context.getClientPort());
+        Assert.assertEquals(0, context.getQuestionCount());
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.code_revue.dns.server.engine;
+
+import org.code_revue.dns.message.DnsQueryBuilder;
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
+import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.resolver.DnsResolver;
+import org.code_revue.dns.server.resolver.SimpleResolver;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestAddressPrefixResolverRule {
+
+    @Test
+    public void routeByClientPrefix() {
+        DnsResolver office = new SimpleResolver();
+        DnsResolver lab = new SimpleResolver();
+        DnsResolver tenant = new SimpleResolver();
+
+        AddressPrefixResolverRule rule = new AddressPrefixResolverRule();
+        rule.addPrefix("192.168.0.0/16", office);
+        rule.addPrefix("192.168.10.0/23", lab);
+        rule.addPrefix("2001:db8::/32", tenant);
+        Assert.assertEquals(3, rule.getPrefixCount());
+
+        Assert.assertSame(office, rule.getResolver(createPayload("192.168.1.20")));
+        Assert.assertSame(lab, rule.getResolver(createPayload("192.168.11.20")));
+        Assert.assertSame(tenant, rule.getResolver(createPayload("2001:db8:1::53")));
+        Assert.assertFalse(rule.isValid(createPayload("10.0.0.1")));
+        Assert.assertFalse(rule.isValid(createPayload("2001:db9::1")));
+
+        ResolverChain chain = new ResolverChain();
+        chain.addRule(rule);
+        Assert.assertSame(lab, chain.getResolver(createPayload("192.168.10.1")));
+        Assert.assertNull(chain.getResolver(createPayload("10.0.0.1")));
+
+        Assert.assertSame(lab, rule.removePrefix("192.168.10.0/23"));
+        Assert.assertSame(office, chain.getResolver(createPayload("192.168.10.1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectHostNames() {
+        new AddressPrefixResolverRule().addPrefix("localhost/8", new SimpleResolver());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectLongPrefix() {
+        new AddressPrefixResolverRule().addPrefix("10.0.0.0/33", new SimpleResolver());
+    }
+
+    private static DnsPayload createPayload(String clientAddress) {
+        DnsQueryBuilder builder = new DnsQueryBuilder();
+        builder.addQuestion(new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN));
+        return new DnsPayload(new InetSocketAddress(clientAddress, 5353), builder.build());
+    }
+
+}
@@ -1,7 +1,10 @@
 package org.code_revue.dns.server.engine;
 
+import org.code_revue.dns.message.DnsQueryBuilder;
 import org.code_revue.dns.message.DnsQuestion;
 import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
 import org.code_revue.dns.server.DnsPayload;
 import org.code_revue.dns.server.engine.ResolverChain;
 import org.code_revue.dns.server.engine.ResolverRule;
@@ -16,6 +19,7 @@ import java.util.concurrent.BrokenBarrierException;
 import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -65,6 +69,145 @@ public class TestResolverChain {
         Assert.assertEquals("4", resolver.getId());
     }
 
+    @Test
+    public void compiledNameRules() {
+        QuestionNameResolverRule news = new QuestionNameResolverRule(new DumbResolver("news"));
+        news.addDomain("cnn.com");
+        QuestionNameResolverRule social = new QuestionNameResolverRule(new DumbResolver("social"));
+        social.addDomain("facebook.com");
+        social.addDomain("www.cnn.com");
+
+        chain = new ResolverChain();
+        chain.addRule(new DumbRule("1", false))
+             .addRule(news)
+             .addRule(social)
+             .addRule(new DumbRule("fallback", true));
+
+        Assert.assertEquals("news", getResolverId("www.cnn.com"));
+        Assert.assertEquals("social", getResolverId("WWW.FACEBOOK.COM"));
+        Assert.assertEquals("fallback", getResolverId("www.google.com"));
+
+        // Changes to a rule's white list are picked up without touching the chain, each as a new generation
+        int generation = chain.getGeneration();
+        social.addDomain("google.com");
+        Assert.assertEquals(generation + 1, chain.getGeneration());
+        Assert.assertEquals("social", getResolverId("www.google.com"));
+        news.removeDomain("cnn.com");
+        Assert.assertEquals("social", getResolverId("www.cnn.com"));
+        Assert.assertEquals("fallback", getResolverId("cnn.com"));
+
+        // Earlier rules that are not name rules still take precedence
+        chain.moveRule(3, true);
+        chain.moveRule(2, true);
+        Assert.assertEquals("fallback", getResolverId("www.facebook.com"));
+
+        // Removed rules no longer affect the chain
+        chain.removeRule(1);
+        chain.removeRule(2);
+        Assert.assertNull(chain.getResolver(createPayload("www.facebook.com")));
+        social.addDomain("example.com");
+        Assert.assertNull(chain.getResolver(createPayload("example.com")));
+    }
+
+    @Test
+    public void filterMergedNameRules() {
+        QuestionNameResolverRule news = new QuestionNameResolverRule(new DumbResolver("news"));
+        news.addDomain("cnn.com");
+        QuestionNameResolverRule social = new QuestionNameResolverRule(new DumbResolver("social"));
+        social.addDomain("facebook.com");
+
+        chain = new ResolverChain();
+        chain.addRule(news).addRule(social);
+        Assert.assertFalse(chain.isFilterEnabled());
+
+        // One rule's setting does not impose a filter on the other's domains
+        news.setFilterEnabled(true);
+        Assert.assertFalse(chain.isFilterEnabled());
+        Assert.assertFalse(social.isFilterEnabled());
+
+        social.setFilterEnabled(true);
+        Assert.assertTrue(chain.isFilterEnabled());
+        for (int i = 0; i < 1000; i++) {
+            Assert.assertNull(chain.getResolver(createPayload("host" + i + ".example.org")));
+        }
+        Assert.assertEquals("social", getResolverId("www.facebook.com"));
+        Assert.assertTrue(chain.getFilterFalsePositiveRate() < 0.05);
+        Assert.assertEquals("Merged lookups are counted by the chain", 0, news.getFilterFalsePositiveRate(), 0);
+
+        chain.removeRule(1);
+        Assert.assertTrue("A single rule's own filter is used", chain.isFilterEnabled());
+    }
+
+    @Test
+    public void resolversPerQuestion() {
+        QuestionNameResolverRule news = new QuestionNameResolverRule(new DumbResolver("news"));
+        news.addDomain("cnn.com");
+        QuestionNameResolverRule social = new QuestionNameResolverRule(new DumbResolver("social"));
+        social.addDomain("facebook.com");
+
+        chain = new ResolverChain();
+        chain.addRule(news)
+             .addRule(new DumbRule("middle", true))
+             .addRule(social);
+
+        DnsQueryBuilder builder = new DnsQueryBuilder();
+        for (String name: new String[] { "www.facebook.com", "www.cnn.com", "www.google.com" }) {
+            builder.addQuestion(new DnsQuestion(name, DnsRecordType.A, DnsRecordClass.IN));
+        }
+        DnsResolver[] resolvers = chain.getResolvers(new DnsPayload(null, builder.build()));
+        Assert.assertEquals(3, resolvers.length);
+        Assert.assertEquals("middle", ((DumbResolver) resolvers[0]).getId());
+        Assert.assertEquals("news", ((DumbResolver) resolvers[1]).getId());
+        Assert.assertEquals("middle", ((DumbResolver) resolvers[2]).getId());
+
+        chain.removeRule(1);
+        resolvers = chain.getResolvers(new DnsPayload(null, builder.build()));
+        Assert.assertEquals("social", ((DumbResolver) resolvers[0]).getId());
+        Assert.assertNull(resolvers[2]);
+    }
+
+    @Test
+    public void atomicMoves() throws InterruptedException {
+        final int generation = chain.getGeneration();
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread mover = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int c = 0; c < 20000; c++) {
+                    chain.moveRule(c % 4, 0 == c % 3);
+                }
+                done.set(true);
+            }
+        });
+        mover.start();
+
+        // The valid rule is always somewhere in the chain, so there is always an answer
+        while (!done.get()) {
+            Assert.assertEquals("4", ((DumbResolver) chain.getResolver(null)).getId());
+            Assert.assertEquals(4, chain.getResolverRules().size());
+        }
+        mover.join();
+        Assert.assertTrue(chain.getGeneration() > generation);
+
+        // Replacing every rule is a single change
+        int moved = chain.getGeneration();
+        List<ResolverRule> rules = new ArrayList<>(chain.getResolverRules());
+        Collections.reverse(rules);
+        chain.setResolverRules(rules);
+        Assert.assertEquals(rules, chain.getResolverRules());
+        Assert.assertEquals(moved + 1, chain.getGeneration());
+    }
+
+    private String getResolverId(String questionName) {
+        return ((DumbResolver) chain.getResolver(createPayload(questionName))).getId();
+    }
+
+    private static DnsPayload createPayload(String questionName) {
+        DnsQueryBuilder builder = new DnsQueryBuilder();
+        builder.addQuestion(new DnsQuestion(questionName, DnsRecordType.A, DnsRecordClass.IN));
+        return new DnsPayload(null, builder.build());
+    }
+
     /**
      * This test is meant to stress cause a bunch of concurrent access to the
      * {@link org.code_revue.dns.server.engine.ResolverChain} and test it for thread safety.
@@ -1,8 +1,30 @@
 package org.code_revue.dns.server.engine;
 
+import org.code_revue.dns.message.*;
+import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.DnsServer;
+import org.code_revue.dns.server.connector.DatagramConnector;
+import org.code_revue.dns.server.resolver.AsyncDnsResolver;
+import org.code_revue.dns.server.resolver.DelegationCache;
+import org.code_revue.dns.server.resolver.DnsResolver;
+import org.code_revue.dns.server.resolver.FakeNameServer;
+import org.code_revue.dns.server.resolver.NameErrorException;
+import org.code_revue.dns.server.resolver.ResolverCallback;
+import org.code_revue.dns.server.resolver.SimpleResolver;
+import org.code_revue.dns.server.resolver.SingleHostResolver;
+import org.code_revue.dns.util.ByteBufferUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
 /**
  * @author Mike Fanning
  */
@@ -25,4 +47,404 @@ public class TestStandardEngine {
                 engine.getDnsServerIp());
     }
 
+    @Test
+    public void completeInlineWhenAnswered() throws IOException {
+        SimpleResolver resolver = new SimpleResolver();
+        resolver.setDnsRecord(DnsRecordType.A, new DnsRecord("www.example.com", DnsRecordType.A, DnsRecordClass.IN,
+                300, new byte[] { 10, 0, 0, 1 }));
+
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8255);
+        engine.setResolverChain(new ResolverChain().addRule(alwaysValid(resolver)));
+        engine.start();
+        try {
+            final Thread caller = Thread.currentThread();
+            final DnsPayload[] response = new DnsPayload[1];
+            engine.processDnsPayload(createQuery("www.example.com"), new EngineCallback() {
+                @Override
+                public void complete(DnsPayload payload) {
+                    Assert.assertSame(caller, Thread.currentThread());
+                    response[0] = payload;
+                }
+
+                @Override
+                public void failed(DnsPayload query, Exception e) {
+                    Assert.fail();
+                }
+            });
+
+            Assert.assertNotNull(response[0]);
+            DnsMessageOverlay overlay = new DnsMessageOverlay(response[0].getMessageData());
+            Assert.assertTrue(overlay.isAuthoritativeAnswer());
+            Assert.assertEquals(1, overlay.getAnswerCount());
+        } finally {
+            engine.stop();
+        }
+    }
+
+    @Test
+    public void addCachedDelegations() throws IOException {
+        FakeNameServer relay = new FakeNameServer("127.0.0.1", 8255)
+                .addAddress("www.example.com", new byte[] { 10, 0, 0, 2 });
+        relay.start();
+
+        SimpleResolver resolver = new SimpleResolver();
+        resolver.setDnsRecord(DnsRecordType.A, new DnsRecord("www.local.example", DnsRecordType.A, DnsRecordClass.IN,
+                300, new byte[] { 10, 0, 0, 1 }));
+        QuestionNameResolverRule rule = new QuestionNameResolverRule(resolver);
+        rule.addDomain("local.example");
+
+        DelegationCache cache = new DelegationCache();
+        cache.putNameServers("example.com", Collections.singletonList(new DnsRecord("example.com", DnsRecordType.NS,
+                DnsRecordClass.IN, 3600, ByteBufferUtils.encodeDomainName("ns1.example.com"))));
+        cache.putAddresses("ns1.example.com", Collections.singletonList(new DnsRecord("ns1.example.com",
+                DnsRecordType.A, DnsRecordClass.IN, 3600, new byte[] { 10, 0, 0, 53 })));
+        cache.putNameServers("local.example", Collections.singletonList(new DnsRecord("local.example",
+                DnsRecordType.NS, DnsRecordClass.IN, 3600, ByteBufferUtils.encodeDomainName("ns1.local.example"))));
+
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8255);
+        engine.setResolverChain(new ResolverChain().addRule(rule));
+        engine.start();
+        try {
+            DnsPayload response = engine.processDnsPayload(createQuery("www.local.example", "www.example.com"));
+            DnsMessageOverlay overlay = new DnsMessageOverlay(response.getMessageData());
+            Assert.assertEquals(2, overlay.getAnswerCount());
+            Assert.assertEquals("Nothing to add without a cache", 0, overlay.getNameServerCount());
+
+            engine.setDelegationCache(cache);
+            response = engine.processDnsPayload(createQuery("www.local.example"));
+            overlay = new DnsMessageOverlay(response.getMessageData());
+            Assert.assertEquals(1, overlay.getAnswerCount());
+            Assert.assertEquals("Local answers get no delegations", 0, overlay.getNameServerCount());
+
+            response = engine.processDnsPayload(createQuery("www.local.example", "www.example.com",
+                    "WWW.EXAMPLE.COM"));
+            overlay = new DnsMessageOverlay(response.getMessageData());
+            Assert.assertEquals(3, overlay.getAnswerCount());
+            Assert.assertFalse(overlay.isTruncated());
+            DnsRecord[] authorities = overlay.getNameServers();
+            Assert.assertEquals("Each relayed zone is only listed once", 1, authorities.length);
+            Assert.assertEquals(DnsRecordType.NS, authorities[0].getRecordType());
+            Assert.assertEquals("example.com", authorities[0].getRecordName());
+            DnsRecord[] additional = overlay.getAdditionalRecords();
+            Assert.assertEquals(1, additional.length);
+            Assert.assertEquals("ns1.example.com", additional[0].getRecordName());
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 53 }, additional[0].getResourceData());
+        } finally {
+            engine.stop();
+            relay.stop();
+        }
+    }
+
+    @Test
+    public void completeFromTemplate() throws IOException {
+        SingleHostResolver resolver = new SingleHostResolver(new byte[] { 10, 0, 0, 3 });
+        resolver.addException("example.net");
+
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8255);
+        engine.setResolverChain(new ResolverChain().addRule(alwaysValid(resolver)));
+        engine.start();
+        try {
+            DnsPayload response = engine.processDnsPayload(createQuery("www.example.com"));
+            DnsRecord[] answers = new DnsMessageOverlay(response.getMessageData()).getAnswers();
+            Assert.assertEquals(1, answers.length);
+            Assert.assertEquals("www.example.com", answers[0].getRecordName());
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 3 }, answers[0].getResourceData());
+            Assert.assertNull(resolver.getResponseTemplate(new DnsQuestion("www.example.net", DnsRecordType.A,
+                    DnsRecordClass.IN)));
+        } finally {
+            engine.stop();
+        }
+    }
+
+    @Test
+    public void completeLaterWhenRelayed() throws Exception {
+        FakeNameServer relay = new FakeNameServer("127.0.0.1", 8256)
+                .addAddress("www.example.com", new byte[] { 10, 0, 0, 2 });
+        relay.start();
+
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8256);
+        engine.start();
+        try {
+            final DnsPayload[] response = new DnsPayload[1];
+            final CountDownLatch latch = new CountDownLatch(1);
+            DnsPayload query = createQuery("www.example.com");
+            short id = new DnsMessageOverlay(query.getMessageData()).getIdentifier();
+            engine.processDnsPayload(query, new EngineCallback() {
+                @Override
+                public void complete(DnsPayload payload) {
+                    response[0] = payload;
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(DnsPayload query, Exception e) {
+                    latch.countDown();
+                }
+            });
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            DnsMessageOverlay overlay = new DnsMessageOverlay(response[0].getMessageData());
+            Assert.assertEquals(id, overlay.getIdentifier());
+            Assert.assertEquals(1, overlay.getAnswerCount());
+            Assert.assertEquals(1, engine.getPayloadsProcessed());
+        } finally {
+            engine.stop();
+            relay.stop();
+        }
+    }
+
+    @Test
+    public void relayOnlyUnansweredQuestions() throws Exception {
+        FakeNameServer relay = new FakeNameServer("127.0.0.1", 8257)
+                .addAddress("www.example.com", new byte[] { 10, 0, 0, 2 })
+                .addAddress("mail.example.com", new byte[] { 10, 0, 0, 4 });
+        relay.start();
+
+        SimpleResolver resolver = new SimpleResolver();
+        resolver.setDnsRecord(DnsRecordType.A, new DnsRecord("www.local.example", DnsRecordType.A, DnsRecordClass.IN,
+                300, new byte[] { 10, 0, 0, 1 }));
+        QuestionNameResolverRule rule = new QuestionNameResolverRule(resolver);
+        rule.addDomain("local.example");
+
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8257);
+        engine.setResolverChain(new ResolverChain().addRule(rule));
+        engine.start();
+        try {
+            DnsPayload response = engine.processDnsPayload(createQuery("www.example.com", "www.local.example",
+                    "mail.example.com"));
+            DnsMessageOverlay overlay = new DnsMessageOverlay(response.getMessageData());
+            Assert.assertEquals(DnsResponseCode.NO_ERROR, overlay.getResponseCode());
+            Assert.assertFalse(overlay.isAuthoritativeAnswer());
+
+            // Answers are merged in question order, and only the two unanswered questions went to the relay
+            DnsRecord[] answers = overlay.getAnswers();
+            Assert.assertEquals(3, answers.length);
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 2 }, answers[0].getResourceData());
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 1 }, answers[1].getResourceData());
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 4 }, answers[2].getResourceData());
+            Assert.assertEquals(2, relay.getQueryCount());
+        } finally {
+            engine.stop();
+            relay.stop();
+        }
+    }
+
+    @Test
+    public void answerNameErrorLocally() throws Exception {
+        FakeNameServer relay = new FakeNameServer("127.0.0.1", 8262)
+                .addAddress("www.example.lan", new byte[] { 10, 0, 0, 8 });
+        relay.start();
+
+        DnsResolver resolver = new DnsResolver() {
+            @Override
+            public List<DnsRecord> resolve(DnsQuestion question) {
+                throw new NameErrorException("No such top level domain");
+            }
+        };
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8262);
+        engine.setResolverChain(new ResolverChain().addRule(alwaysValid(resolver)));
+        engine.start();
+        try {
+            DnsPayload response = engine.processDnsPayload(createQuery("www.example.lan"));
+            DnsMessageOverlay overlay = new DnsMessageOverlay(response.getMessageData());
+            Assert.assertEquals(DnsResponseCode.NAME_ERROR, overlay.getResponseCode());
+            Assert.assertEquals(0, overlay.getAnswerCount());
+            Assert.assertEquals(0, relay.getQueryCount());
+            Assert.assertEquals(0, engine.getProcessingErrors().get());
+        } finally {
+            engine.stop();
+            relay.stop();
+        }
+    }
+
+    @Test
+    public void failMergedResponseOnRelayFailure() throws Exception {
+        FakeNameServer relay = new FakeNameServer("127.0.0.1", 8261)
+                .setForcedResponseCode(DnsResponseCode.SERVER_FAILURE);
+        relay.start();
+
+        SimpleResolver resolver = new SimpleResolver();
+        resolver.setDnsRecord(DnsRecordType.A, new DnsRecord("www.local.example", DnsRecordType.A, DnsRecordClass.IN,
+                300, new byte[] { 10, 0, 0, 1 }));
+        QuestionNameResolverRule rule = new QuestionNameResolverRule(resolver);
+        rule.addDomain("local.example");
+
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8261);
+        engine.setResolverChain(new ResolverChain().addRule(rule));
+        engine.start();
+        try {
+            DnsPayload response = engine.processDnsPayload(createQuery("www.local.example", "www.example.com"));
+            DnsMessageOverlay overlay = new DnsMessageOverlay(response.getMessageData());
+            Assert.assertEquals(DnsResponseCode.SERVER_FAILURE, overlay.getResponseCode());
+            Assert.assertEquals(0, overlay.getAnswerCount());
+        } finally {
+            engine.stop();
+            relay.stop();
+        }
+    }
+
+    @Test
+    public void relayQuestionsResolversNeverAnswer() throws Exception {
+        FakeNameServer relay = new FakeNameServer("127.0.0.1", 8260)
+                .addAddress("www.silent.example", new byte[] { 10, 0, 0, 7 });
+        relay.start();
+
+        QuestionNameResolverRule rule = new QuestionNameResolverRule(new SilentResolver());
+        rule.addDomain("silent.example");
+
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8260);
+        engine.setResolverChain(new ResolverChain().addRule(rule));
+        engine.setResolverTimeout(200);
+        engine.start();
+        try {
+            final DnsPayload[] response = new DnsPayload[1];
+            final CountDownLatch latch = new CountDownLatch(1);
+            engine.processDnsPayload(createQuery("www.silent.example"), new EngineCallback() {
+                @Override
+                public void complete(DnsPayload payload) {
+                    response[0] = payload;
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(DnsPayload query, Exception e) {
+                    latch.countDown();
+                }
+            });
+
+            Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+            DnsMessageOverlay overlay = new DnsMessageOverlay(response[0].getMessageData());
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 7 }, overlay.getAnswers()[0].getResourceData());
+
+            // The blocking overload gives up on the resolver the same way
+            overlay = new DnsMessageOverlay(engine.processDnsPayload(createQuery("www.silent.example"))
+                    .getMessageData());
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 7 }, overlay.getAnswers()[0].getResourceData());
+            Assert.assertEquals(2, relay.getQueryCount());
+        } finally {
+            engine.stop();
+            relay.stop();
+        }
+    }
+
+    @Test
+    public void blockingResolversLeaveReaderThreadFree() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final String[] resolverThread = new String[1];
+        DnsResolver slow = new DnsResolver() {
+            @Override
+            public List<DnsRecord> resolve(DnsQuestion question) {
+                resolverThread[0] = Thread.currentThread().getName();
+                try {
+                    release.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return Collections.singletonList(new DnsRecord(question.getQuestionName(), DnsRecordType.A,
+                        DnsRecordClass.IN, 300, new byte[] { 10, 0, 0, 5 }));
+            }
+        };
+        SimpleResolver fast = new SimpleResolver();
+        fast.setDnsRecord(DnsRecordType.A, new DnsRecord("www.fast.example", DnsRecordType.A, DnsRecordClass.IN,
+                300, new byte[] { 10, 0, 0, 6 }));
+        QuestionNameResolverRule slowRule = new QuestionNameResolverRule(slow);
+        slowRule.addDomain("slow.example");
+        QuestionNameResolverRule fastRule = new QuestionNameResolverRule(fast);
+        fastRule.addDomain("fast.example");
+
+        // Default configuration: no resolver executor, so the engine has to use the server's
+        StandardEngine engine = new StandardEngine("127.0.0.1", 8258);
+        engine.setResolverChain(new ResolverChain().addRule(slowRule).addRule(fastRule));
+        engine.start();
+        DatagramConnector connector = new DatagramConnector();
+        connector.setPort(8059);
+        connector.start();
+        DnsServer server = new DnsServer();
+        server.addConnector(connector);
+        server.setEngine(engine);
+        server.start();
+
+        try (DatagramChannel client = DatagramChannel.open()) {
+            client.connect(new InetSocketAddress("127.0.0.1", 8059));
+            client.write(createQuery("www.slow.example").getMessageData());
+            client.write(createQuery("www.fast.example").getMessageData());
+
+            // The fast answer comes back while the slow resolver is still waiting
+            ByteBuffer response = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+            Assert.assertTrue(receive(client, response));
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 6 },
+                    new DnsMessageOverlay(response).getAnswers()[0].getResourceData());
+
+            release.countDown();
+            response.clear();
+            Assert.assertTrue(receive(client, response));
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 5 },
+                    new DnsMessageOverlay(response).getAnswers()[0].getResourceData());
+            Assert.assertFalse(resolverThread[0].startsWith("connector-"));
+        } finally {
+            release.countDown();
+            server.stop();
+            connector.stop();
+            engine.stop();
+        }
+    }
+
+    private static class SilentResolver implements DnsResolver, AsyncDnsResolver {
+
+        @Override
+        public List<DnsRecord> resolve(DnsQuestion question) {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void resolve(DnsQuestion question, ResolverCallback callback) {
+            // Never calls back
+        }
+
+    }
+
+    private static boolean receive(DatagramChannel channel, ByteBuffer buffer) throws IOException {
+        channel.configureBlocking(false);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            if (null != channel.receive(buffer)) {
+                buffer.flip();
+                return true;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static DnsPayload createQuery(String... names) {
+        DnsQueryBuilder builder = new DnsQueryBuilder().setRecursionDesired(true);
+        for (String name: names) {
+            builder.addQuestion(new DnsQuestion(name, DnsRecordType.A, DnsRecordClass.IN));
+        }
+        ByteBuffer query = builder.build();
+        ByteBuffer message = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+        message.put(query);
+        message.flip();
+        return new DnsPayload(new InetSocketAddress("127.0.0.1", 5353), message);
+    }
+
+    private static ResolverRule alwaysValid(final DnsResolver resolver) {
+        return new ResolverRule() {
+            @Override
+            public boolean isValid(DnsPayload payload) {
+                return true;
+            }
+
+            @Override
+            public DnsResolver getResolver() {
+                return resolver;
+            }
+        };
+    }
+
 }
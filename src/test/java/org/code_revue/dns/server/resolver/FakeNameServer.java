@@ -0,0 +1,175 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.*;
+import org.code_revue.dns.server.DnsPayload;
+import org.code_revue.dns.server.DnsServer;
+import org.code_revue.dns.server.connector.DatagramConnector;
+import org.code_revue.dns.server.engine.DnsEngine;
+import org.code_revue.dns.util.ByteBufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tiny authoritative name server for testing resolvers over loopback. It answers from a flat list of records, refers
+ * questions below delegated zones to the delegated name servers and returns NXDOMAIN for everything else.
+ *
+ * @author Mike Fanning
+ */
+public class FakeNameServer implements DnsEngine {
+
+    private final DatagramConnector connector = new DatagramConnector();
+    private final DnsServer server = new DnsServer();
+
+    private final List<DnsRecord> records = new ArrayList<>();
+    private final List<DnsRecord> delegations = new ArrayList<>();
+    private final List<DnsRecord> glue = new ArrayList<>();
+    private final List<DnsRecord> extraAuthorities = new ArrayList<>();
+    private final List<DnsRecord> extraGlue = new ArrayList<>();
+    private final List<DnsRecord> extraAnswers = new ArrayList<>();
+    private volatile DnsResponseCode forcedResponseCode;
+
+    private final AtomicLong queryCount = new AtomicLong(0);
+
+    public FakeNameServer(String hostname, int port) {
+        connector.setHostname(hostname);
+        connector.setPort(port);
+        server.addConnector(connector);
+        server.setEngine(this);
+    }
+
+    public FakeNameServer addRecord(String name, DnsRecordType type, byte[] resourceData) {
+        records.add(new DnsRecord(name, type, DnsRecordClass.IN, 300, resourceData));
+        return this;
+    }
+
+    public FakeNameServer addAddress(String name, byte[] address) {
+        return addRecord(name, DnsRecordType.A, address);
+    }
+
+    public FakeNameServer addCname(String name, String target) {
+        return addRecord(name, DnsRecordType.CNAME, ByteBufferUtils.encodeDomainName(target));
+    }
+
+    public FakeNameServer addDelegation(String zone, String nameServer, byte[] glueAddress) {
+        delegations.add(new DnsRecord(zone, DnsRecordType.NS, DnsRecordClass.IN, 3600,
+                ByteBufferUtils.encodeDomainName(nameServer)));
+        if (null != glueAddress) {
+            glue.add(new DnsRecord(nameServer, DnsRecordType.A, DnsRecordClass.IN, 3600, glueAddress));
+        }
+        return this;
+    }
+
+    /**
+     * Adds an NS record (and optional glue) to the front of every referral, whatever zone it is for, in the way a
+     * misbehaving or malicious server might.
+     */
+    public FakeNameServer addExtraReferral(String zone, String nameServer, byte[] glueAddress) {
+        extraAuthorities.add(new DnsRecord(zone, DnsRecordType.NS, DnsRecordClass.IN, 3600,
+                ByteBufferUtils.encodeDomainName(nameServer)));
+        if (null != glueAddress) {
+            extraGlue.add(new DnsRecord(nameServer, DnsRecordType.A, DnsRecordClass.IN, 3600, glueAddress));
+        }
+        return this;
+    }
+
+    /**
+     * Adds an address record to every answer, whatever the question, in the way a misbehaving or malicious server
+     * might.
+     */
+    public FakeNameServer addExtraAnswer(String name, byte[] address) {
+        extraAnswers.add(new DnsRecord(name, DnsRecordType.A, DnsRecordClass.IN, 300, address));
+        return this;
+    }
+
+    /**
+     * Makes the server respond to everything with an empty response with this code, like a lame or broken server.
+     */
+    public FakeNameServer setForcedResponseCode(DnsResponseCode responseCode) {
+        this.forcedResponseCode = responseCode;
+        return this;
+    }
+
+    public void start() throws IOException {
+        connector.start();
+        server.start();
+    }
+
+    public void stop() throws IOException {
+        server.stop();
+        connector.stop();
+    }
+
+    public long getQueryCount() {
+        return queryCount.get();
+    }
+
+    @Override
+    public DnsPayload processDnsPayload(DnsPayload payload) {
+        queryCount.incrementAndGet();
+
+        DnsQuestion question = payload.getOverlay().getQuestions()[0];
+        String name = question.getQuestionName().toLowerCase();
+        DnsResponseBuilder builder = new DnsResponseBuilder(payload.getMessageData());
+
+        if (null != forcedResponseCode) {
+            payload.setMessageData(builder.setResponseCode(forcedResponseCode).build());
+            return payload;
+        }
+
+        boolean found = false;
+        for (DnsRecord record: records) {
+            if (record.getRecordName().equals(name) && (record.getRecordType() == question.getQuestionType() ||
+                    DnsRecordType.CNAME == record.getRecordType())) {
+                builder.addAnswer(record);
+                found = true;
+            }
+        }
+
+        if (found) {
+            for (DnsRecord extra: extraAnswers) {
+                builder.addAnswer(extra);
+            }
+            builder.setAuthoritativeAnswer(true).setResponseCode(DnsResponseCode.NO_ERROR);
+        } else {
+            String zone = null;
+            List<DnsRecord> referral = new ArrayList<>();
+            for (DnsRecord delegation: delegations) {
+                String owner = delegation.getRecordName();
+                if ((name.equals(owner) || name.endsWith("." + owner)) && (null == zone || zone.equals(owner))) {
+                    zone = owner;
+                    referral.add(delegation);
+                }
+            }
+            if (null != zone) {
+                for (DnsRecord extra: extraAuthorities) {
+                    builder.addAuthorityRecord(extra);
+                }
+                for (DnsRecord delegation: referral) {
+                    builder.addAuthorityRecord(delegation);
+                    String host = ByteBufferUtils.readDomainName(ByteBuffer.wrap(delegation.getResourceData()));
+                    for (DnsRecord address: glue) {
+                        if (address.getRecordName().equals(host)) {
+                            builder.addAdditionalRecord(address);
+                        }
+                    }
+                }
+                for (DnsRecord extra: extraGlue) {
+                    builder.addAdditionalRecord(extra);
+                }
+            }
+            if (null == zone) {
+                builder.setAuthoritativeAnswer(true).setResponseCode(DnsResponseCode.NAME_ERROR);
+            } else {
+                builder.setResponseCode(DnsResponseCode.NO_ERROR);
+            }
+        }
+
+        payload.setMessageData(builder.build());
+        return payload;
+    }
+
+}
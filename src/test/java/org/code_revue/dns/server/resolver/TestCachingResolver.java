@@ -0,0 +1,141 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestCachingResolver {
+
+    @Test
+    public void cacheAnswers() {
+        CountingResolver backend = new CountingResolver(300);
+        CachingResolver cache = new CachingResolver(backend, 100);
+
+        DnsQuestion question = new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN);
+        Assert.assertEquals(1, cache.resolve(question).size());
+        List<DnsRecord> answers = cache.resolve(new DnsQuestion("WWW.example.com", DnsRecordType.A,
+                DnsRecordClass.IN));
+        Assert.assertEquals(1, answers.size());
+        Assert.assertEquals(300, answers.get(0).getTtl());
+        Assert.assertEquals(1, backend.count.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(0.5, cache.getHitRate(), 0.001);
+
+        // Other types are separate questions, and empty answers are not cached
+        cache.resolve(new DnsQuestion("www.example.com", DnsRecordType.AAAA, DnsRecordClass.IN));
+        cache.resolve(new DnsQuestion("empty.example.com", DnsRecordType.A, DnsRecordClass.IN));
+        cache.resolve(new DnsQuestion("empty.example.com", DnsRecordType.A, DnsRecordClass.IN));
+        Assert.assertEquals(4, backend.count.get());
+        Assert.assertEquals(2, cache.size());
+
+        Assert.assertTrue(cache.invalidate(question));
+        Assert.assertFalse(cache.invalidate(question));
+        cache.resolve(question);
+        Assert.assertEquals(5, backend.count.get());
+
+        Assert.assertEquals(2, cache.invalidate("www.EXAMPLE.com"));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expireAndEvict() {
+        CachingResolver cache = new CachingResolver(new CountingResolver(0), 3);
+        DnsQuestion question = new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN);
+        cache.resolve(question);
+        cache.resolve(question);
+        Assert.assertEquals(0, cache.getHitCount());
+
+        // A TTL with the top bit set counts as zero
+        cache = new CachingResolver(new CountingResolver(0x80000000), 3);
+        cache.resolve(question);
+        cache.resolve(question);
+        Assert.assertEquals(0, cache.getHitCount());
+
+        CountingResolver backend = new CountingResolver(60);
+        cache = new CachingResolver(backend, 3);
+        for (int i = 0; i < 4; i++) {
+            cache.resolve(new DnsQuestion("host" + i + ".example.com", DnsRecordType.A, DnsRecordClass.IN));
+        }
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+
+        // The least recently used question went first
+        cache.resolve(new DnsQuestion("host0.example.com", DnsRecordType.A, DnsRecordClass.IN));
+        Assert.assertEquals(5, backend.count.get());
+        cache.resolve(new DnsQuestion("host3.example.com", DnsRecordType.A, DnsRecordClass.IN));
+        Assert.assertEquals(5, backend.count.get());
+
+        cache.invalidateAll();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void resolveAsynchronously() throws InterruptedException {
+        CountingResolver backend = new CountingResolver(300);
+        CachingResolver cache = new CachingResolver(backend, 100);
+        final List<DnsRecord> answers = Collections.synchronizedList(new ArrayList<DnsRecord>());
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<Thread>());
+        final CountDownLatch latch = new CountDownLatch(2);
+        ResolverCallback callback = new ResolverCallback() {
+            @Override
+            public void resolved(DnsQuestion question, List<DnsRecord> records) {
+                answers.addAll(records);
+                threads.add(Thread.currentThread());
+                latch.countDown();
+            }
+
+            @Override
+            public void failed(DnsQuestion question, Exception e) {
+                Assert.fail();
+            }
+        };
+
+        // The blocking backend is never run on the calling thread, but hits are answered there
+        DnsQuestion question = new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN);
+        cache.resolve(question, callback);
+        while (threads.isEmpty()) {
+            Thread.sleep(1);
+        }
+        cache.resolve(question, callback);
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, answers.size());
+        Assert.assertEquals(1, backend.count.get());
+        Assert.assertNotSame(Thread.currentThread(), threads.get(0));
+        Assert.assertSame(Thread.currentThread(), threads.get(1));
+    }
+
+    private static class CountingResolver implements DnsResolver {
+
+        private final AtomicInteger count = new AtomicInteger();
+        private final int ttl;
+
+        public CountingResolver(int ttl) {
+            this.ttl = ttl;
+        }
+
+        @Override
+        public List<DnsRecord> resolve(DnsQuestion question) {
+            count.incrementAndGet();
+            if (question.getQuestionName().startsWith("empty")) {
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new DnsRecord(question.getQuestionName(),
+                    question.getQuestionTypeCode(), question.getQuestionClassCode(), ttl, new byte[] { 10, 0, 0, 1 }));
+        }
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.*;
+import org.code_revue.dns.util.ByteBufferUtils;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestDelegationCache {
+
+    private DelegationCache cache;
+
+    @Before
+    public void setup() {
+        cache = new DelegationCache();
+    }
+
+    @Test
+    public void cacheReferral() {
+        DnsQuestion question = new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN);
+        DnsRecord[] authorities = new DnsRecord[] {
+                createNameServer("example.com", "ns1.example.com", 3600),
+                createNameServer("example.com", "ns2.example.com", 3600)
+        };
+        DnsRecord[] additionalRecords = new DnsRecord[] {
+                new DnsRecord("ns1.example.com", DnsRecordType.A, DnsRecordClass.IN, 3600, new byte[] { 10, 0, 0, 1 }),
+                new DnsRecord("evil.org", DnsRecordType.A, DnsRecordClass.IN, 3600, new byte[] { 10, 6, 6, 6 })
+        };
+        cache.cacheResponse(question, authorities, additionalRecords);
+
+        Assert.assertEquals(2, cache.getNameServers("example.com").size());
+        Assert.assertEquals(2, cache.getNameServers("EXAMPLE.COM.").size());
+        Assert.assertEquals(1, cache.getAddresses("ns1.example.com").size());
+        Assert.assertTrue(cache.getAddresses("ns2.example.com").isEmpty());
+        Assert.assertTrue("Unrelated glue should be ignored", cache.getAddresses("evil.org").isEmpty());
+
+        List<DnsRecord> closest = cache.findClosestNameServers("a.b.www.example.com");
+        Assert.assertEquals(2, closest.size());
+        Assert.assertTrue(cache.findClosestNameServers("example.org").isEmpty());
+    }
+
+    @Test
+    public void rejectOutOfBailiwick() {
+        DnsQuestion question = new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN);
+        DnsRecord[] authorities = new DnsRecord[] { createNameServer("google.com", "ns1.evil.org", 3600) };
+        cache.cacheResponse(question, authorities, new DnsRecord[0]);
+        Assert.assertTrue(cache.getNameServers("google.com").isEmpty());
+    }
+
+    @Test
+    public void keepRelayGlueInsideZone() {
+        DnsQuestion question = new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN);
+        DnsRecord[] authorities = new DnsRecord[] {
+                createNameServer("example.com", "ns1.example.com", 3600),
+                createNameServer("example.com", "ns.example.net", 3600)
+        };
+        DnsRecord[] additionalRecords = new DnsRecord[] {
+                new DnsRecord("ns1.example.com", DnsRecordType.A, DnsRecordClass.IN, 3600, new byte[] { 10, 0, 0, 1 }),
+                new DnsRecord("ns.example.net", DnsRecordType.A, DnsRecordClass.IN, 3600, new byte[] { 10, 6, 6, 6 })
+        };
+
+        // The relay server's zone is unknown, so only glue inside the delegated zone is trusted
+        cache.cacheResponse(question, authorities, additionalRecords);
+        Assert.assertEquals(2, cache.getNameServers("example.com").size());
+        Assert.assertEquals(1, cache.getAddresses(DnsName.valueOf("ns1.example.com")).size());
+        Assert.assertTrue(cache.getAddresses("ns.example.net").isEmpty());
+
+        // A root server is entitled to give both
+        cache.clear();
+        cache.cacheResponse(question, "", authorities, additionalRecords);
+        Assert.assertEquals(1, cache.getAddresses("ns.example.net").size());
+    }
+
+    @Test
+    public void expiredEntries() {
+        DnsQuestion question = new DnsQuestion("www.example.com", DnsRecordType.A, DnsRecordClass.IN);
+        DnsRecord[] authorities = new DnsRecord[] { createNameServer("example.com", "ns1.example.com", 0) };
+        cache.cacheResponse(question, authorities, new DnsRecord[0]);
+        Assert.assertTrue(cache.getNameServers("example.com").isEmpty());
+    }
+
+    private static DnsRecord createNameServer(String zone, String host, int ttl) {
+        return new DnsRecord(zone, DnsRecordType.NS, DnsRecordClass.IN, ttl,
+                ByteBufferUtils.encodeDomainName(host));
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
+import org.code_revue.dns.message.DnsResponseCode;
+import org.code_revue.dns.util.ByteBufferUtils;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Runs the {@link org.code_revue.dns.server.resolver.RecursiveResolver} against a fake DNS hierarchy of name servers
+ * bound to different loopback addresses.
+ *
+ * @author Mike Fanning
+ */
+public class TestRecursiveResolver {
+
+    private static final int PORT = 8253;
+
+    private static FakeNameServer root;
+    private static FakeNameServer com;
+    private static FakeNameServer example;
+
+    private RecursiveResolver resolver;
+    private long rootQueries;
+    private long comQueries;
+    private long exampleQueries;
+
+    @BeforeClass
+    public static void startServers() throws IOException {
+        root = new FakeNameServer("127.0.0.1", PORT)
+                .addDelegation("com", "a.gtld-servers.net", new byte[] { 127, 0, 0, 2 });
+
+        com = new FakeNameServer("127.0.0.2", PORT)
+                .addDelegation("example.com", "ns1.example.com", new byte[] { 127, 0, 0, 3 })
+                .addDelegation("glueless.com", "ns1.example.com", null);
+
+        example = new FakeNameServer("127.0.0.3", PORT)
+                .addCname("www.example.com", "web.example.com")
+                .addAddress("web.example.com", new byte[] { 10, 1, 2, 3 })
+                .addAddress("mail.example.com", new byte[] { 10, 1, 2, 4 })
+                .addAddress("ns1.example.com", new byte[] { 127, 0, 0, 3 })
+                .addCname("www.glueless.com", "web.example.com");
+
+        root.start();
+        com.start();
+        example.start();
+    }
+
+    @AfterClass
+    public static void stopServers() throws IOException {
+        root.stop();
+        com.stop();
+        example.stop();
+    }
+
+    @Before
+    public void setup() throws UnknownHostException {
+        rootQueries = root.getQueryCount();
+        comQueries = com.getQueryCount();
+        exampleQueries = example.getQueryCount();
+
+        InetAddress rootAddress = InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 });
+        resolver = new RecursiveResolver(Collections.singletonList(rootAddress));
+        resolver.setPort(PORT);
+        resolver.setTimeout(1000);
+    }
+
+    @Test
+    public void followReferralsAndCnames() {
+        List<DnsRecord> answers = resolver.resolve(question("www.example.com"));
+        Assert.assertEquals(2, answers.size());
+        Assert.assertEquals(DnsRecordType.CNAME, answers.get(0).getRecordType());
+        Assert.assertEquals(DnsRecordType.A, answers.get(1).getRecordType());
+        Assert.assertEquals("web.example.com", answers.get(1).getRecordName());
+        Assert.assertArrayEquals(new byte[] { 10, 1, 2, 3 }, answers.get(1).getResourceData());
+
+        Assert.assertEquals(1, root.getQueryCount() - rootQueries);
+        Assert.assertEquals(1, com.getQueryCount() - comQueries);
+        Assert.assertEquals(2, example.getQueryCount() - exampleQueries);
+    }
+
+    @Test
+    public void reuseCachedDelegations() {
+        resolver.resolve(question("web.example.com"));
+        List<DnsRecord> answers = resolver.resolve(question("mail.example.com"));
+        Assert.assertEquals(1, answers.size());
+        Assert.assertArrayEquals(new byte[] { 10, 1, 2, 4 }, answers.get(0).getResourceData());
+
+        Assert.assertEquals("Delegation should have been cached", 1, root.getQueryCount() - rootQueries);
+        Assert.assertEquals(1, com.getQueryCount() - comQueries);
+        Assert.assertEquals(2, example.getQueryCount() - exampleQueries);
+    }
+
+    @Test
+    public void resolveNameServerWithoutGlue() {
+        List<DnsRecord> answers = resolver.resolve(question("www.glueless.com"));
+        Assert.assertEquals(2, answers.size());
+        Assert.assertArrayEquals(new byte[] { 10, 1, 2, 3 }, answers.get(1).getResourceData());
+    }
+
+    @Test
+    public void nonExistentDomain() {
+        Assert.assertTrue(resolver.resolve(question("www.example.org")).isEmpty());
+        Assert.assertTrue(resolver.resolve(question("nope.example.com")).isEmpty());
+    }
+
+    @Test
+    public void useRootZoneMirror() throws IOException {
+        Path zoneFile = Files.createTempFile("root", ".zone");
+        try {
+            Files.write(zoneFile, TestRootZoneMirror.ROOT_ZONE.getBytes(StandardCharsets.US_ASCII));
+            RootZoneMirror mirror = new RootZoneMirror(zoneFile);
+            mirror.load();
+            resolver.setRootZone(mirror);
+
+            List<DnsRecord> answers = resolver.resolve(question("web.example.com"));
+            Assert.assertEquals(1, answers.size());
+            try {
+                resolver.resolve(question("www.example.lan"));
+                Assert.fail("Top level domain missing from the mirror should be a name error");
+            } catch (NameErrorException e) {
+                // Expected
+            }
+
+            Assert.assertEquals("Root server should not be queried", 0, root.getQueryCount() - rootQueries);
+            Assert.assertEquals(1, com.getQueryCount() - comQueries);
+        } finally {
+            Files.delete(zoneFile);
+        }
+    }
+
+    @Test
+    public void ignoreOutOfZoneNameServers() throws IOException {
+        // The net servers try to take over the net and org zones while referring a question under example.net
+        FakeNameServer otherRoot = new FakeNameServer("127.0.0.4", PORT)
+                .addDelegation("net", "a.gtld-servers.net", new byte[] { 127, 0, 0, 5 });
+        FakeNameServer net = new FakeNameServer("127.0.0.5", PORT)
+                .addExtraReferral("net", "ns.evil.net", new byte[] { 127, 0, 0, 66 })
+                .addExtraReferral("org", "ns.evil.net", null)
+                .addDelegation("example.net", "ns1.example.net", new byte[] { 127, 0, 0, 3 });
+        otherRoot.start();
+        net.start();
+        try {
+            resolver.setRootHints(Collections.singletonList(InetAddress.getByAddress(new byte[] { 127, 0, 0, 4 })));
+            resolver.resolve(question("www.example.net"));
+
+            DelegationCache cache = resolver.getDelegationCache();
+            Assert.assertEquals(1, cache.getNameServers("example.net").size());
+            List<DnsRecord> netServers = cache.getNameServers("net");
+            Assert.assertEquals(1, netServers.size());
+            Assert.assertArrayEquals(ByteBufferUtils.encodeDomainName("a.gtld-servers.net"),
+                    netServers.get(0).getResourceData());
+            Assert.assertTrue(cache.getNameServers("org").isEmpty());
+            Assert.assertTrue(cache.getAddresses("ns.evil.net").isEmpty());
+            Assert.assertEquals(1, cache.getAddresses("ns1.example.net").size());
+        } finally {
+            otherRoot.stop();
+            net.stop();
+        }
+    }
+
+    @Test
+    public void ignoreOutOfBailiwickGlue() throws IOException {
+        // The com servers refer glue.com to a name server under org, and make up an address for it
+        FakeNameServer otherRoot = new FakeNameServer("127.0.0.6", PORT)
+                .addDelegation("com", "a.gtld-servers.net", new byte[] { 127, 0, 0, 7 });
+        FakeNameServer poisonedCom = new FakeNameServer("127.0.0.7", PORT)
+                .addDelegation("glue.com", "ns.evil.org", new byte[] { 127, 0, 0, 66 })
+                .addDelegation("glue.com", "ns2.glue.com", new byte[] { 127, 0, 0, 3 });
+        otherRoot.start();
+        poisonedCom.start();
+        try {
+            resolver.setRootHints(Collections.singletonList(InetAddress.getByAddress(new byte[] { 127, 0, 0, 6 })));
+            resolver.resolve(question("www.glue.com"));
+
+            DelegationCache cache = resolver.getDelegationCache();
+            Assert.assertEquals(2, cache.getNameServers("glue.com").size());
+            Assert.assertTrue(cache.getAddresses("ns.evil.org").isEmpty());
+            Assert.assertEquals(1, cache.getAddresses("ns2.glue.com").size());
+        } finally {
+            otherRoot.stop();
+            poisonedCom.stop();
+        }
+    }
+
+    @Test
+    public void ignoreOutOfZoneCnameTargets() throws IOException {
+        // The evil.com server points a name at www.bank.com and makes up an address for it
+        FakeNameServer otherRoot = new FakeNameServer("127.0.0.8", PORT)
+                .addDelegation("com", "a.gtld-servers.net", new byte[] { 127, 0, 0, 9 });
+        FakeNameServer otherCom = new FakeNameServer("127.0.0.9", PORT)
+                .addDelegation("evil.com", "ns1.evil.com", new byte[] { 127, 0, 0, 10 })
+                .addDelegation("bank.com", "ns1.bank.com", new byte[] { 127, 0, 0, 11 });
+        FakeNameServer evil = new FakeNameServer("127.0.0.10", PORT)
+                .addCname("www.evil.com", "www.bank.com")
+                .addExtraAnswer("www.bank.com", new byte[] { 6, 6, 6, 6 });
+        FakeNameServer bank = new FakeNameServer("127.0.0.11", PORT)
+                .addAddress("www.bank.com", new byte[] { 10, 9, 9, 9 });
+        otherRoot.start();
+        otherCom.start();
+        evil.start();
+        bank.start();
+        try {
+            resolver.setRootHints(Collections.singletonList(InetAddress.getByAddress(new byte[] { 127, 0, 0, 8 })));
+            List<DnsRecord> answers = resolver.resolve(question("www.evil.com"));
+            Assert.assertEquals(2, answers.size());
+            Assert.assertEquals(DnsRecordType.CNAME, answers.get(0).getRecordType());
+            Assert.assertArrayEquals(new byte[] { 10, 9, 9, 9 }, answers.get(1).getResourceData());
+            Assert.assertEquals(1, bank.getQueryCount());
+        } finally {
+            otherRoot.stop();
+            otherCom.stop();
+            evil.stop();
+            bank.stop();
+        }
+    }
+
+    @Test
+    public void skipLameServers() throws IOException {
+        FakeNameServer lame = new FakeNameServer("127.0.0.12", PORT).setForcedResponseCode(DnsResponseCode.REFUSED);
+        lame.start();
+        try {
+            resolver.setRootHints(Arrays.asList(InetAddress.getByAddress(new byte[] { 127, 0, 0, 12 }),
+                    InetAddress.getByAddress(new byte[] { 127, 0, 0, 1 })));
+            List<DnsRecord> answers = resolver.resolve(question("web.example.com"));
+            Assert.assertEquals(1, answers.size());
+            Assert.assertEquals(1, lame.getQueryCount());
+        } finally {
+            lame.stop();
+        }
+    }
+
+    private static DnsQuestion question(String name) {
+        return new DnsQuestion(name, DnsRecordType.A, DnsRecordClass.IN);
+    }
+
+}
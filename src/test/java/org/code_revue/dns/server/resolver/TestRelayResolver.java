@@ -0,0 +1,170 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsMessageOverlay;
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
+import org.code_revue.dns.message.DnsResponseBuilder;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the {@link org.code_revue.dns.server.resolver.RelayResolver} against a fake relay server.
+ *
+ * @author Mike Fanning
+ */
+public class TestRelayResolver {
+
+    private static final int PORT = 8254;
+
+    private static FakeNameServer server;
+    private static RelayResolver resolver;
+
+    @BeforeClass
+    public static void start() throws IOException {
+        server = new FakeNameServer("127.0.0.1", PORT);
+        for (int i = 0; i < 50; i++) {
+            server.addAddress("host" + i + ".example.com", new byte[] { 10, 0, 0, (byte) i });
+        }
+        server.start();
+
+        resolver = new RelayResolver(new byte[] { 127, 0, 0, 1 }, PORT);
+        resolver.setTimeout(2000);
+        resolver.start();
+    }
+
+    @AfterClass
+    public static void stop() throws IOException {
+        resolver.stop();
+        server.stop();
+    }
+
+    @Test
+    public void resolveBlocking() throws IOException {
+        List<DnsRecord> answers = resolver.resolve(
+                new DnsQuestion("host7.example.com", DnsRecordType.A, DnsRecordClass.IN));
+        Assert.assertEquals(1, answers.size());
+        Assert.assertEquals(InetAddress.getByAddress(new byte[] { 10, 0, 0, 7 }),
+                InetAddress.getByAddress(answers.get(0).getResourceData()));
+    }
+
+    @Test
+    public void resolveConcurrently() throws Exception {
+        final ConcurrentMap<String, byte[]> results = new ConcurrentHashMap<>();
+        final CountDownLatch latch = new CountDownLatch(50);
+
+        for (int i = 0; i < 50; i++) {
+            DnsQuestion question = new DnsQuestion("host" + i + ".example.com", DnsRecordType.A, DnsRecordClass.IN);
+            resolver.resolve(question, new ResolverCallback() {
+                @Override
+                public void resolved(DnsQuestion question, List<DnsRecord> answers) {
+                    if (1 == answers.size()) {
+                        results.put(question.getQuestionName(), answers.get(0).getResourceData());
+                    }
+                    latch.countDown();
+                }
+
+                @Override
+                public void failed(DnsQuestion question, Exception e) {
+                    latch.countDown();
+                }
+            });
+        }
+
+        Assert.assertTrue(latch.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(50, results.size());
+        for (int i = 0; i < 50; i++) {
+            Assert.assertEquals(i, results.get("host" + i + ".example.com")[3]);
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        RelayResolver silent = new RelayResolver(new byte[] { 127, 0, 0, 1 }, PORT + 1);
+        silent.setTimeout(100);
+        silent.start();
+        try {
+            final Exception[] error = new Exception[1];
+            final CountDownLatch latch = new CountDownLatch(1);
+            silent.resolve(new DnsQuestion("host1.example.com", DnsRecordType.A, DnsRecordClass.IN),
+                    new ResolverCallback() {
+                        @Override
+                        public void resolved(DnsQuestion question, List<DnsRecord> answers) {
+                            latch.countDown();
+                        }
+
+                        @Override
+                        public void failed(DnsQuestion question, Exception e) {
+                            error[0] = e;
+                            latch.countDown();
+                        }
+                    });
+            Assert.assertTrue(latch.await(2, TimeUnit.SECONDS));
+            Assert.assertNotNull(error[0]);
+        } finally {
+            silent.stop();
+        }
+    }
+
+    @Test
+    public void ignoreMismatchedResponses() throws Exception {
+        final DatagramChannel spoofer = DatagramChannel.open();
+        spoofer.bind(new InetSocketAddress("127.0.0.1", PORT + 9));
+        Thread replies = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer query = ByteBuffer.allocate(DnsMessageOverlay.MAX_UDP_DNS_LENGTH);
+                    SocketAddress client = spoofer.receive(query);
+                    query.flip();
+
+                    // The query echoed back without the QR bit
+                    spoofer.send(query.duplicate(), client);
+
+                    // A response to a different question
+                    ByteBuffer other = ByteBuffer.allocate(query.remaining()).put(query.duplicate());
+                    other.flip();
+                    other.put(DnsMessageOverlay.HEADER_LENGTH + 1, (byte) 'x');
+                    spoofer.send(new DnsResponseBuilder(other).addAnswer("xost9.example.com", DnsRecordType.A,
+                            DnsRecordClass.IN, 300, new byte[] { 10, 0, 0, 66 }).build(), client);
+
+                    spoofer.send(new DnsResponseBuilder(query).addAnswer("host9.example.com", DnsRecordType.A,
+                            DnsRecordClass.IN, 300, new byte[] { 10, 0, 0, 9 }).build(), client);
+                } catch (IOException e) {
+                    // Channel closed by the test
+                }
+            }
+        });
+        replies.start();
+
+        RelayResolver relay = new RelayResolver(new byte[] { 127, 0, 0, 1 }, PORT + 9);
+        relay.setTimeout(2000);
+        relay.start();
+        try {
+            List<DnsRecord> answers = relay.resolve(new DnsQuestion("host9.example.com", DnsRecordType.A,
+                    DnsRecordClass.IN));
+            Assert.assertEquals(1, answers.size());
+            Assert.assertArrayEquals(new byte[] { 10, 0, 0, 9 }, answers.get(0).getResourceData());
+        } finally {
+            relay.stop();
+            spoofer.close();
+            replies.join(1000);
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsRecord;
+import org.code_revue.dns.message.DnsRecordType;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestRootZoneMirror {
+
+    static final String ROOT_ZONE =
+            "; Cut down root zone for testing\n" +
+            "$TTL 86400\n" +
+            ".\t86400\tIN\tSOA\ta.root-servers.net. nstld.verisign-grs.com. (\n" +
+            "\t\t2024010100 ; serial\n" +
+            "\t\t1800 900 604800 86400 )\n" +
+            ".\t518400\tIN\tNS\ta.root-servers.net.\n" +
+            "com.\t172800\tIN\tNS\ta.gtld-servers.net.\n" +
+            "\t172800\tIN\tNS\tb.gtld-servers.net.\n" +
+            "com.\t86400\tIN\tDS\t19718 13 2 8ACBB0CD28F41250A80A491389424D341522D946B0DA0C0291F2D3D771D7805A\n" +
+            "NET.\tIN\t172800\tNS\ta.gtld-servers.net.\n" +
+            "a.gtld-servers.net.\t172800\tIN\tA\t127.0.0.2\n" +
+            "a.gtld-servers.net.\t172800\tIN\tAAAA\t2001:503:a83e::2:30\n" +
+            "a.root-servers.net.\t518400\tIN\tA\t198.41.0.4\n";
+
+    private Path zoneFile;
+    private RootZoneMirror mirror;
+
+    @Before
+    public void setup() throws IOException {
+        zoneFile = Files.createTempFile("root", ".zone");
+        Files.write(zoneFile, ROOT_ZONE.getBytes(StandardCharsets.US_ASCII));
+        mirror = new RootZoneMirror(zoneFile);
+    }
+
+    @After
+    public void teardown() throws IOException {
+        Files.deleteIfExists(zoneFile);
+    }
+
+    @Test
+    public void loadRootZone() throws IOException {
+        Assert.assertFalse(mirror.isUsable());
+        mirror.load();
+
+        Assert.assertTrue(mirror.isUsable());
+        Assert.assertEquals(2024010100L, mirror.getSerial());
+        Assert.assertEquals(2, mirror.getTopLevelDomainCount());
+
+        List<DnsRecord> nameServers = mirror.getNameServers("COM");
+        Assert.assertEquals(2, nameServers.size());
+        Assert.assertEquals(DnsRecordType.NS, nameServers.get(0).getRecordType());
+        Assert.assertEquals(172800, nameServers.get(1).getTtl());
+        Assert.assertTrue(mirror.hasTopLevelDomain("net"));
+        Assert.assertFalse(mirror.hasTopLevelDomain("lan"));
+
+        List<DnsRecord> glue = mirror.getAddresses("a.gtld-servers.net");
+        Assert.assertEquals(1, glue.size());
+        Assert.assertArrayEquals(new byte[] { 127, 0, 0, 2 }, glue.get(0).getResourceData());
+        Assert.assertTrue("Root server addresses are not glue", mirror.getAddresses("a.root-servers.net").isEmpty());
+    }
+
+    @Test
+    public void refreshOnlyWhenModified() throws IOException {
+        mirror.load();
+        Files.write(zoneFile, ROOT_ZONE.replace("2024010100", "2024010200").replace("NET.", "org.")
+                .getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(zoneFile, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+        mirror.refresh();
+        Assert.assertEquals(2024010200L, mirror.getSerial());
+        Assert.assertTrue(mirror.hasTopLevelDomain("org"));
+        Assert.assertFalse(mirror.hasTopLevelDomain("net"));
+    }
+
+    @Test
+    public void keepPreviousZoneOnError() throws IOException {
+        mirror.load();
+        Files.write(zoneFile, "com. IN NS a.gtld-servers.net.\n".getBytes(StandardCharsets.US_ASCII));
+        Files.setLastModifiedTime(zoneFile, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+
+        mirror.refresh();
+        Assert.assertTrue(mirror.isUsable());
+        Assert.assertEquals(2024010100L, mirror.getSerial());
+        Assert.assertTrue(mirror.hasTopLevelDomain("net"));
+    }
+
+}
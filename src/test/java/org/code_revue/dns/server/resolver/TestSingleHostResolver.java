@@ -0,0 +1,41 @@
+package org.code_revue.dns.server.resolver;
+
+import org.code_revue.dns.message.DnsQuestion;
+import org.code_revue.dns.message.DnsRecordClass;
+import org.code_revue.dns.message.DnsRecordType;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestSingleHostResolver {
+
+    @Test
+    public void exceptionsMatchWholeLabels() {
+        SingleHostResolver resolver = new SingleHostResolver(new byte[] { 10, 0, 0, 1 });
+        resolver.addException("ytmnd.com");
+
+        Assert.assertTrue(resolver.resolve(question("ytmnd.com")).isEmpty());
+        Assert.assertTrue(resolver.resolve(question("www.YTMND.com")).isEmpty());
+        Assert.assertNull(resolver.getResponseTemplate(question("a.b.ytmnd.com")));
+        Assert.assertEquals(1, resolver.resolve(question("notytmnd.com")).size());
+        Assert.assertNotNull(resolver.getResponseTemplate(question("notytmnd.com")));
+
+        resolver.removeException("YTMND.COM");
+        Assert.assertEquals(1, resolver.resolve(question("www.ytmnd.com")).size());
+
+        resolver.setExceptionList(Arrays.asList("example.com", "Example.NET"));
+        Assert.assertTrue(resolver.resolve(question("mail.example.net")).isEmpty());
+        Assert.assertEquals(1, resolver.resolve(question("example.org")).size());
+        Assert.assertEquals(2, resolver.getExceptionList().size());
+        Assert.assertTrue(resolver.getExceptionList().contains("example.net"));
+    }
+
+    private static DnsQuestion question(String name) {
+        return new DnsQuestion(name, DnsRecordType.A, DnsRecordClass.IN);
+    }
+
+}
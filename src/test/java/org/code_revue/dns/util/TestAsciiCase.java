@@ -0,0 +1,58 @@
+package org.code_revue.dns.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestAsciiCase {
+
+    @Test
+    public void foldWordsLikeBytes() {
+        for (int value = 0; value < 256; value++) {
+            byte b = (byte) value;
+            int expected = Character.toLowerCase((char) value);
+            if (value >= 0x80) {
+                expected = value;
+            }
+            Assert.assertEquals(expected, AsciiCase.toLowerCase(b));
+
+            // Surround the byte with neighbours that are and are not letters, to catch carries between lanes
+            long word = 0x5a405b41ff7a60L << 8 | value;
+            long folded = AsciiCase.toLowerCase(word);
+            Assert.assertEquals(expected, (int) (folded & 0xff));
+            Assert.assertEquals(0x7a405b61ff7a60L, folded >>> 8);
+        }
+    }
+
+    @Test
+    public void compareIgnoringCase() {
+        ByteBuffer a = ByteBuffer.wrap("xxWWW.Example-Domain.COM".getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer b = ByteBuffer.wrap("www.example-domain.com".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertTrue(AsciiCase.equalsIgnoreCase(a, 2, b, 0, b.limit()));
+        Assert.assertFalse(AsciiCase.equalsIgnoreCase(a, 1, b, 0, b.limit()));
+
+        // '@' and '`' differ only in the case bit but are not letters
+        ByteBuffer at = ByteBuffer.wrap("abcdefgh@".getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer backtick = ByteBuffer.wrap("ABCDEFGH`".getBytes(StandardCharsets.US_ASCII));
+        Assert.assertTrue(AsciiCase.equalsIgnoreCase(at, 0, backtick, 0, 8));
+        Assert.assertFalse(AsciiCase.equalsIgnoreCase(at, 0, backtick, 0, 9));
+    }
+
+    @Test
+    public void hashIndependentOfCaseOffsetAndOrder() {
+        byte[] lower = "mail.example-domain.com".getBytes(StandardCharsets.US_ASCII);
+        byte[] upper = "???MAIL.Example-Domain.COM".getBytes(StandardCharsets.US_ASCII);
+        int expected = AsciiCase.hashIgnoreCase(7, ByteBuffer.wrap(lower), 0, lower.length);
+        Assert.assertEquals(expected, AsciiCase.hashIgnoreCase(7, ByteBuffer.wrap(upper), 3, lower.length));
+        Assert.assertEquals(expected, AsciiCase.hashIgnoreCase(7,
+                ByteBuffer.wrap(upper).order(ByteOrder.LITTLE_ENDIAN), 3, lower.length));
+        Assert.assertTrue(expected != AsciiCase.hashIgnoreCase(7, ByteBuffer.wrap(upper), 2, lower.length));
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.code_revue.dns.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestByteBufferUtils {
+
+    @Test
+    public void readCompressedNames() {
+        ByteBuffer message = ByteBuffer.allocate(64);
+        message.position(12);
+        ByteBufferUtils.writeDomainName("example.com", message);
+        int mail = message.position();
+        message.put((byte) 4).put("mail".getBytes()).putShort((short) 0xc00c);
+        int smtp = message.position();
+        message.put((byte) 4).put("smtp".getBytes()).putShort((short) (0xc000 | mail));
+        int end = message.position();
+        message.flip();
+
+        Assert.assertEquals("example.com", ByteBufferUtils.readDomainName(message, 12));
+        Assert.assertEquals("mail.example.com", ByteBufferUtils.readDomainName(message, mail));
+        Assert.assertEquals("smtp.mail.example.com", ByteBufferUtils.readDomainName(message, smtp));
+        Assert.assertEquals(end, ByteBufferUtils.skipDomainName(message, smtp));
+
+        message.position(mail);
+        Assert.assertEquals("mail.example.com", ByteBufferUtils.readDomainName(message));
+        Assert.assertEquals(smtp, message.position());
+        Assert.assertEquals("smtp.mail.example.com", ByteBufferUtils.readDomainName(message));
+        Assert.assertEquals(end, message.position());
+    }
+
+    @Test
+    public void rejectMalformedNames() {
+        // Pointer to itself
+        assertRejected(new byte[] { (byte) 0xc0, 12 });
+        // Pointer back into its own labels
+        assertRejected(new byte[] { 1, 'a', (byte) 0xc0, 12 });
+        // Forward reference
+        assertRejected(new byte[] { (byte) 0xc0, 14, 1, 'a', 0 });
+        // Runs off the end of the message
+        assertRejected(new byte[] { 5, 'a', 'b' });
+        // Reserved label type
+        assertRejected(new byte[] { 0x41, 'a', 0 });
+
+        // Too long once the pointers are followed, even though each piece is fine
+        ByteBuffer message = ByteBuffer.allocate(512);
+        message.position(12);
+        int previous = -1;
+        for (int i = 0; i < 5; i++) {
+            int start = message.position();
+            message.put((byte) 60).put(new byte[60]);
+            if (previous < 0) {
+                message.put((byte) 0);
+            } else {
+                message.putShort((short) (0xc000 | previous));
+            }
+            previous = start;
+        }
+        message.flip();
+        try {
+            ByteBufferUtils.readDomainName(message, previous);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    private static void assertRejected(byte[] name) {
+        ByteBuffer message = ByteBuffer.allocate(12 + name.length);
+        message.position(12);
+        message.put(name);
+        message.flip();
+        try {
+            ByteBufferUtils.readDomainName(message, 12);
+            Assert.fail("Accepted malformed name");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+}
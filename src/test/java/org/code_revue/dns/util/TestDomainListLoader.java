@@ -0,0 +1,97 @@
+package org.code_revue.dns.util;
+
+import org.code_revue.dns.message.DnsName;
+import org.code_revue.dns.message.DnsNameTrie;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestDomainListLoader {
+
+    @Test
+    public void loadHostsFile() throws IOException {
+        String hosts = "# Block list\r\n" +
+                "127.0.0.1 localhost\r\n" +
+                "255.255.255.255 broadcasthost\r\n" +
+                "::1 localhost ip6-localhost ip6-loopback\r\n" +
+                "0.0.0.0 0.0.0.0\r\n" +
+                "0.0.0.0 ads.example.com tracker.example.net # two on one line\r\n" +
+                "\r\n" +
+                "127.0.0.1\tADS.example.com.\r\n" +
+                "::1 bad..name\r\n";
+        Path file = Files.createTempFile("hosts", ".txt");
+        try {
+            Files.write(file, hosts.getBytes(StandardCharsets.US_ASCII));
+            DomainListLoader loader = new DomainListLoader(DomainListLoader.Format.HOSTS);
+            DnsNameTrie trie = loader.load(file);
+
+            Assert.assertEquals(2, trie.size());
+            Assert.assertEquals(3, loader.getEntryCount());
+            Assert.assertEquals(2, loader.getRejectedCount());
+            Assert.assertEquals(5, loader.getSkippedCount());
+            Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("localhost")));
+            Assert.assertEquals(0, trie.findLowest(DnsName.valueOf("x.ads.example.com")));
+            Assert.assertEquals(0, trie.findLowest(DnsName.valueOf("tracker.example.net")));
+            Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("example.com")));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void loadDomainList() {
+        DomainListLoader loader = new DomainListLoader(DomainListLoader.Format.DOMAINS);
+        DnsNameTrie trie = loader.load(toBuffer("example.com\n*.example.org\n  spaced.example  \nexample.com"));
+        Assert.assertEquals(3, trie.size());
+        Assert.assertEquals(4, loader.getLineCount());
+        Assert.assertEquals(0, trie.findLowest(DnsName.valueOf("www.example.org")));
+        Assert.assertEquals("Wildcards also cover their apex", 0, trie.findLowest(DnsName.valueOf("example.org")));
+        Assert.assertEquals(0, trie.get(DnsName.valueOf("spaced.example")));
+    }
+
+    @Test
+    public void loadPolicyZone() {
+        String zone = "$TTL 300\n" +
+                "@ IN SOA localhost. root.localhost. (\n" +
+                "    1 ; serial\n" +
+                "    3600 900 86400 300 )\n" +
+                "  IN NS localhost.\n" +
+                "bad.example CNAME .\n" +
+                "*.bad.example CNAME .\n" +
+                "worse.example 300 IN CNAME *.\n" +
+                "    IN A 10.0.0.1\n" +
+                "$ORIGIN rpz.local.\n" +
+                "absolute.example.rpz.local. CNAME rpz-passthru.\n" +
+                "blocked.example.rpz.local. CNAME .\n" +
+                "dropped.example CNAME rpz-drop.\n" +
+                "tcp.example IN CNAME RPZ-TCP-ONLY.\n" +
+                "elsewhere.example. CNAME .\n" +
+                "32.1.0.0.127.rpz-ip CNAME .\n" +
+                "ns.example.rpz-nsdname CNAME .\n";
+        DomainListLoader loader = new DomainListLoader(DomainListLoader.Format.RPZ);
+        DnsNameTrie trie = loader.load(toBuffer(zone));
+        Assert.assertEquals(3, trie.size());
+        Assert.assertEquals(1, loader.getRejectedCount());
+        Assert.assertEquals(3, loader.getSkippedCount());
+        Assert.assertEquals(0, trie.get(DnsName.valueOf("bad.example")));
+        Assert.assertEquals(0, trie.get(DnsName.valueOf("worse.example")));
+        Assert.assertEquals(0, trie.get(DnsName.valueOf("blocked.example")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("absolute.example")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("dropped.example")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("tcp.example")));
+        Assert.assertEquals(-1, trie.findLowest(DnsName.valueOf("localhost")));
+    }
+
+    private static ByteBuffer toBuffer(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+}
@@ -0,0 +1,89 @@
+package org.code_revue.dns.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Mike Fanning
+ */
+public class TestPrefixTrie {
+
+    @Test
+    public void longestMatch() {
+        PrefixTrie<String> trie = new PrefixTrie<>();
+        trie.put(new byte[] { 10, 0, 0, 0 }, 8, "ten");
+        trie.put(new byte[] { 10, 1, 0, 0 }, 16, "ten-one");
+        trie.put(new byte[] { 10, 1, 2, 3 }, 32, "host");
+        trie.put(new byte[] { (byte) 192, (byte) 168, 0, 0 }, 16, "private");
+
+        Assert.assertEquals("ten", trie.findLongestMatch(new byte[] { 10, 2, 0, 1 }));
+        Assert.assertEquals("ten-one", trie.findLongestMatch(new byte[] { 10, 1, 2, 4 }));
+        Assert.assertEquals("host", trie.findLongestMatch(new byte[] { 10, 1, 2, 3 }));
+        Assert.assertEquals("private", trie.findLongestMatch(new byte[] { (byte) 192, (byte) 168, 7, 7 }));
+        Assert.assertNull(trie.findLongestMatch(new byte[] { 11, 0, 0, 1 }));
+        Assert.assertEquals(4, trie.size());
+
+        Assert.assertEquals("ten-one", trie.remove(new byte[] { 10, 1, 9, 9 }, 16));
+        Assert.assertEquals("ten", trie.findLongestMatch(new byte[] { 10, 1, 2, 4 }));
+        Assert.assertEquals("host", trie.findLongestMatch(new byte[] { 10, 1, 2, 3 }));
+        Assert.assertNull(trie.remove(new byte[] { 10, 1, 0, 0 }, 16));
+
+        trie.put(new byte[4], 0, "default");
+        Assert.assertEquals("default", trie.findLongestMatch(new byte[] { 11, 0, 0, 1 }));
+        Assert.assertEquals(4, trie.size());
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        Random random = new Random(1053);
+        PrefixTrie<Integer> trie = new PrefixTrie<>();
+        List<byte[]> addresses = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+
+        // Few distinct leading bytes so that prefixes nest and diverge part way through bytes
+        for (int i = 0; i < 2000; i++) {
+            byte[] address = new byte[] { (byte) random.nextInt(4), (byte) random.nextInt(256),
+                    (byte) random.nextInt(256), (byte) random.nextInt(256) };
+            int length = random.nextInt(33);
+            if (null == trie.put(address, length, i)) {
+                addresses.add(address);
+                lengths.add(length);
+            } else {
+                trie.remove(address, length);
+                trie.put(address, length, i);
+            }
+        }
+        for (int i = 0; i < addresses.size(); i += 3) {
+            Assert.assertNotNull(trie.remove(addresses.get(i), lengths.get(i)));
+        }
+
+        for (int i = 0; i < 5000; i++) {
+            byte[] address = new byte[] { (byte) random.nextInt(4), (byte) random.nextInt(256),
+                    (byte) random.nextInt(256), (byte) random.nextInt(256) };
+            int bestLength = -1;
+            Integer expected = null;
+            for (int j = 0; j < addresses.size(); j++) {
+                if (0 != j % 3 && lengths.get(j) > bestLength && contains(addresses.get(j), lengths.get(j), address)) {
+                    bestLength = lengths.get(j);
+                    expected = trie.get(addresses.get(j), bestLength);
+                }
+            }
+            Assert.assertEquals(expected, trie.findLongestMatch(address));
+        }
+    }
+
+    private static boolean contains(byte[] prefix, int length, byte[] address) {
+        for (int bit = 0; bit < length; bit++) {
+            int mask = 0x80 >>> (bit & 7);
+            if ((prefix[bit >>> 3] & mask) != (address[bit >>> 3] & mask)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}